@@ -5,6 +5,10 @@ if [ -d build ]; then
   rm -rf build
 fi
 
+if [ -d build-test ]; then
+  rm -rf build-test
+fi
+
 if [ -d lib ]; then
   rm -rf lib
 fi
@@ -15,6 +19,12 @@ mkdir lib
 # Compile code
 javac -d build src/chord/*.java
 
+# Check that the wire and log formats read back
+mkdir build-test
+javac -cp build -d build-test test/chord/*.java
+java -Dchord.compress=deflate -cp build:build-test chord.FormatCheck || exit 1
+rm -rf build-test
+
 # Create jar file
 cd build
 jar -cfe chord.jar chord/NodeSetup chord/*.class
@@ -0,0 +1,604 @@
+package chord;
+
+/******************************************************************************
+ * Filename: BinaryCodec.java
+ * 
+ * Description: This file defines the compact binary wire format.  Each
+ * message is sent as one frame:
+ * 
+ *     [version : 1 byte] [length : varint] [payload : length bytes]
+ * 
+ * and the payload is laid out as:
+ * 
+ *     [opcode : 1 byte] [field mask : varint] [present fields, in bit order]
+ * 
+ * Integers are written as zig-zag varints, strings as a varint byte count
+ * followed by UTF-8 bytes, and lists as a varint count followed by their
+ * elements, except that lists of URLs are front-coded (see URLBlocks).  Keys
+ * and node IDs, which may be up to 160 bits wide, are written as a varint
+ * byte count followed by the unsigned big-endian value.  A NodeRef is
+ * written as its ID, host and port, so routing messages stay the same size
+ * no matter how much data the nodes store.
+ * 
+ * Author: Kristin Dahl
+ * Date: 10-17-2026
+ *****************************************************************************/
+
+import static chord.ChordUtil.MAX_FRAME_SIZE;
+import static chord.ChordUtil.PROTOCOL_VERSION;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+public class BinaryCodec implements WireCodec {
+	// Field mask bits
+	private static final int F_KEY        = 1;
+	private static final int F_INDEX      = 1 << 1;
+	private static final int F_TRACE      = 1 << 2;
+	private static final int F_NODE       = 1 << 3;
+	private static final int F_HOST       = 1 << 4;
+	private static final int F_PORT       = 1 << 5;
+	private static final int F_URLS       = 1 << 6;
+	private static final int F_KEYS       = 1 << 7;
+	private static final int F_NODE_TRACE = 1 << 8;
+	private static final int F_STATS      = 1 << 9;
+	private static final int F_SUCC       = 1 << 10;
+	private static final int F_PRED       = 1 << 11;
+	private static final int F_FINGERS    = 1 << 12;
+	private static final int F_TARGET     = 1 << 13;
+	private static final int F_SUCC_LIST  = 1 << 14;
+	private static final int F_VALUES     = 1 << 15;
+	private static final int F_VERSION    = 1 << 16;
+	private static final int F_REQUEST_ID = 1 << 17;
+	private static final int F_QUERY      = 1 << 18;
+	private static final int F_FILTER     = 1 << 19;
+	private static final int F_CURSOR     = 1 << 20;
+
+	public MessageChannel open(Socket socket) throws IOException {
+		return new BinaryChannel(socket);
+	}
+
+	
+	/*
+	 * Function name: encode(Message m)
+	 * 
+	 * Description: This function returns the payload bytes for a message,
+	 * without the frame header.
+	 */
+	public static byte[] encode(Message m) {
+		Writer w = new Writer();
+		int mask = 0;
+
+		if (m.key != null)           mask |= F_KEY;
+		if (m.index != Message.NONE) mask |= F_INDEX;
+		if (m.trace)                 mask |= F_TRACE;
+		if (m.node != null)          mask |= F_NODE;
+		if (m.host != null)          mask |= F_HOST;
+		if (m.port != Message.NONE)  mask |= F_PORT;
+		if (m.urls != null || m.urlView != null) mask |= F_URLS;
+		if (m.keys != null)          mask |= F_KEYS;
+		if (m.nodeTrace != null)     mask |= F_NODE_TRACE;
+		if (m.stats != null)         mask |= F_STATS;
+		if (m.successor != null)     mask |= F_SUCC;
+		if (m.predecessor != null)   mask |= F_PRED;
+		if (m.fingers != null)       mask |= F_FINGERS;
+		if (m.target != null)        mask |= F_TARGET;
+		if (m.successors != null)    mask |= F_SUCC_LIST;
+		if (m.values != null)        mask |= F_VALUES;
+		if (m.version != 0)          mask |= F_VERSION;
+		if (m.requestId != 0)        mask |= F_REQUEST_ID;
+		if (m.query != null)         mask |= F_QUERY;
+		if (m.filter != null)        mask |= F_FILTER;
+		if (m.cursor != null)        mask |= F_CURSOR;
+
+		w.writeByte(m.op);
+		w.writeVarint(mask);
+
+		if ((mask & F_KEY) != 0)   w.writeID(m.key);
+		if ((mask & F_INDEX) != 0) w.writeSigned(m.index);
+		if ((mask & F_NODE) != 0)  writeRef(w, m.node);
+		if ((mask & F_HOST) != 0)  w.writeString(m.host);
+		if ((mask & F_PORT) != 0)  w.writeVarint(m.port);
+
+		if ((mask & F_URLS) != 0 && m.urls == null) {
+			m.urlView.writeTo(w);
+		} else if ((mask & F_URLS) != 0) {
+			URLBlocks.write(w, m.urls);
+		}
+		if ((mask & F_KEYS) != 0) {
+			writeIDList(w, m.keys);
+		}
+		if ((mask & F_NODE_TRACE) != 0) {
+			writeIDList(w, m.nodeTrace);
+		}
+		if ((mask & F_STATS) != 0) {
+			w.writeVarint(m.stats.size());
+			for (Map.Entry<String, Long> e : m.stats.entrySet()) {
+				w.writeString(e.getKey());
+				w.writeSignedLong(e.getValue());
+			}
+		}
+		if ((mask & F_SUCC) != 0) writeRef(w, m.successor);
+		if ((mask & F_PRED) != 0) writeRef(w, m.predecessor);
+		if ((mask & F_FINGERS) != 0) {
+			w.writeVarint(m.fingers.size());
+			for (int i = 0; i < m.fingers.size(); i++) {
+				w.writeID(m.fingers.get(i).start);
+				writeRef(w, m.fingers.get(i).node);
+			}
+		}
+		if ((mask & F_TARGET) != 0) w.writeID(m.target);
+		if ((mask & F_SUCC_LIST) != 0) {
+			w.writeVarint(m.successors.size());
+			for (int i = 0; i < m.successors.size(); i++) {
+				writeRef(w, m.successors.get(i));
+			}
+		}
+		if ((mask & F_VALUES) != 0) {
+			w.writeVarint(m.values.size());
+			for (ArrayList<String> list : m.values) {
+				URLBlocks.write(w, list);
+			}
+		}
+		if ((mask & F_VERSION) != 0) w.writeVarlong(m.version);
+		if ((mask & F_REQUEST_ID) != 0) w.writeVarlong(m.requestId);
+		if ((mask & F_QUERY) != 0) w.writeString(m.query);
+		if ((mask & F_FILTER) != 0) {
+			long[] bits = m.filter.bits();
+			w.writeVarint(m.filter.hashes());
+			w.writeVarint(bits.length);
+			for (long b : bits) {
+				w.writeLong(b);
+			}
+		}
+		if ((mask & F_CURSOR) != 0) w.writeString(m.cursor);
+		return w.toByteArray();
+	}
+
+	/*
+	 * Function name: decode(byte[] buf, int off, int len)
+	 * 
+	 * Description: This function rebuilds a message from payload bytes that
+	 * were produced by encode().
+	 */
+	public static Message decode(byte[] buf, int off, int len) throws IOException {
+		Reader r = new Reader(buf, off, len);
+		Message m = new Message((byte) r.readByte());
+		int mask = r.readVarint();
+
+		m.trace = (mask & F_TRACE) != 0;
+		if ((mask & F_KEY) != 0)   m.key   = r.readID();
+		if ((mask & F_INDEX) != 0) m.index = r.readSigned();
+		if ((mask & F_NODE) != 0)  m.node  = readRef(r);
+		if ((mask & F_HOST) != 0)  m.host  = r.readString();
+		if ((mask & F_PORT) != 0)  m.port  = r.readVarint();
+
+		if ((mask & F_URLS) != 0) {
+			m.urls = URLBlocks.read(r);
+		}
+		if ((mask & F_KEYS) != 0) {
+			m.keys = readIDList(r);
+		}
+		if ((mask & F_NODE_TRACE) != 0) {
+			m.nodeTrace = readIDList(r);
+		}
+		if ((mask & F_STATS) != 0) {
+			int n = r.readCount(2);
+			m.stats = new LinkedHashMap<String, Long>();
+			for (int i = 0; i < n; i++) {
+				m.stats.put(r.readString(), r.readSignedLong());
+			}
+		}
+		if ((mask & F_SUCC) != 0) m.successor   = readRef(r);
+		if ((mask & F_PRED) != 0) m.predecessor = readRef(r);
+		if ((mask & F_FINGERS) != 0) {
+			int n = r.readCount(4);
+			m.fingers = new ArrayList<Finger>(n);
+			for (int i = 0; i < n; i++) {
+				BigInteger start = r.readID();
+				m.fingers.add(new Finger(start, readRef(r)));
+			}
+		}
+		if ((mask & F_TARGET) != 0) m.target = r.readID();
+		if ((mask & F_SUCC_LIST) != 0) {
+			int n = r.readCount(3);
+			m.successors = new ArrayList<NodeRef>(n);
+			for (int i = 0; i < n; i++) {
+				m.successors.add(readRef(r));
+			}
+		}
+		if ((mask & F_VALUES) != 0) {
+			int n = r.readCount(1);
+			m.values = new ArrayList<ArrayList<String>>(n);
+			for (int i = 0; i < n; i++) {
+				m.values.add(URLBlocks.read(r));
+			}
+		}
+		if ((mask & F_VERSION) != 0) m.version = r.readVarlong();
+		if ((mask & F_REQUEST_ID) != 0) m.requestId = r.readVarlong();
+		if ((mask & F_QUERY) != 0) m.query = r.readString();
+		if ((mask & F_FILTER) != 0) {
+			int hashes = r.readVarint();
+			int n = r.readVarint();
+			// Checked before the array is allocated: each word takes 8 bytes
+			if (n <= 0 || n > r.remaining() / 8 || hashes <= 0 || hashes > BloomFilter.MAX_HASHES) {
+				throw new IOException("Malformed filter");
+			}
+			long[] bits = new long[n];
+			for (int i = 0; i < n; i++) {
+				bits[i] = r.readLong();
+			}
+			m.filter = new BloomFilter(bits, hashes);
+		}
+		if ((mask & F_CURSOR) != 0) m.cursor = r.readString();
+		return m;
+	}
+
+	/*
+	 * Function name: frame(Message m)
+	 * 
+	 * Description: This function returns a complete frame for a message: the
+	 * version byte, the payload length and the payload.
+	 */
+	public static byte[] frame(Message m) {
+		byte[] payload = encode(m);
+		Writer w = new Writer();
+		w.writeByte(PROTOCOL_VERSION);
+		w.writeVarint(payload.length);
+		w.writeBytes(payload, 0, payload.length);
+		return w.toByteArray();
+	}
+
+	/*
+	 * Function name: readFrame(ByteBuffer buf)
+	 * 
+	 * Description: This function decodes one frame from a heap buffer that is
+	 * in read mode. If the buffer does not yet hold a complete frame, null is
+	 * returned and the buffer position is left unchanged.
+	 */
+	public static Message readFrame(ByteBuffer buf) throws IOException {
+		int start = buf.position();
+		if (!buf.hasRemaining()) {
+			return null;
+		}
+
+		int version = buf.get();
+		if (version != PROTOCOL_VERSION) {
+			throw new IOException("Unsupported protocol version " + version);
+		}
+
+		int len = 0;
+		for (int shift = 0; ; shift += 7) {
+			if (!buf.hasRemaining()) {
+				buf.position(start);
+				return null;
+			}
+			if (shift >= 32) {
+				throw new IOException("Malformed varint");
+			}
+			int b = buf.get();
+			len |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				break;
+			}
+		}
+
+		if (len < 0 || len > MAX_FRAME_SIZE) {
+			throw new IOException("Bad frame length " + len);
+		}
+		if (buf.remaining() < len) {
+			buf.position(start);
+			return null;
+		}
+
+		Message m = decode(buf.array(), buf.arrayOffset() + buf.position(), len);
+		buf.position(buf.position() + len);
+		return m;
+	}
+
+	private static void writeIDList(Writer w, ArrayList<BigInteger> list) {
+		w.writeVarint(list.size());
+		for (int i = 0; i < list.size(); i++) {
+			w.writeID(list.get(i));
+		}
+	}
+
+	private static ArrayList<BigInteger> readIDList(Reader r) throws IOException {
+		int n = r.readCount(1);
+		ArrayList<BigInteger> list = new ArrayList<BigInteger>(n);
+		for (int i = 0; i < n; i++) {
+			list.add(r.readID());
+		}
+		return list;
+	}
+
+	private static void writeRef(Writer w, NodeRef n) {
+		w.writeID(n.id);
+		w.writeString(n.host);
+		w.writeVarint(n.port);
+	}
+
+	private static NodeRef readRef(Reader r) throws IOException {
+		return new NodeRef(r.readID(), r.readString(), r.readVarint());
+	}
+
+	
+	/*
+	 * Writer is a growable byte buffer with varint helpers.
+	 */
+	static class Writer {
+		private byte[] buf = new byte[64];
+		private int len;
+
+		private void ensure(int extra) {
+			if (len + extra > buf.length) {
+				buf = Arrays.copyOf(buf, Math.max(buf.length * 2, len + extra));
+			}
+		}
+
+		void writeByte(int b) {
+			ensure(1);
+			buf[len++] = (byte) b;
+		}
+
+		void writeBytes(byte[] b, int off, int n) {
+			ensure(n);
+			System.arraycopy(b, off, buf, len, n);
+			len += n;
+		}
+
+		void writeVarint(int v) {
+			writeVarlong(v & 0xFFFFFFFFL);
+		}
+
+		void writeVarlong(long v) {
+			ensure(10);
+			while ((v & ~0x7FL) != 0) {
+				buf[len++] = (byte) ((v & 0x7F) | 0x80);
+				v >>>= 7;
+			}
+			buf[len++] = (byte) v;
+		}
+
+		void writeSigned(int v) {
+			writeVarint((v << 1) ^ (v >> 31));
+		}
+
+		void writeSignedLong(long v) {
+			writeVarlong((v << 1) ^ (v >> 63));
+		}
+
+		// Bits are dense, so they are written as eight bytes, not a varint
+		void writeLong(long v) {
+			ensure(8);
+			for (int i = 0; i < 8; i++) {
+				buf[len++] = (byte) (v >>> (i * 8));
+			}
+		}
+
+		void writeString(String s) {
+			byte[] b = s.getBytes(StandardCharsets.UTF_8);
+			writeVarint(b.length);
+			writeBytes(b, 0, b.length);
+		}
+
+		void writeID(BigInteger id) {
+			byte[] b = id.toByteArray();
+			int off = (b.length > 1 && b[0] == 0) ? 1 : 0;	// Drop the sign byte
+			writeVarint(b.length - off);
+			writeBytes(b, off, b.length - off);
+		}
+
+		int size() {
+			return len;
+		}
+
+		// Empties the buffer, keeping its capacity
+		void reset() {
+			len = 0;
+		}
+
+		// The buffer itself, of which the first size() bytes are written
+		byte[] array() {
+			return buf;
+		}
+
+		byte[] toByteArray() {
+			return Arrays.copyOf(buf, len);
+		}
+
+		void writeTo(OutputStream out) throws IOException {
+			out.write(buf, 0, len);
+		}
+	}
+
+	/*
+	 * Reader walks a byte array that was filled by a Writer.
+	 */
+	static class Reader {
+		private final byte[] buf;
+		private int pos;
+		private final int end;
+
+		Reader(byte[] buf, int off, int len) {
+			this.buf = buf;
+			this.pos = off;
+			this.end = off + len;
+		}
+
+		int readByte() throws IOException {
+			if (pos >= end) {
+				throw new EOFException("Truncated message");
+			}
+			return buf[pos++];
+		}
+
+		long readVarlong() throws IOException {
+			long v = 0;
+			for (int shift = 0; shift < 64; shift += 7) {
+				int b = readByte();
+				v |= (long) (b & 0x7F) << shift;
+				if ((b & 0x80) == 0) {
+					return v;
+				}
+			}
+			throw new IOException("Malformed varint");
+		}
+
+		int readVarint() throws IOException {
+			return (int) readVarlong();
+		}
+
+		// Reads the length of a list whose elements take at least minBytes
+		// each, and checks it against the bytes left before anything is
+		// allocated for it
+		int readCount(int minBytes) throws IOException {
+			int n = readVarint();
+			if (n < 0 || n > remaining() / minBytes) {
+				throw new IOException("bad frame");
+			}
+			return n;
+		}
+
+		int readSigned() throws IOException {
+			int v = readVarint();
+			return (v >>> 1) ^ -(v & 1);
+		}
+
+		long readSignedLong() throws IOException {
+			long v = readVarlong();
+			return (v >>> 1) ^ -(v & 1);
+		}
+
+		long readLong() throws IOException {
+			if (pos + 8 > end) {
+				throw new EOFException("Truncated long");
+			}
+			long v = 0;
+			for (int i = 0; i < 8; i++) {
+				v |= (buf[pos++] & 0xFFL) << (i * 8);
+			}
+			return v;
+		}
+
+		String readString() throws IOException {
+			int n = readVarint();
+			if (n < 0 || pos + n > end) {
+				throw new EOFException("Truncated string");
+			}
+			String s = new String(buf, pos, n, StandardCharsets.UTF_8);
+			pos += n;
+			return s;
+		}
+
+		BigInteger readID() throws IOException {
+			int n = readVarint();
+			if (n < 0 || pos + n > end) {
+				throw new EOFException("Truncated ID");
+			}
+			BigInteger id = new BigInteger(1, Arrays.copyOfRange(buf, pos, pos + n));
+			pos += n;
+			return id;
+		}
+
+		// Copies the next n bytes into dst at off
+		void readBytes(byte[] dst, int off, int n) throws IOException {
+			if (n < 0 || pos + n > end) {
+				throw new EOFException("Truncated bytes");
+			}
+			System.arraycopy(buf, pos, dst, off, n);
+			pos += n;
+		}
+
+		// Skips the next n bytes and returns their offset in array()
+		int skip(int n) throws IOException {
+			if (n < 0 || pos + n > end) {
+				throw new EOFException("Truncated bytes");
+			}
+			pos += n;
+			return pos - n;
+		}
+
+		byte[] array() {
+			return buf;
+		}
+
+		boolean hasMore() {
+			return pos < end;
+		}
+
+		int remaining() {
+			return end - pos;
+		}
+	}
+
+	
+	/*
+	 * BinaryChannel reads and writes framed messages on a socket.
+	 */
+	private static class BinaryChannel implements MessageChannel {
+		private final Socket socket;
+		private final DataInputStream in;
+		private final BufferedOutputStream out;
+
+		BinaryChannel(Socket socket) throws IOException {
+			this.socket = socket;
+			this.in  = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			this.out = new BufferedOutputStream(socket.getOutputStream());
+		}
+
+		public void send(Message m) throws IOException {
+			out.write(frame(m));
+			out.flush();
+		}
+
+		public Message receive() throws IOException {
+			int version = in.read();
+			if (version < 0) {
+				throw new EOFException();
+			}
+			if (version != PROTOCOL_VERSION) {
+				throw new IOException("Unsupported protocol version " + version);
+			}
+
+			int len = readVarint();
+			if (len < 0 || len > MAX_FRAME_SIZE) {
+				throw new IOException("Bad frame length " + len);
+			}
+
+			byte[] payload = new byte[len];
+			in.readFully(payload);
+			return decode(payload, 0, len);
+		}
+
+		private int readVarint() throws IOException {
+			int v = 0;
+			for (int shift = 0; shift < 32; shift += 7) {
+				int b = in.readUnsignedByte();
+				v |= (b & 0x7F) << shift;
+				if ((b & 0x80) == 0) {
+					return v;
+				}
+			}
+			throw new IOException("Malformed varint");
+		}
+
+		public void close() {
+			try {
+				socket.close();
+			} catch (IOException e) {}
+		}
+	}
+}
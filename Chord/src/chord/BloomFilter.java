@@ -0,0 +1,118 @@
+package chord;
+
+/******************************************************************************
+ * Filename: BloomFilter.java
+ * 
+ * Description: The BloomFilter class holds a compact, approximate set of
+ * URLs.  A node evaluating an AND query sends the filter of its candidate
+ * URLs to the owner of the next tag instead of the URLs themselves, and the
+ * owner sends back only its URLs that pass the filter.  A URL in the set
+ * always passes; a URL that is not in it passes with a small probability, so
+ * the node that built the filter checks the URLs it gets back against its
+ * candidates.
+ * 
+ * The bits are chosen by double hashing of a 64-bit FNV-1a hash of the URL,
+ * which does not depend on the JVM, so a filter can be built and probed on
+ * different nodes.
+ * 
+ * Author: Kristin Dahl
+ * Date: 10-17-2026
+ *****************************************************************************/
+
+import java.io.Serializable;
+import java.util.Collection;
+
+public final class BloomFilter implements Serializable {
+	private static final long serialVersionUID = 4725410937611085122L;
+
+	static final int MAX_HASHES = 16;
+
+	private final long[] bits;
+	private final int hashes;
+
+
+	// BloomFilter constructor, for urls with a false-positive rate of fpp
+	public BloomFilter(Collection<String> urls, double fpp) {
+		int n = Math.max(1, urls.size());
+		long m = (long) Math.ceil(-n * Math.log(fpp) / (Math.log(2) * Math.log(2)));
+
+		this.bits = new long[(int) Math.max(1, (m + 63) / 64)];
+		this.hashes = (int) Math.max(1, Math.min(MAX_HASHES, Math.round((double) bits.length * 64 / n * Math.log(2))));
+
+		for (String url : urls) {
+			add(url);
+		}
+	}
+
+	// BloomFilter constructor, for a filter read from the wire
+	public BloomFilter(long[] bits, int hashes) {
+		this.bits = bits;
+		this.hashes = hashes;
+	}
+
+	/*
+	 * Function name: add(String url)
+	 * 
+	 * Description: This function adds url to the filter.
+	 */
+	public void add(String url) {
+		long h = hash(url);
+		int h1 = (int) h;
+		int h2 = (int) (h >>> 32);
+		long m = (long) bits.length * 64;
+
+		for (int i = 0; i < hashes; i++) {
+			long bit = ((h1 + (long) i * h2) & Long.MAX_VALUE) % m;
+			bits[(int) (bit >>> 6)] |= 1L << bit;
+		}
+	}
+
+	/*
+	 * Function name: mightContain(String url)
+	 * 
+	 * Description: This function returns false if url was never added to
+	 * the filter, and true if it probably was.
+	 */
+	public boolean mightContain(String url) {
+		long h = hash(url);
+		int h1 = (int) h;
+		int h2 = (int) (h >>> 32);
+		long m = (long) bits.length * 64;
+
+		for (int i = 0; i < hashes; i++) {
+			long bit = ((h1 + (long) i * h2) & Long.MAX_VALUE) % m;
+			if ((bits[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/*
+	 * Function name: size()
+	 * 
+	 * Description: This function returns the size of the filter on the wire,
+	 * in bytes.
+	 */
+	public int size() {
+		return bits.length * 8 + 2;
+	}
+
+	public long[] bits() {
+		return bits;
+	}
+
+	public int hashes() {
+		return hashes;
+	}
+
+	// 64-bit FNV-1a over the characters of s
+	private static long hash(String s) {
+		long h = 0xcbf29ce484222325L;
+		for (int i = 0; i < s.length(); i++) {
+			h ^= s.charAt(i);
+			h *= 0x100000001b3L;
+		}
+		return h ^ (h >>> 31);
+	}
+}
@@ -10,38 +10,326 @@ package chord;
  * Date: 9-6-2016
  *****************************************************************************/
 
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+
 public class ChordUtil {
-	public static final int M = 6;
+	// Identifier space.  IDs are M-bit numbers taken from the top bits of a
+	// SHA-1 digest, so M can be set anywhere from 1 to 160 with -Dchord.m.
+	public static final int M = Math.max(1, Math.min(160, Integer.getInteger("chord.m", 6)));
+	public static final BigInteger RING_SIZE = BigInteger.ONE.shiftLeft(M);
+	public static final BigInteger ID_MASK   = RING_SIZE.subtract(BigInteger.ONE);
+
+	// FINGER_OFFSET[k] is 2^(k-1), the distance from a node to its k-th finger start.
+	public static final BigInteger FINGER_OFFSET[] = fingerOffsets();
+
 	public static final int MAX_NODES = 10;
-	public static final int SUPERNODE_ID = 1;
+	public static final BigInteger SUPERNODE_ID = BigInteger.ONE;
 	public static final String HOST = "localhost";
 
 	// PORT_LIST is the list of ports that the nodes will be running on.
 	public static final int SUPERNODE_PORT_NUM = 5370;
 	public static final int PORT_LIST[] = { SUPERNODE_PORT_NUM, 55356, 55350, 5358, 5359, 5360, 5361, 5362, 5363, 5364 };
+	public static final NodeRef SUPERNODE = new NodeRef(SUPERNODE_ID, HOST, SUPERNODE_PORT_NUM);
+
+	// Number of virtual nodes (ring IDs) hosted by each regular node, set with
+	// -Dchord.vnodes.  The SuperNode always has the single ID SUPERNODE_ID.
+	public static final int VNODES = Math.max(1, Integer.getInteger("chord.vnodes", 1));
+
+	// Replication.  Every entry is stored on its owner and on the owner's next
+	// REPLICAS - 1 successors, set with -Dchord.replicas.  READ_MODE is "one"
+	// to read from any single replica or "quorum" to read from a majority of
+	// the replicas, set with -Dchord.read.
+	public static final int    REPLICAS  = Math.max(1, Integer.getInteger("chord.replicas", 1));
+	public static final String READ_MODE = System.getProperty("chord.read", "one");
+
+	// Owner cache.  The SuperNode remembers the owners of up to
+	// OWNER_CACHE_SIZE recently used tags, set with -Dchord.cache.size (0
+	// turns the cache off).
+	public static final int OWNER_CACHE_SIZE = Integer.getInteger("chord.cache.size", 1024);
+
+	// Client routing.  With CLIENT_ROUTING set to "seed" the client sends each
+	// request to the next of the CLIENT_SEEDS nodes in turn, skipping nodes
+	// that cannot be reached, and that node routes it.  With "ring" it
+	// downloads a snapshot of the ring once and sends requests straight to
+	// the owner of each tag.  Set with -Dchord.client.routing and with
+	// -Dchord.seeds, a comma-separated list of ports or host:port pairs.
+	public static final String CLIENT_ROUTING = System.getProperty("chord.client.routing", "seed");
+	public static final ArrayList<NodeRef> CLIENT_SEEDS = seedList(System.getProperty("chord.seeds", String.valueOf(SUPERNODE_PORT_NUM)));
+
+	// Forwarded requests.  A node that has passed a client request on to another
+	// node answers the client with ERR if no answer has come back after
+	// FORWARD_TIMEOUT_MS, set with -Dchord.forward.timeout.ms.
+	public static final long FORWARD_TIMEOUT_MS = Long.getLong("chord.forward.timeout.ms", 10000);
+
+	// Hedged reads.  When a replica has not answered a read within the
+	// HEDGE_PERCENTILE-th percentile of its recent response times, the read is
+	// also sent to the next replica and the first answer is used.  Every read
+	// earns HEDGE_BUDGET percent of a hedge, and at most HEDGE_BURST unspent
+	// hedges are kept, so HEDGE_BUDGET percent of recent reads are hedged and
+	// a slow spell cannot use up what was saved long before.  HEDGE_DEFAULT_US
+	// is used until a replica has HEDGE_MIN_SAMPLES response times.  Set with
+	// -Dchord.hedge.percentile (0 turns hedging off), -Dchord.hedge.budget and
+	// -Dchord.hedge.burst.
+	public static final int  HEDGE_PERCENTILE  = Integer.getInteger("chord.hedge.percentile", 95);
+	public static final int  HEDGE_BUDGET      = Integer.getInteger("chord.hedge.budget", 10);
+	public static final int  HEDGE_BURST       = Math.max(1, Integer.getInteger("chord.hedge.burst", 10));
+	public static final long HEDGE_DEFAULT_US  = 10000;
+	public static final long HEDGE_MIN_SAMPLES = 20;
+
+	// Multi-tag subscribe.  The entry node looks up and reads all tags of a
+	// query at once, and answers the client with whatever it has gathered
+	// after SUBSCRIBE_DEADLINE_MS, set with -Dchord.subscribe.deadline.ms.
+	public static final long SUBSCRIBE_DEADLINE_MS = Long.getLong("chord.subscribe.deadline.ms", 2000);
+
+	// Paging.  The client reads a tag PAGE_SIZE URLs at a time, in sorted order,
+	// and asks for each page with the last URL of the one before (see
+	// InvertedIndex.view()).  Set with -Dchord.page.size (0 reads a tag at once).
+	public static final int PAGE_SIZE = Integer.getInteger("chord.page.size", 1000);
+
+	// Semi-joins.  A node evaluating an AND query sends the owner of a tag a
+	// Bloom filter of its candidate URLs, with a false-positive rate of
+	// BLOOM_FPP, instead of the URLs, whenever the filter and the false
+	// positives it lets through are expected to be smaller than the URLs.
+	// Set with -Dchord.bloom.fpp (0 turns the filters off).
+	public static final double BLOOM_FPP = Double.parseDouble(System.getProperty("chord.bloom.fpp", "0.01"));
+
+	// Entry store.  STORE is "heap" (the default), which keeps each node's URLs
+	// and posting lists as Java objects, or "offheap", which keeps them in
+	// direct buffers outside the garbage-collected heap (see PostingStore).
+	// Set with -Dchord.store.
+	public static final String STORE = System.getProperty("chord.store", "heap");
+
+	// Tiering.  When HOT_BYTES is set above 0, with -Dchord.hot.bytes, each
+	// physical node keeps about that many bytes of posting lists in the entry
+	// store, and moves the tags read least often to segment files of up to
+	// COLD_SEGMENT_BYTES in a temporary directory under COLD_DIR (see
+	// TieredStore).  Tags are moved, and the files compacted, every
+	// TIER_INTERVAL_MS.
+	public static final long HOT_BYTES = Long.getLong("chord.hot.bytes", 0);
+	public static final String COLD_DIR = System.getProperty("chord.cold.dir", System.getProperty("java.io.tmpdir"));
+	public static final long COLD_SEGMENT_BYTES = Long.getLong("chord.cold.segment.bytes", 64 << 20);
+	public static final long TIER_INTERVAL_MS = Long.getLong("chord.tier.ms", 1000);
+
+	// Persistence.  When DATA_DIR is set, with -Dchord.data.dir, each physical
+	// node logs the changes to its entries in DATA_DIR/node-<port> and loads
+	// them again when it starts (see IndexLog).  FSYNC_POLICY, set with
+	// -Dchord.fsync, is "always" (a publish is answered once it is on disk),
+	// "interval" (the log is synced every FSYNC_INTERVAL_MS) or "never".  A
+	// snapshot is written every SNAPSHOT_INTERVAL_MS if the entries changed.
+	public static final String DATA_DIR = System.getProperty("chord.data.dir");
+	public static final String FSYNC_POLICY = System.getProperty("chord.fsync", "always");
+	public static final long FSYNC_INTERVAL_MS = Long.getLong("chord.fsync.ms", 100);
+	public static final long SNAPSHOT_INTERVAL_MS = Long.getLong("chord.snapshot.ms", 60000);
+
+	// Stabilization.  Every vnode runs stabilize, fixFingers and checkPredecessor
+	// once per interval on a shared pool of maintenance threads, and keeps a list
+	// of its first SUCCESSOR_LIST_SIZE successors to survive failures.  The list
+	// is at least as long as the number of replicas.
+	public static final long STABILIZE_INTERVAL_MS = Long.getLong("chord.stabilize.ms", 200);
+	public static final int  SUCCESSOR_LIST_SIZE   = Math.max(REPLICAS, Integer.getInteger("chord.successors", 3));
+	public static final int  MAINTENANCE_THREADS   = 4;
+
+	// Key handoff.  A joining node copies its keys from its successor in
+	// batches of at most MIGRATION_BATCH_KEYS keys, set with -Dchord.migrate.batch.
+	public static final int MIGRATION_BATCH_KEYS = Math.max(1, Integer.getInteger("chord.migrate.batch", 64));
+
+	// Graceful leave.  A leaving node streams its keys to its successor in
+	// batches of at most LEAVE_BATCH_KEYS keys, set with -Dchord.leave.batch.
+	public static final int LEAVE_BATCH_KEYS = Math.max(1, Integer.getInteger("chord.leave.batch", 1024));
+
+	// Both kinds of batches, and the keys written during a handoff, carry at
+	// most BATCH_BYTES of URLs, set with -Dchord.batch.bytes, so that they fit
+	// in a frame.  A tag larger than that is sent in parts.
+	public static final int BATCH_BYTES = Math.max(1024, Math.min(ChordUtil.MAX_FRAME_SIZE / 4, Integer.getInteger("chord.batch.bytes", 1 << 20)));
+
+	// Connection pool settings.  Idle connections older than the health check
+	// interval are pinged before reuse, and are closed after the idle timeout.
+	// A call whose answer has not come after POOL_CALL_TIMEOUT_MS, set with
+	// -Dchord.call.timeout.ms, fails.
+	public static final int  POOL_MAX_IDLE_PER_PEER = 4;
+	public static final long POOL_HEALTH_CHECK_MS   = 5000;
+	public static final long POOL_IDLE_TIMEOUT_MS   = 30000;
+	public static final int  POOL_CALL_TIMEOUT_MS   = Math.max(1, Integer.getInteger("chord.call.timeout.ms", 60000));
+
+	// Wire format.  See WireCodec for the supported codecs.  With the binary
+	// codec, lists of URLs are sent as front-coded blocks (see URLBlocks), which
+	// are also deflated when COMPRESS, set with -Dchord.compress, is "deflate".
+	public static final byte PROTOCOL_VERSION = 3;
+	public static final int  MAX_FRAME_SIZE   = 16 * 1024 * 1024;
+	public static final WireCodec CODEC = "object".equals(System.getProperty("chord.codec"))
+			? new ObjectCodec() : new BinaryCodec();
+	public static final String COMPRESS = System.getProperty("chord.compress", "none");
+
+	// Server mode for each node, chosen with the chord.server system property:
+	//     nio     - selector event loop with a pool of handler threads that keeps
+	//               HANDLER_THREADS threads and grows while they are busy (default)
+	//     single  - one thread per connection, one request at a time per node
+	//     virtual - one thread per connection and one per request; the threads are
+	//               virtual threads when the JVM supports them
+	public static final String SERVER_MODE     = System.getProperty("chord.server", "nio");
+	public static final int    HANDLER_THREADS = Integer.getInteger("chord.handlers", 16);
+
+	// Message opcodes.  Responses carry OK or ERR.
+	public static final byte OK   = 0;
+	public static final byte ERR  = 1;
+	public static final byte JOIN = 2;
+	public static final byte PING = 3;
+
+	public static final byte PUBLISH    = 4;
+	public static final byte SUBSCRIBE  = 5;
+	public static final byte PRINT_DATA = 6;
+
+	public static final byte GET_NODE  = 7;
+	public static final byte FIND_SUCC = 8;
+	public static final byte FIND_PRED = 9;
+
+	public static final byte CLOSEST_PRE_FINGER  = 12;
+	public static final byte NOTIFY              = 13;
+
+	public static final byte MIGRATE = 14;
+	public static final byte HANDOFF = 15;
+
+	public static final byte LEAVE    = 16;
+	public static final byte TRANSFER = 17;
+	public static final byte DEPART   = 18;
+
+	public static final byte REPLICATE = 19;
+	public static final byte FETCH     = 20;
+
+	public static final byte RING_CHANGE   = 21;
+	public static final byte RING_SNAPSHOT = 22;
+
+	public static final byte REPLY = 23;
+
+	public static final byte QUERY     = 24;
+	public static final byte COUNT     = 25;
+	public static final byte INTERSECT = 26;
+	public static final byte SUBTRACT  = 27;
+	public static final byte FILTER    = 28;
+
+	public static final byte APPEND = 29;
+
+
+	/*
+	 * Function name: hashID(String s)
+	 * 
+	 * Description: This function maps a string onto the identifier circle.
+	 * The ID is the top M bits of the string's SHA-1 digest, so every
+	 * process computes the same ID for the same string and IDs are spread
+	 * evenly over the circle.
+	 */
+	public static BigInteger hashID(String s) {
+		try {
+			MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+			byte[] digest = sha1.digest(s.getBytes(StandardCharsets.UTF_8));
+			return new BigInteger(1, digest).shiftRight(160 - M);
+
+		} catch (NoSuchAlgorithmException e) {
+			// Every Java platform is required to provide SHA-1
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/*
+	 * Function name: hashID(String s, int salt)
+	 * 
+	 * Description: This function is used to rehash a string whose ID collides
+	 * with one that is already taken. Salt 0 gives the same ID as hashID(s),
+	 * and each higher salt gives a different, still deterministic, ID.
+	 */
+	public static BigInteger hashID(String s, int salt) {
+		return (salt == 0) ? hashID(s) : hashID(s + "#" + salt);
+	}
+
+	/*
+	 * Function name: addID(BigInteger id, BigInteger offset)
+	 * 
+	 * Description: This function returns (id + offset) mod 2^M.
+	 */
+	public static BigInteger addID(BigInteger id, BigInteger offset) {
+		return id.add(offset).and(ID_MASK);
+	}
+
+	/*
+	 * Function name: subtractID(BigInteger id, BigInteger offset)
+	 * 
+	 * Description: This function returns (id - offset) mod 2^M.
+	 */
+	public static BigInteger subtractID(BigInteger id, BigInteger offset) {
+		return id.subtract(offset).and(ID_MASK);
+	}
 
-	public static final String OK   = "OK";
-	public static final String ERR  = "ERR";
-	public static final String END  = "END";
-	public static final String JOIN = "JOIN";
+	/*
+	 * Function name: onRange(BigInteger keyID, BigInteger fromKey, BigInteger toKey)
+	 * 
+	 * Description: This function determines if keyID falls between fromKey and
+	 * toKey, inclusive, going clockwise around the circle.
+	 */
+	public static boolean onRange(BigInteger keyID, BigInteger fromKey, BigInteger toKey) {
+		boolean result;
 
-	public static final String PUBLISH    = "PUBLISH";
-	public static final String SUBSCRIBE  = "SUBSCRIBE";
-	public static final String PRINT_DATA = "PRINT DATA";
+		if (fromKey.compareTo(toKey) <= 0) {
+			result = (keyID.compareTo(fromKey) >= 0) && (keyID.compareTo(toKey) <= 0);
+		} else {
+			result = (keyID.compareTo(fromKey) >= 0) || (keyID.compareTo(toKey) <= 0);
+		}
+		return result;
+	}
 
-	public static final String GET_NODE  = "GET NODE";
-	public static final String GET_SUCC  = "GET SUCC";
-	public static final String FIND_SUCC = "FIND SUCC";
-	public static final String FIND_PRED = "FIND PRED";
-	public static final String SET_PRED  = "SET PRED";
+	/*
+	 * Function name: onRangeAfter(BigInteger keyID, BigInteger fromKey, BigInteger toKey)
+	 * 
+	 * Description: This function determines if keyID falls after fromKey and
+	 * up to toKey, inclusive, going clockwise around the circle.  It gives the
+	 * same answer as onRange(keyID, addID(fromKey, ONE), toKey) without
+	 * building the shifted ID, so the routing paths can call it on every hop.
+	 * When fromKey equals toKey the range is the whole circle.
+	 */
+	public static boolean onRangeAfter(BigInteger keyID, BigInteger fromKey, BigInteger toKey) {
+		if (fromKey.compareTo(toKey) < 0) {
+			return (keyID.compareTo(fromKey) > 0) && (keyID.compareTo(toKey) <= 0);
+		}
+		return (keyID.compareTo(fromKey) > 0) || (keyID.compareTo(toKey) <= 0);
+	}
 
-	public static final String UPDATE_FINGER_TABLE = "UPDATE FINGER TABLE";
-	public static final String CLOSEST_PRE_FINGER  = "CLOSEST PRE FINGER";
+	/*
+	 * Function name: onRangeBetween(BigInteger keyID, BigInteger fromKey, BigInteger toKey)
+	 * 
+	 * Description: This function determines if keyID falls strictly between
+	 * fromKey and toKey, going clockwise around the circle, without building
+	 * any new IDs.  When fromKey equals toKey the range is every ID but
+	 * fromKey.
+	 */
+	public static boolean onRangeBetween(BigInteger keyID, BigInteger fromKey, BigInteger toKey) {
+		int c = fromKey.compareTo(toKey);
+		if (c < 0) {
+			return (keyID.compareTo(fromKey) > 0) && (keyID.compareTo(toKey) < 0);
+		}
+		if (c > 0) {
+			return (keyID.compareTo(fromKey) > 0) || (keyID.compareTo(toKey) < 0);
+		}
+		return !keyID.equals(fromKey);
+	}
 
-	public static final String SEND_TAG   = "SEND TAG";
-	public static final String SEND_URL   = "SEND URL";
-	public static final String SEND_TRACE = "SEND TRACE";
+	private static ArrayList<NodeRef> seedList(String seeds) {
+		ArrayList<NodeRef> list = new ArrayList<NodeRef>();
+		for (String seed : seeds.split(",")) {
+			int colon = seed.lastIndexOf(':');
+			String host = (colon < 0) ? HOST : seed.substring(0, colon).trim();
+			list.add(new NodeRef(null, host, Integer.parseInt(seed.substring(colon + 1).trim())));
+		}
+		return list;
+	}
 
-	public static final String SEND_HOST = "SEND HOST";
-	public static final String SEND_PORT = "SEND PORT";
+	private static BigInteger[] fingerOffsets() {
+		BigInteger offsets[] = new BigInteger[M + 1];
+		for (int k = 1; k <= M; k++) {
+			offsets[k] = BigInteger.ONE.shiftLeft(k - 1);
+		}
+		return offsets;
+	}
 }
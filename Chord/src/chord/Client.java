@@ -6,58 +6,140 @@ package chord;
  * Description:  This file contains the necessary functions to run the
  *               Client component of a decentralized publish and
  *               subscribe infrastructure.
- *
+ * 
  * Author: Kristin Dahl
  * Date: 9-6-2016
  *****************************************************************************/
 
-import static chord.ChordUtil.END;
+import static chord.ChordUtil.CLIENT_ROUTING;
+import static chord.ChordUtil.CLIENT_SEEDS;
+import static chord.ChordUtil.CODEC;
+import static chord.ChordUtil.DATA_DIR;
 import static chord.ChordUtil.HOST;
-import static chord.ChordUtil.M;
+import static chord.ChordUtil.JOIN;
+import static chord.ChordUtil.LEAVE;
 import static chord.ChordUtil.MAX_NODES;
 import static chord.ChordUtil.OK;
+import static chord.ChordUtil.PAGE_SIZE;
+import static chord.ChordUtil.PORT_LIST;
 import static chord.ChordUtil.PRINT_DATA;
 import static chord.ChordUtil.PUBLISH;
-import static chord.ChordUtil.SEND_TAG;
-import static chord.ChordUtil.SEND_URL;
+import static chord.ChordUtil.QUERY;
+import static chord.ChordUtil.RING_SNAPSHOT;
 import static chord.ChordUtil.SUBSCRIBE;
+import static chord.ChordUtil.SUBSCRIBE_DEADLINE_MS;
+import static chord.ChordUtil.SUPERNODE;
+import static chord.ChordUtil.SUPERNODE_ID;
 import static chord.ChordUtil.SUPERNODE_PORT_NUM;
 
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.net.ServerSocket;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigInteger;
 import java.net.Socket;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Properties;
 import java.util.Scanner;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 public class Client {
-	private static final int CLIENT_PORT = 55372;
+	private static Map<String, BigInteger> hashedTags;
+	private static ArrayList<BigInteger>   nodeTrace;
+	private static ArrayList<String>       urlList;
+	private static RingSnapshot            ring;		// Used when CLIENT_ROUTING is "ring"
+	private static int                     nextSeed;	// Seed for the next request
 
-	private static Map<String, Integer> hashedTags;
-	private static ArrayList<Integer>   nodeTrace;
-	private static ServerSocket         serverSocket;
-	private static ArrayList<String>    urlList;
+	// Open connections to nodes, by host and port, and the queue that the
+	// responses to the current command are delivered to
+	private static Map<String, ClientConnection> connections;
+	private static LinkedBlockingQueue<Message>  responses;
 
 	private static ClientUtil myUtil;
 
 	public static void execute() {
 		System.out.println("Welcome to the Chord-based publish/subscribe system.\n");
 
-		try {
-			serverSocket = new ServerSocket(CLIENT_PORT);
-		} catch (Exception e) {}
-
 		myUtil = new ClientUtil();
 		urlList = new ArrayList<String>();
-		nodeTrace = new ArrayList<Integer>(MAX_NODES);
-		hashedTags = new HashMap<String, Integer>(50);
+		nodeTrace = new ArrayList<BigInteger>(MAX_NODES);
+		hashedTags = new HashMap<String, BigInteger>(50);
+		loadTags();
+		connections = new HashMap<String, ClientConnection>();
+		responses = new LinkedBlockingQueue<Message>();
 		
 		printMenu();
 	}
 
 	
+	/*
+	 * Function name: loadTags()
+	 * 
+	 * Description: This function reads the hashed tags that were published
+	 * before the system was last stopped, if DATA_DIR is set. The nodes keep
+	 * the entries, but only the client knows which tag each hash stands for.
+	 */
+	public static void loadTags() {
+		File file = (DATA_DIR != null) ? new File(DATA_DIR, "tags.properties") : null;
+		if (file == null || !file.exists()) {
+			return;
+		}
+
+		Properties tags = new Properties();
+		try {
+			InputStream in = new FileInputStream(file);
+			try {
+				tags.load(in);
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			System.out.println("Exception caught: " + e);
+			e.printStackTrace();
+			System.exit(1);
+		}
+
+		for (String tag : tags.stringPropertyNames()) {
+			hashedTags.put(tag, new BigInteger(tags.getProperty(tag)));
+		}
+	}
+
+	/*
+	 * Function name: saveTags()
+	 * 
+	 * Description: This function writes the hashed tags to DATA_DIR, if it
+	 * is set, so that they can be subscribed to after a restart.
+	 */
+	public static void saveTags() {
+		if (DATA_DIR == null) {
+			return;
+		}
+
+		Properties tags = new Properties();
+		for (Map.Entry<String, BigInteger> e : hashedTags.entrySet()) {
+			tags.setProperty(e.getKey(), e.getValue().toString());
+		}
+
+		try {
+			new File(DATA_DIR).mkdirs();
+			OutputStream out = new FileOutputStream(new File(DATA_DIR, "tags.properties"));
+			try {
+				tags.store(out, "Hashed tags");
+			} finally {
+				out.close();
+			}
+		} catch (IOException e) {
+			System.out.println("Exception caught: " + e);
+			e.printStackTrace();
+			System.exit(1);
+		}
+	}
+
 	/*
 	 * Function name: printMenu()
 	 * 
@@ -68,11 +150,18 @@ public class Client {
 		nodeTrace.clear();
 		urlList.clear();
 
+		// Drop any responses that the last command did not wait for
+		for (ClientConnection conn : connections.values()) {
+			conn.forget(responses);
+		}
+		responses = new LinkedBlockingQueue<Message>();
+
 		System.out.println("********* Menu *********");
 		System.out.println("Publish  ------  Press 1");
 		System.out.println("Subscribe  ----  Press 2");
 		System.out.println("View DHT  -----  Press 3");
-		System.out.println("Exit  ---------  Press 4");
+		System.out.println("Restart Ring  -  Press 4");
+		System.out.println("Exit  ---------  Press 5");
 		System.out.println("************************");
 		
 		System.out.print("\nEnter a command: ");
@@ -96,6 +185,9 @@ public class Client {
 			requestDHTData();
 			break;
 		case 4:
+			restartRing();
+			break;
+		case 5:
 			System.out.println("Now exiting.  Bye!\n");
 			System.exit(1);
 		default:
@@ -122,7 +214,7 @@ public class Client {
 		String tag = null;
 		String url = null;
 		String choice = null;
-		int hashTag;
+		BigInteger hashTag;
 		Scanner in = new Scanner(System.in);
 
 		// Get tag from user. Client must hash tags.
@@ -144,16 +236,19 @@ public class Client {
 		}
 
 		// Determine if tag already exists. If not, it must be hashed and
-		// added to the hashedTags table.
+		// added to the hashedTags table. A tag whose hash is already used by
+		// another tag is rehashed with a salt.
 		if (hashedTags.containsKey(tag)) {
 			hashTag = hashedTags.get(tag);
 
 		} else {
-			hashTag = myUtil.hashTag(tag);
+			int salt = 0;
+			hashTag = myUtil.hashTag(tag, salt);
 			while (hashedTags.containsValue(hashTag)) {
-				hashTag = myUtil.hashTag(tag);
+				hashTag = myUtil.hashTag(tag, ++salt);
 			}
 			hashedTags.put(tag, hashTag);
+			saveTags();
 		}
 
 		// Contact SuperNode with request to publish.
@@ -174,52 +269,51 @@ public class Client {
 	 * Function name: subscribe()
 	 * 
 	 * Description: This function gathers the necessary user input for the
-	 * subscribe functionality and then checks whether the user-entered tag is
-	 * valid. If it is, then it forwards the tag to the SuperNode and displays
-	 * the resulsts. If the tag is not valid, then it displays this message to
-	 * the user.
+	 * subscribe functionality and then checks whether the user-entered query
+	 * is valid. If it is, then it forwards the query to the ring and displays
+	 * the resulsts. If the query is not valid, then it displays this message
+	 * to the user. A single tag is read a page at a time (see subscribeTag());
+	 * any other query is evaluated by a seed node, which sends back only the
+	 * matching URLs.
 	 */
 	public static void subscribe() {
 		System.out.println("\n\n------- Subscribe -------");
 		System.out.print("Please enter a query: ");
 
-		ArrayList<Integer> validTagList = new ArrayList<Integer>();
-
-		String retVal[] = null;
-		String query = null;
+		QueryPlan plan = null;
 		Scanner in = new Scanner(System.in);
-		Map<Integer, ArrayList<String>> tagsToURLs = new HashMap<Integer, ArrayList<String>>();
 		ArrayList<String> queryURLs;
 		
 		// Get query from user.
 		try {
-			query = in.nextLine();
-			retVal = myUtil.parseSubscribeQuery(query, hashedTags, validTagList);
+			plan = QueryPlan.parse(in.nextLine(), hashedTags);
 		} catch (Exception e) {}
 
 		// Determine whether user entered valid data.
-		if (retVal == null) {
+		if (plan == null) {
 			System.out.println("\nInvalid query.\n\n");
 			return;
 		} else {
-			if (validTagList.isEmpty()) {
+			if (plan.op == QueryPlan.NONE) {
 				System.out.println("\nNo matching URLs were found.\n\n");
 				return;
 			}
-			for (int i = 0; i < validTagList.size(); i++) {
-				System.out.println("Hashed tag is: " + validTagList.get(i));
+			for (BigInteger hashTag : plan.tags()) {
+				System.out.println("Hashed tag is: " + hashTag);
 			}
 		}
 
-		// Contact SuperNode with request to subscribe.
-		requestSubscribe(validTagList);
-
-		// Now wait for a response from the node(s).
-		for (int j = 0; j < validTagList.size(); j++) {
-			tagsToURLs.put(j, receiveSubscribeResponse());
+		if (plan.op == QueryPlan.TAG) {
+			subscribeTag(plan.tag);
+			return;
 		}
 
-		queryURLs = myUtil.matchQueryURLs(tagsToURLs, query);
+		requestQuery(plan);
+		queryURLs = receiveQueryResponse();
+		if (queryURLs == null) {
+			System.out.println("\nUnable to complete subscribe request.");
+			return;
+		}
 		
 		// Display results to user.
 		if (queryURLs.size() == 0) {
@@ -233,114 +327,110 @@ public class Client {
 	}
 
 	/*
-	 * Function name: requestPublish(int hashedTag)
+	 * Function name: subscribeTag(BigInteger hashTag)
 	 * 
-	 * Description: This function contacts the SuperNode with a request to
-	 * publish a set of URLs. The input is the generated hashTag. The URLs to
-	 * add are located in the global urlList array.
+	 * Description: This function subscribes to a single tag and prints its
+	 * URLs as they arrive, PAGE_SIZE at a time in sorted order, and returns
+	 * how many there were. Each page is asked for with the last URL of the
+	 * one before, as soon as that page has arrived and before it is printed,
+	 * so one page is on its way while the client prints the other and
+	 * neither the client nor the node holds more than two pages. With ring
+	 * routing, the client stops waiting for a page at its deadline; a seed
+	 * node answers by its own deadline.
 	 */
-	public static void requestPublish(int hashedTag) {
-		Socket connected = null;
-		String fromclient = null;
-
-		ObjectInputStream objectIn = null;
-		ObjectOutputStream objectOut = null;
+	public static int subscribeTag(BigInteger hashTag) {
+		System.out.println("\nSending subscribe data...");
+		requestSubscribe(hashTag, null);
+		int found = 0;
+
+		while (true) {
+			long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(SUBSCRIBE_DEADLINE_MS);
+			Message page = receiveSubscribeResponse(CLIENT_ROUTING.equals("ring") ? deadline : 0);
+			if (page == null) {
+				System.out.println("\nThe tag was not answered in time; some URLs may be missing.");
+				return found;
+			}
+			if (page.op != OK) {
+				System.out.println("\nA node could not be reached; some URLs may be missing.");
+				return found;
+			}
+			if (page.cursor != null) {
+				requestSubscribe(hashTag, page.cursor);
+			}
 
-		try {
-			connected = new Socket(HOST, SUPERNODE_PORT_NUM);
-			objectIn  = new ObjectInputStream(connected.getInputStream());
-			objectOut = new ObjectOutputStream(connected.getOutputStream());
-
-			// Send PUBLISH Request
-			objectOut.writeObject(PUBLISH);
-			objectOut.flush();
-			fromclient = (String) objectIn.readObject();
-
-			System.out.println("Sending publish data...");
-
-			// Send tag
-			if (fromclient.equals(SEND_TAG)) {
-				objectOut.writeInt(hashedTag);
-				objectOut.flush();
-				fromclient = (String) objectIn.readObject();
+			if (found == 0) {
+				System.out.println(page.urls.isEmpty() ? "\nNo matching URLs were found." : "\nURLs found:");
+			}
+			for (int i = 0; i < page.urls.size(); i++) {
+				System.out.println("- " + page.urls.get(i));
 			}
+			found += page.urls.size();
 
-			// Send URLs
-			if (fromclient.equals(SEND_URL)) {
-				for (int i = 0; i < urlList.size(); i++) {
-					objectOut.writeObject(urlList.get(i));
-					objectOut.flush();
-				}
+			if (page.cursor == null) {
+				return found;
 			}
+		}
+	}
 
-			objectOut.writeObject(END);
-			objectOut.flush();
-			objectOut.writeObject(HOST);
-			objectOut.flush();
-			objectOut.writeInt(CLIENT_PORT);
-			objectOut.flush();
+	/*
+	 * Function name: requestPublish(BigInteger hashedTag)
+	 * 
+	 * Description: This function contacts a seed node with a request to
+	 * publish a set of URLs. The input is the generated hashTag. The URLs to
+	 * add are located in the global urlList array. With ring routing, the
+	 * request goes straight to the tag's owner instead.
+	 */
+	public static void requestPublish(BigInteger hashedTag) {
+		System.out.println("Sending publish data...");
 
-			connected.close();
-			objectIn.close();
-			objectOut.close();
-		} catch (Exception e) {
-			System.out.println("Exception caught: " + e);
-			System.exit(1);
+		Message request = new Message(PUBLISH);
+		request.key  = hashedTag;
+		request.urls = urlList;
+
+		if (CLIENT_ROUTING.equals("ring")) {
+			sendToOwner(request);
+		} else {
+			sendToSeed(request);
 		}
 	}
 
 	
 	/*
-	 * Function name: requestSubscribe(ArrayList<Integer> validTagList)
+	 * Function name: requestSubscribe(BigInteger hashTag, String cursor)
 	 * 
-	 * Description: This function contacts the SuperNode with a request to
-	 * subscribe to the given tag(s). The input is a list of hashed tags. After
-	 * sending all of the tags to the SuperNode, the connection is closed and
-	 * the function returns.
+	 * Description: This function contacts a seed node with a request for the
+	 * page of the tag hashTag that follows the URL cursor, or for its first
+	 * page if cursor is null. With ring routing, the request goes straight
+	 * to the tag's owner instead.
 	 */
-	public static void requestSubscribe(ArrayList<Integer> validTagList) {
-		Socket connected  = null;
-		String fromclient = null;
-
-		ObjectInputStream objectIn = null;
-		ObjectOutputStream objectOut = null;
-		System.out.println("\nSending subscribe data...");
-		
-		try {
-			connected = new Socket(HOST, SUPERNODE_PORT_NUM);
-			objectIn  = new ObjectInputStream(connected.getInputStream());
-			objectOut = new ObjectOutputStream(connected.getOutputStream());
-
-			// Send SUBSCRIBE Request
-			objectOut.writeObject(SUBSCRIBE);
-			objectOut.flush();
-			fromclient = (String) objectIn.readObject();
-
-			// Send tags
-			if (fromclient.equals(SEND_TAG)) {
-				for (int i = 0; i < validTagList.size(); i++) {
-					objectOut.writeInt(validTagList.get(i));
-					objectOut.flush();
-				}
-			}
+	public static void requestSubscribe(BigInteger hashTag, String cursor) {
+		Message request = new Message(SUBSCRIBE);
+		request.key = hashTag;
+		request.cursor = cursor;
+		if (PAGE_SIZE > 0) {
+			request.index = PAGE_SIZE;
+		}
 
-			// -1 Indicates that there are no more tags to send
-			objectOut.writeInt(-1);
-			objectOut.flush();
+		if (CLIENT_ROUTING.equals("ring")) {
+			sendToOwner(request);
+		} else {
+			sendToSeed(request);
+		}
+	}
+	
 
-			// Write the client's port number
-			objectOut.writeInt(CLIENT_PORT);
-			objectOut.flush();
+	/*
+	 * Function name: requestQuery(QueryPlan plan)
+	 * 
+	 * Description: This function contacts a seed node with a boolean query,
+	 * which the seed node evaluates on the owners of its tags.
+	 */
+	public static void requestQuery(QueryPlan plan) {
+		System.out.println("\nSending subscribe data...");
 
-			// Clean up
-			connected.close();
-			objectIn.close();
-			objectOut.close();
-		} catch (Exception e) {
-			System.out.println("Exception caught: " + e);
-			e.printStackTrace();
-			System.exit(1);
-		}
+		Message request = new Message(QUERY);
+		plan.encode(request);
+		sendToSeed(request);
 	}
 	
 
@@ -349,79 +439,226 @@ public class Client {
 	 * 
 	 * Description: This function contacts the SuperNode with a request for node
 	 * data so that the DHT structure can be printed out. The SuperNode responds
-	 * immediately with its own data. Then, receivePrintData is called to
-	 * receive all of the other nodes' data.
+	 * with its own data and then with the data of every other (v)node in ring
+	 * order. receivePrintData is called for each of them, until the node
+	 * whose successor is the SuperNode has answered.
 	 */
 	public static void requestDHTData() {
-		Socket connected  = null;
-
-		ObjectOutputStream objectOut  = null;
-		ObjectInputStream  objectIn   = null;
 		ArrayList<PrintData> nodeData = new ArrayList<PrintData>(MAX_NODES);
 		
 		System.out.println("Requesting data...\n");
+
 		try {
-			connected = new Socket(HOST, SUPERNODE_PORT_NUM);
-			objectOut = new ObjectOutputStream(connected.getOutputStream());
-
-			// Send PRINT_DATA Request
-			objectOut.writeObject(PRINT_DATA);
-			objectOut.flush();
-			
-			// Send port
-			objectOut.writeInt(CLIENT_PORT);
-			objectOut.flush();
-
-			// Send host
-			objectOut.writeObject(HOST);
-			objectOut.flush();
-			
-			// Wait for OK
-			objectIn = new ObjectInputStream(connected.getInputStream());
-			String fromclient = (String) objectIn.readObject();
-			
-			// Clean up
-			if (fromclient.equals(OK)) {
-				connected.close();
-				objectOut.close();
+			sendTo(SUPERNODE, new Message(PRINT_DATA));
+		} catch (IOException e) {
+			System.out.println("Exception caught: " + e);
+			e.printStackTrace();
+			System.exit(1);
+		}
+
+		boolean last = false;
+		while (!last) {
+			last = receivePrintData(nodeData);
+		}
+
+		myUtil.displayPrintData(nodeData);
+	}
+
+	/*
+	 * Function name: restartRing()
+	 * 
+	 * Description: This function performs a rolling restart of the ring. One
+	 * node at a time is asked to LEAVE, which moves its keys to its successor,
+	 * and is then sent a JOIN for each of its IDs, which moves them back. The
+	 * time taken for each node and for the whole ring is displayed.
+	 */
+	public static void restartRing() {
+		System.out.println("\n\n---- Restart Ring ----");
+		long ringStart = System.nanoTime();
+
+		for (int i = 1; i < PORT_LIST.length; i++) {
+			long start = System.nanoTime();
+			Message left = sendToNode(PORT_LIST[i], new Message(LEAVE));
+			long leaveMs = (System.nanoTime() - start) / 1000000;
+
+			if (left.op != OK) {
+				System.out.println("Node on port " + PORT_LIST[i] + " could not leave the ring.");
+				continue;
 			}
 
-			for (int i = 0; i < MAX_NODES; i++) {
-				receivePrintData(nodeData);
+			for (int k = 0; k < left.keys.size(); k++) {
+				Message join = new Message(JOIN);
+				join.key = left.keys.get(k);
+				sendToNode(PORT_LIST[i], join);
 			}
+			long joinMs = (System.nanoTime() - start) / 1000000 - leaveMs;
 
-			myUtil.displayPrintData(nodeData);
+			System.out.println("Port " + PORT_LIST[i] + ": moved " + left.stats.get("leave.keys") + " keys ("
+					+ left.stats.get("leave.bytes") + " bytes), notified " + left.stats.get("leave.notified")
+					+ " nodes, left in " + leaveMs + " ms, rejoined in " + joinMs + " ms");
+		}
 
-		} catch (Exception e) {
+		System.out.println("\nRing restarted in " + (System.nanoTime() - ringStart) / 1000000 + " ms.\n");
+	}
+
+	/*
+	 * Function name: sendToNode(int port, Message request)
+	 * 
+	 * Description: This function sends a single request message to the node
+	 * on the given port and returns its response.
+	 */
+	public static Message sendToNode(int port, Message request) {
+		MessageChannel channel = null;
+		Message response = null;
+
+		try {
+			channel = CODEC.open(new Socket(HOST, port));
+			channel.send(request);
+			response = channel.receive();
+
+			// Clean up
+			channel.close();
+
+		} catch (IOException e) {
 			System.out.println("Exception caught: " + e);
 			e.printStackTrace();
 			System.exit(1);
 		}
+
+		return response;
 	}
 
-	
 	/*
-	 * Function name: receivePublishResponse()
+	 * Function name: sendToOwner(Message request)
 	 * 
-	 * Description: This function listens for a response to a previously-sent
-	 * publish request. Upon connection, it receives the nodeTrace data to be
-	 * printed out for the user.
+	 * Description: This function sends a publish or subscribe request for
+	 * request.key straight to the key's owner in the client's ring snapshot,
+	 * which is first downloaded from the SuperNode if the client has none.
+	 * The request carries the snapshot's ring version, so that a node that
+	 * no longer owns the key hands it to the SuperNode. If the owner cannot be
+	 * reached, the snapshot is dropped and the request is sent to a seed
+	 * node.
 	 */
-	public static boolean receivePublishResponse() {
+	public static void sendToOwner(Message request) {
+		if (ring == null) {
+			Message snapshot = sendToNode(SUPERNODE_PORT_NUM, new Message(RING_SNAPSHOT));
+			ring = new RingSnapshot(snapshot.successors, snapshot.version);
+		}
+
+		NodeRef owner = ring.ownerOf(request.key);
+		request.target  = owner.id;
+		request.version = ring.version;
+		request.nodeTrace = new ArrayList<BigInteger>();
+		request.nodeTrace.add(owner.id);
+
 		try {
-			Socket connected = serverSocket.accept();
-			ObjectInputStream objectIn = new ObjectInputStream(connected.getInputStream());
+			sendTo(owner, request);
+
+		} catch (IOException e) {
+			ring = null;
+			request.target  = null;
+			request.version = 0;
+			request.nodeTrace = null;
+			sendToSeed(request);
+		}
+	}
+
+	/*
+	 * Function name: checkRoute(Message response)
+	 * 
+	 * Description: This function drops the ring snapshot if a response shows
+	 * that the request did not go straight to the node that answered it, so
+	 * that the next request downloads a new snapshot.
+	 */
+	public static void checkRoute(Message response) {
+		if (ring != null && response.nodeTrace != null && response.nodeTrace.size() > 1) {
+			ring = null;
+		}
+	}
+
+	/*
+	 * Function name: sendToSeed(Message request)
+	 * 
+	 * Description: This function sends a single request message to the next
+	 * seed node, which routes it. The seeds are used in turn, so that the
+	 * requests are spread over all of them. A seed that cannot be reached is
+	 * skipped, and the program exits if none can.
+	 */
+	public static void sendToSeed(Message request) {
+		for (int i = 0; i < CLIENT_SEEDS.size(); i++) {
+			NodeRef seed = CLIENT_SEEDS.get(nextSeed);
+			nextSeed = (nextSeed + 1) % CLIENT_SEEDS.size();
 
-			int fromNode = objectIn.readInt();
+			try {
+				sendTo(seed, request);
+				return;
 
-			while (fromNode != -1) {
-				nodeTrace.add(fromNode);
-				fromNode = objectIn.readInt();
+			} catch (IOException e) {
+				System.out.println("Seed node on port " + seed.port + " is not reachable: " + e.getMessage());
 			}
+		}
 
-			// Clean up
-			connected.close();
-			objectIn.close();
+		System.out.println("No seed node is reachable.");
+		System.exit(1);
+	}
+
+	/*
+	 * Function name: sendTo(NodeRef n, Message request)
+	 * 
+	 * Description: This function sends a request to node n on the client's
+	 * connection to it, which is opened first if there is none, and returns
+	 * without waiting for the answer. The answer is delivered to the
+	 * responses queue.
+	 */
+	public static void sendTo(NodeRef n, Message request) throws IOException {
+		String endpoint = n.host + ":" + n.port;
+		ClientConnection conn = connections.get(endpoint);
+
+		if (conn == null || !conn.isOpen()) {
+			conn = new ClientConnection(n.host, n.port);
+			connections.put(endpoint, conn);
+		}
+		conn.send(request, responses);
+	}
+
+	/*
+	 * Function name: receiveResponse()
+	 * 
+	 * Description: This function waits for the next response to a request of
+	 * the current command. A request whose connection failed is answered
+	 * with ERR.
+	 */
+	public static Message receiveResponse() throws InterruptedException {
+		return responses.take();
+	}
+
+	/*
+	 * Function name: receiveResponse(long deadline)
+	 * 
+	 * Description: This function works like receiveResponse(), but returns
+	 * null if no response has arrived when System.nanoTime() reaches
+	 * deadline.
+	 */
+	public static Message receiveResponse(long deadline) throws InterruptedException {
+		return responses.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+	}
+
+	
+	/*
+	 * Function name: receivePublishResponse()
+	 * 
+	 * Description: This function waits for the response to a previously-sent
+	 * publish request. It receives the nodeTrace data to be printed out for
+	 * the user.
+	 */
+	public static boolean receivePublishResponse() {
+		try {
+			Message response = receiveResponse();
+			if (response.op != OK) {
+				return false;
+			}
+			nodeTrace.addAll(response.nodeTrace);
+			checkRoute(response);
 			return true;
 
 		} catch (Exception e) {
@@ -433,110 +670,98 @@ public class Client {
 
 	
 	/*
-	 * Function name: receiveSubscribeResponse()
+	 * Function name: receiveSubscribeResponse(long deadline)
 	 * 
-	 * Description: This function listens for a response to a previously-sent
-	 * subscribe request. Upon connection, it receives the URLs that were found.
-	 * Also, it receives the nodeTrace data to be printed out for the user.
+	 * Description: This function waits for a page of URLs that was asked
+	 * for with requestSubscribe(), until System.nanoTime() reaches deadline
+	 * if deadline is not 0, and returns it, or null if the deadline has
+	 * passed. Also, it receives the nodeTrace data of the first page, to be
+	 * printed out for the user.
 	 */
-	public static ArrayList<String> receiveSubscribeResponse() {
-		String fromNode = null;
-		ArrayList<String> urls = new ArrayList<String>();
-		
+	public static Message receiveSubscribeResponse(long deadline) {
 		try {
-			Socket connected = serverSocket.accept();
-			ObjectInputStream objectIn = new ObjectInputStream(connected.getInputStream());
-
-			// Request URLs
-			while (true) {
-				fromNode = (String) objectIn.readObject();
-
-				while (!fromNode.equals(END)) {
-					urlList.add(fromNode);
-					urls.add(fromNode);
-					fromNode = (String) objectIn.readObject();
-				}
-
-				int nodeID = objectIn.readInt();
-				
-				while (nodeID != -1) {
-					nodeTrace.add(nodeID);
-					nodeID = objectIn.readInt();
-				}
-				break;
+			Message response = (deadline != 0) ? receiveResponse(deadline) : receiveResponse();
+			if (response == null || response.op != OK) {
+				return response;
+			}
+			if (nodeTrace.isEmpty()) {
+				nodeTrace.addAll(response.nodeTrace);
 			}
+			checkRoute(response);
+			return response;
 
-			// Clean up
-			objectIn.close();
-			connected.close();
-			
+		} catch (Exception e) {
+			System.out.println("Exception caught: " + e);
+			e.printStackTrace();
+			System.exit(1);
+			return null;
+		}
+	}
+
+	/*
+	 * Function name: receiveQueryResponse()
+	 * 
+	 * Description: This function waits for the response to a previously-sent
+	 * query and returns the URLs that match it, or null if the query could
+	 * not be evaluated. Also, it receives the nodeTrace data to be printed
+	 * out for the user.
+	 */
+	public static ArrayList<String> receiveQueryResponse() {
+		try {
+			Message response = receiveResponse();
+			if (response.op != OK) {
+				return null;
+			}
+
+			nodeTrace.addAll(response.nodeTrace);
+			return response.urls;
 
 		} catch (Exception e) {
 			System.out.println("Exception caught: " + e);
 			e.printStackTrace();
 			System.exit(1);
+			return null;
 		}
-		return urls;
 	}
 	
 
 	/*
 	 * Function name: receivePrintData(ArrayList<PrintData> nodeData)
 	 * 
-	 * Description: This function listens for a response to a previously-sent
-	 * node data request. Upon connection, it receives information about the
-	 * connected node. This information includes the node's ID, the number of
-	 * entries it contains, its successor and predecessor nodes, and its finger
-	 * table data.
+	 * Description: This function waits for a response to a previously-sent
+	 * node data request. It receives information about one node. This
+	 * information includes the node's ID, the number of entries it contains,
+	 * its successor and predecessor nodes, its finger table data and its
+	 * counters. It returns true if the node's successor is the SuperNode,
+	 * which means it is the last node on the ring, or if a node could not be
+	 * reached.
 	 */
-	public static void receivePrintData(ArrayList<PrintData> nodeData) {
-		Socket connected = null;
-
-		ObjectInputStream objectIn = null;
-		ObjectOutputStream objectOut = null;
-
+	public static boolean receivePrintData(ArrayList<PrintData> nodeData) {
 		try {
-			connected = serverSocket.accept();
-			objectIn  = new ObjectInputStream(connected.getInputStream());
-			objectOut = new ObjectOutputStream(connected.getOutputStream());
+			Message response = receiveResponse();
+			if (response.op != OK) {
+				System.out.println("A node could not be reached; the data is incomplete.\n");
+				return true;
+			}
 
 			// Receive Node's data
 			PrintData nodeItem = new PrintData();
-			nodeItem.fingers = new ArrayList<Finger>(M + 1);
-
-			// Retrieve nodeID
-			nodeItem.nodeID = objectIn.readInt();
-
-			// Retrieve number of entries
-			nodeItem.numEntries = objectIn.readInt();
-
-			// Retrieve successor ID
-			nodeItem.succID = objectIn.readInt();
-
-			// Retrieve predecessor ID
-			nodeItem.predID = objectIn.readInt();
-
-			// Finger Table Data
-			for (int i = 0; i < M; i++) {
-				Finger nodeFinger = (Finger) objectIn.readObject();
-				nodeItem.fingers.add(nodeFinger);
-			}
+			nodeItem.nodeID  = response.node.id;
+			nodeItem.port    = response.node.port;
+			nodeItem.succID  = response.successor.id;
+			nodeItem.predID  = (response.predecessor != null) ? response.predecessor.id : null;
+			nodeItem.fingers = response.fingers;
+			nodeItem.stats   = response.stats;
+			nodeItem.numEntries = response.stats.get("entries").intValue();
 
 			nodeData.add(nodeItem);
-			objectOut.writeObject(OK);
-			objectOut.flush();
-
-			// Clean up
-			if (((String) objectIn.readObject()).equals(END)) {
-				connected.close();
-				objectIn.close();
-				objectOut.close();
-			}
+			return nodeItem.succID.equals(SUPERNODE_ID);
 
 		} catch (Exception e) {
 			System.out.println("Exception caught: " + e);
 			e.printStackTrace();
 			System.exit(1);
+			return true;
 		}
 	}
 }
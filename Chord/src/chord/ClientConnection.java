@@ -0,0 +1,145 @@
+package chord;
+
+/******************************************************************************
+ * Filename: ClientConnection.java
+ * 
+ * Description: The ClientConnection class is the client's connection to one
+ * node.  The connection stays open, and any number of requests may be sent on
+ * it without waiting for the earlier ones to be answered.  Every request is
+ * given an ID, the node answers on the same connection with that ID, and a
+ * reader thread hands each response to the queue that was given with its
+ * request, so responses can be matched however they are ordered.  Several
+ * requests may share one queue.
+ * 
+ * If the connection fails, every request that is still waiting gets an ERR
+ * response, and the connection can no longer be used.
+ * 
+ * Author: Kristin Dahl
+ * Date: 10-17-2026
+ *****************************************************************************/
+
+import static chord.ChordUtil.CODEC;
+import static chord.ChordUtil.ERR;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class ClientConnection {
+	private static final AtomicLong nextRequestId = new AtomicLong();
+
+	private final MessageChannel channel;
+	private final ConcurrentHashMap<Long, BlockingQueue<Message>> pending = new ConcurrentHashMap<Long, BlockingQueue<Message>>();
+	private volatile boolean closed;
+
+
+	// ClientConnection constructor
+	public ClientConnection(String host, int port) throws IOException {
+		Socket socket = new Socket(host, port);
+		socket.setTcpNoDelay(true);
+		channel = CODEC.open(socket);
+
+		Thread reader = new Thread(new Runnable() {
+			public void run() {
+				readResponses();
+			}
+		});
+		reader.setDaemon(true);
+		reader.start();
+	}
+
+	/*
+	 * Function name: send(Message request, BlockingQueue<Message> responses)
+	 * 
+	 * Description: This function gives the request a new ID, sends it, and
+	 * returns the ID. The responses to the request are added to the given
+	 * queue until forget() is called for it.
+	 */
+	public long send(Message request, BlockingQueue<Message> responses) throws IOException {
+		long id = nextRequestId.incrementAndGet();
+		request.requestId = id;
+		pending.put(id, responses);
+
+		try {
+			synchronized (channel) {
+				if (closed) {
+					throw new IOException("Connection is closed");
+				}
+				channel.send(request);
+			}
+		} catch (IOException e) {
+			pending.remove(id);
+			close();
+			throw e;
+		}
+		return id;
+	}
+
+	/*
+	 * Function name: forget(BlockingQueue<Message> responses)
+	 * 
+	 * Description: This function stops delivering responses to the given
+	 * queue, once the caller has all the responses it waits for.
+	 */
+	public void forget(BlockingQueue<Message> responses) {
+		Iterator<BlockingQueue<Message>> it = pending.values().iterator();
+		while (it.hasNext()) {
+			if (it.next() == responses) {
+				it.remove();
+			}
+		}
+	}
+
+	/*
+	 * Function name: isOpen()
+	 * 
+	 * Description: This function returns false once the connection has
+	 * failed or has been closed.
+	 */
+	public boolean isOpen() {
+		return !closed;
+	}
+
+	/*
+	 * Function name: close()
+	 * 
+	 * Description: This function closes the connection. Requests that are
+	 * still waiting are answered with ERR.
+	 */
+	public void close() {
+		closed = true;
+		channel.close();
+	}
+
+	/*
+	 * Function name: readResponses()
+	 * 
+	 * Description: This function runs on the reader thread. It hands every
+	 * response to the queue of its request until the connection fails, and
+	 * then answers the requests that are still waiting with ERR.
+	 */
+	private void readResponses() {
+		try {
+			while (true) {
+				Message response = channel.receive();
+				BlockingQueue<Message> responses = pending.get(response.requestId);
+				if (responses != null) {
+					responses.add(response);
+				}
+			}
+		} catch (IOException e) {
+			close();
+		}
+
+		for (Map.Entry<Long, BlockingQueue<Message>> p : pending.entrySet()) {
+			Message failed = new Message(ERR);
+			failed.requestId = p.getKey();
+			p.getValue().add(failed);
+		}
+		pending.clear();
+	}
+}
@@ -11,130 +11,23 @@ package chord;
  *****************************************************************************/
 
 import static chord.ChordUtil.M;
-import static chord.ChordUtil.MAX_NODES;
 
-import java.security.MessageDigest;
+import java.math.BigInteger;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.Map;
-import java.util.StringTokenizer;
 
 public class ClientUtil {
 
 	/*
-	 * Function name: hashTag(String tag)
+	 * Function name: hashTag(String tag, int salt)
 	 * 
 	 * Description: This function returns a hash number created for the 'tag'
-	 * input parameter.
+	 * input parameter. A salt other than 0 is used to rehash a tag whose hash
+	 * collides with another tag's. See ChordUtil.hashID().
 	 */
-	public int hashTag(String tag) {
-		byte[] thedigest = null;
-		MessageDigest md5 = null;
-		try {
-			md5 = MessageDigest.getInstance("MD5");
-			byte[] bytesOfTag = tag.getBytes("UTF-8");
-			thedigest = md5.digest(bytesOfTag);
-
-		} catch (Exception e) {
-			e.printStackTrace();
-		}
-		return (thedigest.hashCode() % (int) Math.pow(2, M));
-	}
-
-	
-	/*
-	 * Function name: parseSubscribeQuery(String query, Map<String, Integer> hashedTags, ArrayList<Integer> validTagList)
-	 * 
-	 * Description: This function parses a user-entered query and determines
-	 * whether it is properly formatted or not. Also, this method checks the
-	 * hashedTags table to see whether the tag(s) already exist.
-	 * 
-	 * A '0' return value indicates a malformed query. A '1' return value
-	 * indicates that the query was successfully parsed.
-	 */
-	public String[] parseSubscribeQuery(String query, Map<String, Integer> hashedTags, ArrayList<Integer> validTagList) {
-		StringTokenizer st = new StringTokenizer(query);
-		int stSize = st.countTokens();
-
-		// First, ensure that the user entered a valid number of parameters
-		if ((stSize > 5) || (stSize == 2) || (stSize == 4)) {
-			return null;
-		}
-
-		// Copy tokens to string array
-		String strList[] = new String[stSize];
-		for (int i = 0; i < stSize; i++) {
-			strList[i] = st.nextToken();
-		}
-
-		// If the user entered only one tag, check and return.
-		if (stSize == 1) {
-			if (hashedTags.containsKey(strList[0])) {
-				int tag = hashedTags.get(strList[0]);
-				validTagList.add(tag);
-			}
-			return strList;
-		}
-
-		boolean tag_idx_0_found = false;
-		boolean tag_idx_2_found = false;
-		boolean tag_idx_4_found = false;
-
-		int hash0 = 0;
-		int hash2 = 0;
-		int hash4 = 0;
-
-		// At this point, there must be at least 2 tags to examine (indices 0 and 2)
-		if (hashedTags.containsKey(strList[0])) {
-			tag_idx_0_found = true;
-			hash0 = hashedTags.get((strList[0]));
-		}
-
-		if (hashedTags.containsKey(strList[2])) {
-			tag_idx_2_found = true;
-			hash2 = hashedTags.get((strList[2]));
-		}
-
-		// Examine index 1 - it should be either "and" or "or"
-		if (strList[1].equalsIgnoreCase("and")) {
-			if ((tag_idx_0_found) && (tag_idx_2_found)) {
-				validTagList.add(hash0);
-				validTagList.add(hash2);
-			}
-		} else if (strList[1].equalsIgnoreCase("or")) {
-			if (tag_idx_0_found) {
-				validTagList.add(hash0);
-			}
-			if (tag_idx_2_found) {
-				validTagList.add(hash2);
-			}
-		} else {
-			return null;
-		}
-
-		// If this is the end of the query, then return
-		if (stSize == 3) {
-			return strList;
-		}
-
-		// At this point, there must be at least 3 tags to examine (indices 0, 2, and 4)
-		if (hashedTags.containsKey(strList[4])) {
-			tag_idx_4_found = true;
-			hash4 = hashedTags.get((strList[4]));
-		}
-
-		// Examine index 3 - it should be either "and" or "or"
-		if (strList[3].equalsIgnoreCase("and")) {
-			if ((tag_idx_2_found) && (tag_idx_4_found)) {
-				validTagList.add(hash4);
-			}
-		} else if (strList[3].equalsIgnoreCase("or")) {
-			if (tag_idx_4_found) {
-				validTagList.add(hash4);
-			}
-		} else {
-			return null;
-		}
-		return strList;
+	public BigInteger hashTag(String tag, int salt) {
+		return ChordUtil.hashID(tag, salt);
 	}
 
 	
@@ -142,19 +35,89 @@ public class ClientUtil {
 	 * Function name: displayPrintData(ArrayList<PrintData> nodeData)
 	 * 
 	 * Description: This function formats and prints the node data requested by
-	 * the "View DHT" menu option.
+	 * the "View DHT" menu option, followed by the key load of each physical
+	 * node.
 	 */
 	public void displayPrintData(ArrayList<PrintData> nodeData) {
 		PrintData nodeItem = null;
 
-		for (int i = 0; i < MAX_NODES; i++) {
+		for (int i = 0; i < nodeData.size(); i++) {
 			nodeItem = nodeData.get(i);
 
 			System.out.println("===== Node Data =====");
 			System.out.println("Node ID: " + nodeItem.nodeID);
+			System.out.println("Port: " + nodeItem.port);
 			System.out.println("Entries: " + nodeItem.numEntries);
+			System.out.println("Store: " + nodeItem.stats.get("store.keys") + " tags, "
+					+ nodeItem.stats.get("store.urls") + " distinct URLs, "
+					+ nodeItem.stats.get("store.postings") + " tag-URL pairs in "
+					+ nodeItem.stats.get("store.bytes") + " bytes"
+					+ (nodeItem.stats.get("store.offheap") > 0
+							? " (" + nodeItem.stats.get("store.offheap") + " bytes reserved off-heap)" : ""));
 			System.out.println("Successor ID: " + nodeItem.succID);
 			System.out.println("Predecessor ID: " + nodeItem.predID);
+			System.out.println("Connections: " + nodeItem.stats.get("conn.new") + " new, "
+					+ nodeItem.stats.get("conn.reused") + " reused");
+			System.out.println("Migration: " + nodeItem.stats.get("migrate.keys.in") + " keys ("
+					+ nodeItem.stats.get("migrate.bytes.in") + " bytes) in, "
+					+ nodeItem.stats.get("migrate.keys.out") + " keys ("
+					+ nodeItem.stats.get("migrate.bytes.out") + " bytes) out, "
+					+ nodeItem.stats.get("migrate.ms") + " ms");
+			System.out.println("Replication: " + nodeItem.stats.get("replica.writes") + " writes, "
+					+ nodeItem.stats.get("replica.reads") + " reads, "
+					+ nodeItem.stats.get("replica.pushed") + " keys pushed");
+			if (nodeItem.stats.containsKey("hedge.reads")) {
+				System.out.println("Hedging: " + nodeItem.stats.get("hedge.reads") + " reads, "
+						+ nodeItem.stats.get("hedge.sent") + " hedged ("
+						+ nodeItem.stats.get("hedge.won") + " won, "
+						+ nodeItem.stats.get("hedge.lost") + " lost), "
+						+ nodeItem.stats.get("hedge.denied") + " over budget");
+				System.out.println("Fan-out: " + nodeItem.stats.get("fanout.queries") + " multi-tag queries, "
+						+ nodeItem.stats.get("fanout.tags") + " tags, "
+						+ nodeItem.stats.get("fanout.late") + " late");
+				System.out.println("Queries: " + nodeItem.stats.get("query.count") + " evaluated, "
+						+ nodeItem.stats.get("query.bytes") + " bytes shipped, "
+						+ nodeItem.stats.get("query.filters") + " Bloom filters ("
+						+ nodeItem.stats.get("query.false.hits") + " false positives)");
+			}
+			if (nodeItem.stats.containsKey("tier.hot.tags")) {
+				long reads = Math.max(1, nodeItem.stats.get("tier.hot.hits") + nodeItem.stats.get("tier.faults"));
+				System.out.println("Tiers: " + nodeItem.stats.get("tier.hot.tags") + " tags in memory ("
+						+ nodeItem.stats.get("tier.hot.bytes") + " of " + nodeItem.stats.get("tier.hot.limit") + " bytes), "
+						+ nodeItem.stats.get("tier.cold.tags") + " on disk ("
+						+ nodeItem.stats.get("tier.cold.bytes") + " bytes, "
+						+ nodeItem.stats.get("tier.cold.dead") + " dead); "
+						+ (100 * nodeItem.stats.get("tier.hot.hits") / reads) + "% of reads in memory, "
+						+ nodeItem.stats.get("tier.faults") + " faults ("
+						+ nodeItem.stats.get("tier.fault.us") + " us mean, "
+						+ nodeItem.stats.get("tier.fault.p99.us") + " us p99); "
+						+ nodeItem.stats.get("tier.evictions") + " evictions ("
+						+ nodeItem.stats.get("tier.evicted.bytes") + " bytes written), "
+						+ nodeItem.stats.get("tier.compactions") + " compactions ("
+						+ nodeItem.stats.get("tier.compacted.bytes") + " bytes copied, "
+						+ nodeItem.stats.get("tier.reclaimed.bytes") + " reclaimed)");
+			}
+			if (nodeItem.stats.containsKey("wal.records")) {
+				long commits = Math.max(1, nodeItem.stats.get("wal.commits"));
+				System.out.println("Durability: " + nodeItem.stats.get("wal.records") + " log records ("
+						+ nodeItem.stats.get("wal.bytes") + " bytes) in "
+						+ nodeItem.stats.get("wal.commits") + " commits, "
+						+ (nodeItem.stats.get("wal.sync.us") / commits) + " us per sync, "
+						+ nodeItem.stats.get("wal.wait.us") + " us waited; "
+						+ nodeItem.stats.get("snapshot.count") + " snapshots (last "
+						+ nodeItem.stats.get("snapshot.bytes") + " bytes in "
+						+ nodeItem.stats.get("snapshot.ms") + " ms); recovered "
+						+ nodeItem.stats.get("recovery.keys") + " tags and "
+						+ nodeItem.stats.get("recovery.records") + " log records in "
+						+ nodeItem.stats.get("recovery.ms") + " ms");
+			}
+			if (nodeItem.stats.containsKey("cache.hits")) {
+				System.out.println("Owner cache: " + nodeItem.stats.get("cache.hits") + " hits in "
+						+ nodeItem.stats.get("cache.lookups") + " lookups, "
+						+ nodeItem.stats.get("cache.hops.saved") + " hops saved, "
+						+ nodeItem.stats.get("cache.misroutes") + " misroutes, ring version "
+						+ nodeItem.stats.get("ring.version"));
+			}
 
 			// Print Finger Table
 			System.out.println("\n    Finger Table:");
@@ -166,15 +129,50 @@ public class ClientUtil {
 			}
 			System.out.println("\n\n");
 		}
+
+		displayKeyLoad(nodeData);
+	}
+
+	/*
+	 * Function name: displayKeyLoad(ArrayList<PrintData> nodeData)
+	 * 
+	 * Description: This function adds up the entries of all vnodes on each
+	 * port and prints the keys per physical node, together with the ratio of
+	 * the largest load to the mean. A ratio near 1 means keys are spread
+	 * evenly.
+	 */
+	public void displayKeyLoad(ArrayList<PrintData> nodeData) {
+		Map<Integer, Integer> load = new LinkedHashMap<Integer, Integer>();
+		int total = 0;
+
+		for (int i = 0; i < nodeData.size(); i++) {
+			PrintData nodeItem = nodeData.get(i);
+			Integer sum = load.get(nodeItem.port);
+			load.put(nodeItem.port, (sum == null ? 0 : sum) + nodeItem.numEntries);
+			total += nodeItem.numEntries;
+		}
+
+		int max = 0;
+		System.out.println("===== Key Load =====");
+		for (Map.Entry<Integer, Integer> e : load.entrySet()) {
+			System.out.println("Port " + e.getKey() + ": " + e.getValue() + " keys");
+			max = Math.max(max, e.getValue());
+		}
+
+		double mean = (double) total / load.size();
+		if (total > 0) {
+			System.out.format("Max/mean: %.2f\n", max / mean);
+		}
+		System.out.println("\n");
 	}
 
 	/*
-	 * Function name: printNodeTrace(ArrayList<Integer> nodeTrace)
+	 * Function name: printNodeTrace(ArrayList<BigInteger> nodeTrace)
 	 * 
 	 * Description: This function formats and prints the node trace data for a
 	 * publish or subscribe request.
 	 */
-	public void printNodeTrace(ArrayList<Integer> nodeTrace) {
+	public void printNodeTrace(ArrayList<BigInteger> nodeTrace) {
 		// If nodeTrace is empty, just return
 		if (nodeTrace.size() == 0) {
 			return;
@@ -186,126 +184,4 @@ public class ClientUtil {
 		}
 		System.out.println("\n");
 	}
-	
-	
-	public ArrayList<String> matchQueryURLs(Map<Integer, ArrayList<String>> tagsToURLs, String queryString) {
-		StringTokenizer st = new StringTokenizer(queryString);
-		int querySize = st.countTokens();
-
-		// User entered only one tag - print all returned URLs
-		if (querySize == 1) {
-			return tagsToURLs.get(0);
-		}
-		
-		// Copy tokens to string array
-		String query[] = new String[querySize];
-		for (int i = 0; i < querySize; i++) {
-			query[i] = st.nextToken();
-		}
-
-		ArrayList<String> urlsToPrint = new ArrayList<String>();
-		ArrayList<String> urlsTag0 = tagsToURLs.get(0);
-		ArrayList<String> urlsTag2 = tagsToURLs.get(1);
-		
-		// User must have entered two tags.
-		if (querySize == 3) {
-			
-			// Case:  tag0 AND tag2 - url must appear in BOTH returned URL lists.
-			if (query[1].equalsIgnoreCase("AND")) {
-				for (int i = 0; i < urlsTag0.size(); i++) {
-					if (urlsTag2.contains(urlsTag0.get(i))) {
-						urlsToPrint.add(urlsTag0.get(i));
-					}
-				}
-			} 
-			// Case:  tag0 OR tag2
-			else if (query[1].equalsIgnoreCase("OR")) {
-				if (urlsTag0 != null) {
-					for (int i = 0; i < urlsTag0.size(); i++) {
-						urlsToPrint.add(urlsTag0.get(i));
-					}
-				}
-				if (urlsTag2 != null) {
-					for (int i = 0; i < urlsTag2.size(); i++) {
-						urlsToPrint.add(urlsTag2.get(i));
-					}
-				}
-			}
-			
-			return urlsToPrint;
-		}
-		
-		
-		ArrayList<String> urlsTag4 = tagsToURLs.get(2);
-		
-		// Which URL list is the smallest?  Use this size as the index limit.
-		int maxSize;
-		if ((urlsTag0.size() <= urlsTag2.size()) && (urlsTag0.size() <= urlsTag4.size())) {
-			maxSize = urlsTag0.size();
-		}
-		else if ((urlsTag2.size() <= urlsTag0.size()) && (urlsTag2.size() <= urlsTag4.size())) {
-			maxSize = urlsTag2.size();
-		}
-		else {
-			maxSize = urlsTag4.size();
-		}
-		
-		// User must have entered three tags.
-		if (querySize == 5) {
-			
-			// Case:  tag0 AND tag2 AND tag4 - url must appear in all three returned URL lists.
-			if ((query[1].equalsIgnoreCase("AND")) && (query[3].equalsIgnoreCase("AND"))) {
-				
-				for (int i = 0; i < maxSize; i++) {
-					if ((urlsTag2.contains(urlsTag0.get(i))) && (urlsTag4.contains(urlsTag0.get(i)))) {
-						urlsToPrint.add(urlsTag0.get(i));
-					}
-				}
-			} 
-			
-			// Case:  tag0 AND tag2 OR tag4
-			else if ((query[1].equalsIgnoreCase("AND")) && (query[3].equalsIgnoreCase("OR"))) {
-				for (int i = 0; i < maxSize; i++) {
-					
-					// Must have tag0 along with either tag2 or tag4
-					if ((urlsTag0.contains(urlsTag2.get(i))) || (urlsTag0.contains(urlsTag4.get(i)))) {
-						urlsToPrint.add(urlsTag0.get(i));
-					}
-				}
-			} 
-			
-			// Case:  tag0 OR tag2 AND tag4
-			else if ((query[1].equalsIgnoreCase("OR")) && (query[3].equalsIgnoreCase("AND"))) {
-				for (int i = 0; i < maxSize; i++) {
-					
-					// Must have tag4 along with either tag0 or tag2
-					if ((urlsTag4.contains(urlsTag0.get(i)) || (urlsTag4.contains(urlsTag2.get(i))))) {
-						urlsToPrint.add(urlsTag4.get(i));
-					}
-				}
-			} 
-			
-			// Case:  tag0 OR tag2 OR tag4
-			else if ((query[1].equalsIgnoreCase("OR")) && (query[3].equalsIgnoreCase("OR"))) {
-				if (urlsTag0 != null) {
-					for (int i = 0; i < urlsTag0.size(); i++) {
-						urlsToPrint.add(urlsTag0.get(i));
-					}
-				}
-				
-				if (urlsTag2 != null) {
-					for (int i = 0; i < urlsTag2.size(); i++) {
-						urlsToPrint.add(urlsTag2.get(i));
-					}
-				}
-				
-				if (urlsTag4 != null) {
-					for (int i = 0; i < urlsTag4.size(); i++) {
-						urlsToPrint.add(urlsTag4.get(i));
-					}
-				}
-			} 
-		}
-			return urlsToPrint;
-	}
 }
@@ -0,0 +1,310 @@
+package chord;
+
+/******************************************************************************
+ * Filename: ConnectionPool.java
+ * 
+ * Description: This file defines a per-peer pool of long-lived connections.
+ * Connections are keyed by the remote node's port.  Instead of opening a new
+ * socket (and exchanging new object stream headers) for every remote call, a
+ * caller borrows an idle connection, uses it for one request, and then
+ * releases it back to the pool.
+ * 
+ * Connections that have been idle for a while are health checked with a PING
+ * before being reused, and a background reaper closes connections that have
+ * been idle for longer than POOL_IDLE_TIMEOUT_MS.  The peer may still have
+ * closed a connection that passed, so call() and send() try once more on a
+ * new connection when a reused one fails.  A call that is not answered
+ * within POOL_CALL_TIMEOUT_MS fails and is not tried again.
+ * 
+ * Author: Kristin Dahl
+ * Date: 10-17-2026
+ *****************************************************************************/
+
+import static chord.ChordUtil.OK;
+import static chord.ChordUtil.PING;
+import static chord.ChordUtil.POOL_CALL_TIMEOUT_MS;
+import static chord.ChordUtil.POOL_HEALTH_CHECK_MS;
+import static chord.ChordUtil.POOL_IDLE_TIMEOUT_MS;
+import static chord.ChordUtil.POOL_MAX_IDLE_PER_PEER;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class ConnectionPool {
+	private static ScheduledExecutorService reaper;
+
+	private final Map<Integer, ConcurrentLinkedDeque<PooledConnection>> idle;
+
+	private final AtomicLong created       = new AtomicLong();
+	private final AtomicLong reused        = new AtomicLong();
+	private final AtomicLong evicted       = new AtomicLong();
+	private final AtomicLong failedChecks  = new AtomicLong();
+
+	
+	// ConnectionPool constructor
+	public ConnectionPool() {
+		idle = new ConcurrentHashMap<Integer, ConcurrentLinkedDeque<PooledConnection>>();
+
+		startReaper().scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				evictIdle();
+			}
+		}, POOL_IDLE_TIMEOUT_MS, POOL_IDLE_TIMEOUT_MS / 2, TimeUnit.MILLISECONDS);
+	}
+
+	// All pools in the process share one daemon reaper thread.
+	private static synchronized ScheduledExecutorService startReaper() {
+		if (reaper == null) {
+			reaper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "chord-pool-reaper");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		return reaper;
+	}
+
+	
+	/*
+	 * Function name: borrow(int port)
+	 * 
+	 * Description: This function returns a connection to the node on the given
+	 * port. The most recently used idle connection is preferred. If it has been
+	 * idle for longer than POOL_HEALTH_CHECK_MS, it is pinged first. If no
+	 * healthy idle connection exists, a new one is opened.
+	 */
+	public PooledConnection borrow(int port) throws IOException {
+		ConcurrentLinkedDeque<PooledConnection> peer = idle.get(port);
+
+		if (peer != null) {
+			PooledConnection conn = peer.pollFirst();
+
+			while (conn != null) {
+				if (isHealthy(conn)) {
+					reused.incrementAndGet();
+					conn.reused = true;
+					return conn;
+				}
+				failedChecks.incrementAndGet();
+				conn.close();
+				conn = peer.pollFirst();
+			}
+		}
+
+		return connect(port);
+	}
+
+	/*
+	 * Function name: call(int port, Message request)
+	 * 
+	 * Description: This function sends a request to the node on the given
+	 * port on a pooled connection and returns its response. If a reused
+	 * connection fails before the response comes, the peer has most likely
+	 * closed it, and the request is sent once more on a new connection. A
+	 * request that timed out is not sent again.
+	 */
+	public Message call(int port, Message request) throws IOException {
+		PooledConnection conn = borrow(port);
+		try {
+			Message response = conn.call(request);
+			release(conn);
+			return response;
+
+		} catch (IOException e) {
+			invalidate(conn);
+			if (!conn.reused || e instanceof SocketTimeoutException) {
+				throw e;
+			}
+		}
+
+		PooledConnection fresh = connect(port);
+		try {
+			Message response = fresh.call(request);
+			release(fresh);
+			return response;
+
+		} catch (IOException e) {
+			invalidate(fresh);
+			throw e;
+		}
+	}
+
+	/*
+	 * Function name: send(int port, Message message)
+	 * 
+	 * Description: This function sends a message that gets no response to the
+	 * node on the given port. Like call(), it is sent once more on a new
+	 * connection if a reused one fails.
+	 */
+	public void send(int port, Message message) throws IOException {
+		PooledConnection conn = borrow(port);
+		try {
+			conn.channel.send(message);
+			release(conn);
+			return;
+
+		} catch (IOException e) {
+			invalidate(conn);
+			if (!conn.reused) {
+				throw e;
+			}
+		}
+
+		PooledConnection fresh = connect(port);
+		try {
+			fresh.channel.send(message);
+			release(fresh);
+
+		} catch (IOException e) {
+			invalidate(fresh);
+			throw e;
+		}
+	}
+
+	// Opens a new connection to the node on the given port
+	private PooledConnection connect(int port) throws IOException {
+		created.incrementAndGet();
+		return new PooledConnection(port);
+	}
+
+	/*
+	 * Function name: release(PooledConnection conn)
+	 * 
+	 * Description: This function returns a connection to the pool once the
+	 * caller has finished a complete request/response exchange on it. If the
+	 * peer already has POOL_MAX_IDLE_PER_PEER idle connections, it is closed.
+	 */
+	public void release(PooledConnection conn) {
+		if (conn == null) {
+			return;
+		}
+		if (!conn.isOpen()) {
+			conn.close();
+			return;
+		}
+
+		ConcurrentLinkedDeque<PooledConnection> peer = idle.get(conn.port);
+		if (peer == null) {
+			idle.putIfAbsent(conn.port, new ConcurrentLinkedDeque<PooledConnection>());
+			peer = idle.get(conn.port);
+		}
+
+		conn.lastUsed = System.currentTimeMillis();
+		if (peer.size() < POOL_MAX_IDLE_PER_PEER) {
+			peer.offerFirst(conn);
+		} else {
+			conn.close();
+		}
+	}
+
+	/*
+	 * Function name: invalidate(PooledConnection conn)
+	 * 
+	 * Description: This function closes a connection that failed in the middle
+	 * of an exchange. The connection is not returned to the pool.
+	 */
+	public void invalidate(PooledConnection conn) {
+		if (conn != null) {
+			conn.close();
+		}
+	}
+
+	/*
+	 * Function name: isHealthy(PooledConnection conn)
+	 * 
+	 * Description: This function checks an idle connection before it is
+	 * reused. Connections that were used recently are trusted. Older ones must
+	 * answer a PING with OK.
+	 */
+	private boolean isHealthy(PooledConnection conn) {
+		if (!conn.isOpen()) {
+			return false;
+		}
+		if (System.currentTimeMillis() - conn.lastUsed < POOL_HEALTH_CHECK_MS) {
+			return true;
+		}
+
+		try {
+			conn.socket.setSoTimeout((int) POOL_HEALTH_CHECK_MS);
+			boolean ok = conn.call(new Message(PING)).op == OK;
+			conn.socket.setSoTimeout(POOL_CALL_TIMEOUT_MS);
+			return ok;
+
+		} catch (Exception e) {
+			return false;
+		}
+	}
+
+	/*
+	 * Function name: evictIdle()
+	 * 
+	 * Description: This function is run periodically by the reaper thread. It
+	 * closes every connection that has been idle for longer than
+	 * POOL_IDLE_TIMEOUT_MS.
+	 */
+	public void evictIdle() {
+		long now = System.currentTimeMillis();
+
+		for (ConcurrentLinkedDeque<PooledConnection> peer : idle.values()) {
+			Iterator<PooledConnection> it = peer.iterator();
+
+			while (it.hasNext()) {
+				PooledConnection conn = it.next();
+				if (now - conn.lastUsed > POOL_IDLE_TIMEOUT_MS && peer.remove(conn)) {
+					evicted.incrementAndGet();
+					conn.close();
+				}
+			}
+		}
+	}
+
+	/*
+	 * Function name: evictPort(int port)
+	 * 
+	 * Description: This function closes every idle connection to the given
+	 * port. It is used when the node on that port is found to be down.
+	 */
+	public void evictPort(int port) {
+		ConcurrentLinkedDeque<PooledConnection> peer = idle.remove(port);
+
+		if (peer != null) {
+			PooledConnection conn;
+			while ((conn = peer.poll()) != null) {
+				evicted.incrementAndGet();
+				conn.close();
+			}
+		}
+	}
+
+	public long getCreated() {
+		return created.get();
+	}
+
+	public long getReused() {
+		return reused.get();
+	}
+
+	public long getEvicted() {
+		return evicted.get();
+	}
+
+	public long getFailedChecks() {
+		return failedChecks.get();
+	}
+
+	public String toString() {
+		return "new=" + created.get() + " reused=" + reused.get() + " evicted=" + evicted.get()
+				+ " failedChecks=" + failedChecks.get();
+	}
+}
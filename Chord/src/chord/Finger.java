@@ -4,21 +4,27 @@ package chord;
  * Filename: Finger
  * 
  * Description:  This file defines the Finger data class.  A Finger object
- * is used within a node's finger table.
+ * is used within a node's finger table.  It refers to its node by NodeRef.
  *
  * Author: Kristin Dahl
  * Date: 9-6-2016
  *****************************************************************************/
 
 import java.io.Serializable;
+import java.math.BigInteger;
 
 public class Finger implements Serializable {
-	private static final long serialVersionUID = 7733281083158892217L;
+	private static final long serialVersionUID = 7733281083158892218L;
 
-	public int start;
-	public Node node;
+	public BigInteger start;
+	public volatile NodeRef node;
 
-	public Finger(Node n) {
+	public Finger(NodeRef n) {
 		this.node = n;
 	}
+
+	public Finger(BigInteger start, NodeRef n) {
+		this.start = start;
+		this.node  = n;
+	}
 }
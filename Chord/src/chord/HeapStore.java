@@ -0,0 +1,94 @@
+package chord;
+
+/******************************************************************************
+ * Filename: HeapStore.java
+ * 
+ * Description: The HeapStore class is the default PostingStore.  The
+ * dictionary is a map from each URL string to its ID and an array from each
+ * ID back to the string, and each tag's posting list is an IntSet.
+ * 
+ * Author: Kristin Dahl
+ * Date: 10-17-2026
+ *****************************************************************************/
+
+import java.io.Serializable;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+public class HeapStore implements PostingStore, Serializable {
+	private static final long serialVersionUID = -2049876520913716307L;
+
+	private final ConcurrentSkipListMap<BigInteger, IntSet> postings = new ConcurrentSkipListMap<BigInteger, IntSet>();
+	private final ConcurrentHashMap<String, Integer> ids = new ConcurrentHashMap<String, Integer>();
+	private volatile String[] urls = new String[64];	// By ID
+	private int nextId;
+
+
+	public IntSet get(BigInteger key) {
+		return postings.get(key);
+	}
+
+	public IntSet peek(BigInteger key) {
+		return postings.get(key);
+	}
+
+	public void put(BigInteger key, IntSet set) {
+		postings.put(key, set);
+	}
+
+	public boolean remove(BigInteger key) {
+		return postings.remove(key) != null;
+	}
+
+	public NavigableSet<BigInteger> keySet() {
+		return postings.keySet();
+	}
+
+	public int id(String url) {
+		Integer id = ids.get(url);
+		return (id != null) ? id : -1;
+	}
+
+	public int add(String url) {
+		Integer id = ids.get(url);
+		if (id == null) {
+			if (nextId == urls.length) {
+				urls = Arrays.copyOf(urls, nextId * 2);
+			}
+			id = nextId++;
+			urls[id] = url;		// Before the ID is published in ids
+			ids.put(url, id);
+		}
+		return id;
+	}
+
+	public String url(int id) {
+		return urls[id];
+	}
+
+	public byte[] urlBytes(int id) {
+		return urls[id].getBytes(StandardCharsets.UTF_8);
+	}
+
+	public int urlCount() {
+		return ids.size();
+	}
+
+	public long[] stats() {
+		long pairs = 0;
+		long bytes = 0;
+		for (IntSet set : postings.values()) {
+			pairs += set.size();
+			bytes += set.bytes();
+		}
+		return new long[] { pairs, bytes, 0 };
+	}
+
+	public void addStats(Map<String, Long> stats) {
+	}
+}
@@ -0,0 +1,597 @@
+package chord;
+
+/******************************************************************************
+ * Filename: IndexLog.java
+ * 
+ * Description: The IndexLog class makes the entries of one physical node
+ * durable.  Every change to the node's InvertedIndex is appended to a
+ * write-ahead log, and a snapshot of the whole index is written from time to
+ * time, after which the log before it is deleted.  When the node starts
+ * again, it loads the snapshot and replays the log written since.
+ * 
+ * The log is a series of segment files, wal-<n>.log.  Each record holds one
+ * change, with its length and a CRC32, so a record that was only partly
+ * written when the node stopped is found and ignored.  Records are collected
+ * in memory and written by a committer thread, and records that arrive while
+ * the previous batch is being synced share the next sync (group commit).
+ * FSYNC_POLICY decides when the log is synced: "always" syncs every batch
+ * and makes sync() wait until the caller's changes are on disk, "interval"
+ * syncs every FSYNC_INTERVAL_MS, and "never" leaves it to the OS.
+ * 
+ * A snapshot starts a new log segment and records the number of the last
+ * segment that it covers.  It holds only the URLs that are still used, under
+ * new IDs, followed by each tag's URL IDs as gaps between them, and is
+ * written through a memory-mapped file that is renamed into place once it is
+ * complete.
+ * 
+ * Author: Kristin Dahl
+ * Date: 10-17-2026
+ *****************************************************************************/
+
+import static chord.ChordUtil.FSYNC_INTERVAL_MS;
+import static chord.ChordUtil.FSYNC_POLICY;
+import static chord.ChordUtil.SNAPSHOT_INTERVAL_MS;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+public class IndexLog {
+	public static final byte PUT    = 1;
+	public static final byte APPEND = 2;
+	public static final byte REMOVE = 3;
+
+	private static final int SNAPSHOT_MAGIC   = 0x43485331;	// "CHS1"
+	private static final int SNAPSHOT_HEADER  = 20;
+	private static final String SNAPSHOT_FILE = "snapshot.dat";
+
+	private final File dir;
+	private final InvertedIndex index;
+	private final boolean syncEach;
+
+	// Records waiting for the committer, and their log sequence numbers
+	private BinaryCodec.Writer pending = new BinaryCodec.Writer();	// Guarded by this
+	private long written;				// Last record added, guarded by this
+	private long synced;				// Last record on disk, guarded by this
+
+	// The current segment, guarded by ioLock.  Taken before this.
+	private final Object ioLock = new Object();
+	private FileChannel segment;
+	private long segmentNumber;
+
+	// Write path and recovery counters, shown by "View DHT"
+	private final AtomicLong records       = new AtomicLong();
+	private final AtomicLong bytes         = new AtomicLong();
+	private final AtomicLong commits       = new AtomicLong();
+	private final AtomicLong syncNanos     = new AtomicLong();
+	private final AtomicLong waitNanos     = new AtomicLong();
+	private final AtomicLong snapshots     = new AtomicLong();
+	private final AtomicLong snapshotBytes = new AtomicLong();
+	private final AtomicLong snapshotMs    = new AtomicLong();
+	private long recoveryMs;
+	private long recoveredKeys;
+	private long replayedRecords;
+
+
+	// IndexLog constructor
+	private IndexLog(File dir, InvertedIndex index) {
+		this.dir = dir;
+		this.index = index;
+		this.syncEach = FSYNC_POLICY.equals("always");
+	}
+
+	/*
+	 * Function name: open(File dir, InvertedIndex index)
+	 * 
+	 * Description: This function loads the snapshot and replays the log in
+	 * dir into index, which must be empty, then starts a new log segment
+	 * and returns the log that index writes its changes to from then on.
+	 */
+	public static IndexLog open(File dir, InvertedIndex index) throws IOException {
+		long start = System.nanoTime();
+		IndexLog log = new IndexLog(dir, index);
+
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("Cannot create " + dir);
+		}
+
+		long covered = log.loadSnapshot();
+		long last = covered;
+		for (long n : log.segments()) {
+			if (n > covered) {
+				log.replayedRecords += log.replay(segmentFile(dir, n));
+			}
+			last = Math.max(last, n);
+		}
+
+		log.segmentNumber = last + 1;
+		log.segment = openSegment(dir, log.segmentNumber);
+		log.recoveryMs = (System.nanoTime() - start) / 1000000;
+
+		log.startThreads();
+		return log;
+	}
+
+	/*
+	 * Function name: write(byte op, BigInteger key, Collection<String> urls)
+	 * 
+	 * Description: This function adds a record of a change to the log, to be
+	 * written by the committer. It is called by the InvertedIndex while it
+	 * holds its lock, so the records are in the order the changes were made.
+	 */
+	public void write(byte op, BigInteger key, Collection<String> urls) {
+		BinaryCodec.Writer payload = new BinaryCodec.Writer();
+		payload.writeByte(op);
+		payload.writeID(key);
+		if (urls != null) {
+			payload.writeVarint(urls.size());
+			for (String url : urls) {
+				payload.writeString(url);
+			}
+		}
+
+		byte[] b = payload.toByteArray();
+		CRC32 crc = new CRC32();
+		crc.update(b, 0, b.length);
+
+		synchronized (this) {
+			writeInt(pending, b.length);
+			writeInt(pending, (int) crc.getValue());
+			pending.writeBytes(b, 0, b.length);
+			written++;
+			if (syncEach) {
+				notifyAll();	// Otherwise the committer wakes on its timer
+			}
+		}
+		records.incrementAndGet();
+		bytes.addAndGet(b.length + 8);
+	}
+
+	/*
+	 * Function name: sync()
+	 * 
+	 * Description: This function waits until every record written so far is
+	 * on disk, if FSYNC_POLICY is "always". Otherwise it returns at once.
+	 */
+	public void sync() {
+		if (!syncEach) {
+			return;
+		}
+
+		long start = System.nanoTime();
+		synchronized (this) {
+			long lsn = written;
+			while (synced < lsn) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return;
+				}
+			}
+		}
+		waitNanos.addAndGet(System.nanoTime() - start);
+	}
+
+	/*
+	 * Function name: snapshot()
+	 * 
+	 * Description: This function writes a snapshot of the index and deletes
+	 * the log segments that it covers. The index is only held while a new
+	 * segment is started. The tags are read after that, so they may already
+	 * hold changes that are in the new segment; replaying a change on a tag
+	 * that has it gives the same tag, so the snapshot and the log still add
+	 * up to the index. The dictionary is copied last, so that it has every
+	 * URL that the tags use.
+	 */
+	public void snapshot() throws IOException {
+		long start = System.nanoTime();
+		String[] dictionary;
+		ArrayList<Map.Entry<BigInteger, IntSet>> entries;
+		long covered;
+
+		synchronized (index) {
+			synchronized (ioLock) {
+				commit();
+				covered = segmentNumber;
+				segment.close();
+				segment = openSegment(dir, ++segmentNumber);
+			}
+		}
+
+		entries = index.entries();
+		synchronized (index) {
+			dictionary = index.dictionary();
+		}
+
+		long size = writeSnapshot(dictionary, entries, covered);
+		for (long n : segments()) {
+			if (n <= covered) {
+				Files.deleteIfExists(segmentFile(dir, n).toPath());
+			}
+		}
+
+		snapshots.incrementAndGet();
+		snapshotBytes.set(size);
+		snapshotMs.set((System.nanoTime() - start) / 1000000);
+	}
+
+	/*
+	 * Function name: stats()
+	 * 
+	 * Description: This function returns the log's write path and recovery
+	 * counters.
+	 */
+	public Map<String, Long> stats() {
+		LinkedHashMap<String, Long> stats = new LinkedHashMap<String, Long>();
+		stats.put("wal.records", records.get());
+		stats.put("wal.bytes", bytes.get());
+		stats.put("wal.commits", commits.get());
+		stats.put("wal.sync.us", syncNanos.get() / 1000);
+		stats.put("wal.wait.us", waitNanos.get() / 1000);
+		stats.put("snapshot.count", snapshots.get());
+		stats.put("snapshot.bytes", snapshotBytes.get());
+		stats.put("snapshot.ms", snapshotMs.get());
+		stats.put("recovery.ms", recoveryMs);
+		stats.put("recovery.keys", recoveredKeys);
+		stats.put("recovery.records", replayedRecords);
+		return stats;
+	}
+
+	// Starts the committer, and the thread that writes the snapshots
+	private void startThreads() {
+		Thread committer = new Thread(new Runnable() {
+			public void run() {
+				while (true) {
+					synchronized (IndexLog.this) {
+						try {
+							if (syncEach) {
+								while (pending.size() == 0) {
+									IndexLog.this.wait();
+								}
+							} else {
+								IndexLog.this.wait(FSYNC_INTERVAL_MS);
+							}
+						} catch (InterruptedException e) {
+							return;
+						}
+					}
+					synchronized (ioLock) {
+						commit();
+					}
+				}
+			}
+		}, "chord-wal-" + dir.getName());
+		committer.setDaemon(true);
+		committer.start();
+
+		Thread snapshotter = new Thread(new Runnable() {
+			public void run() {
+				long last = 0;
+				while (true) {
+					try {
+						Thread.sleep(SNAPSHOT_INTERVAL_MS);
+						if (records.get() != last) {
+							last = records.get();
+							snapshot();
+						}
+					} catch (InterruptedException e) {
+						return;
+					} catch (IOException e) {
+						System.out.println("Snapshot of " + dir + " failed: " + e);
+					}
+				}
+			}
+		}, "chord-snapshot-" + dir.getName());
+		snapshotter.setDaemon(true);
+		snapshotter.start();
+
+		Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+			public void run() {
+				synchronized (ioLock) {
+					commit();
+				}
+			}
+		}));
+	}
+
+	// Writes the pending records to the current segment and syncs it unless
+	// FSYNC_POLICY is "never".  Called with ioLock held.
+	private void commit() {
+		BinaryCodec.Writer batch;
+		long lsn;
+
+		synchronized (this) {
+			if (pending.size() == 0) {
+				return;
+			}
+			batch = pending;
+			lsn = written;
+			pending = new BinaryCodec.Writer();
+		}
+
+		try {
+			ByteBuffer buf = ByteBuffer.wrap(batch.toByteArray());
+			while (buf.hasRemaining()) {
+				segment.write(buf);
+			}
+			if (!FSYNC_POLICY.equals("never")) {
+				long start = System.nanoTime();
+				segment.force(false);
+				syncNanos.addAndGet(System.nanoTime() - start);
+			}
+			commits.incrementAndGet();
+
+		} catch (IOException e) {
+			System.out.println("Exception caught: " + e);
+			e.printStackTrace();
+			System.exit(1);
+		}
+
+		synchronized (this) {
+			synced = lsn;
+			notifyAll();
+		}
+	}
+
+	// Applies the complete records of one segment to the index, and returns
+	// how many there were
+	private long replay(File file) throws IOException {
+		long count = 0;
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+
+		try {
+			while (true) {
+				byte[] b;
+				int crc;
+				try {
+					int len = Integer.reverseBytes(in.readInt());
+					crc = Integer.reverseBytes(in.readInt());
+					if (len < 0 || len > (1 << 30)) {
+						break;
+					}
+					b = new byte[len];
+					in.readFully(b);
+				} catch (EOFException e) {
+					break;		// The end of the log, or a record cut short
+				}
+
+				CRC32 check = new CRC32();
+				check.update(b, 0, b.length);
+				if ((int) check.getValue() != crc) {
+					break;
+				}
+
+				BinaryCodec.Reader r = new BinaryCodec.Reader(b, 0, b.length);
+				byte op = (byte) r.readByte();
+				BigInteger key = r.readID();
+
+				if (op == REMOVE) {
+					index.remove(key);
+				} else {
+					int n = r.readVarint();
+					ArrayList<String> urls = new ArrayList<String>(n);
+					for (int i = 0; i < n; i++) {
+						urls.add(r.readString());
+					}
+					if (op == PUT) {
+						index.put(key, urls);
+					} else {
+						index.append(key, urls);
+					}
+				}
+				count++;
+			}
+		} finally {
+			in.close();
+		}
+		return count;
+	}
+
+	// Writes a snapshot of the given dictionary and tags, covering the log up
+	// to segment covered, and returns its size
+	private long writeSnapshot(String[] dictionary, ArrayList<Map.Entry<BigInteger, IntSet>> entries, long covered) throws IOException {
+		// Give the URLs that are still used new IDs, in the order of the old
+		int[] remap = new int[dictionary.length];
+		for (Map.Entry<BigInteger, IntSet> e : entries) {
+			for (int id : e.getValue().toArray()) {
+				remap[id] = 1;
+			}
+		}
+
+		ArrayList<byte[]> urls = new ArrayList<byte[]>();
+		long size = SNAPSHOT_HEADER + 8;
+		for (int id = 0; id < remap.length; id++) {
+			if (remap[id] != 0) {
+				remap[id] = urls.size();
+				byte[] b = dictionary[id].getBytes(StandardCharsets.UTF_8);
+				urls.add(b);
+				size += 4 + b.length;
+			}
+		}
+
+		ArrayList<byte[]> keys = new ArrayList<byte[]>(entries.size());
+		for (Map.Entry<BigInteger, IntSet> e : entries) {
+			byte[] key = e.getKey().toByteArray();
+			keys.add(key);
+			size += 8 + key.length;
+			int prev = -1;
+			for (int id : e.getValue().toArray()) {
+				size += varintSize(remap[id] - prev);
+				prev = remap[id];
+			}
+		}
+
+		File tmp = new File(dir, SNAPSHOT_FILE + ".tmp");
+		RandomAccessFile file = new RandomAccessFile(tmp, "rw");
+		try {
+			file.setLength(size);
+			MappedByteBuffer map = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+
+			map.putInt(SNAPSHOT_MAGIC);
+			map.putLong(covered);
+			map.putInt(urls.size());
+			map.putInt(entries.size());
+			for (byte[] b : urls) {
+				map.putInt(b.length);
+				map.put(b);
+			}
+			for (int i = 0; i < entries.size(); i++) {
+				IntSet set = entries.get(i).getValue();
+				map.putInt(keys.get(i).length);
+				map.put(keys.get(i));
+				map.putInt(set.size());
+				int prev = -1;
+				for (int id : set.toArray()) {
+					putVarint(map, remap[id] - prev);
+					prev = remap[id];
+				}
+			}
+
+			CRC32 crc = new CRC32();
+			ByteBuffer body = map.duplicate();
+			body.flip();
+			crc.update(body);
+			map.putLong(crc.getValue());
+			map.force();
+		} finally {
+			file.close();
+		}
+
+		Files.move(tmp.toPath(), new File(dir, SNAPSHOT_FILE).toPath(), StandardCopyOption.ATOMIC_MOVE,
+				StandardCopyOption.REPLACE_EXISTING);
+		return size;
+	}
+
+	// Loads the snapshot, if there is one, and returns the last log segment
+	// that it covers
+	private long loadSnapshot() throws IOException {
+		File f = new File(dir, SNAPSHOT_FILE);
+		if (!f.exists()) {
+			return 0;
+		}
+
+		RandomAccessFile file = new RandomAccessFile(f, "r");
+		try {
+			long size = file.length();
+			MappedByteBuffer map = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, size);
+
+			CRC32 crc = new CRC32();
+			ByteBuffer body = map.duplicate();
+			body.limit((int) size - 8);
+			crc.update(body);
+			if (size < SNAPSHOT_HEADER + 8 || map.getInt(0) != SNAPSHOT_MAGIC || map.getLong((int) size - 8) != crc.getValue()) {
+				throw new IOException("Snapshot " + f + " is damaged");
+			}
+
+			map.position(4);
+			long covered = map.getLong();
+			String[] urls = new String[map.getInt()];
+			int keys = map.getInt();
+
+			for (int i = 0; i < urls.length; i++) {
+				byte[] b = new byte[map.getInt()];
+				map.get(b);
+				urls[i] = new String(b, StandardCharsets.UTF_8);
+			}
+			index.load(urls);
+
+			for (int i = 0; i < keys; i++) {
+				byte[] key = new byte[map.getInt()];
+				map.get(key);
+				int[] ids = new int[map.getInt()];
+				int prev = -1;
+				for (int j = 0; j < ids.length; j++) {
+					ids[j] = prev + getVarint(map);
+					prev = ids[j];
+				}
+				index.load(new BigInteger(key), IntSet.of(ids, ids.length));
+			}
+			recoveredKeys = keys;
+			return covered;
+		} finally {
+			file.close();
+		}
+	}
+
+	// Returns the numbers of the log segments in dir, in ascending order
+	private TreeSet<Long> segments() {
+		TreeSet<Long> numbers = new TreeSet<Long>();
+		String[] names = dir.list();
+		if (names != null) {
+			for (String name : names) {
+				if (name.startsWith("wal-") && name.endsWith(".log")) {
+					try {
+						numbers.add(Long.parseLong(name.substring(4, name.length() - 4)));
+					} catch (NumberFormatException e) {
+						// Not a segment
+					}
+				}
+			}
+		}
+		return numbers;
+	}
+
+	private static File segmentFile(File dir, long n) {
+		return new File(dir, String.format("wal-%08d.log", n));
+	}
+
+	private static FileChannel openSegment(File dir, long n) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(segmentFile(dir, n), "rw");
+		file.seek(file.length());
+		return file.getChannel();
+	}
+
+	// Record headers are little-endian ints
+	private static void writeInt(BinaryCodec.Writer w, int v) {
+		for (int i = 0; i < 4; i++) {
+			w.writeByte(v >>> (i * 8));
+		}
+	}
+
+	private static int varintSize(int v) {
+		int n = 1;
+		while ((v & ~0x7F) != 0) {
+			v >>>= 7;
+			n++;
+		}
+		return n;
+	}
+
+	private static void putVarint(ByteBuffer buf, int v) {
+		while ((v & ~0x7F) != 0) {
+			buf.put((byte) ((v & 0x7F) | 0x80));
+			v >>>= 7;
+		}
+		buf.put((byte) v);
+	}
+
+	private static int getVarint(ByteBuffer buf) {
+		int v = 0;
+		for (int shift = 0; ; shift += 7) {
+			int b = buf.get();
+			v |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return v;
+			}
+		}
+	}
+}
@@ -0,0 +1,377 @@
+package chord;
+
+/******************************************************************************
+ * Filename: IntSet.java
+ * 
+ * Description: The IntSet class is an immutable, compressed set of
+ * non-negative ints, laid out like a roaring bitmap.  The ints are grouped by
+ * their upper 16 bits, and each group is kept in a container of its own: a
+ * sorted array of the lower 16 bits while the group has at most ARRAY_MAX
+ * members, which takes two bytes per member, and a bitmap of 65536 bits once
+ * it has more, which takes a fixed 8 KB.  Intersections, unions and
+ * differences work a container at a time, and containers that an operation
+ * does not change are shared between the old set and the new one.
+ * 
+ * Author: Kristin Dahl
+ * Date: 10-17-2026
+ *****************************************************************************/
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+public final class IntSet implements Serializable {
+	private static final long serialVersionUID = 1581932637106411218L;
+
+	private static final int ARRAY_MAX = 4096;	// Largest array container
+	private static final int WORDS = 1024;		// Words in a bitmap container
+
+	public static final IntSet EMPTY = new IntSet(new char[0], new Container[0], 0);
+
+	private final char[] highs;					// Upper 16 bits, sorted
+	private final Container[] containers;		// Lower 16 bits, one per entry of highs
+	private final int size;
+
+
+	// IntSet constructor
+	private IntSet(char[] highs, Container[] containers, int size) {
+		this.highs = highs;
+		this.containers = containers;
+		this.size = size;
+	}
+
+	/*
+	 * Function name: of(int[] values, int n)
+	 * 
+	 * Description: This function returns the set of the first n values.
+	 * The values need not be sorted or distinct.
+	 */
+	public static IntSet of(int[] values, int n) {
+		int[] sorted = Arrays.copyOf(values, n);
+		Arrays.sort(sorted);
+
+		Builder b = new Builder();
+		int i = 0;
+		while (i < n) {
+			char high = (char) (sorted[i] >>> 16);
+			int end = i;
+			while (end < n && (sorted[end] >>> 16) == high) {
+				end++;
+			}
+
+			char[] lows = new char[end - i];
+			int k = 0;
+			for (; i < end; i++) {
+				char low = (char) sorted[i];
+				if (k == 0 || lows[k - 1] != low) {
+					lows[k++] = low;
+				}
+			}
+			b.add(high, Container.fromArray(lows, k));
+		}
+		return b.build();
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	/*
+	 * Function name: contains(int value)
+	 * 
+	 * Description: This function returns true if value is in the set.
+	 */
+	public boolean contains(int value) {
+		int i = Arrays.binarySearch(highs, (char) (value >>> 16));
+		return i >= 0 && containers[i].contains((char) value);
+	}
+
+	/*
+	 * Function name: or(IntSet other)
+	 * 
+	 * Description: This function returns the union of this set and other.
+	 */
+	public IntSet or(IntSet other) {
+		Builder b = new Builder();
+		int i = 0, j = 0;
+
+		while (i < highs.length || j < other.highs.length) {
+			int cmp = (i == highs.length) ? 1 : (j == other.highs.length) ? -1 : highs[i] - other.highs[j];
+			if (cmp < 0) {
+				b.add(highs[i], containers[i++]);
+			} else if (cmp > 0) {
+				b.add(other.highs[j], other.containers[j++]);
+			} else {
+				b.add(highs[i], containers[i++].or(other.containers[j++]));
+			}
+		}
+		return b.build();
+	}
+
+	/*
+	 * Function name: and(IntSet other)
+	 * 
+	 * Description: This function returns the intersection of this set and
+	 * other.
+	 */
+	public IntSet and(IntSet other) {
+		Builder b = new Builder();
+		int i = 0, j = 0;
+
+		while (i < highs.length && j < other.highs.length) {
+			int cmp = highs[i] - other.highs[j];
+			if (cmp < 0) {
+				i++;
+			} else if (cmp > 0) {
+				j++;
+			} else {
+				b.add(highs[i], containers[i++].and(other.containers[j++]));
+			}
+		}
+		return b.build();
+	}
+
+	/*
+	 * Function name: andNot(IntSet other)
+	 * 
+	 * Description: This function returns the members of this set that are
+	 * not in other.
+	 */
+	public IntSet andNot(IntSet other) {
+		Builder b = new Builder();
+		int j = 0;
+
+		for (int i = 0; i < highs.length; i++) {
+			while (j < other.highs.length && other.highs[j] < highs[i]) {
+				j++;
+			}
+			if (j < other.highs.length && other.highs[j] == highs[i]) {
+				b.add(highs[i], containers[i].andNot(other.containers[j]));
+			} else {
+				b.add(highs[i], containers[i]);
+			}
+		}
+		return b.build();
+	}
+
+	/*
+	 * Function name: toArray()
+	 * 
+	 * Description: This function returns the members of the set in
+	 * ascending order.
+	 */
+	public int[] toArray() {
+		int[] values = new int[size];
+		int k = 0;
+		for (int i = 0; i < highs.length; i++) {
+			k = containers[i].copyTo(values, k, highs[i] << 16);
+		}
+		return values;
+	}
+
+	/*
+	 * Function name: bytes()
+	 * 
+	 * Description: This function returns about the number of bytes of
+	 * memory that the set takes.
+	 */
+	public long bytes() {
+		long bytes = 16 + highs.length * 2L;
+		for (Container c : containers) {
+			bytes += 16 + ((c.array != null) ? c.array.length * 2L : WORDS * 8L);
+		}
+		return bytes;
+	}
+
+	// Collects the non-empty containers of a new set, in ascending order
+	private static class Builder {
+		private char[] highs = new char[4];
+		private Container[] containers = new Container[4];
+		private int n;
+		private int size;
+
+		void add(char high, Container c) {
+			if (c == null) {
+				return;
+			}
+			if (n == highs.length) {
+				highs = Arrays.copyOf(highs, n * 2);
+				containers = Arrays.copyOf(containers, n * 2);
+			}
+			highs[n] = high;
+			containers[n++] = c;
+			size += c.cardinality;
+		}
+
+		IntSet build() {
+			return (n == 0) ? EMPTY : new IntSet(Arrays.copyOf(highs, n), Arrays.copyOf(containers, n), size);
+		}
+	}
+
+	// The lower 16 bits of one group: a sorted array or a bitmap.  Operations
+	// return null for an empty container.
+	private static final class Container implements Serializable {
+		private static final long serialVersionUID = -4467005214851322409L;
+
+		final char[] array;		// Sorted, or null for a bitmap
+		final long[] bits;		// WORDS words, or null for an array
+		final int cardinality;
+
+		private Container(char[] array, long[] bits, int cardinality) {
+			this.array = array;
+			this.bits = bits;
+			this.cardinality = cardinality;
+		}
+
+		// Takes the first n entries of a sorted array
+		static Container fromArray(char[] lows, int n) {
+			if (n == 0) {
+				return null;
+			}
+			if (n <= ARRAY_MAX) {
+				return new Container(Arrays.copyOf(lows, n), null, n);
+			}
+			long[] bits = new long[WORDS];
+			for (int i = 0; i < n; i++) {
+				bits[lows[i] >>> 6] |= 1L << lows[i];
+			}
+			return new Container(null, bits, n);
+		}
+
+		// Takes a bitmap, and turns it into an array if it is small enough
+		static Container fromBits(long[] bits) {
+			int n = 0;
+			for (long w : bits) {
+				n += Long.bitCount(w);
+			}
+			if (n == 0) {
+				return null;
+			}
+			if (n > ARRAY_MAX) {
+				return new Container(null, bits, n);
+			}
+
+			char[] lows = new char[n];
+			int k = 0;
+			for (int i = 0; i < WORDS; i++) {
+				for (long w = bits[i]; w != 0; w &= w - 1) {
+					lows[k++] = (char) ((i << 6) + Long.numberOfTrailingZeros(w));
+				}
+			}
+			return new Container(lows, null, n);
+		}
+
+		boolean contains(char low) {
+			if (array != null) {
+				return Arrays.binarySearch(array, low) >= 0;
+			}
+			return (bits[low >>> 6] & (1L << low)) != 0;
+		}
+
+		long[] toBits() {
+			if (bits != null) {
+				return bits.clone();
+			}
+			long[] b = new long[WORDS];
+			for (char low : array) {
+				b[low >>> 6] |= 1L << low;
+			}
+			return b;
+		}
+
+		Container or(Container other) {
+			if (array != null && other.array != null && cardinality + other.cardinality <= ARRAY_MAX) {
+				char[] lows = new char[cardinality + other.cardinality];
+				int i = 0, j = 0, k = 0;
+				while (i < array.length || j < other.array.length) {
+					if (j == other.array.length || (i < array.length && array[i] < other.array[j])) {
+						lows[k++] = array[i++];
+					} else if (i == array.length || other.array[j] < array[i]) {
+						lows[k++] = other.array[j++];
+					} else {
+						lows[k++] = array[i++];
+						j++;
+					}
+				}
+				return fromArray(lows, k);
+			}
+
+			long[] b = toBits();
+			if (other.array != null) {
+				for (char low : other.array) {
+					b[low >>> 6] |= 1L << low;
+				}
+			} else {
+				for (int i = 0; i < WORDS; i++) {
+					b[i] |= other.bits[i];
+				}
+			}
+			return fromBits(b);
+		}
+
+		Container and(Container other) {
+			if (array != null || other.array != null) {
+				Container small = (array != null) ? this : other;
+				Container large = (small == this) ? other : this;
+				char[] lows = new char[small.cardinality];
+				int k = 0;
+				for (char low : small.array) {
+					if (large.contains(low)) {
+						lows[k++] = low;
+					}
+				}
+				return fromArray(lows, k);
+			}
+
+			long[] b = new long[WORDS];
+			for (int i = 0; i < WORDS; i++) {
+				b[i] = bits[i] & other.bits[i];
+			}
+			return fromBits(b);
+		}
+
+		Container andNot(Container other) {
+			if (array != null) {
+				char[] lows = new char[cardinality];
+				int k = 0;
+				for (char low : array) {
+					if (!other.contains(low)) {
+						lows[k++] = low;
+					}
+				}
+				return fromArray(lows, k);
+			}
+
+			long[] b = bits.clone();
+			if (other.array != null) {
+				for (char low : other.array) {
+					b[low >>> 6] &= ~(1L << low);
+				}
+			} else {
+				for (int i = 0; i < WORDS; i++) {
+					b[i] &= ~other.bits[i];
+				}
+			}
+			return fromBits(b);
+		}
+
+		// Copies the members, each with high added, into values from k on
+		int copyTo(int[] values, int k, int high) {
+			if (array != null) {
+				for (char low : array) {
+					values[k++] = high | low;
+				}
+				return k;
+			}
+			for (int i = 0; i < WORDS; i++) {
+				for (long w = bits[i]; w != 0; w &= w - 1) {
+					values[k++] = high | ((i << 6) + Long.numberOfTrailingZeros(w));
+				}
+			}
+			return k;
+		}
+	}
+}
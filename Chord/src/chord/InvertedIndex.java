@@ -0,0 +1,488 @@
+package chord;
+
+/******************************************************************************
+ * Filename: InvertedIndex.java
+ * 
+ * Description: The InvertedIndex class stores the entries of a node: for each
+ * hashed tag, the set of URLs published under it.  Every URL is stored once,
+ * in a dictionary that gives it an int ID, and each tag keeps the IDs of its
+ * URLs in an IntSet, so a URL that is published under many tags takes a few
+ * bytes for each tag rather than a copy of the string.  A publish adds its
+ * URLs to those the tag already has.
+ * 
+ * Tags are sorted by key, so the entries on an arc can be found without
+ * visiting the others.  Each tag's IntSet is immutable and is replaced as a
+ * whole, so reads never wait for writes; writes to one index are made one at
+ * a time.  URLs stay in the dictionary when the tags that use them are
+ * removed, so that IDs never change.
+ * 
+ * The dictionary and the IntSets are kept in a PostingStore, on the heap or
+ * outside it as STORE chooses.  With HOT_BYTES set, the tags read least
+often are moved to disk (see TieredStore).  A subscribe answer can be sent as a View of
+ * a tag, whose URLs are written to the wire straight from the store.
+ * 
+ * An index may have an IndexLog, which records every change made to it so
+ * that the entries survive a restart.
+ * 
+ * Author: Kristin Dahl
+ * Date: 10-17-2026
+ *****************************************************************************/
+
+import static chord.ChordUtil.HOT_BYTES;
+import static chord.ChordUtil.STORE;
+
+import java.io.Serializable;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.PriorityQueue;
+
+public class InvertedIndex implements Serializable {
+	private static final long serialVersionUID = 6092816352230985617L;
+
+	private static final int SORTED_TAGS = 8;	// Tags whose sorted order is kept for paging
+
+	private final PostingStore store = newStore();
+	private transient IndexLog log;		// Or null if not durable
+
+	// Sorted order of the tags paged last, least recently used first.  A
+	// tag's order is dropped when it changes, and one that was sorted while
+	// the index changed is not kept.
+	private transient LinkedHashMap<BigInteger, int[]> sortedTags = new LinkedHashMap<BigInteger, int[]>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		protected boolean removeEldestEntry(Map.Entry<BigInteger, int[]> eldest) {
+			return size() > SORTED_TAGS;
+		}
+	};
+	private transient volatile long changes;		// Writes made so far
+
+
+	/*
+	 * Function name: get(BigInteger key)
+	 * 
+	 * Description: This function returns the URLs of the tag key, or null if
+	 * there is no such tag.
+	 */
+	public ArrayList<String> get(BigInteger key) {
+		IntSet set = store.get(key);
+		return (set != null) ? urls(set) : null;
+	}
+
+	/*
+	 * Function name: view(BigInteger key)
+	 * 
+	 * Description: This function returns the URLs of the tag key as a View,
+	 * which is empty if there is no such tag.
+	 */
+	public View view(BigInteger key) {
+		IntSet set = store.get(key);
+		return new View((set != null) ? set : IntSet.EMPTY, null);
+	}
+
+	/*
+	 * Function name: view(BigInteger key, String after, int limit)
+	 * 
+	 * Description: This function returns one page of the URLs of the tag
+	 * key, in the order of their UTF-8 bytes: at most limit URLs (all of
+	 * them if limit is not above 0) that come after the URL after, or from
+	 * the first one if after is null. The View's next() is the cursor of the
+	 * page that follows, or null if this is the last one. null is returned if
+	 * there is no such tag. The cursor is a URL rather than a position, so any replica
+	 * of the tag can answer for the next page, and URLs added in between are
+	 * not skipped if they sort after the cursor.
+	 */
+	public View view(BigInteger key, String after, int limit) {
+		long before = changes;
+		int[] order;
+		synchronized (sortedTags) {
+			order = sortedTags.get(key);
+		}
+
+		if (order == null) {
+			IntSet set = store.get(key);
+			if (set == null) {
+				return null;
+			}
+			if (after == null && (limit <= 0 || set.size() <= limit)) {
+				return new View(set, null);
+			}
+			if (after == null) {
+				return firstPage(set, limit);
+			}
+
+			order = sort(set);
+			synchronized (sortedTags) {
+				if (changes == before) {
+					sortedTags.put(key, order);
+				}
+			}
+		}
+
+		int from = (after != null) ? upperBound(order, after.getBytes(StandardCharsets.UTF_8)) : 0;
+		int to = (limit > 0) ? (int) Math.min(order.length, (long) from + limit) : order.length;
+
+		int[] page = Arrays.copyOfRange(order, from, to);
+		String next = (to < order.length) ? store.url(order[to - 1]) : null;
+		return new View(IntSet.of(page, page.length), next);
+	}
+
+	/*
+	 * Function name: postings(BigInteger key)
+	 * 
+	 * Description: This function returns the IDs of the URLs of the tag key,
+	 * or null if there is no such tag.
+	 */
+	public IntSet postings(BigInteger key) {
+		return store.get(key);
+	}
+
+	/*
+	 * Function name: put(BigInteger key, Collection<String> list)
+	 * 
+	 * Description: This function replaces the URLs of the tag key with list.
+	 * It is used for entries copied from the node that owns them.
+	 */
+	public synchronized void put(BigInteger key, Collection<String> list) {
+		store.put(key, intern(list));
+		changed(key);
+		if (log != null) {
+			log.write(IndexLog.PUT, key, list);
+		}
+	}
+
+	/*
+	 * Function name: append(BigInteger key, Collection<String> list)
+	 * 
+	 * Description: This function adds the URLs in list to the tag key, and
+	 * creates the tag if there is none. It returns the URLs that the tag did
+	 * not have yet.
+	 */
+	public synchronized ArrayList<String> append(BigInteger key, Collection<String> list) {
+		IntSet old = store.get(key);
+		IntSet added = intern(list);
+
+		if (old == null) {
+			store.put(key, added);
+			changed(key);
+		} else if (!(added = added.andNot(old)).isEmpty()) {
+			store.put(key, old.or(added));
+			changed(key);
+		}
+
+		ArrayList<String> addedURLs = urls(added);
+		if (log != null && !addedURLs.isEmpty()) {
+			log.write(IndexLog.APPEND, key, addedURLs);
+		}
+		return addedURLs;
+	}
+
+	public synchronized void remove(BigInteger key) {
+		if (store.remove(key)) {
+			changed(key);
+			if (log != null) {
+				log.write(IndexLog.REMOVE, key, null);
+			}
+		}
+	}
+
+	/*
+	 * Function name: sync()
+	 * 
+	 * Description: This function waits until the changes made so far are
+	 * durable, as far as FSYNC_POLICY asks. It returns at once if the index
+	 * has no log.
+	 */
+	public void sync() {
+		IndexLog l = log;
+		if (l != null) {
+			l.sync();
+		}
+	}
+
+	/*
+	 * Function name: setLog(IndexLog log)
+	 * 
+	 * Description: This function makes the index record its changes in log
+	 * from now on.
+	 */
+	public synchronized void setLog(IndexLog log) {
+		this.log = log;
+	}
+
+	public IndexLog log() {
+		return log;
+	}
+
+	public boolean containsKey(BigInteger key) {
+		return store.keySet().contains(key);
+	}
+
+	public int size() {
+		return store.keySet().size();
+	}
+
+	/*
+	 * Function name: keySet()
+	 * 
+	 * Description: This function returns a live view of the tags, sorted by
+	 * key.
+	 */
+	public NavigableSet<BigInteger> keySet() {
+		return store.keySet();
+	}
+
+	/*
+	 * Function name: ids(Collection<String> list)
+	 * 
+	 * Description: This function returns the IDs of the URLs in list that
+	 * are in the dictionary. A URL that is not in it is in no tag.
+	 */
+	public IntSet ids(Collection<String> list) {
+		int[] values = new int[list.size()];
+		int n = 0;
+		for (String url : list) {
+			int id = store.id(url);
+			if (id >= 0) {
+				values[n++] = id;
+			}
+		}
+		return IntSet.of(values, n);
+	}
+
+	/*
+	 * Function name: id(String url)
+	 * 
+	 * Description: This function returns the ID of url, or -1 if it is not
+	 * in the dictionary.
+	 */
+	public int id(String url) {
+		return store.id(url);
+	}
+
+	/*
+	 * Function name: urls(IntSet set)
+	 * 
+	 * Description: This function returns the URLs with the IDs in set, in
+	 * the order they were first stored.
+	 */
+	public ArrayList<String> urls(IntSet set) {
+		ArrayList<String> list = new ArrayList<String>(set.size());
+		for (int id : set.toArray()) {
+			list.add(store.url(id));
+		}
+		return list;
+	}
+
+	/*
+	 * Function name: url(int id)
+	 * 
+	 * Description: This function returns the URL with the given ID.
+	 */
+	public String url(int id) {
+		return store.url(id);
+	}
+
+	/*
+	 * Function name: stats()
+	 * 
+	 * Description: This function returns the number of URLs in the
+	 * dictionary, the number of URLs stored under all tags together, about
+	 * the number of bytes that the tags' posting lists take, and the bytes
+	 * the store holds outside the heap.
+	 */
+	public long[] stats() {
+		long[] s = store.stats();
+		return new long[] { store.urlCount(), s[0], s[1], s[2] };
+	}
+
+	/*
+	 * Function name: addStats(Map<String, Long> stats)
+	 * 
+	 * Description: This function adds the store's own counters to stats.
+	 */
+	public void addStats(Map<String, Long> stats) {
+		store.addStats(stats);
+	}
+
+	// Returns the dictionary, by ID, for a snapshot.  Called with this held.
+	String[] dictionary() {
+		String[] urls = new String[store.urlCount()];
+		for (int id = 0; id < urls.length; id++) {
+			urls[id] = store.url(id);
+		}
+		return urls;
+	}
+
+	// Returns the tags and their IDs, for a snapshot, without moving tags
+	// between tiers.  Needs no lock: a tag that changes meanwhile is listed
+	// before or after the change, and one removed meanwhile may be left out.
+	ArrayList<Map.Entry<BigInteger, IntSet>> entries() {
+		ArrayList<Map.Entry<BigInteger, IntSet>> entries = new ArrayList<Map.Entry<BigInteger, IntSet>>();
+		for (BigInteger key : store.keySet()) {
+			IntSet set = store.peek(key);
+			if (set != null) {
+				entries.add(new AbstractMap.SimpleImmutableEntry<BigInteger, IntSet>(key, set));
+			}
+		}
+		return entries;
+	}
+
+	// Fills the dictionary of an empty index from a snapshot
+	synchronized void load(String[] dictionary) {
+		for (String url : dictionary) {
+			store.add(url);
+		}
+	}
+
+	// Adds a tag from a snapshot, with IDs from the loaded dictionary
+	synchronized void load(BigInteger key, IntSet set) {
+		store.put(key, set);
+		changed(key);
+	}
+
+	// Returns the IDs of the URLs in list, adding the new ones to the
+	// dictionary in sorted order, so that URLs with a common prefix get
+	// neighbouring IDs.  Called with this held.
+	private IntSet intern(Collection<String> list) {
+		String[] sorted = list.toArray(new String[list.size()]);
+		Arrays.sort(sorted);
+
+		int[] values = new int[sorted.length];
+		for (int i = 0; i < sorted.length; i++) {
+			values[i] = store.add(sorted[i]);
+		}
+		return IntSet.of(values, values.length);
+	}
+
+	// Returns the first limit URLs of set, which has more, without sorting
+	// the rest: the pages after the first are only sorted when they are
+	// asked for
+	private View firstPage(IntSet set, int limit) {
+		PriorityQueue<URLEntry> largest = new PriorityQueue<URLEntry>(limit, Collections.reverseOrder(URLEntry.ORDER));
+		for (int id : set.toArray()) {
+			byte[] url = store.urlBytes(id);
+			if (largest.size() < limit) {
+				largest.add(new URLEntry(url, id));
+			} else if (Arrays.compareUnsigned(url, largest.peek().url) < 0) {
+				largest.poll();
+				largest.add(new URLEntry(url, id));
+			}
+		}
+
+		String next = new String(largest.peek().url, StandardCharsets.UTF_8);
+		int[] page = new int[largest.size()];
+		int n = 0;
+		for (URLEntry e : largest) {
+			page[n++] = e.id;
+		}
+		return new View(IntSet.of(page, n), next);
+	}
+
+	// Returns the IDs of set sorted by the bytes of their URLs
+	private int[] sort(IntSet set) {
+		int[] ids = set.toArray();
+		URLEntry[] entries = new URLEntry[ids.length];
+		for (int i = 0; i < ids.length; i++) {
+			entries[i] = new URLEntry(store.urlBytes(ids[i]), ids[i]);
+		}
+		Arrays.parallelSort(entries, URLEntry.ORDER);
+
+		int[] order = new int[ids.length];
+		for (int i = 0; i < order.length; i++) {
+			order[i] = entries[i].id;
+		}
+		return order;
+	}
+
+	// Called with this held, after the tag key has changed
+	private void changed(BigInteger key) {
+		changes++;
+		synchronized (sortedTags) {
+			sortedTags.remove(key);
+		}
+	}
+
+	// Returns the position in order of the first URL that sorts after url
+	private int upperBound(int[] order, byte[] url) {
+		int lo = 0;
+		int hi = order.length;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (Arrays.compareUnsigned(store.urlBytes(order[mid]), url) <= 0) {
+				lo = mid + 1;
+			} else {
+				hi = mid;
+			}
+		}
+		return lo;
+	}
+
+	// A URL's bytes and its ID, sorted by the bytes
+	private static final class URLEntry {
+		static final Comparator<URLEntry> ORDER = new Comparator<URLEntry>() {
+			public int compare(URLEntry a, URLEntry b) {
+				return Arrays.compareUnsigned(a.url, b.url);
+			}
+		};
+
+		final byte[] url;
+		final int id;
+
+		URLEntry(byte[] url, int id) {
+			this.url = url;
+			this.id = id;
+		}
+	}
+
+	/*
+	 * The URLs of a tag, as they were when the View was made.  BinaryCodec
+	 * writes them from the store without making strings of them; other
+	 * readers get them as a list.
+	 */
+	public final class View {
+		private final IntSet ids;
+		private final String next;
+
+		private View(IntSet ids, String next) {
+			this.ids = ids;
+			this.next = next;
+		}
+
+		public int size() {
+			return ids.size();
+		}
+
+		// The cursor of the next page, or null if there is none
+		public String next() {
+			return next;
+		}
+
+		public ArrayList<String> list() {
+			return urls(ids);
+		}
+
+		// Writes the URLs as BinaryCodec writes a list of URLs
+		void writeTo(BinaryCodec.Writer w) {
+			int[] values = ids.toArray();
+			byte[][] bytes = new byte[values.length][];
+			for (int i = 0; i < values.length; i++) {
+				bytes[i] = store.urlBytes(values[i]);
+			}
+			URLBlocks.write(w, bytes);
+		}
+	}
+
+	private static PostingStore newStore() {
+		PostingStore store = STORE.equals("offheap") ? new OffHeapStore() : new HeapStore();
+		return (HOT_BYTES > 0) ? new TieredStore(store) : store;
+	}
+}
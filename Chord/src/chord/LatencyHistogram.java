@@ -0,0 +1,100 @@
+package chord;
+
+/******************************************************************************
+ * Filename: LatencyHistogram.java
+ * 
+ * Description: The LatencyHistogram class records the response times of one
+ * node in buckets that grow by a factor of two, from 16 microseconds up to
+ * about 30 seconds, and answers percentile queries from them.  Recording is
+ * lock-free.  Once a histogram holds HISTORY samples, all buckets are halved,
+ * so that the percentiles follow the node's recent behavior rather than its
+ * whole history.
+ * 
+ * Author: Kristin Dahl
+ * Date: 10-17-2026
+ *****************************************************************************/
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+public class LatencyHistogram {
+	private static final int BUCKETS = 22;
+	private static final int MIN_SHIFT = 4;      // First bucket ends at 16 us
+	private static final long HISTORY = 1024;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final AtomicLong total = new AtomicLong();
+
+
+	/*
+	 * Function name: record(long nanos)
+	 * 
+	 * Description: This function adds one response time to the histogram.
+	 */
+	public void record(long nanos) {
+		long micros = Math.max(1, nanos / 1000);
+		int bucket = Math.min(BUCKETS - 1, Math.max(0, 64 - Long.numberOfLeadingZeros(micros - 1) - MIN_SHIFT));
+
+		counts.incrementAndGet(bucket);
+		if (total.incrementAndGet() >= HISTORY) {
+			decay();
+		}
+	}
+
+	/*
+	 * Function name: count()
+	 * 
+	 * Description: This function returns the number of samples the
+	 * percentiles are currently taken from.
+	 */
+	public long count() {
+		return total.get();
+	}
+
+	/*
+	 * Function name: percentile(int p)
+	 * 
+	 * Description: This function returns the upper bound, in microseconds, of
+	 * the bucket that holds the p-th percentile of the recorded times, or -1
+	 * if nothing has been recorded yet.
+	 */
+	public long percentile(int p) {
+		long n = 0;
+		long[] snapshot = new long[BUCKETS];
+		for (int i = 0; i < BUCKETS; i++) {
+			snapshot[i] = counts.get(i);
+			n += snapshot[i];
+		}
+		if (n == 0) {
+			return -1;
+		}
+
+		long rank = (n * p + 99) / 100;
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += snapshot[i];
+			if (seen >= rank) {
+				return 1L << (i + MIN_SHIFT);
+			}
+		}
+		return 1L << (BUCKETS - 1 + MIN_SHIFT);
+	}
+
+	/*
+	 * Function name: decay()
+	 * 
+	 * Description: This function halves every bucket. Samples recorded while
+	 * it runs may be halved or not, which does not matter for an estimate.
+	 */
+	private void decay() {
+		long kept = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			long c;
+			do {
+				c = counts.get(i);
+			} while (!counts.compareAndSet(i, c, c / 2));
+			kept += c / 2;
+		}
+		total.set(kept);
+	}
+}
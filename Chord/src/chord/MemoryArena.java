@@ -0,0 +1,151 @@
+package chord;
+
+/******************************************************************************
+ * Filename: MemoryArena.java
+ * 
+ * Description: The MemoryArena class hands out blocks of memory outside the
+ * Java heap.  Memory is taken from the OS in direct buffers (chunks), which
+ * start at FIRST_CHUNK bytes and double in size up to CHUNK_SIZE, and blocks
+ * are cut from the current chunk one after another.  A
+ * block is named by an int handle: the chunk's number in the upper bits and
+ * the block's offset in 8-byte units in the lower ones, so up to 16 GB can
+ * be addressed and the heap holds 4 bytes per block.  A block larger than a
+ * chunk gets a chunk of its own.
+ * 
+ * Blocks that are replaced over time are allocated in powers of two with
+ * allocateBlock(), and when freed go to a free list for their size, where
+ * the next block of that size is taken from.  Blocks from allocate() are
+ * never freed.  The arena is not thread-safe; its owner serializes writes.
+ * 
+ * Author: Kristin Dahl
+ * Date: 10-17-2026
+ *****************************************************************************/
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+public final class MemoryArena {
+	public static final int CHUNK_SIZE  = 1 << 24;		// 16 MB
+	public static final int FIRST_CHUNK = 1 << 16;		// 64 KB
+
+	private static final int ALIGN_BITS  = 3;			// Blocks start on 8 bytes
+	private static final int OFFSET_BITS = 24 - ALIGN_BITS;
+	private static final int MAX_CHUNKS  = 1 << (31 - OFFSET_BITS);
+	private static final int CLASSES     = 31;
+
+	private volatile ByteBuffer[] chunks = new ByteBuffer[0];	// Replaced when one is added
+	private int current = -1;				// Chunk that blocks are cut from
+	private int top;						// First free byte of the current chunk
+	private int limit;						// Size of the current chunk
+	private long reserved;					// Bytes in all chunks
+	private long used;						// Bytes in blocks not freed
+
+	private final int[][] free = new int[CLASSES][];	// Free blocks, by size class
+	private final int[] freeCount = new int[CLASSES];
+
+
+	/*
+	 * Function name: allocate(int n)
+	 * 
+	 * Description: This function returns the handle of a new block of n
+	 * bytes. The block is never freed.
+	 */
+	public int allocate(int n) {
+		int size = (n + (1 << ALIGN_BITS) - 1) & -(1 << ALIGN_BITS);
+		used += size;
+
+		if (size > CHUNK_SIZE) {
+			return handle(addChunk(size), 0);
+		}
+		if (top + size > limit) {
+			limit = Math.min(CHUNK_SIZE, Math.max(limit * 2, FIRST_CHUNK));
+			while (limit < size) {
+				limit *= 2;
+			}
+			current = addChunk(limit);
+			top = 0;
+		}
+
+		int handle = handle(current, top);
+		top += size;
+		return handle;
+	}
+
+	/*
+	 * Function name: allocateBlock(int n)
+	 * 
+	 * Description: This function returns the handle of a block of at least
+	 * n bytes that can be freed again with freeBlock(). Its capacity is
+	 * capacity(n).
+	 */
+	public int allocateBlock(int n) {
+		int c = sizeClass(n);
+		if (freeCount[c] > 0) {
+			used += 1L << c;
+			return free[c][--freeCount[c]];
+		}
+		return allocate(1 << c);
+	}
+
+	/*
+	 * Function name: freeBlock(int handle, int n)
+	 * 
+	 * Description: This function returns a block from allocateBlock(n) to
+	 * the arena. The caller must make sure that nobody reads it any more.
+	 */
+	public void freeBlock(int handle, int n) {
+		int c = sizeClass(n);
+		if (free[c] == null) {
+			free[c] = new int[16];
+		} else if (freeCount[c] == free[c].length) {
+			free[c] = Arrays.copyOf(free[c], freeCount[c] * 2);
+		}
+		free[c][freeCount[c]++] = handle;
+		used -= 1L << c;
+	}
+
+	// The number of bytes allocateBlock(n) gives
+	public static int capacity(int n) {
+		return 1 << sizeClass(n);
+	}
+
+	// The chunk that holds the block with the given handle
+	public ByteBuffer buffer(int handle) {
+		return chunks[handle >>> OFFSET_BITS];
+	}
+
+	// The position of the block with the given handle in its chunk
+	public static int offset(int handle) {
+		return (handle & ((1 << OFFSET_BITS) - 1)) << ALIGN_BITS;
+	}
+
+	public long reserved() {
+		return reserved;
+	}
+
+	public long used() {
+		return used;
+	}
+
+	private static int handle(int chunk, int offset) {
+		return (chunk << OFFSET_BITS) | (offset >>> ALIGN_BITS);
+	}
+
+	private static int sizeClass(int n) {
+		return Math.max(ALIGN_BITS, 32 - Integer.numberOfLeadingZeros(Math.max(n, 1) - 1));
+	}
+
+	// Adds a chunk of size bytes, and returns its number
+	private int addChunk(int size) {
+		ByteBuffer[] old = chunks;
+		if (old.length == MAX_CHUNKS) {
+			throw new IllegalStateException("Memory arena is full");
+		}
+
+		ByteBuffer[] grown = Arrays.copyOf(old, old.length + 1);
+		grown[old.length] = ByteBuffer.allocateDirect(size);
+		chunks = grown;
+		reserved += size;
+		return old.length;
+	}
+}
@@ -0,0 +1,62 @@
+package chord;
+
+/******************************************************************************
+ * Filename: Message.java
+ * 
+ * Description: This file defines the Message data class.  Every request and
+ * response exchanged by the client, the SuperNode and the nodes is a single
+ * Message.  The op field holds one of the opcodes defined in ChordUtil, and
+ * only the fields needed by that opcode are filled in.  Unused int fields are
+ * set to NONE and unused object fields are left null.  Keys and node IDs are
+ * M-bit numbers and are held as BigIntegers.
+ * 
+ * Author: Kristin Dahl
+ * Date: 10-17-2026
+ *****************************************************************************/
+
+import java.io.Serializable;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+
+public class Message implements Serializable {
+	private static final long serialVersionUID = 3349202517733461812L;
+
+	public static final int NONE = Integer.MIN_VALUE;
+
+	public byte       op;
+	public BigInteger target;			// Vnode the request is for (null for the first)
+	public BigInteger key;				// Hashed tag or node ID
+	public int        index = NONE;		// Finger table index, the size of a URL list, a page size, or ERR in a REPLY
+	public boolean    trace;			// Whether a node trace is requested
+	public NodeRef    node;
+	public NodeRef    successor;
+	public NodeRef    predecessor;
+	public String     host;
+	public int        port  = NONE;
+	public long       version;			// Ring version of a cached route (0 if none)
+	public long       requestId;		// Matches a response to its request (0 if none)
+	public String     query;			// Boolean query over keys, in postfix form (see QueryPlan)
+	public String     cursor;			// Last URL of the page before, or of this one if more follow
+
+	public ArrayList<String>     urls;
+	public ArrayList<BigInteger> keys;
+	public ArrayList<BigInteger> nodeTrace;
+	public ArrayList<Finger>     fingers;
+	public ArrayList<NodeRef>    successors;
+	public ArrayList<ArrayList<String>> values;	// URL lists, one for each entry of keys
+	public LinkedHashMap<String, Long> stats;
+	public BloomFilter           filter;	// Candidate URLs of a FILTER
+
+	// URLs sent from a node's index in place of urls (see InvertedIndex.View)
+	public transient InvertedIndex.View urlView;
+
+	
+	// Message constructor
+	public Message(byte op) {
+		this.op = op;
+	}
+
+	// Default constructor
+	public Message() {}
+}
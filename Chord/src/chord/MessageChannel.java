@@ -0,0 +1,23 @@
+package chord;
+
+/******************************************************************************
+ * Filename: MessageChannel.java
+ * 
+ * Description: This file defines a connection that carries whole Message
+ * objects.  A MessageChannel is created by a WireCodec on top of a socket, and
+ * each call to send() puts exactly one request or response on the wire with
+ * a single flush.
+ * 
+ * Author: Kristin Dahl
+ * Date: 10-17-2026
+ *****************************************************************************/
+
+import java.io.IOException;
+
+public interface MessageChannel {
+	public void send(Message m) throws IOException;
+
+	public Message receive() throws IOException;
+
+	public void close();
+}
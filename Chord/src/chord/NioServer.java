@@ -0,0 +1,276 @@
+package chord;
+
+/******************************************************************************
+ * Filename: NioServer.java
+ * 
+ * Description: This file defines a non-blocking server core for a node.  A
+ * single selector thread accepts connections, reads request frames and
+ * writes response frames.  Each complete request is handed to a pool of
+ * handler threads, so a slow peer or a request that makes nested remote
+ * calls no longer holds up every other connection to the node.  The pool
+ * keeps a fixed number of threads and starts more while they are all busy:
+ * a handler may wait on a call to another node that needs a handler of this
+ * node to answer, and with a bounded pool such waits could use up every
+ * thread.
+ * 
+ * A request whose handler fails is answered with ERR, unless it expects no
+ * answer, and its connection is closed once the ERR has been written.  A
+ * frame that cannot be decoded closes its connection at once.  Either way,
+ * the node and its other connections carry on.
+ * 
+ * Frames are parsed with BinaryCodec, so this server is only used with the
+ * binary codec.
+ * 
+ * Author: Kristin Dahl
+ * Date: 10-17-2026
+ *****************************************************************************/
+
+import static chord.ChordUtil.ERR;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class NioServer {
+	private static final int READ_BUFFER_SIZE = 8192;
+	private static final long HANDLER_IDLE_SECONDS = 60;	// Extra handler threads stop after this
+
+	private final int port;
+	private final NodeThread node;
+	private final ExecutorService handlers;
+	private final ConcurrentLinkedQueue<Connection> pendingWrites;
+
+	private Selector selector;
+
+	
+	// NioServer constructor
+	public NioServer(int port, NodeThread node, int handlerThreads) {
+		this.port  = port;
+		this.node  = node;
+		this.pendingWrites = new ConcurrentLinkedQueue<Connection>();
+		this.handlers = new ThreadPoolExecutor(handlerThreads, Integer.MAX_VALUE, HANDLER_IDLE_SECONDS, TimeUnit.SECONDS,
+				new SynchronousQueue<Runnable>(), new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "chord-" + NioServer.this.port + "-handler-" + count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	
+	/*
+	 * Function name: serve()
+	 * 
+	 * Description: This function runs the selector loop. It does not return
+	 * unless the selector fails.
+	 */
+	public void serve() throws IOException {
+		selector = Selector.open();
+
+		ServerSocketChannel server = ServerSocketChannel.open();
+		server.bind(new InetSocketAddress(port));
+		server.configureBlocking(false);
+		server.register(selector, SelectionKey.OP_ACCEPT);
+
+		while (true) {
+			selector.select();
+
+			// Start writes queued by handler threads
+			Connection pending;
+			while ((pending = pendingWrites.poll()) != null) {
+				pending.flush();
+			}
+
+			Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+			while (it.hasNext()) {
+				SelectionKey key = it.next();
+				it.remove();
+
+				try {
+					if (!key.isValid()) {
+						continue;
+					}
+					if (key.isAcceptable()) {
+						accept(server);
+					}
+					if (key.isValid() && key.isReadable()) {
+						((Connection) key.attachment()).read();
+					}
+					if (key.isValid() && key.isWritable()) {
+						((Connection) key.attachment()).flush();
+					}
+				} catch (IOException e) {
+					// The peer went away or sent a bad frame.
+					if (key.attachment() != null) {
+						((Connection) key.attachment()).close();
+					}
+				} catch (RuntimeException e) {
+					// A frame that could not be decoded ends only its connection
+					System.err.println("Node on port " + port + ": DECODE FAILED: " + e);
+					e.printStackTrace();
+					if (key.attachment() != null) {
+						((Connection) key.attachment()).close();
+					}
+				}
+			}
+		}
+	}
+
+	private void accept(ServerSocketChannel server) throws IOException {
+		SocketChannel sc = server.accept();
+		if (sc == null) {
+			return;
+		}
+		sc.configureBlocking(false);
+		sc.socket().setTcpNoDelay(true);
+
+		Connection conn = new Connection(sc);
+		conn.key = sc.register(selector, SelectionKey.OP_READ, conn);
+	}
+
+	
+	/*
+	 * Connection holds the read buffer and the queue of outgoing frames for one
+	 * accepted socket. Handler threads send responses through it as a
+	 * MessageChannel; the frames are written by the selector thread.
+	 */
+	private class Connection implements MessageChannel {
+		private final SocketChannel sc;
+		private final ConcurrentLinkedQueue<ByteBuffer> writes = new ConcurrentLinkedQueue<ByteBuffer>();
+		private ByteBuffer readBuf = ByteBuffer.allocate(READ_BUFFER_SIZE);
+		private SelectionKey key;
+		private volatile boolean closing;		// Close once the queued frames are written
+
+		Connection(SocketChannel sc) {
+			this.sc = sc;
+		}
+
+		/*
+		 * Read whatever is available and dispatch every complete frame.
+		 */
+		void read() throws IOException {
+			if (sc.read(readBuf) < 0) {
+				close();
+				return;
+			}
+
+			readBuf.flip();
+			Message request;
+			while ((request = BinaryCodec.readFrame(readBuf)) != null) {
+				dispatch(request);
+			}
+			readBuf.compact();
+
+			// Grow the buffer if a single frame does not fit
+			if (!readBuf.hasRemaining()) {
+				ByteBuffer bigger = ByteBuffer.allocate(readBuf.capacity() * 2);
+				readBuf.flip();
+				bigger.put(readBuf);
+				readBuf = bigger;
+			}
+		}
+
+		private void dispatch(final Message request) {
+			final RequestContext ctx = new RequestContext(this);
+
+			handlers.execute(new Runnable() {
+				public void run() {
+					try {
+						node.dispatch(request, ctx, false);
+					} catch (IOException e) {
+						// The caller, or a node the handler called, went away
+						fail(request, ctx);
+					} catch (Exception e) {
+						System.err.println("Node on port " + port + ": REQUEST FAILED: " + e);
+						e.printStackTrace();
+						fail(request, ctx);
+					}
+				}
+			});
+		}
+
+		// Answers a request whose handler failed with ERR, if it expects an
+		// answer that has not been sent, and closes the connection after it,
+		// so that the caller never reads an answer meant for another request
+		private void fail(Message request, RequestContext ctx) {
+			if (!ctx.replied() && !NodeThread.oneWay(request)) {
+				Message err = new Message(ERR);
+				err.requestId = request.requestId;
+				try {
+					ctx.reply(err);
+				} catch (IOException e) {
+					// Already closed
+				}
+			}
+			closing = true;
+			pendingWrites.add(this);
+			selector.wakeup();
+		}
+
+		/*
+		 * Called by handler threads. The frame is queued and the selector is
+		 * woken up to write it.
+		 */
+		public void send(Message m) throws IOException {
+			if (!sc.isOpen()) {
+				throw new IOException("Connection closed");
+			}
+			writes.add(ByteBuffer.wrap(BinaryCodec.frame(m)));
+			pendingWrites.add(this);
+			selector.wakeup();
+		}
+
+		/*
+		 * Called on the selector thread. Writes queued frames until the socket
+		 * would block, and waits for OP_WRITE if anything is left.
+		 */
+		void flush() {
+			try {
+				ByteBuffer buf;
+				while ((buf = writes.peek()) != null) {
+					sc.write(buf);
+					if (buf.hasRemaining()) {
+						key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+						return;
+					}
+					writes.poll();
+				}
+				if (closing) {
+					close();
+				} else if (key.isValid()) {
+					key.interestOps(SelectionKey.OP_READ);
+				}
+			} catch (Exception e) {
+				close();
+			}
+		}
+
+		public Message receive() throws IOException {
+			throw new IOException("Requests on this connection are read by the selector");
+		}
+
+		public void close() {
+			if (key != null) {
+				key.cancel();
+			}
+			try {
+				sc.close();
+			} catch (IOException e) {}
+		}
+	}
+}
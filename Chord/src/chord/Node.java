@@ -4,36 +4,39 @@ package chord;
  * Filename: Node.java
  * 
  * Description:  This file defines the Node data class.  Each node has its own
- * ID, finger table, port, and entries map.
+ * ID, finger table, port, and entries (see InvertedIndex).  Other nodes
+ * (fingers and the predecessor) are only held as NodeRefs.
  *
  * Author: Kristin Dahl
  * Date: 9-6-2016
  *****************************************************************************/
 
+import static chord.ChordUtil.HOST;
 import static chord.ChordUtil.M;
 
 import java.io.Serializable;
+import java.math.BigInteger;
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Map;
 
 public class Node implements Serializable {
 	private static final long serialVersionUID = -7357466511459361679L;
 
-	public int id;
+	public BigInteger id;
+	public String host = HOST;
 	public int port;
 	public Finger[] fingerTable;
-	public Node predecessor;
-	public Map<Integer, ArrayList<String>> entries;
+	public volatile NodeRef predecessor;
+	public volatile ArrayList<NodeRef> successorList;	// Replaced, never modified
+	public InvertedIndex entries;	// Sorted by key
 
 	
 	public Node(int port) {
 		this.port = port;
-		this.entries = new HashMap<Integer, ArrayList<String>>();
+		this.entries = new InvertedIndex();
 		this.fingerTable = new Finger[M + 1];
 	}
 	
-	public void setID(int id) {
+	public void setID(BigInteger id) {
 		this.id = id;
 	}
 
@@ -47,7 +50,16 @@ public class Node implements Serializable {
 	 * Description: This function simply returns the first index of the node's
 	 * finger table.
 	 */
-	public Node successor() {
+	public NodeRef successor() {
 		return fingerTable[1].node;
 	}
+
+	/*
+	 * Function name: ref()
+	 * 
+	 * Description: This function returns a NodeRef that refers to this node.
+	 */
+	public NodeRef ref() {
+		return new NodeRef(id, host, port);
+	}
 }
@@ -0,0 +1,48 @@
+package chord;
+
+/******************************************************************************
+ * Filename: NodeRef.java
+ * 
+ * Description:  This file defines the NodeRef data class.  A NodeRef is an
+ * immutable reference to a node: its ID and the host and port it listens
+ * on.  Finger tables, predecessors and all routing messages use NodeRefs, so
+ * that a lookup never carries a node's entries or finger table.
+ *
+ * Author: Kristin Dahl
+ * Date: 10-17-2026
+ *****************************************************************************/
+
+import java.io.Serializable;
+import java.math.BigInteger;
+
+public final class NodeRef implements Serializable {
+	private static final long serialVersionUID = -2510348861437731203L;
+
+	public final BigInteger id;
+	public final String     host;
+	public final int        port;
+
+	
+	// NodeRef constructor
+	public NodeRef(BigInteger id, String host, int port) {
+		this.id   = id;
+		this.host = host;
+		this.port = port;
+	}
+
+	public boolean equals(Object o) {
+		if (!(o instanceof NodeRef)) {
+			return false;
+		}
+		NodeRef other = (NodeRef) o;
+		return id.equals(other.id) && port == other.port && host.equals(other.host);
+	}
+
+	public int hashCode() {
+		return 31 * (31 * id.hashCode() + port) + host.hashCode();
+	}
+
+	public String toString() {
+		return id + "@" + host + ":" + port;
+	}
+}
@@ -85,7 +85,9 @@ public class NodeSetup {
 		// Call join for each node
 		SuperNode.createNodeIDs();
 		SuperNode.contactNodes();
+		long stableMs = SuperNode.awaitRing();
 		System.out.println("\nAll nodes have joined.");
+		System.out.println("Ring stabilized in " + stableMs + " ms.");
 		
 		Client.execute();
 	}
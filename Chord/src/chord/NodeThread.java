@@ -6,6 +6,11 @@ package chord;
  * Description: The file defines all of the node operations needed to execute 
  * the Chord protocol.  Each NodeThread has its own Node object.
  * 
+ * A physical node can host several virtual nodes (vnodes).  Each vnode is a
+ * NodeThread with its own ID and finger table, but all vnodes of a physical
+ * node share one listening port, one connection pool and one entries map.
+ * Requests name the vnode they are for in their target field.
+ * 
  * Each NodeThread listens on a port for incoming connections from other nodes.
  * When a connection is made, it determines what the request is and then 
  * executes the request.  When the request is complete, the thread will then 
@@ -15,166 +20,258 @@ package chord;
  * Date: 9-6-2016
  *****************************************************************************/
 
+import static chord.ChordUtil.APPEND;
+import static chord.ChordUtil.BATCH_BYTES;
+import static chord.ChordUtil.BLOOM_FPP;
 import static chord.ChordUtil.CLOSEST_PRE_FINGER;
-import static chord.ChordUtil.END;
+import static chord.ChordUtil.CODEC;
+import static chord.ChordUtil.COUNT;
+import static chord.ChordUtil.DATA_DIR;
+import static chord.ChordUtil.DEPART;
 import static chord.ChordUtil.ERR;
+import static chord.ChordUtil.FETCH;
+import static chord.ChordUtil.FILTER;
+import static chord.ChordUtil.FINGER_OFFSET;
 import static chord.ChordUtil.FIND_PRED;
 import static chord.ChordUtil.FIND_SUCC;
+import static chord.ChordUtil.FORWARD_TIMEOUT_MS;
 import static chord.ChordUtil.GET_NODE;
-import static chord.ChordUtil.HOST;
+import static chord.ChordUtil.HANDOFF;
+import static chord.ChordUtil.HANDLER_THREADS;
+import static chord.ChordUtil.HEDGE_BUDGET;
+import static chord.ChordUtil.HEDGE_BURST;
+import static chord.ChordUtil.HEDGE_DEFAULT_US;
+import static chord.ChordUtil.HEDGE_MIN_SAMPLES;
+import static chord.ChordUtil.HEDGE_PERCENTILE;
+import static chord.ChordUtil.INTERSECT;
 import static chord.ChordUtil.JOIN;
+import static chord.ChordUtil.LEAVE;
+import static chord.ChordUtil.LEAVE_BATCH_KEYS;
 import static chord.ChordUtil.M;
-import static chord.ChordUtil.MAX_NODES;
+import static chord.ChordUtil.MAINTENANCE_THREADS;
+import static chord.ChordUtil.MIGRATE;
+import static chord.ChordUtil.MIGRATION_BATCH_KEYS;
+import static chord.ChordUtil.NOTIFY;
 import static chord.ChordUtil.OK;
+import static chord.ChordUtil.PING;
 import static chord.ChordUtil.PRINT_DATA;
 import static chord.ChordUtil.PUBLISH;
-import static chord.ChordUtil.SEND_HOST;
-import static chord.ChordUtil.SEND_PORT;
-import static chord.ChordUtil.SEND_TAG;
-import static chord.ChordUtil.SEND_TRACE;
-import static chord.ChordUtil.SEND_URL;
-import static chord.ChordUtil.SET_PRED;
+import static chord.ChordUtil.QUERY;
+import static chord.ChordUtil.READ_MODE;
+import static chord.ChordUtil.REPLICAS;
+import static chord.ChordUtil.REPLICATE;
+import static chord.ChordUtil.REPLY;
+import static chord.ChordUtil.RING_CHANGE;
+import static chord.ChordUtil.RING_SNAPSHOT;
+import static chord.ChordUtil.SERVER_MODE;
+import static chord.ChordUtil.STABILIZE_INTERVAL_MS;
 import static chord.ChordUtil.SUBSCRIBE;
+import static chord.ChordUtil.SUBSCRIBE_DEADLINE_MS;
+import static chord.ChordUtil.SUBTRACT;
+import static chord.ChordUtil.SUCCESSOR_LIST_SIZE;
 import static chord.ChordUtil.SUPERNODE_ID;
-import static chord.ChordUtil.SUPERNODE_PORT_NUM;
-import static chord.ChordUtil.UPDATE_FINGER_TABLE;
-
+import static chord.ChordUtil.SUPERNODE;
+import static chord.ChordUtil.TRANSFER;
+import static chord.ChordUtil.addID;
+import static chord.ChordUtil.onRangeAfter;
+import static chord.ChordUtil.onRangeBetween;
+import static chord.ChordUtil.subtractID;
+import static java.math.BigInteger.ONE;
+
+import java.io.File;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.math.BigInteger;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class NodeThread implements Serializable, Runnable {
 	private static final long serialVersionUID = 5182277720568162566L;
 
-	public String clientHost;
-	public int    clientPort;
-	public Node   myNode;
-	
-	public boolean trace;			          // Determine whether a node trace must be sent
-	public ArrayList<Integer> nodeTrace;      // Used to keep track of which nodes are contacted
+	public Node myNode;
+
+	protected transient ConnectionPool pool;                      // Shared by all outgoing calls
+	protected transient CopyOnWriteArrayList<NodeThread> vnodes;  // All vnodes on this endpoint
+	protected transient ConcurrentHashMap<Long, RequestContext> clientRequests;  // Forwarded client requests, by request ID
+	protected transient AtomicLong nextRequestId;
+	private   transient final Object requestLock = new Object();  // Used by the "single" server mode
+	private   transient int nextFinger;                            // Next finger for fixFingers
+	private   transient final Object handoffLock = new Object();  // Orders stores against a handoff
+	private   transient final Object maintenanceLock = new Object();
+	private   transient ScheduledFuture<?> maintenanceTask;        // Guarded by maintenanceLock
+	private   transient volatile boolean departed;                 // Left the ring with leave()
+	private   transient Set<BigInteger> leaving;                   // Keys written during leave(), guarded by handoffLock
+	private   transient volatile ArrayList<NodeRef> replicaSet = new ArrayList<NodeRef>();  // Replicas holding our arc
+
+	// Keys written since a joining node started copying its part of this
+	// vnode's arc, by the joining node's ID.  Guarded by handoffLock.
+	private transient final Map<BigInteger, Set<BigInteger>> migrations = new HashMap<BigInteger, Set<BigInteger>>();
+
+	// Key handoff counters, shown by "View DHT"
+	private transient final AtomicLong migrateKeysIn   = new AtomicLong();
+	private transient final AtomicLong migrateBytesIn  = new AtomicLong();
+	private transient final AtomicLong migrateMillis   = new AtomicLong();
+	private transient final AtomicLong migrateKeysOut  = new AtomicLong();
+	private transient final AtomicLong migrateBytesOut = new AtomicLong();
+
+	// Replication counters, shown by "View DHT"
+	private transient final AtomicLong replicaWrites = new AtomicLong();
+	private transient final AtomicLong replicaReads  = new AtomicLong();
+	private transient final AtomicLong replicaPushed = new AtomicLong();
+
+	// Hedged read counters, shown by "View DHT", the recent response times of
+	// each node, by port, that the hedge delay is taken from, and the hedges
+	// that may still be sent, in hundredths (see spendHedge())
+	private transient final ConcurrentHashMap<Integer, LatencyHistogram> latencies = new ConcurrentHashMap<Integer, LatencyHistogram>();
+	private transient final AtomicLong hedgeTokens = new AtomicLong(HEDGE_BURST * 100L);
+	private transient final AtomicLong hedgeReads  = new AtomicLong();
+	private transient final AtomicLong hedgeSent   = new AtomicLong();
+	private transient final AtomicLong hedgeWon    = new AtomicLong();
+	private transient final AtomicLong hedgeLost   = new AtomicLong();
+	private transient final AtomicLong hedgeDenied = new AtomicLong();
+
+	// Multi-tag subscribe counters, shown by "View DHT"
+	private transient final AtomicLong fanoutQueries = new AtomicLong();
+	private transient final AtomicLong fanoutTags    = new AtomicLong();
+	private transient final AtomicLong fanoutLate    = new AtomicLong();
+
+	// Boolean query counters, shown by "View DHT": queries evaluated here,
+	// bytes of URLs and Bloom filters sent to and received from the owners of
+	// their tags, filters sent, and URLs that passed a filter by chance
+	private transient final AtomicLong queryCount     = new AtomicLong();
+	private transient final AtomicLong queryBytes     = new AtomicLong();
+	private transient final AtomicLong queryFilters   = new AtomicLong();
+	private transient final AtomicLong queryFalseHits = new AtomicLong();
+
+	private static ScheduledExecutorService maintenance;
 
 	
 	// NodeThread constructor
 	public NodeThread(int port) {
-		trace     = false;
-		myNode    = new Node(port);
-		nodeTrace = new ArrayList<Integer>(MAX_NODES);
+		this();
+		myNode = new Node(port);
+		openStore();
 	}
 	
 	// Default NodeThread constructor
-	public NodeThread() {}
+	public NodeThread() {
+		pool = new ConnectionPool();
+		vnodes = new CopyOnWriteArrayList<NodeThread>();
+		vnodes.add(this);
+		clientRequests = new ConcurrentHashMap<Long, RequestContext>();
+		nextRequestId = new AtomicLong();
+		startRequestSweep();
+	}
+
+	// Virtual node constructor.  The vnode shares the endpoint, connection
+	// pool, entries map and forwarded client requests of the physical node
+	// that hosts it.
+	protected NodeThread(NodeThread host, BigInteger id) {
+		myNode = new Node(host.myNode.port);
+		myNode.setID(id);
+		myNode.entries = host.myNode.entries;
+		pool   = host.pool;
+		vnodes = host.vnodes;
+		clientRequests = host.clientRequests;
+		nextRequestId  = host.nextRequestId;
+	}
+
+	/*
+	 * Function name: openStore()
+	 * 
+	 * Description: This function loads the entries that this physical node
+	 * stored before it was last stopped, and logs every change to them from
+	 * now on, if DATA_DIR is set (see IndexLog).
+	 */
+	protected void openStore() {
+		if (DATA_DIR == null) {
+			return;
+		}
+
+		try {
+			File dir = new File(DATA_DIR, "node-" + myNode.port);
+			myNode.entries.setLog(IndexLog.open(dir, myNode.entries));
+		} catch (IOException e) {
+			System.out.println("Exception caught: " + e);
+			e.printStackTrace();
+			System.exit(1);
+		}
+	}
 
 	// When run is executed, each node will listen on the specified port.
 	public void run() {
 		listen(myNode.port);
 	}
 
-	// Listen for incoming connections
+	// Listen for incoming connections using the server mode chosen at startup.
+	// The NIO server needs the binary codec's framing; with the object codec
+	// the nio mode falls back to the single mode.
 	public void listen(int port) {
+		try {
+			if (SERVER_MODE.equals("virtual")) {
+				listenBlocking(port, true);
+			} else if (SERVER_MODE.equals("nio") && CODEC instanceof BinaryCodec) {
+				new NioServer(port, this, HANDLER_THREADS).serve();
+			} else {
+				listenBlocking(port, false);
+			}
+		} catch (Exception e) {
+			System.out.println("Exception caught: " + e);
+			e.printStackTrace();
+			System.exit(1);
+		}
+	}
+
+	// Single and virtual modes.  Each accepted connection is served by its own
+	// thread so that callers can keep pooled connections open.  In the single
+	// mode requests are executed one at a time; in the virtual mode each
+	// request runs on its own (virtual, where available) thread.
+	public void listenBlocking(int port, final boolean threadPerRequest) {
 		try {
 			ServerSocket serverSocket = new ServerSocket(port);
-			Socket connected = null;
-			
-			ObjectOutputStream outputObject = null;
-			ObjectInputStream  inputObject  = null;
 
 			while (true) {
-				// Clear out previous node trace data
-				nodeTrace.clear();
-				trace = false;
-
-				connected    = serverSocket.accept();
-				outputObject = new ObjectOutputStream(connected.getOutputStream());
-				inputObject  = new ObjectInputStream(connected.getInputStream());
-
-				// Get the command
-				String fromNode = (String) inputObject.readObject();
-
-				if (fromNode.equals(JOIN)) {
-					int id = inputObject.readInt();
-					myNode.setID(id);
-					System.out.println("\nNode " + myNode.id + " received join request.");
-
-					// Call join and respond to supernode with OK
-					join();
-					outputObject.writeObject(OK);
-					outputObject.flush();
-
-				} else if (fromNode.equals(PUBLISH)) {
-					handlePublish(outputObject, inputObject);
-
-				} else if (fromNode.equals(SUBSCRIBE)) {
-					handleSubscribe(outputObject, inputObject);
-
-				} else if (fromNode.equals(GET_NODE)) {
-					outputObject.writeObject(myNode);
-					outputObject.flush();
-
-				} else if (fromNode.equals(FIND_PRED)) {
-					int id = (Integer) inputObject.readInt();
-					outputObject.writeObject(findPredecessor(id));
-					outputObject.flush();
-
-				} else if (fromNode.equals(FIND_SUCC)) {
-					int id = (Integer) inputObject.readInt();
-					trace  = (boolean) inputObject.readBoolean();
-
-					outputObject.writeObject(findSuccessor(id));
-					outputObject.flush();
-
-				} else if (fromNode.equals(SET_PRED)) {
-					Node s = (Node) inputObject.readObject();
-					myNode.predecessor = s;
-
-				} else if (fromNode.equals(UPDATE_FINGER_TABLE)) {
-					Node s = (Node)    inputObject.readObject();
-					int  i = (Integer) inputObject.readObject();
-					updateFingerTable(s, i);
-
-					outputObject.writeObject(OK);
-					outputObject.flush();
-					
-				} else if (fromNode.equals(CLOSEST_PRE_FINGER)) {
-					int id = (Integer) inputObject.readInt();
-					outputObject.writeObject(closestPrecedingFinger(id));
-					outputObject.flush();
-
-				} else if (fromNode.equals(PRINT_DATA)) {
-					clientPort = (Integer) inputObject.readInt();
-					clientHost = (String)  inputObject.readObject();
-					
-					outputObject.writeObject(OK);
-		            sendClientNodeData();
-
-		            if (myNode.successor().id != SUPERNODE_ID) {
-		            	forwardPrintMessage(myNode.successor().port);
-		            }
-
-				} else {
-					System.err.println("Node " + myNode.id + ": RECEIVED UNKNOWN COMMAND " + fromNode);
-					outputObject.writeObject(ERR);
-					outputObject.flush();
-				}
+				final Socket connected = serverSocket.accept();
+				connected.setTcpNoDelay(true);
 
-				// If the calling node needs the node trace data, send it.
-				if (trace) {
-					for (int i = 0; i < nodeTrace.size(); i++) {
-						outputObject.writeInt(nodeTrace.get(i));
-						outputObject.flush();
+				Runnable task = new Runnable() {
+					public void run() {
+						serveConnection(connected, threadPerRequest);
 					}
+				};
 
-					outputObject.writeInt(-1);
-					outputObject.flush();
+				if (threadPerRequest) {
+					RequestThreads.start(task);
+				} else {
+					Thread connThread = new Thread(task);
+					connThread.setDaemon(true);
+					connThread.start();
 				}
-
-				// Clean up
-				connected.close();
-				inputObject.close();
-				outputObject.close();
 			}
 		} catch (Exception e) {
 			System.out.println("Exception caught: " + e);
@@ -182,589 +279,3149 @@ public class NodeThread implements Serializable, Runnable {
 			System.exit(1);
 		}
 	}
-	
-	
-	/*
-	 * Function name: join()
-	 * 
-	 * Description: This function is called remotely by the SuperNode upon
-	 * startup. It initializes the finger table of a node and updates the finger
-	 * tables of nodes that have already joined the network.
-	 */
-	public void join( ) {
-		initFingerTable();
-		updateOthers();
-	}
-	
+
 	/*
-	 * Function name: initFingerTable()
+	 * Function name: serveConnection(Socket connected, boolean threadPerRequest)
 	 * 
-	 * Description: This function initializes the finger table of a node. When
-	 * joining, each node contacts the SuperNode, because the SuperNode is
-	 * assumed to be a node that is already on the network.
+	 * Description: This function reads requests from a single connection until
+	 * the remote side closes it. If threadPerRequest is false, requests from
+	 * all connections are executed one at a time, exactly as if they had
+	 * arrived on the single listening thread. Otherwise each request is
+	 * started on its own request thread and replies are written to the
+	 * connection one at a time. A request that cannot be decoded, or whose
+	 * handler fails, ends only this connection (see failRequest()).
 	 */
-	public void initFingerTable() {
-		int start = (myNode.id + 1) % (int) Math.pow(2, M);
+	public void serveConnection(Socket connected, boolean threadPerRequest) {
+		MessageChannel channel = null;
 
 		try {
-			Node newNode = (Node) invokeRemote(SUPERNODE_PORT_NUM, null, FIND_SUCC, start, false);
-			myNode.fingerTable[1] = new Finger(newNode);
-			myNode.fingerTable[1].start = start;
+			channel = CODEC.open(connected);
+			final MessageChannel replies = threadPerRequest ? new SynchronizedChannel(channel) : channel;
 
-			myNode.predecessor = myNode.successor().predecessor;
-			myNode.successor().predecessor = myNode;
-			invokeRemote(myNode.successor().port, myNode, SET_PRED, 0, false);
-						
-			for (int i = 1; i < M; i++) {
-				start = (myNode.id + (int) Math.pow(2, i)) % (int) Math.pow(2, M);
-
-				if (onRange(start, myNode.id, myNode.fingerTable[i].node.id - 1)) {
-					myNode.fingerTable[i + 1] = new Finger(myNode.fingerTable[i].node);
+			while (true) {
+				// Get the request. The caller closing the connection ends the loop.
+				Message request;
+				try {
+					request = channel.receive();
+				} catch (IOException e) {
+					break;
+				} catch (RuntimeException e) {
+					System.err.println("Node " + myNode.id + ": DECODE FAILED: " + e);
+					e.printStackTrace();
+					break;
+				}
 
-				} else {
-					newNode = (Node) invokeRemote(SUPERNODE_PORT_NUM, null, FIND_SUCC, start, false);
-					myNode.fingerTable[i + 1] = new Finger(newNode);
+				if (threadPerRequest) {
+					handleRequestAsync(request, new RequestContext(replies), replies);
+					continue;
+				}
 
-					if (!onRange(myNode.fingerTable[i + 1].node.id, start,myNode.id)) {
-						myNode.fingerTable[i + 1] = new Finger(myNode);
-					}
+				RequestContext ctx = new RequestContext(channel);
+				try {
+					dispatch(request, ctx, true);
+				} catch (IOException e) {
+					// The caller, or a node the handler called, went away
+					failRequest(request, ctx, channel);
+					break;
+				} catch (Exception e) {
+					System.err.println("Node " + myNode.id + ": REQUEST FAILED: " + e);
+					e.printStackTrace();
+					failRequest(request, ctx, channel);
+					break;
 				}
-				myNode.fingerTable[i + 1].start = start;
 			}
 
-		} catch (Exception e) {
-			System.out.println("Exception caught: " + e);
-			e.printStackTrace();
+		} catch (IOException e) {
+			// The caller went away before sending a full request.
+		}
+
+		// Clean up
+		if (channel != null) {
+			channel.close();
 		}
 	}
 
 	/*
-	 * Function name: updateOthers()
+	 * Function name: handleRequestAsync(final Message request, final RequestContext ctx, final MessageChannel channel)
 	 * 
-	 * Description: This function is used to update the finger tables of other
-	 * existing nodes on the network. It is called after a new node's finger
-	 * table has been initialized.
+	 * Description: This function runs dispatch on a new request thread. If
+	 * the handler fails, the request's connection, channel, is ended (see
+	 * failRequest()).
 	 */
-	public void updateOthers() {
-		for (int i = 1; i <= M; i++) {
-			int pKey = myNode.id - (int) Math.pow(2, i - 1) + 1;
-			Node p = findPredecessor(pKey);
+	public void handleRequestAsync(final Message request, final RequestContext ctx, final MessageChannel channel) {
+		RequestThreads.start(new Runnable() {
+			public void run() {
+				try {
+					dispatch(request, ctx, false);
+				} catch (IOException e) {
+					// The caller, or a node the handler called, went away
+					failRequest(request, ctx, channel);
+				} catch (Exception e) {
+					System.err.println("Node " + myNode.id + ": REQUEST FAILED: " + e);
+					e.printStackTrace();
+					failRequest(request, ctx, channel);
+				}
+			}
+		});
+	}
 
-			if (myNode.id != p.id){
-				invokeRemote(p.port, myNode, UPDATE_FINGER_TABLE, i, false);
+	// Answers a request whose handler failed with ERR, if it expects an answer
+	// that has not been sent, and closes its connection, so that the caller
+	// never reads an answer meant for another request.  The node carries on.
+	private void failRequest(Message request, RequestContext ctx, MessageChannel channel) {
+		if (!ctx.replied() && !oneWay(request)) {
+			Message err = new Message(ERR);
+			err.requestId = request.requestId;
+			try {
+				ctx.reply(err);
+			} catch (IOException e) {
+				// Already closed
 			}
 		}
+		channel.close();
 	}
-	
+
 	/*
-	 * Function name: updateFingerTable(Node s, int i)
+	 * Function name: dispatch(Message request, RequestContext ctx, boolean oneAtATime)
 	 * 
-	 * Description: This function is used to update the finger tables of other
-	 * existing nodes on the network. It is called after a new node's finger
-	 * table has been initialized.
+	 * Description: This function passes a request that arrived on this
+	 * node's endpoint to the vnode it is for. If oneAtATime is true, the vnode
+	 * handles one request at a time. A JOIN is never held back, because a
+	 * joining vnode waits on the SuperNode, which may be waiting on other
+	 * vnodes of this endpoint. A request for a vnode that this endpoint does
+	 * not host is refused (see reject()).
 	 */
-	public void updateFingerTable(Node s, int i) {
-		if (onRange(s.id, myNode.id, myNode.fingerTable[i].node.id - 1)) {
-			myNode.fingerTable[i].node = s;
+	public void dispatch(Message request, RequestContext ctx, boolean oneAtATime) throws Exception {
+		NodeThread vnode = route(request);
 
-			if (myNode.predecessor.id != s.id) {
-				invokeRemote(myNode.predecessor.port, s, UPDATE_FINGER_TABLE, i, false);
+		if (vnode == null) {
+			reject(request, ctx);
+
+		} else if (oneAtATime && serialized(request)) {
+			synchronized (vnode.requestLock) {
+				vnode.handleRequest(request, ctx);
 			}
+
+		} else {
+			vnode.handleRequest(request, ctx);
 		}
 	}
-	
+
 	/*
-	 * Function name: findSuccessor(int keyID)
+	 * Function name: reject(Message request, RequestContext ctx)
 	 * 
-	 * Description: This function is used to find the successor of a node. This
-	 * is done by finding the immediate predecessor of node ID. The successor of
-	 * that node must be the successor of the keyID.
+	 * Description: This function answers a request with ERR. A request that
+	 * was sent one way (see oneWay()) gets no answer on its connection, where
+	 * the caller's next call would read it as its own: a forwarded client
+	 * request is answered on the client's connection instead, like any other
+	 * answer to it (see sendClient()), and a REPLY is dropped.
 	 */
-	public Node findSuccessor(int keyID) {
-		nodeTrace.add(myNode.id);
-		return findPredecessor(keyID).successor();
+	public void reject(Message request, RequestContext ctx) throws IOException {
+		Message response = new Message(ERR);
+
+		if (request.op == REPLY) {
+			return;
+		}
+		if (oneWay(request)) {
+			ctx.replyHost = request.host;
+			ctx.replyPort = request.port;
+			ctx.requestId = request.requestId;
+			sendClient(response, ctx);
+			return;
+		}
+
+		response.requestId = request.requestId;
+		ctx.reply(response);
+	}
+
+	// Requests that are sent one way, on a connection that the sender goes on
+	// using for calls, and are answered to the client (see forwardRequest())
+	public static boolean oneWay(Message request) {
+		return request.op == REPLY || ((request.op == PUBLISH || request.op == SUBSCRIBE) && request.host != null);
 	}
 
 	/*
-	 * Function name: findPredecessor(int keyID)
+	 * Function name: route(Message request)
 	 * 
-	 * Description: This function contacts a series of nodes moving forward
-	 * around the Chord circle toward keyID. If a node contacts a node nPrime
-	 * such that keyID falls between nPrime and the successor of nPrime, then
-	 * findPredecessor is done and returns nPrime. Otherwise, the node asks
-	 * nPrime for the node that mostly closely precedes keyID.
+	 * Description: This function returns the vnode that a request is for, or
+	 * null if there is no such vnode. Requests without a target are for the
+	 * first vnode. A JOIN for a new ID adds a vnode to this endpoint.
 	 */
-	public Node findPredecessor(int keyID) {
-		Node nPrime = myNode;
+	public NodeThread route(Message request) {
+		if (request.op == JOIN) {
+			// JOINs for several vnodes of this endpoint may arrive at once
+			synchronized (vnodes) {
+				if (myNode.id == null) {
+					myNode.setID(request.key);
+					return this;
+				}
+				for (NodeThread vnode : vnodes) {
+					if (request.key.equals(vnode.myNode.id)) {
+						return vnode;	// Rejoining after leave()
+					}
+				}
 
-		while (!onRange(keyID, nPrime.id + 1, nPrime.successor().id)) {
-			if (nPrime.id == myNode.id) {
-			    nPrime = closestPrecedingFinger(keyID);
-				
-			} else {
-				nPrime = (Node) invokeRemote(nPrime.port, null, CLOSEST_PRE_FINGER, keyID, false);
+				NodeThread vnode = new NodeThread(this, request.key);
+				vnodes.add(vnode);
+				return vnode;
 			}
+		}
+
+		if (request.target == null) {
+			return this;
+		}
 
-			if (nPrime.id != myNode.id) {
-				nodeTrace.add(nPrime.id);
+		for (NodeThread vnode : vnodes) {
+			if (request.target.equals(vnode.myNode.id)) {
+				return vnode;
 			}
 		}
+		return null;
+	}
 
-		return nPrime;
+	// Requests that the "single" server mode runs one at a time per vnode.
+	// Joining and leaving call other nodes that may be waiting on this one,
+	// and replica reads and writes and ring changes only touch local state.
+	// A ring snapshot only reads the state of other nodes, and a reply is
+	// only passed on to the client.  A client request or query is routed
+	// without holding the vnode, because routing calls other nodes that may
+	// themselves be routing a client request through this one, and the
+	// steps of a query only read local state.
+	private static boolean serialized(Message request) {
+		byte op = request.op;
+		if ((op == PUBLISH || op == SUBSCRIBE) && request.nodeTrace == null) {
+			return false;
+		}
+		return op != JOIN && op != LEAVE && op != REPLICATE && op != FETCH && op != RING_CHANGE
+				&& op != RING_SNAPSHOT && op != REPLY && op != QUERY && op != COUNT && op != INTERSECT
+				&& op != SUBTRACT && op != FILTER;
 	}
 
 	/*
-	 * Function name: closestPrecedingFinger(int keyID)
+	 * Function name: handleRequest(Message request, RequestContext ctx)
 	 * 
-	 * Description: This function checks each element of a node's finger table
-	 * and looks for a node whose ID falls between the current node's ID and
-	 * keyID.
+	 * Description: This function executes a single request received on a
+	 * connection. Requests that expect an answer get exactly one response
+	 * message, which also carries the node trace if one was requested. All
+	 * per-request state is kept in ctx, so this may run on many threads at
+	 * once.
 	 */
-	public Node closestPrecedingFinger(int keyID) {
-		Node returnNode = myNode;
-		
-		for (int i = M; i > 0; i--) {
-			if (onRange(myNode.fingerTable[i].node.id, myNode.id + 1, keyID - 1)) {
-				
-				if (myNode.id != myNode.fingerTable[i].node.id) {
-					returnNode = (Node) invokeRemote(myNode.fingerTable[i].node.port, null, GET_NODE, 0, false);
-					return returnNode; 
-					
-				} else {
-					returnNode = myNode.fingerTable[i].node;
-					return returnNode;
-				}
+	public void handleRequest(Message request, RequestContext ctx) throws Exception {
+		Message response = new Message(OK);
+
+		switch (request.op) {
+		case JOIN:
+			System.out.println("\nNode " + myNode.id + " received join request.");
+
+			// Call join and respond to supernode with OK
+			join();
+			break;
+
+		case PING:
+			break;
+
+		case PUBLISH:
+			handlePublish(request, ctx);
+			return;
+
+		case SUBSCRIBE:
+			handleSubscribe(request, ctx);
+			return;
+
+		case GET_NODE:
+			if (departed) {
+				// Point the caller past this vnode
+				response.op = ERR;
+				response.successor = myNode.successor();
+				break;
 			}
-		}
-		return returnNode;
-	}
+			response.node = myNode.ref();
+			response.successor   = myNode.successor();
+			response.predecessor = myNode.predecessor;
+			response.successors  = myNode.successorList;
+			break;
+
+		case FIND_PRED:
+			response.node = findPredecessor(request.key, ctx);
+			break;
+
+		case FIND_SUCC:
+			ctx.trace = request.trace;
+			response.node = findSuccessor(request.key, ctx);
+			break;
+
+		case NOTIFY:
+			notify(request.node);
+			break;
+
+		case CLOSEST_PRE_FINGER:
+			response.node = closestPrecedingFinger(request.key);
+			response.successor  = myNode.successor();
+			response.successors = myNode.successorList;
+			break;
+
+		case MIGRATE:
+			migrateKeys(request.node, request.key, response);
+			break;
+
+		case HANDOFF:
+			handOff(request.node, response);
+			break;
+
+		case LEAVE:
+			leaveRing(response);
+			break;
+
+		case TRANSFER:
+			for (int i = 0; i < request.keys.size(); i++) {
+				myNode.entries.put(request.keys.get(i), request.values.get(i));
+			}
+			myNode.entries.sync();
+			break;
+
+		case APPEND:
+			myNode.entries.append(request.key, request.urls);
+			myNode.entries.sync();
+			break;
+
+		case DEPART:
+			depart(request);
+			myNode.entries.sync();
+			break;
+
+		case REPLICATE:
+			myNode.entries.append(request.key, request.urls);
+			myNode.entries.sync();
+			replicaWrites.incrementAndGet();
+			break;
+
+		case RING_CHANGE:
+			ringChanged();
+			break;
+
+		case RING_SNAPSHOT:
+			ringSnapshot(response);
+			break;
+
+		case FETCH:
+			fetch(request, response);
+			break;
+
+		case QUERY:
+			handleQuery(request, ctx);
+			return;
+
+		case COUNT:
+		case INTERSECT:
+		case SUBTRACT:
+		case FILTER:
+			response = postings(request);
+			break;
+
+		case REPLY:
+			relayReply(request);
+			return;
+
+		case PRINT_DATA:
+			if (request.target == null) {
+				// From the client: walk the ring
+				printRing(request, ctx);
+				return;
+			}
+			response = nodeData();
+			break;
 
+		default:
+			System.err.println("Node " + myNode.id + ": RECEIVED UNKNOWN COMMAND " + request.op);
+			response.op = ERR;
+			break;
+		}
 
+		// If the calling node needs the node trace data, send it.
+		if (ctx.trace) {
+			response.nodeTrace = ctx.nodeTrace;
+		}
 
+		ctx.reply(response);
+	}
+	
+	
 	/*
-	 * Function name: handlePublish(ObjectOutputStream outToClient, ObjectInputStream inFromClient)
-	 * 
-	 * Description: This function is used to handle a publish request. Publish
-	 * request data is received via the ObjectOutputStream and ObjectInputStream
-	 * parameters.
+	 * Function name: join()
 	 * 
-	 * Once all of the publish data has been receieved, the new entry is added
-	 * to the node's 'entries' map. Then, a call is made to the client to send
-	 * an 'OK' response and the corresponding node trace data.
+	 * Description: This function is called remotely by the SuperNode upon
+	 * startup. The node asks the SuperNode for its successor and points every
+	 * finger at it. The rest of the ring learns about the node, and its
+	 * fingers are corrected, by the periodic stabilization started here, so
+	 * any number of nodes can join at the same time. Before stabilization
+	 * starts, the keys this node takes over are copied from its successor.
 	 */
-	public void handlePublish(ObjectOutputStream outToClient, ObjectInputStream inFromClient) {
-		String fromClient;
-		int hashTag;
-		int nodeID;
-		ArrayList<String> urlList = new ArrayList<String>();
+	public void join() {
+		myNode.predecessor = null;
+
+		NodeRef succ = invokeRemote(SUPERNODE, null, FIND_SUCC, myNode.id, null).node;
+		if (succ.id.equals(myNode.id)) {
+			// Rejoining while stale fingers still lead here; start from the
+			// successor that was handed our keys in leave()
+			succ = myNode.successor();
+		}
+		pointFingersAt(succ);
 
-		try {
-			// Request tag
-			outToClient.writeObject(SEND_TAG);
-			outToClient.flush();
-			hashTag = inFromClient.readInt();
+		NodeRef owner = receiveKeys(succ);
+		if (!owner.id.equals(succ.id)) {
+			pointFingersAt(owner);
+		}
+		invokeRemote(SUPERNODE, myNode.ref(), RING_CHANGE, myNode.id, null);
 
-			// Request URLs
-			outToClient.writeObject(SEND_URL);
-			outToClient.flush();
-			fromClient = (String) inFromClient.readObject();
+		startMaintenance();
+	}
 
-			while (!fromClient.equals(END)) {
-				urlList.add(fromClient);
-				fromClient = (String) inFromClient.readObject();
+	/*
+	 * Function name: ringSnapshot(Message response)
+	 * 
+	 * Description: This function walks the ring once from this vnode along
+	 * the successor pointers and returns every vnode it passes, in ring
+	 * order, in response.successors. Vnodes that have left the ring are
+	 * skipped, and so are vnodes that do not answer: the walk goes on with
+	 * the next entry of the successor list it came from. The walk stops when
+	 * it is back at this vnode, or at a vnode it has already seen if the
+	 * ring is changing.
+	 */
+	public void ringSnapshot(Message response) {
+		ArrayList<NodeRef> ring = new ArrayList<NodeRef>();
+		HashSet<BigInteger> seen = new HashSet<BigInteger>();
+		ring.add(myNode.ref());
+		seen.add(myNode.id);
+
+		List<NodeRef> succs = myNode.successorList;
+		int next = 0;
+		NodeRef n = succs.get(0);
+
+		while (seen.add(n.id)) {
+			Message node;
+			try {
+				node = callRemote(n, null, GET_NODE, null, null);
+			} catch (IOException e) {
+				seen.remove(n.id);
+				if (++next == succs.size()) {
+					break;
+				}
+				n = succs.get(next);
+				continue;
 			}
 
-			// Get client's hostname
-			outToClient.writeObject(SEND_HOST);
-			outToClient.flush();
-			clientHost = (String) inFromClient.readObject();
-
-			// Get client's port
-			outToClient.writeObject(SEND_PORT);
-			outToClient.flush();
-			clientPort = inFromClient.readInt();
-
-			// Get node trace
-			outToClient.writeObject(SEND_TRACE);
-			outToClient.flush();
-			nodeID = inFromClient.readInt();
-
-			while (nodeID != -1) {
-				nodeTrace.add(nodeID);
-				nodeID = inFromClient.readInt();
+			if (node.op == OK) {
+				ring.add(n);
+				succs = node.successors;
+			} else {
+				succs = singletonList(node.successor);
 			}
+			next = 0;
+			n = succs.get(0);
+		}
+		response.successors = ring;
+	}
 
-			// Add entry
-			myNode.entries.put(hashTag, urlList);
-
-			// Send response to client
-			sendClientOK();
+	/*
+	 * Function name: ringChanged()
+	 * 
+	 * Description: This function is called when a RING CHANGE message says
+	 * that a node has joined or left the ring. Only the SuperNode keeps track
+	 * of this (see SuperNodeThread).
+	 */
+	public void ringChanged() {
+	}
 
-		} catch (Exception e) {
-			System.out.println("Exception caught: " + e);
-			e.printStackTrace();
-			System.exit(1);
+	// Points every finger, and the successor list, at succ
+	private void pointFingersAt(NodeRef succ) {
+		for (int k = 1; k <= M; k++) {
+			myNode.fingerTable[k] = new Finger(addID(myNode.id, FINGER_OFFSET[k]), succ);
 		}
+		myNode.successorList = singletonList(succ);
 	}
 
 	/*
-	 * Function name: handleSubscribe(ObjectOutputStream outToClient, ObjectInputStream inFromClient)
+	 * Function name: receiveKeys(NodeRef succ)
 	 * 
-	 * Description: This function is used to handle a subscribe request.
-	 * Subscribe request tags are received via the ObjectInputStream parameter.
-	 * 
-	 * Once all of the subscribe data has been receieved, the corresponding
-	 * entries are retrieved from the 'entries' map. Then, a call is made to the
-	 * client to send the entries and the corresponding node trace data.
+	 * Description: This function copies the keys between succ's predecessor
+	 * and this node from succ, in batches of MIGRATION_BATCH_KEYS keys and
+	 * BATCH_BYTES bytes; a tag too large for a batch is copied on its own with
+	 * copyEntry(). The successor keeps serving the keys while they are copied.
+	 * A HANDOFF then makes this node succ's predecessor in one step, and
+	 * returns the keys that were written during the copy. If too much was
+	 * written to return at once, those keys are copied again and the handoff
+	 * is retried. If another node has joined between this node and succ in
+	 * the meantime, the handoff is refused and the copy is repeated from that
+	 * node. The successor that accepted the handoff is returned.
 	 */
-	public void handleSubscribe(ObjectOutputStream outToClient, ObjectInputStream inFromClient) {
-		try {
-			// Request Tag
-			outToClient.writeObject(SEND_TAG);
-			outToClient.flush();
+	public NodeRef receiveKeys(NodeRef succ) {
+		long start = System.nanoTime();
+		long keys  = 0;
+		long bytes = 0;
+
+		while (true) {
+			ArrayList<BigInteger> copied = new ArrayList<BigInteger>();
+			Message done = null;
+
+			// Vnodes on the same endpoint already share the entries map
+			if (succ.port != myNode.port) {
+				BigInteger cursor = null;
+
+				do {
+					done = invokeRemote(succ, myNode.ref(), MIGRATE, cursor, null);
+					if (done.op != OK) {
+						break;
+					}
+					for (int i = 0; i < done.keys.size(); i++) {
+						cursor = done.keys.get(i);
+						myNode.entries.put(cursor, done.values.get(i));
+						copied.add(cursor);
+						bytes += entryBytes(done.values.get(i));
+					}
+					if (done.key != null) {
+						cursor = done.key;
+						bytes += copyEntry(succ, cursor);
+						copied.add(cursor);
+					}
+				} while (!done.keys.isEmpty() || done.key != null);
+				myNode.entries.sync();
+			}
 
-			int hashTag = inFromClient.readInt();
+			while (true) {
+				// Stores on this node wait until the keys written during the
+				// copy have been applied
+				synchronized (handoffLock) {
+					if (done == null || done.op == OK) {
+						done = invokeRemote(succ, myNode.ref(), HANDOFF, null, null);
+					}
 
-			// Get client's hostname
-			outToClient.writeObject(SEND_HOST);
-			outToClient.flush();
-			clientHost = (String) inFromClient.readObject();
+					if (done.op == OK) {
+						for (int i = 0; i < done.keys.size(); i++) {
+							myNode.entries.put(done.keys.get(i), done.values.get(i));
+							copied.add(done.keys.get(i));
+							bytes += entryBytes(done.values.get(i));
+						}
+						myNode.predecessor = done.predecessor;
+						departed = false;	// Rejoined after leave()
+					}
+				}
+				if (done.op == OK || done.keys == null) {
+					break;
+				}
 
-			// Get client's port
-			outToClient.writeObject(SEND_PORT);
-			outToClient.flush();
-			clientPort = inFromClient.readInt();
+				// Too much was written during the copy to hand off at once
+				for (BigInteger key : done.keys) {
+					bytes += copyEntry(succ, key);
+					copied.add(key);
+				}
+				done = null;
+			}
+			myNode.entries.sync();
 
-			// Get node trace
-			outToClient.writeObject(SEND_TRACE);
-			outToClient.flush();
-			int nodeID = inFromClient.readInt();
+			// Drop copies of keys that another joining node took over first
+			for (BigInteger key : copied) {
+				if (done.op != OK || !owns(key)) {
+					myNode.entries.remove(key);
+				} else {
+					keys++;
+				}
+			}
 
-			while (nodeID != -1) {
-				nodeTrace.add(nodeID);
-				nodeID = inFromClient.readInt();
+			if (done.op == OK) {
+				break;
 			}
+			succ = done.node;
+		}
 
-			// Send entries to client
-			ArrayList<String> urlList = new ArrayList<String>();
+		long ms = (System.nanoTime() - start) / 1000000;
+		migrateKeysIn.addAndGet(keys);
+		migrateBytesIn.addAndGet(bytes);
+		migrateMillis.addAndGet(ms);
 
-			urlList = myNode.entries.get(hashTag);
-			sendClientURLs(hashTag, urlList);
+		if (keys > 0) {
+			long elapsed = Math.max(ms, 1);
+			System.out.println("Node " + myNode.id + " received " + keys + " keys (" + bytes
+					+ " bytes) from node " + succ.id + " in " + ms + " ms ("
+					+ (keys * 1000 / elapsed) + " keys/s, " + (bytes * 1000 / 1024 / elapsed) + " KB/s).");
+		}
+		return succ;
+	}
 
-		} catch (Exception e) {
+	// Copies one tag from n with FETCH pages, replacing any copy held here, and
+	// returns the number of bytes copied
+	private long copyEntry(NodeRef n, BigInteger key) {
+		Message request = new Message(FETCH);
+		request.key   = key;
+		request.index = Math.max(1, BATCH_BYTES / 2048);
+		long bytes = 0;
+
+		try {
+			do {
+				Message page = callRemote(n, request);
+				ArrayList<String> urls = (page.urls != null) ? page.urls : new ArrayList<String>();
+
+				if (request.cursor == null) {
+					myNode.entries.remove(key);
+					if (!urls.isEmpty()) {
+						myNode.entries.put(key, urls);
+					}
+				} else {
+					myNode.entries.append(key, urls);
+				}
+				bytes += entryBytes(urls);
+				request.cursor = page.cursor;
+			} while (request.cursor != null);
+
+		} catch (IOException e) {
 			System.out.println("Exception caught: " + e);
 			e.printStackTrace();
 			System.exit(1);
 		}
+		return bytes;
 	}
 
+	/*
+	 * Function name: migrateKeys(NodeRef n, BigInteger cursor, Message response)
+	 * 
+	 * Description: This function answers a MIGRATE request from joining node
+	 * n with the next batch of keys between this vnode's predecessor and n,
+	 * in ring order after cursor. A batch holds at most BATCH_BYTES of URLs.
+	 * A tag that is larger than that on its own ends the batch, and is named
+	 * in response.key for n to copy page by page. An empty batch with no
+	 * response.key ends the copy. The first batch (cursor is null) starts
+	 * tracking the keys that are written until n's handoff. Like HANDOFF, the
+	 * request is refused if n does not lie between the predecessor and this
+	 * vnode.
+	 */
+	public void migrateKeys(NodeRef n, BigInteger cursor, Message response) {
+		NodeRef pred = myNode.predecessor;
+		BigInteger from = (pred == null) ? myNode.id : pred.id;
+
+		if (!between(n.id, from, myNode.id)) {
+			response.op   = ERR;
+			response.node = pred;
+			return;
+		}
 
-    /*
-     * Function name: forwardPrintMessage(int port)
-     * 
-     * Description: This function is used to forward a PRINT DATA request to
-     * the node on the specified port.  The client port and hostname are passed
-     * along to the node.
-     */
-    public void forwardPrintMessage(int port) {
-    	Socket connected  = null;
-    	ObjectOutputStream objectOut = null;
-    	ObjectInputStream  objectIn  = null;
+		if (cursor == null) {
+			synchronized (handoffLock) {
+				migrations.put(n.id, new HashSet<BigInteger>());
+			}
+		}
 
-    	try {
-    		connected = new Socket(HOST, port);
-    		objectIn  = new ObjectInputStream(connected.getInputStream());
-    		objectOut = new ObjectOutputStream(connected.getOutputStream());
+		response.keys   = new ArrayList<BigInteger>();
+		response.values = new ArrayList<ArrayList<String>>();
 
-    		// Send PRINT command to node
-    		objectOut.writeObject(PRINT_DATA);
-    		objectOut.flush();
+		long size = 0;
 
-    		// Send client port
-    		objectOut.writeInt(clientPort);
-    		objectOut.flush();
+		for (Map.Entry<BigInteger, ArrayList<String>> e : arcEntries(from, n.id, cursor, MIGRATION_BATCH_KEYS)) {
+			long bytes = batchBytes(e.getValue());
+			if (bytes > BATCH_BYTES) {
+				if (response.keys.isEmpty()) {
+					response.key = e.getKey();
+					migrateKeysOut.incrementAndGet();
+					migrateBytesOut.addAndGet(entryBytes(e.getValue()));
+				}
+				break;
+			}
+			if (size + bytes > BATCH_BYTES) {
+				break;
+			}
+			size += bytes;
+			response.keys.add(e.getKey());
+			response.values.add(e.getValue());
+			migrateBytesOut.addAndGet(entryBytes(e.getValue()));
+		}
+		migrateKeysOut.addAndGet(response.keys.size());
+	}
 
-    		// Send client host
-    		objectOut.writeObject(clientHost);
-    		objectOut.flush();
+	/*
+	 * Function name: handOff(NodeRef n, Message response)
+	 * 
+	 * Description: This function completes the join of node n, if n still
+	 * lies between this vnode's predecessor and this vnode. n becomes the
+	 * predecessor, the keys written during the copy are sent again, and the
+	 * keys n now owns are dropped from this node. Since stores take the same
+	 * lock, every key is owned by exactly one of the two nodes at any time.
+	 * Otherwise the request is refused with ERR and the current predecessor,
+	 * which is then a better successor for n. If the keys written during the
+	 * copy hold more than BATCH_BYTES of URLs, the request is refused with
+	 * ERR and those keys instead, and tracking starts over, so that n can
+	 * copy them and try again.
+	 */
+	public void handOff(NodeRef n, Message response) {
+		synchronized (handoffLock) {
+			NodeRef pred = myNode.predecessor;
+			BigInteger from = (pred == null) ? myNode.id : pred.id;
+			Set<BigInteger> dirty = migrations.remove(n.id);
+
+			if (!between(n.id, from, myNode.id)) {
+				response.op   = ERR;
+				response.node = pred;
+				return;
+			}
 
-    		
-			// Wait for OK
-			String fromclient = (String) objectIn.readObject();
-			
-			// Clean up
-			if (fromclient.equals(OK)) {
-	    		connected.close();
-	    		objectIn.close();
-	    		objectOut.close();
+			response.keys   = new ArrayList<BigInteger>();
+			response.values = new ArrayList<ArrayList<String>>();
+			long size = 0;
+			if (dirty != null) {
+				for (BigInteger key : dirty) {
+					ArrayList<String> urls = myNode.entries.get(key);
+					response.keys.add(key);
+					response.values.add(urls);
+					size += (urls != null) ? batchBytes(urls) : 0;
+				}
 			}
 
-    	} catch (Exception e) {
-    		System.out.println("ERROR.");
-    		e.printStackTrace();
-    		System.exit(1);
-    	}
-    }
+			if (size > BATCH_BYTES && n.port != myNode.port) {
+				response.op     = ERR;
+				response.node   = myNode.ref();
+				response.values = null;
+				migrations.put(n.id, new HashSet<BigInteger>());
+				return;
+			}
+			response.predecessor = pred;
+			myNode.predecessor = n;
 
+			// With replication, this node stays a replica of the keys
+			if (n.port != myNode.port && REPLICAS == 1) {
+				for (Map.Entry<BigInteger, ArrayList<String>> e : arcEntries(from, n.id, null, Integer.MAX_VALUE)) {
+					myNode.entries.remove(e.getKey());
+				}
+			}
+		}
+	}
 
 	/*
-	 * Function name: sendClientOK()
+	 * Function name: replicaTargets()
 	 * 
-	 * Description: This function is called after a publish request has been
-	 * received. It sends an 'OK' response to the client. In addition, it also
-	 * sends the node trace data.
+	 * Description: This function returns the nodes that hold copies of this
+	 * vnode's entries: its first REPLICAS - 1 successors on other endpoints.
+	 * Vnodes on this endpoint share the entries map and are skipped.
 	 */
-	public void sendClientOK() {
-		Socket connected = null;
-		ObjectOutputStream outToClient = null;
-
-		try {
-			connected   = new Socket(clientHost, clientPort);
-			outToClient = new ObjectOutputStream(connected.getOutputStream());
-
-			// Send nodeTrace
-			for (int i = 0; i < nodeTrace.size(); i++) {
-				outToClient.writeInt(nodeTrace.get(i));
-				outToClient.flush();
+	public ArrayList<NodeRef> replicaTargets() {
+		ArrayList<NodeRef> targets = new ArrayList<NodeRef>(REPLICAS);
+		HashSet<Integer> ports = new HashSet<Integer>();
+		ports.add(myNode.port);
+
+		for (NodeRef n : myNode.successorList) {
+			if (targets.size() == REPLICAS - 1) {
+				break;
 			}
+			if (ports.add(n.port)) {
+				targets.add(n);
+			}
+		}
+		return targets;
+	}
 
-			// -1 Indicates that this is the end of the message
-			outToClient.writeInt(-1);
-			outToClient.flush();
-
-			// Close connections
-			connected.close();
-			outToClient.close();
+	/*
+	 * Function name: replicate(BigInteger keyID, ArrayList<String> urls)
+	 * 
+	 * Description: This function adds URLs to an entry that this vnode owns
+	 * on all of its replicas at once, and returns when they have answered. A
+	 * replica that cannot be reached is brought up to date by syncReplicas().
+	 */
+	public void replicate(final BigInteger keyID, final ArrayList<String> urls) {
+		if (REPLICAS == 1 || urls.isEmpty()) {
+			return;
+		}
 
-		} catch (IOException e) {
-			System.out.println("Exception caught: " + e);
-			e.printStackTrace();
-			System.exit(1);
+		ArrayList<Runnable> writes = new ArrayList<Runnable>();
+		for (final NodeRef n : replicaTargets()) {
+			writes.add(new Runnable() {
+				public void run() {
+					Message request = new Message(REPLICATE);
+					request.key  = keyID;
+					request.urls = urls;
+
+					try {
+						callRemote(n, request);
+					} catch (IOException e) {
+						// Resynced by stabilization
+					}
+				}
+			});
 		}
+		RequestThreads.runAll(writes);
 	}
 
-	
 	/*
-	 * Function name: sendClientURLs(int hashTag, ArrayList<String> urlList)
+	 * Function name: syncReplicas()
 	 * 
-	 * Description: This function is called after a subscribe request has been
-	 * received. It sends the URL list to the client. In addition, it also sends
-	 * the node trace data.
+	 * Description: This function is called by stabilize(). Every replica
+	 * that has not yet received this vnode's arc, because it is new in the
+	 * successor list or because the arc has grown, is sent the whole arc in
+	 * TRANSFER batches.
 	 */
-	public void sendClientURLs(int hashTag, ArrayList<String> urlList) {
-		Socket connected = null;
-		ObjectOutputStream outToClient = null;
+	public void syncReplicas() {
+		NodeRef pred = myNode.predecessor;
+		if (REPLICAS == 1 || pred == null) {
+			return;
+		}
 
-		try {
-			connected   = new Socket(clientHost, clientPort);
-			outToClient = new ObjectOutputStream(connected.getOutputStream());
+		ArrayList<NodeRef> targets = replicaTargets();
+		ArrayList<NodeRef> synced  = replicaSet;
+		ArrayList<Map.Entry<BigInteger, ArrayList<String>>> arc = null;
+		long[] totals = new long[2];
 
-			// Send URLs
-			if (urlList != null) {
-				for (int i = 0; i < urlList.size(); i++) {
-					outToClient.writeObject(urlList.get(i));
-					outToClient.flush();
+		try {
+			for (NodeRef n : targets) {
+				if (synced.contains(n)) {
+					continue;
+				}
+				if (arc == null) {
+					arc = arcEntries(pred.id, myNode.id, null, Integer.MAX_VALUE);
+				}
+				for (Message batch : entryBatches(arc, totals)) {
+					callRemote(n, batch);
 				}
 			}
+			replicaSet = targets;
 
-			outToClient.writeObject(END);
-			outToClient.flush();
-
-			// Send nodeTrace
-			for (int i = 0; i < nodeTrace.size(); i++) {
-				outToClient.writeInt(nodeTrace.get(i));
-				outToClient.flush();
-			}
+		} catch (IOException e) {
+			// Try again in the next round
+		}
+		replicaPushed.addAndGet(totals[0]);
+	}
 
-			// -1 Indicates that this is the end of the message
-			outToClient.writeInt(-1);
-			outToClient.flush();
+	/*
+	 * Function name: leaveRing(Message response)
+	 * 
+	 * Description: This function is called remotely with LEAVE. Every vnode
+	 * of this endpoint leaves the ring with leave(). The IDs of the vnodes
+	 * that left are returned in response.keys, so that they can be joined
+	 * again, together with the totals of the transfer. The SuperNode cannot
+	 * leave.
+	 */
+	public void leaveRing(Message response) {
+		if (myNode.id.equals(SUPERNODE_ID)) {
+			response.op = ERR;
+			return;
+		}
 
-			// Close connections
-			connected.close();
-			outToClient.close();
+		long start = System.nanoTime();
+		long[] totals = new long[3];
+		response.keys = new ArrayList<BigInteger>();
 
-		} catch (IOException e) {
-			System.out.println("Exception caught: " + e);
-			e.printStackTrace();
-			System.exit(1);
+		for (NodeThread vnode : vnodes) {
+			if (vnode.leave(totals)) {
+				response.keys.add(vnode.myNode.id);
+			}
 		}
-	}
+		long ms = (System.nanoTime() - start) / 1000000;
+		invokeRemote(SUPERNODE, myNode.ref(), RING_CHANGE, myNode.id, null);
 
+		response.stats = new LinkedHashMap<String, Long>();
+		response.stats.put("leave.keys", totals[0]);
+		response.stats.put("leave.bytes", totals[1]);
+		response.stats.put("leave.notified", totals[2]);
+		response.stats.put("leave.ms", ms);
+
+		System.out.println("Node on port " + myNode.port + " left the ring: " + totals[0] + " keys ("
+				+ totals[1] + " bytes) moved, " + totals[2] + " nodes notified in " + ms + " ms.");
+	}
 
 	/*
-	 * Function name: sendClientNodeData()
+	 * Function name: leave(long[] totals)
 	 * 
-	 * Description: This function is used to send node data to the client. It is
-	 * called when a user selects "View DHT" from the client menu.
+	 * Description: This function removes this vnode from the ring without
+	 * losing data. Its keys are streamed to its successor in batches (see
+	 * entryBatches()), while this vnode keeps serving them. The keys written
+	 * during the transfer are then sent the same way, and a DEPART message
+	 * makes the predecessor the successor's predecessor. The predecessor and every
+	 * node with a finger on this vnode get one DEPART each, sent in parallel,
+	 * and replace all such fingers at once. Afterwards this vnode only passes
+	 * requests on to its successor. The keys moved, bytes moved and nodes
+	 * notified are added to totals. Returns false if there was nothing to
+	 * leave, or if the successor could not be reached, in which case this
+	 * vnode stays in the ring.
 	 */
-	public void sendClientNodeData() {
-		Socket connected  = null;
-		String fromClient = null;
+	public boolean leave(long[] totals) {
+		if (departed || myNode.successor().id.equals(myNode.id)) {
+			return false;
+		}
 
-		ObjectOutputStream outToClient = null;
-		ObjectInputStream inFromClient = null;
+		stopMaintenance();
 
-		try {
-			connected    = new Socket(clientHost, clientPort);
-			outToClient  = new ObjectOutputStream(connected.getOutputStream());
-			inFromClient = new ObjectInputStream(connected.getInputStream());
+		// Catch up with nodes that have joined behind the successor but have
+		// not been found by stabilization yet
+		NodeRef succ;
+		do {
+			succ = myNode.successor();
+			stabilize();
+		} while (!succ.id.equals(myNode.successor().id));
 
-			// Node ID
-			outToClient.writeInt(myNode.id);
-			outToClient.flush();
+		NodeRef pred = myNode.predecessor;
+		BigInteger from = (pred == null) ? myNode.id : pred.id;
+		boolean remote = (succ.port != myNode.port);
 
-			// Number of entries
-			outToClient.writeInt(myNode.entries.size());
-			outToClient.flush();
+		ArrayList<Map.Entry<BigInteger, ArrayList<String>>> arc;
+		synchronized (handoffLock) {
+			leaving = new HashSet<BigInteger>();
+			arc = arcEntries(from, myNode.id, null, Integer.MAX_VALUE);
+		}
 
-			// Successor ID
-			outToClient.writeInt(myNode.successor().id);
-			outToClient.flush();
+		try {
+			// Vnodes on the same endpoint already share the entries map
+			if (remote) {
+				for (Message batch : entryBatches(arc, totals)) {
+					callRemote(succ, batch);
+				}
+			}
 
-			// Predecessor ID
-			outToClient.writeInt(myNode.predecessor.id);
-			outToClient.flush();
+			synchronized (handoffLock) {
+				if (remote) {
+					ArrayList<Map.Entry<BigInteger, ArrayList<String>>> written = new ArrayList<Map.Entry<BigInteger, ArrayList<String>>>();
+					for (BigInteger key : leaving) {
+						written.add(new AbstractMap.SimpleEntry<BigInteger, ArrayList<String>>(key, myNode.entries.get(key)));
+					}
+					for (Message batch : entryBatches(written, totals)) {
+						callRemote(succ, batch);
+					}
+				}
+				callRemote(succ, departMessage(pred, succ));
 
-			// Finger table data
-			for (int i = 1; i <= M; i++) {
-				outToClient.writeObject(myNode.fingerTable[i]);
-				outToClient.flush();
+				departed = true;
+				leaving  = null;
+				if (remote) {
+					for (Map.Entry<BigInteger, ArrayList<String>> e : arcEntries(from, myNode.id, null, Integer.MAX_VALUE)) {
+						myNode.entries.remove(e.getKey());
+					}
+				}
 			}
 
-			fromClient = (String) inFromClient.readObject();
-
-			// End of data
-			if (fromClient.equals(OK)) {
-				outToClient.writeObject(END);
-				outToClient.flush();
+		} catch (IOException e) {
+			// The keys stay here; the successor keeps what it was sent as a copy
+			synchronized (handoffLock) {
+				leaving = null;
 			}
+			startMaintenance();
+			System.err.println("Node " + myNode.id + ": LEAVE FAILED: " + e.getMessage());
+			return false;
+		}
 
-			// Close connections
-			connected.close();
-			outToClient.close();
-			inFromClient.close();
+		totals[2] += notifyDeparture(pred, succ) + 1;
 
-		} catch (Exception e) {
-			System.out.println("Exception caught: " + e);
-			e.printStackTrace();
-			System.exit(1);
+		// Keep answering lookups as a pointer to the successor
+		myNode.predecessor = null;
+		for (int k = 1; k <= M; k++) {
+			myNode.fingerTable[k].node = succ;
 		}
+		myNode.successorList = singletonList(succ);
+		return true;
 	}
-	
-	
+
 	/*
-	 * onRange(int keyID, int fromKey, int toKey)
+	 * Function name: notifyDeparture(NodeRef pred, NodeRef succ)
 	 * 
-	 * Description: This function determines if keyID falls between fromKey and
-	 * toKey.
+	 * Description: This function sends DEPART to the predecessor and to every
+	 * other node that has a finger on this vnode, one message per node, all
+	 * at once. Returns the number of nodes notified.
 	 */
-	public boolean onRange(int keyID, int fromKey, int toKey) {
-		boolean result;
-
-		if (fromKey <= toKey) {
-			result = (keyID >= fromKey) && (keyID <= toKey);
-		} else {
-			result = (keyID >= fromKey) || (keyID <= toKey);
+	private int notifyDeparture(final NodeRef pred, final NodeRef succ) {
+		LinkedHashSet<NodeRef> holders = new LinkedHashSet<NodeRef>();
+		if (pred != null) {
+			holders.add(pred);
+			holders.addAll(fingerHolders(pred));
 		}
-		return result;
+		holders.remove(myNode.ref());
+		holders.remove(succ);
+
+		ArrayList<Runnable> sends = new ArrayList<Runnable>();
+		for (final NodeRef n : holders) {
+			sends.add(new Runnable() {
+				public void run() {
+					try {
+						callRemote(n, departMessage(pred, succ));
+					} catch (IOException e) {
+						// Stabilization will repair that node's pointers
+					}
+				}
+			});
+		}
+
+		RequestThreads.runAll(sends);
+		return holders.size();
 	}
-	
+
 	/*
-	 * Function name: invokeRemote(int remotePort, String remoteCommand, int index, boolean getTrace)
-	 * 
-	 * Description: This function is used to execute a command on a remote node.
-	 * The possible commands are findSuccessor, findPredecessor, closestPreceedingFinger, and 
-	 * updateFingerTable.
+	 * Function name: fingerHolders(NodeRef pred)
 	 * 
-	 * The remotePort parameter specfies the port to connect to, and the remoteCommand parameter 
-	 * specifies which command to execute. The getTrace boolean value is used to specify whether 
-	 * a node trace should be returned.
+	 * Description: This function returns the nodes whose finger k points at
+	 * this vnode, for any k. Those are the nodes between pred - 2^(k-1) and
+	 * this vnode's ID - 2^(k-1). For each k the last such node is looked up,
+	 * and the ring is then walked backwards through the range. Consecutive
+	 * k that fall on the same arc reuse the previous lookup.
 	 */
-	public Object invokeRemote(int remotePort, Node nodeParam, String remoteCommand, int index, boolean getTrace) {
-		ObjectInputStream  myInputObject  = null;
-		ObjectOutputStream myOutputObject = null;
-		
-		Socket remoteNodeSocket = null;
-		Object result = null;
-
-		try {
-			remoteNodeSocket = new Socket(HOST, remotePort);
-			myOutputObject   = new ObjectOutputStream(remoteNodeSocket.getOutputStream());
-			myInputObject    = new ObjectInputStream(remoteNodeSocket.getInputStream());
+	private LinkedHashSet<NodeRef> fingerHolders(NodeRef pred) {
+		LinkedHashSet<NodeRef> holders = new LinkedHashSet<NodeRef>();
+		NodeRef[] arc = null;
 
-			if (remoteCommand.equals(FIND_SUCC)) {
+		for (int k = 1; k <= M; k++) {
+			BigInteger after = subtractID(pred.id, FINGER_OFFSET[k]);
+			BigInteger last  = subtractID(myNode.id, FINGER_OFFSET[k]);
+			BigInteger key   = addID(last, ONE);
 
-				myOutputObject.writeObject(FIND_SUCC);
-				myOutputObject.flush();
-				myOutputObject.writeInt(index);
-				myOutputObject.flush();
-				myOutputObject.writeBoolean(getTrace);
-				myOutputObject.flush();
+			if (arc == null || !onRangeAfter(key, arc[0].id, arc[1].id)) {
+				arc = lookup(key, null);
+			}
 
-				result = (Node) myInputObject.readObject();
+			NodeRef n = arc[0];
+			while (n != null && !n.id.equals(myNode.id) && onRangeAfter(n.id, after, last) && holders.add(n)) {
+				n = predecessorOf(n);
+			}
+		}
+		return holders;
+	}
+
+	// Returns the predecessor of node n, or null if n cannot tell
+	private NodeRef predecessorOf(NodeRef n) {
+		try {
+			Message state = callRemote(n, null, GET_NODE, null, null);
+			return (state.op == OK) ? state.predecessor : null;
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	// Builds the DEPART message that announces this vnode's departure
+	private Message departMessage(NodeRef pred, NodeRef succ) {
+		Message depart = new Message(DEPART);
+		depart.node        = myNode.ref();
+		depart.predecessor = pred;
+		depart.successor   = succ;
+		depart.successors  = myNode.successorList;
+		return depart;
+	}
+
+	/*
+	 * Function name: entryBatches(List<Map.Entry<BigInteger, ArrayList<String>>> entries, long[] totals)
+	 * 
+	 * Description: This function cuts entries into TRANSFER messages of at
+	 * most LEAVE_BATCH_KEYS keys and BATCH_BYTES of URLs, so that each fits
+	 * in a frame. An entry larger than BATCH_BYTES gets a TRANSFER with its
+	 * first part and APPEND messages with the rest. The keys and bytes are
+	 * added to totals.
+	 */
+	private static ArrayList<Message> entryBatches(List<Map.Entry<BigInteger, ArrayList<String>>> entries, long[] totals) {
+		ArrayList<Message> batches = new ArrayList<Message>();
+		Message batch = null;
+		long size = 0;
+
+		for (Map.Entry<BigInteger, ArrayList<String>> e : entries) {
+			ArrayList<String> urls = e.getValue();
+			long bytes = batchBytes(urls);
+
+			if (batch == null || batch.keys.size() == LEAVE_BATCH_KEYS || size + bytes > BATCH_BYTES) {
+				batch = new Message(TRANSFER);
+				batch.keys   = new ArrayList<BigInteger>();
+				batch.values = new ArrayList<ArrayList<String>>();
+				batches.add(batch);
+				size = 0;
+			}
+			totals[0]++;
+			totals[1] += entryBytes(urls);
+
+			if (bytes <= BATCH_BYTES) {
+				batch.keys.add(e.getKey());
+				batch.values.add(urls);
+				size += bytes;
+				continue;
+			}
+
+			// Split the entry; the batch it starts holds nothing else
+			int start = 0;
+			long part = 0;
+			for (int i = 0; i <= urls.size(); i++) {
+				long url = (i < urls.size()) ? urlBytes(urls.get(i)) : 0;
+				if (i == urls.size() || (i > start && part + url > BATCH_BYTES)) {
+					ArrayList<String> chunk = new ArrayList<String>(urls.subList(start, i));
+					if (start == 0) {
+						batch.keys.add(e.getKey());
+						batch.values.add(chunk);
+					} else {
+						Message append = new Message(APPEND);
+						append.key  = e.getKey();
+						append.urls = chunk;
+						batches.add(append);
+					}
+					start = i;
+					part  = 0;
+				}
+				part += url;
+			}
+			batch = null;
+		}
+		return batches;
+	}
+
+	/*
+	 * Function name: depart(Message request)
+	 * 
+	 * Description: This function handles the DEPART message of a node that
+	 * leaves the ring. If the leaving node was
+	 * this vnode's predecessor, its predecessor takes its place, and if it was
+	 * the successor, its successor does. Every finger on the leaving node is
+	 * moved to its successor.
+	 */
+	public void depart(Message request) {
+		NodeRef gone = request.node;
+		NodeRef next = request.successor.id.equals(myNode.id) ? myNode.ref() : request.successor;
+
+		synchronized (handoffLock) {
+			NodeRef pred = myNode.predecessor;
+			if (pred != null && pred.id.equals(gone.id)) {
+				NodeRef newPred = request.predecessor;
+				myNode.predecessor = (newPred == null || newPred.id.equals(myNode.id)) ? null : newPred;
+				replicaSet = new ArrayList<NodeRef>();	// Our arc grew; resync the replicas
+			}
+		}
+
+		if (myNode.successor().id.equals(gone.id)) {
+			setSuccessor(next, without(request.successors, gone, next));
+		} else if (myNode.successorList.contains(gone)) {
+			setSuccessor(myNode.successor(), without(myNode.successorList, gone, myNode.successor()));
+		}
+
+		for (int k = 1; k <= M; k++) {
+			if (myNode.fingerTable[k].node.id.equals(gone.id)) {
+				myNode.fingerTable[k].node = next;
+			}
+		}
+	}
+
+	// Returns a copy of list without a and b
+	private static ArrayList<NodeRef> without(List<NodeRef> list, NodeRef a, NodeRef b) {
+		ArrayList<NodeRef> copy = new ArrayList<NodeRef>(list);
+		copy.remove(a);
+		copy.remove(b);
+		return copy;
+	}
+
+	/*
+	 * Function name: arcEntries(BigInteger from, BigInteger to, BigInteger cursor, int limit)
+	 * 
+	 * Description: This function returns up to limit stored entries with keys
+	 * in (from, to], in ring order starting after cursor, or from the start of
+	 * the arc if cursor is null. The entries are sorted by key, so only the
+	 * returned entries are visited.
+	 */
+	public ArrayList<Map.Entry<BigInteger, ArrayList<String>>> arcEntries(BigInteger from, BigInteger to, BigInteger cursor, int limit) {
+		ArrayList<NavigableSet<BigInteger>> parts = new ArrayList<NavigableSet<BigInteger>>();
+		NavigableSet<BigInteger> keys = myNode.entries.keySet();
+		BigInteger after = (cursor == null) ? from : cursor;
+
+		if (from.compareTo(to) < 0) {
+			parts.add(keys.subSet(after, false, to, true));
+		} else if (after.compareTo(to) <= 0 && cursor != null) {
+			// The cursor has already wrapped past zero
+			parts.add(keys.headSet(to, true).tailSet(after, false));
+		} else {
+			parts.add(keys.tailSet(after, false));
+			parts.add(keys.headSet(to, true));
+		}
+
+		ArrayList<Map.Entry<BigInteger, ArrayList<String>>> result = new ArrayList<Map.Entry<BigInteger, ArrayList<String>>>();
+		for (NavigableSet<BigInteger> part : parts) {
+			for (BigInteger key : part) {
+				if (result.size() == limit) {
+					return result;
+				}
+				ArrayList<String> urls = myNode.entries.get(key);
+				if (urls != null) {
+					result.add(new AbstractMap.SimpleEntry<BigInteger, ArrayList<String>>(key, urls));
+				}
+			}
+		}
+		return result;
+	}
+
+	// Approximate size of an entry on the wire, used for the handoff counters
+	private static long entryBytes(ArrayList<String> urls) {
+		long bytes = (M + 7) / 8;
+		for (String url : urls) {
+			bytes += url.getBytes(StandardCharsets.UTF_8).length;
+		}
+		return bytes;
+	}
+
+	// Upper bound on the size of an entry in a batch, counting each URL's
+	// length prefix, used to keep batches under BATCH_BYTES
+	private static long batchBytes(ArrayList<String> urls) {
+		return entryBytes(urls) + 4L * urls.size();
+	}
+
+	// Upper bound on the size of one URL in a batch
+	private static long urlBytes(String url) {
+		return url.getBytes(StandardCharsets.UTF_8).length + 4;
+	}
+
+	/*
+	 * Function name: startMaintenance()
+	 * 
+	 * Description: This function schedules stabilize, fixFingers and
+	 * checkPredecessor to run every STABILIZE_INTERVAL_MS for this vnode.
+	 */
+	public void startMaintenance() {
+		synchronized (maintenanceLock) {
+			maintenanceTask = startMaintenanceScheduler().scheduleWithFixedDelay(new Runnable() {
+				public void run() {
+					synchronized (maintenanceLock) {
+						if (maintenanceTask == null) {
+							return;		// Stopped by leave()
+						}
+						try {
+							stabilize();
+							fixFingers();
+							checkPredecessor();
+						} catch (Exception e) {
+							System.out.println("Node " + myNode.id + ": maintenance failed: " + e);
+						}
+					}
+				}
+			}, STABILIZE_INTERVAL_MS, STABILIZE_INTERVAL_MS, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	// Stops this vnode's maintenance, waiting for a running round to finish
+	public void stopMaintenance() {
+		synchronized (maintenanceLock) {
+			if (maintenanceTask != null) {
+				maintenanceTask.cancel(false);
+				maintenanceTask = null;
+			}
+		}
+	}
+
+	// All nodes in the process share a small pool of daemon maintenance threads.
+	private static synchronized ScheduledExecutorService startMaintenanceScheduler() {
+		if (maintenance == null) {
+			maintenance = Executors.newScheduledThreadPool(MAINTENANCE_THREADS, new ThreadFactory() {
+				private final AtomicInteger count = new AtomicInteger();
+
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "chord-maintenance-" + count.incrementAndGet());
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		return maintenance;
+	}
+
+	/*
+	 * Function name: stabilize()
+	 * 
+	 * Description: This function asks the successor for its predecessor and
+	 * successor list. If the successor's predecessor lies between this node
+	 * and the successor, it becomes the new successor. The successor list is
+	 * rebuilt from the successor's list, and the successor is notified about
+	 * this node. If the successor does not answer, it is dropped and the next
+	 * entry of the successor list is tried.
+	 */
+	public void stabilize() {
+		while (true) {
+			NodeRef succ = myNode.successor();
+
+			if (succ.id.equals(myNode.id)) {
+				// Alone on the ring until some node notifies us
+				NodeRef pred = myNode.predecessor;
+				if (pred != null && !pred.id.equals(myNode.id)) {
+					setSuccessor(pred, null);
+				}
+				return;
+			}
+
+			try {
+				Message state = callRemote(succ, null, GET_NODE, null, null);
+				if (state.op != OK) {
+					// The successor has left the ring; move on to its successor
+					setSuccessor(state.successor.id.equals(myNode.id) ? myNode.ref() : state.successor, null);
+					continue;
+				}
+
+				NodeRef x = state.predecessor;
+				if (x != null && between(x.id, myNode.id, succ.id)) {
+					try {
+						Message xState = callRemote(x, null, GET_NODE, null, null);
+						if (xState.op == OK) {
+							state = xState;
+							succ  = x;
+						}
+					} catch (IOException e) {
+						// Keep the current successor
+					}
+				}
+
+				setSuccessor(succ, state.successors);
+				callRemote(succ, myNode.ref(), NOTIFY, null, null);
+				syncReplicas();
+				return;
+
+			} catch (IOException e) {
+				// The successor is unreachable
+				dropSuccessor(succ);
+			}
+		}
+	}
+
+	/*
+	 * Function name: notify(NodeRef n)
+	 * 
+	 * Description: This function is called when node n thinks it might be
+	 * this node's predecessor.
+	 */
+	public void notify(NodeRef n) {
+		NodeRef pred = myNode.predecessor;
+
+		if (pred == null || between(n.id, pred.id, myNode.id)) {
+			myNode.predecessor = n;
+		}
+	}
+
+	/*
+	 * Function name: fixFingers()
+	 * 
+	 * Description: This function refreshes the next finger in turn. Fingers
+	 * whose start lies between this node and its successor simply point to
+	 * the successor, so those are set without a lookup.
+	 */
+	public void fixFingers() {
+		NodeRef succ = myNode.successor();
+
+		for (int k = 0; k < M; k++) {
+			nextFinger = (nextFinger % M) + 1;
+			Finger finger = myNode.fingerTable[nextFinger];
+
+			if (onRangeAfter(finger.start, myNode.id, succ.id)) {
+				finger.node = succ;
+			} else {
+				finger.node = findSuccessor(finger.start, null);
+				return;
+			}
+		}
+	}
+
+	/*
+	 * Function name: checkPredecessor()
+	 * 
+	 * Description: This function pings the predecessor and clears it if the
+	 * predecessor does not answer.
+	 */
+	public void checkPredecessor() {
+		NodeRef pred = myNode.predecessor;
+
+		if (pred != null && !pred.id.equals(myNode.id)) {
+			try {
+				callRemote(pred, null, PING, null, null);
+			} catch (IOException e) {
+				myNode.predecessor = null;
+			}
+		}
+	}
+
+	/*
+	 * Function name: setSuccessor(NodeRef succ, ArrayList<NodeRef> succList)
+	 * 
+	 * Description: This function makes succ the successor and rebuilds the
+	 * successor list as succ followed by the first entries of succList.
+	 */
+	public void setSuccessor(NodeRef succ, ArrayList<NodeRef> succList) {
+		ArrayList<NodeRef> list = new ArrayList<NodeRef>(SUCCESSOR_LIST_SIZE);
+		list.add(succ);
+
+		if (succList != null) {
+			for (int i = 0; i < succList.size() && list.size() < SUCCESSOR_LIST_SIZE; i++) {
+				if (succList.get(i).id.equals(myNode.id)) {
+					break;		// The list has wrapped around the ring
+				}
+				list.add(succList.get(i));
+			}
+		}
+
+		myNode.fingerTable[1].node = succ;
+		myNode.successorList = list;
+	}
+
+	/*
+	 * Function name: dropSuccessor(NodeRef dead)
+	 * 
+	 * Description: This function removes an unreachable successor. The next
+	 * entry in the successor list takes its place, or this node itself if the
+	 * list is empty.
+	 */
+	public void dropSuccessor(NodeRef dead) {
+		ArrayList<NodeRef> list = new ArrayList<NodeRef>(myNode.successorList);
+		list.remove(dead);
+
+		NodeRef next = list.isEmpty() ? myNode.ref() : list.remove(0);
+		setSuccessor(next, list);
+		pool.evictPort(dead.port);
+	}
+
+	private static ArrayList<NodeRef> singletonList(NodeRef n) {
+		ArrayList<NodeRef> list = new ArrayList<NodeRef>(1);
+		list.add(n);
+		return list;
+	}
+	
+	/*
+	 * Function name: findSuccessor(BigInteger keyID, RequestContext ctx)
+	 * 
+	 * Description: This function is used to find the successor of a node. This
+	 * is done by finding the immediate predecessor of node ID. The successor of
+	 * that node must be the successor of the keyID. The nodes contacted are
+	 * added to the trace in ctx, which may be null if no trace is kept.
+	 */
+	public NodeRef findSuccessor(BigInteger keyID, RequestContext ctx) {
+		if (ctx != null) {
+			ctx.nodeTrace.add(myNode.id);
+		}
+		return lookup(keyID, ctx)[1];
+	}
+
+	/*
+	 * Function name: findPredecessor(BigInteger keyID, RequestContext ctx)
+	 * 
+	 * Description: This function returns the node that immediately precedes
+	 * keyID on the Chord circle. See lookup().
+	 */
+	public NodeRef findPredecessor(BigInteger keyID, RequestContext ctx) {
+		return lookup(keyID, ctx)[0];
+	}
+
+	/*
+	 * Function name: lookup(BigInteger keyID, RequestContext ctx)
+	 * 
+	 * Description: This function contacts a series of nodes moving forward
+	 * around the Chord circle toward keyID. If a node contacts a node nPrime
+	 * such that keyID falls between nPrime and the successor of nPrime, then
+	 * the lookup is done and returns nPrime and its successor. Otherwise, the
+	 * node moves on to the finger that most closely precedes keyID.
+	 * 
+	 * A single CLOSEST PRE FINGER request to the next node returns both that
+	 * node's successor and its closest preceding finger, so each hop costs one
+	 * round trip. A node that does not answer is dropped (see forget()), and
+	 * the lookup moves on to the next closest node before keyID that nPrime
+	 * knows of instead (see nextHop()).
+	 */
+	public NodeRef[] lookup(BigInteger keyID, RequestContext ctx) {
+		HashSet<Integer> dead = new HashSet<Integer>();
+		NodeRef nPrime = myNode.ref();
+		List<NodeRef> succs = myNode.successorList;
+		NodeRef next = closestPrecedingFinger(keyID);
+
+		while (true) {
+			List<NodeRef> live = alive(succs, dead);
+			NodeRef nSucc = live.isEmpty() ? nPrime : live.get(0);
+
+			if (onRangeAfter(keyID, nPrime.id, nSucc.id) || next.id.equals(nPrime.id)) {
+				return new NodeRef[] { nPrime, nSucc };
+			}
+
+			Message response = hop(next, keyID, dead, ctx);
+			if (response == null) {
+				next = nextHop(nPrime, live, keyID);
+				continue;
+			}
+			nPrime = next;
+			succs  = response.successors;
+			next   = response.node;
+		}
+	}
+
+	/*
+	 * Function name: findReplicas(BigInteger keyID, RequestContext ctx)
+	 * 
+	 * Description: This function works like lookup(), but also uses the
+	 * successor list that comes with every CLOSEST PRE FINGER answer. The
+	 * lookup stops at the first node whose successor list reaches keyID,
+	 * instead of the node just before keyID, which saves hops. It returns
+	 * the owner of keyID followed by its next successors on REPLICAS - 1
+	 * other endpoints, where replicaTargets() puts the copies (see
+	 * addEndpoints()). Nodes that did not answer during the lookup are left
+	 * out.
+	 */
+	public ArrayList<NodeRef> findReplicas(BigInteger keyID, RequestContext ctx) {
+		HashSet<Integer> dead = new HashSet<Integer>();
+		NodeRef nPrime = myNode.ref();
+		List<NodeRef> succs = myNode.successorList;
+		NodeRef next = closestPrecedingFinger(keyID);
+
+		while (true) {
+			List<NodeRef> live = alive(succs, dead);
+			for (int i = 0; i < live.size(); i++) {
+				if (onRangeAfter(keyID, nPrime.id, live.get(i).id)) {
+					ArrayList<NodeRef> replicas = new ArrayList<NodeRef>(REPLICAS);
+					addEndpoints(replicas, live.subList(i, live.size()), REPLICAS);
+					return replicas;
+				}
+			}
+
+			if (next.id.equals(nPrime.id)) {
+				return singletonList(live.isEmpty() ? nPrime : live.get(0));
+			}
+
+			Message response = hop(next, keyID, dead, ctx);
+			if (response == null) {
+				next = nextHop(nPrime, live, keyID);
+				continue;
+			}
+			nPrime = next;
+			succs  = response.successors;
+			next   = response.node;
+		}
+	}
+
+	/*
+	 * Function name: hop(NodeRef n, BigInteger keyID, Set<Integer> dead, RequestContext ctx)
+	 * 
+	 * Description: This function takes one step of a lookup: it asks node n
+	 * for its closest preceding finger of keyID and its successor list. This
+	 * vnode answers from its own state. If n does not answer, or is on an
+	 * endpoint that did not answer before, its port is added to dead, it is
+	 * dropped (see forget()), and null is returned.
+	 */
+	private Message hop(NodeRef n, BigInteger keyID, Set<Integer> dead, RequestContext ctx) {
+		Message response;
+
+		if (n.id.equals(myNode.id)) {
+			response = new Message(OK);
+			response.node = closestPrecedingFinger(keyID);
+			response.successors = myNode.successorList;
+			return response;
+		}
+
+		if (!dead.contains(n.port)) {
+			try {
+				response = callRemote(n, null, CLOSEST_PRE_FINGER, keyID, null);
+				if (response.successors == null) {
+					response.successors = singletonList(response.successor);
+				}
+				if (ctx != null) {
+					ctx.nodeTrace.add(n.id);
+				}
+				return response;
+
+			} catch (IOException e) {
+				dead.add(n.port);
+			}
+		}
+		forget(n);
+		return null;
+	}
+
+	/*
+	 * Function name: nextHop(NodeRef nPrime, List<NodeRef> live, BigInteger keyID)
+	 * 
+	 * Description: This function picks the node a lookup moves on to after
+	 * the one that nPrime pointed it to did not answer. For this vnode that
+	 * is its closest preceding finger, now that the dead one is dropped. For
+	 * another node it is the last of nPrime's live successors that still
+	 * precedes keyID, or nPrime itself if there is none, which ends the
+	 * lookup at nPrime.
+	 */
+	private NodeRef nextHop(NodeRef nPrime, List<NodeRef> live, BigInteger keyID) {
+		if (nPrime.id.equals(myNode.id)) {
+			return closestPrecedingFinger(keyID);
+		}
+
+		NodeRef next = nPrime;
+		for (NodeRef n : live) {
+			if (!between(n.id, nPrime.id, keyID)) {
+				break;
+			}
+			next = n;
+		}
+		return next;
+	}
+
+	// Returns the nodes of list that are not on a port in dead
+	private static List<NodeRef> alive(List<NodeRef> list, Set<Integer> dead) {
+		if (dead.isEmpty()) {
+			return list;
+		}
+
+		ArrayList<NodeRef> live = new ArrayList<NodeRef>(list.size());
+		for (NodeRef n : list) {
+			if (!dead.contains(n.port)) {
+				live.add(n);
+			}
+		}
+		return live;
+	}
+
+	/*
+	 * Function name: forget(NodeRef dead)
+	 * 
+	 * Description: This function drops every vnode on the endpoint of a node
+	 * that did not answer from the successor list and the finger table. Its
+	 * fingers point to the successor until fixFingers() finds better ones.
+	 */
+	public void forget(NodeRef dead) {
+		if (dead.port == myNode.port) {
+			return;
+		}
+
+		ArrayList<NodeRef> list = new ArrayList<NodeRef>(myNode.successorList);
+		boolean removed = false;
+		for (int i = list.size() - 1; i >= 0; i--) {
+			if (list.get(i).port == dead.port) {
+				list.remove(i);
+				removed = true;
+			}
+		}
+		if (removed) {
+			setSuccessor(list.isEmpty() ? myNode.ref() : list.remove(0), list);
+		}
+
+		NodeRef succ = myNode.successor();
+		for (int k = 1; k <= M; k++) {
+			if (myNode.fingerTable[k].node.port == dead.port) {
+				myNode.fingerTable[k].node = succ;
+			}
+		}
+		pool.evictPort(dead.port);
+	}
+	/*
+	 * Function name: closestPrecedingFinger(BigInteger keyID)
+	 * 
+	 * Description: This function checks each element of a node's finger table
+	 * and looks for a node whose ID falls between the current node's ID and
+	 * keyID.
+	 */
+	public NodeRef closestPrecedingFinger(BigInteger keyID) {
+		for (int i = M; i > 0; i--) {
+			if (onRangeBetween(myNode.fingerTable[i].node.id, myNode.id, keyID)) {
+				return myNode.fingerTable[i].node;
+			}
+		}
+		return myNode.ref();
+	}
+
+
+
+	/*
+	 * Function name: routePublish(Message request, RequestContext ctx)
+	 * 
+	 * Description: This function handles a publish request that a client
+	 * sent to this node. The request message carries the tag, the URLs and
+	 * the client's request ID. The node determines which node in the
+	 * Chord system should handle the actual publish request. Then, the
+	 * request is forwarded on to that node.
+	 */
+	public void routePublish(Message request, RequestContext ctx) {
+		BigInteger hashTag = request.key;
+		ArrayList<String> urlList = request.urls;
+
+		ctx.replyHost = request.host;
+		ctx.replyPort = request.port;
+		ctx.requestId = request.requestId;
+
+		ctx.nodeTrace.add(myNode.id);
+		if (!departed && owns(hashTag)) {
+			ArrayList<String> added = storeEntry(hashTag, urlList);
+			if (added != null) {
+				replicate(hashTag, added);
+			}
+			sendClientOK(ctx);
+		} else {
+			NodeRef newNode = findNode(hashTag, myNode.ref(), ctx);
+			ArrayList<String> added;
+
+			if (newNode.id.equals(myNode.id)) {
+				if ((added = storeEntry(hashTag, urlList)) != null) {
+					replicate(hashTag, added);
+					sendClientOK(ctx);
+				} else {
+					forwardHandedOff(request, ctx);
+				}
+			} else {
+				forwardPublishRequest(hashTag, urlList, newNode, ctx);
+			}
+		}
+	}
+
+	
+	/*
+	 * Function name: routeSubscribe(Message request, RequestContext ctx)
+	 * 
+	 * Description: This function handles a subscribe request that a client
+	 * sent to this node. The request message carries the tags and the
+	 * client's request ID. A request with several tags is answered by
+	 * gatherTags(). Otherwise the node routes the single tag (see
+	 * routeTag()).
+	 */
+	public void routeSubscribe(Message request, RequestContext ctx) {
+		ctx.replyHost = request.host;
+		ctx.replyPort = request.port;
+		ctx.requestId = request.requestId;
+		ctx.cursor    = request.cursor;
+		ctx.pageSize  = Math.max(0, request.index);
+
+		if (request.keys != null && request.keys.size() > 1 && ctx.replyHost == null) {
+			gatherTags(request.keys, ctx);
+			return;
+		}
+
+		ctx.nodeTrace.add(myNode.id);
+		routeTag((request.keys != null) ? request.keys.get(0) : request.key, ctx);
+	}
+
+	/*
+	 * Function name: gatherTags(List<BigInteger> tags, RequestContext ctx)
+	 * 
+	 * Description: This function answers a subscribe request with several
+	 * tags. All tags are routed at the same time, each on a request thread
+	 * of its own with its own node trace, and their answers are collected by
+	 * a SubscribeGather. As soon as every tag has been answered, or when
+	 * SUBSCRIBE_DEADLINE_MS have passed, the client is sent one response with
+	 * the answered tags in keys and their URL lists in values. A tag that is
+	 * missing from the response was not answered in time, and its answer is
+	 * dropped when it arrives.
+	 */
+	public void gatherTags(List<BigInteger> tags, RequestContext ctx) {
+		sendClient(scatterTags(tags).combine(), ctx);
+	}
+
+	/*
+	 * Function name: scatterTags(List<BigInteger> tags)
+	 * 
+	 * Description: This function routes all of the tags at the same time and
+	 * returns the SubscribeGather that holds their answers once every tag has
+	 * been answered or SUBSCRIBE_DEADLINE_MS have passed.
+	 */
+	public SubscribeGather scatterTags(List<BigInteger> tags) {
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(SUBSCRIBE_DEADLINE_MS);
+		SubscribeGather gather = new SubscribeGather(tags);
+
+		fanoutQueries.incrementAndGet();
+		fanoutTags.addAndGet(tags.size());
+
+		for (final BigInteger hashTag : tags) {
+			final RequestContext tagCtx = new RequestContext(gather);
+			tagCtx.nodeTrace.add(myNode.id);
+
+			RequestThreads.start(new Runnable() {
+				public void run() {
+					routeTag(hashTag, tagCtx);
+				}
+			});
+		}
+
+		fanoutLate.addAndGet(gather.await(deadline));
+		return gather;
+	}
+
+	/*
+	 * Function name: handleQuery(Message request, RequestContext ctx)
+	 * 
+	 * Description: This function evaluates a boolean query that a client
+	 * sent to this node (see QueryPlan), and sends the client only the URLs
+	 * that match it, with the trace of the owners that were asked. The
+	 * client is sent ERR if the query is malformed or if no replica of one
+	 * of its tags could be reached.
+	 */
+	public void handleQuery(Message request, RequestContext ctx) {
+		ctx.requestId = request.requestId;
+		ctx.nodeTrace.add(myNode.id);
+		queryCount.incrementAndGet();
+
+		QueryPlan plan = QueryPlan.decode(request);
+		Message response = new Message(ERR);
+
+		if (plan != null) {
+			try {
+				LinkedHashSet<String> urls = evaluate(plan, ctx);
+				response = new Message(OK);
+				response.urls = new ArrayList<String>(urls);
+				response.nodeTrace = ctx.nodeTrace;
+			} catch (IOException e) {
+				System.err.println("Node " + myNode.id + ": QUERY FAILED: " + e.getMessage());
+			}
+		}
+		sendClient(response, ctx);
+	}
+
+	/*
+	 * Function name: evaluate(QueryPlan plan, RequestContext ctx)
+	 * 
+	 * Description: This function returns the URLs that match plan. A single
+	 * tag is read like a subscribe, the operands of an OR are evaluated and
+	 * merged, and an AND is evaluated on the owners of its tags (see
+	 * evaluateAnd()).
+	 */
+	public LinkedHashSet<String> evaluate(QueryPlan plan, RequestContext ctx) throws IOException {
+		switch (plan.op) {
+		case QueryPlan.TAG:
+			return new LinkedHashSet<String>(postingsCall(plan.tag, INTERSECT, null, ctx).urls);
+		case QueryPlan.AND:
+			return evaluateAnd(plan, ctx);
+		case QueryPlan.OR:
+			return evaluateOr(plan, ctx);
+		default:
+			return new LinkedHashSet<String>();
+		}
+	}
+
+	/*
+	 * Function name: evaluateOr(QueryPlan plan, RequestContext ctx)
+	 * 
+	 * Description: This function returns the union of the operands of an OR.
+	 * All tag operands are read at the same time (see scatterTags()), and
+	 * the other operands are evaluated one after another.
+	 */
+	private LinkedHashSet<String> evaluateOr(QueryPlan plan, RequestContext ctx) throws IOException {
+		LinkedHashSet<String> result = new LinkedHashSet<String>();
+		ArrayList<BigInteger> tags = new ArrayList<BigInteger>();
+
+		for (QueryPlan child : plan.children) {
+			if (child.op == QueryPlan.TAG) {
+				tags.add(child.tag);
+			} else {
+				result.addAll(evaluate(child, ctx));
+			}
+		}
+
+		if (!tags.isEmpty()) {
+			SubscribeGather gather = scatterTags(tags);
+			Message answers = gather.combine();
+			if (answers.keys.size() < tags.size()) {
+				throw new IOException((tags.size() - answers.keys.size()) + " tags were not answered in time");
+			}
+			for (ArrayList<String> urls : answers.values) {
+				result.addAll(urls);
+			}
+			ctx.nodeTrace.addAll(answers.nodeTrace);
+		}
+		return result;
+	}
+
+	/*
+	 * Function name: evaluateAnd(QueryPlan plan, RequestContext ctx)
+	 * 
+	 * Description: This function returns the intersection of the operands of
+	 * an AND, less the URLs of its negated operands. Operands that are not
+	 * tags are evaluated here first. The owners of the tags are then asked
+	 * for the sizes of their URL lists, all at once, and the operands are
+	 * intersected from the smallest to the largest: the URLs of the smallest
+	 * operand are the candidates, and each tag's owner keeps only the
+	 * candidates in its own list (see semiJoin()), so that no more than the
+	 * smallest list is ever sent between nodes. Finally the owners of the
+	 * negated tags remove their URLs from the candidates. An empty operand
+	 * ends the evaluation at once.
+	 */
+	private LinkedHashSet<String> evaluateAnd(QueryPlan plan, RequestContext ctx) throws IOException {
+		ArrayList<Operand> positive = new ArrayList<Operand>();
+		ArrayList<Operand> negative = new ArrayList<Operand>();
+
+		for (QueryPlan child : plan.children) {
+			boolean negated = (child.op == QueryPlan.NOT);
+			QueryPlan operand = negated ? child.children.get(0) : child;
+
+			Operand o = new Operand();
+			o.negated = negated;
+			if (operand.op == QueryPlan.TAG) {
+				o.tag = operand.tag;
+			} else {
+				o.urls = evaluate(operand, ctx);
+				o.size = o.urls.size();
+				if (o.size == 0 && !negated) {
+					return o.urls;
+				}
+			}
+			(negated ? negative : positive).add(o);
+		}
+
+		ArrayList<Operand> operands = new ArrayList<Operand>(positive);
+		operands.addAll(negative);
+		countPostings(operands, ctx);
+
+		Collections.sort(positive, new Comparator<Operand>() {
+			public int compare(Operand a, Operand b) {
+				return Long.compare(a.size, b.size);
+			}
+		});
+		operands = positive;
+		operands.addAll(negative);
+
+		LinkedHashSet<String> result = null;
+		for (Operand o : operands) {
+			if (result != null && result.isEmpty()) {
+				break;
+			}
+			if (o.size == 0 && o.negated) {
+				continue;
+			}
+
+			if (result == null) {
+				result = (o.tag == null) ? o.urls : new LinkedHashSet<String>(postingsCall(o.tag, INTERSECT, null, ctx).urls);
+			} else if (o.tag != null) {
+				result = semiJoin(o, result, ctx);
+			} else if (o.negated) {
+				result.removeAll(o.urls);
+			} else {
+				result.retainAll(o.urls);
+			}
+		}
+		return result;
+	}
+
+	/*
+	 * Function name: semiJoin(Operand o, LinkedHashSet<String> candidates, RequestContext ctx)
+	 * 
+	 * Description: This function returns the candidates that are in the URL
+	 * list of the tag o, or that are not in it if o is negated, in the order
+	 * of the candidates. The owner of the tag is sent either the candidates,
+	 * and answers exactly (INTERSECT or SUBTRACT), or a Bloom filter of them
+	 * if that is expected to be smaller (see useFilter()). The owner then
+	 * sends back its URLs that pass the filter, which are checked against the
+	 * candidates here to drop the false positives.
+	 */
+	private LinkedHashSet<String> semiJoin(Operand o, LinkedHashSet<String> candidates, RequestContext ctx) throws IOException {
+		if (!useFilter(candidates, o.size)) {
+			return new LinkedHashSet<String>(postingsCall(o.tag, o.negated ? SUBTRACT : INTERSECT, candidates, ctx).urls);
+		}
+
+		Message request = postingsRequest(o.tag, FILTER, null);
+		request.filter = new BloomFilter(candidates, BLOOM_FPP);
+		HashSet<String> passed = new HashSet<String>(ownerCall(request, ctx).urls);
+
+		queryFilters.incrementAndGet();
+		int matches = candidates.size();
+		if (o.negated) {
+			candidates.removeAll(passed);
+			matches -= candidates.size();
+		} else {
+			candidates.retainAll(passed);
+			matches = candidates.size();
+		}
+		queryFalseHits.addAndGet(passed.size() - matches);
+		return candidates;
+	}
+
+	/*
+	 * Function name: useFilter(Collection<String> candidates, long listSize)
+	 * 
+	 * Description: This function returns true if a Bloom filter of the
+	 * candidates, together with the URLs of a list of listSize URLs that are
+	 * expected to pass it by chance, is smaller than the candidates. The
+	 * URLs that are in both are sent back either way.
+	 */
+	private static boolean useFilter(Collection<String> candidates, long listSize) {
+		if (BLOOM_FPP <= 0 || candidates.isEmpty()) {
+			return false;
+		}
+
+		long bytes = urlBytes(candidates);
+		double filterBytes = -candidates.size() * Math.log(BLOOM_FPP) / (Math.log(2) * Math.log(2)) / 8;
+		double falseHitBytes = BLOOM_FPP * listSize * bytes / candidates.size();
+		return filterBytes + falseHitBytes < bytes;
+	}
+
+	/*
+	 * Function name: countPostings(ArrayList<Operand> operands, RequestContext ctx)
+	 * 
+	 * Description: This function asks the owners of all tag operands for
+	 * the sizes of their URL lists at the same time, and stores the sizes in
+	 * the operands.
+	 */
+	private void countPostings(ArrayList<Operand> operands, final RequestContext ctx) throws IOException {
+		final ArrayList<RequestContext> counts = new ArrayList<RequestContext>();
+		ArrayList<Runnable> tasks = new ArrayList<Runnable>();
+
+		for (final Operand o : operands) {
+			if (o.tag == null) {
+				continue;
+			}
+			final RequestContext countCtx = new RequestContext(null);
+			counts.add(countCtx);
+
+			tasks.add(new Runnable() {
+				public void run() {
+					try {
+						o.size = postingsCall(o.tag, COUNT, null, countCtx).index;
+					} catch (IOException e) {
+						o.size = -1;
+					}
+				}
+			});
+		}
+		RequestThreads.runAll(tasks);
+
+		for (Operand o : operands) {
+			if (o.size < 0) {
+				throw new IOException("No owner of tag " + o.tag + " could be reached");
+			}
+		}
+		for (RequestContext countCtx : counts) {
+			ctx.nodeTrace.addAll(countCtx.nodeTrace);
+		}
+	}
+
+	/*
+	 * Function name: postingsCall(BigInteger hashTag, byte op, Collection<String> candidates, RequestContext ctx)
+	 * 
+	 * Description: This function sends a COUNT, INTERSECT or SUBTRACT for
+	 * hashTag, with the given candidate URLs, to the owner of the tag (see
+	 * ownerCall()) and returns the answer.
+	 */
+	private Message postingsCall(BigInteger hashTag, byte op, Collection<String> candidates, RequestContext ctx) throws IOException {
+		return ownerCall(postingsRequest(hashTag, op, candidates), ctx);
+	}
+
+	// Builds a request for postings()
+	private static Message postingsRequest(BigInteger hashTag, byte op, Collection<String> candidates) {
+		Message request = new Message(op);
+		request.key  = hashTag;
+		request.urls = (candidates != null) ? new ArrayList<String>(candidates) : null;
+		return request;
+	}
+
+	/*
+	 * Function name: ownerCall(Message request, RequestContext ctx)
+	 * 
+	 * Description: This function sends a request for the tag request.key to
+	 * the owner of the tag and returns the answer. If the owner cannot be
+	 * reached or no longer holds the tag, the replicas are tried in turn, and
+	 * a route from the owner cache is looked up again once. Each node that
+	 * answers is added to the node trace. An IOException is thrown if no
+	 * replica answers.
+	 */
+	private Message ownerCall(Message request, RequestContext ctx) throws IOException {
+		BigInteger hashTag = request.key;
+
+		for (int attempt = 0; attempt < 2; attempt++) {
+			for (NodeRef n : findOwners(hashTag, ctx)) {
+				Message response;
+				request.target = n.id;
+				NodeThread vnode = (n.port == myNode.port) ? route(request) : null;
+
+				if (vnode != null) {
+					response = vnode.postings(request);
+				} else {
+					try {
+						response = callRemote(n, request);
+					} catch (IOException e) {
+						continue;
+					}
+				}
+
+				if (response.op == OK) {
+					if (vnode == null) {
+						queryBytes.addAndGet(urlBytes(request.urls) + urlBytes(response.urls)
+								+ ((request.filter != null) ? request.filter.size() : 0));
+					}
+					if (!n.id.equals(myNode.id)) {
+						ctx.nodeTrace.add(n.id);
+					}
+					return response;
+				}
+			}
+
+			if (ctx.routeVersion == 0) {
+				break;
+			}
+			dropRoute(hashTag);
+		}
+		throw new IOException("No owner of tag " + hashTag + " could be reached");
+	}
+
+	// Returns about the number of bytes that urls take on the wire
+	private static long urlBytes(Collection<String> urls) {
+		long bytes = 0;
+		if (urls != null) {
+			for (String url : urls) {
+				bytes += url.length() + 1;
+			}
+		}
+		return bytes;
+	}
+
+	/*
+	 * Function name: postings(Message request)
+	 * 
+	 * Description: This function answers a step of a query for the tag
+	 * request.key. A COUNT returns the size of the tag's URL list in index.
+	 * An INTERSECT returns the candidate URLs in request.urls that are in the
+	 * list, or the whole list if there are no candidates, and a SUBTRACT
+	 * returns the candidates that are not in it. A FILTER returns the URLs of
+	 * the list that pass the Bloom filter in request.filter. The candidates
+	 * are looked up in the URL dictionary and the step is done on the IDs
+	 * (see InvertedIndex), so it takes time in proportion to the candidates.
+	 * ERR is returned if this vnode neither holds nor owns the tag.
+	 */
+	public Message postings(Message request) {
+		Message response = new Message(OK);
+		InvertedIndex index = myNode.entries;
+		IntSet list = index.postings(request.key);
+
+		if (list == null) {
+			if (departed || !owns(request.key)) {
+				response.op = ERR;
+				return response;
+			}
+			list = IntSet.EMPTY;
+		}
+
+		if (request.op == COUNT) {
+			response.index = list.size();
+			return response;
+		}
+		if (request.op == FILTER && request.filter != null) {
+			response.urls = new ArrayList<String>();
+			for (int id : list.toArray()) {
+				String url = index.url(id);
+				if (request.filter.mightContain(url)) {
+					response.urls.add(url);
+				}
+			}
+			return response;
+		}
+		if (request.urls == null) {
+			response.urls = index.urls(list);
+			return response;
+		}
+
+		if (request.op == INTERSECT) {
+			response.urls = index.urls(index.ids(request.urls).and(list));
+			return response;
+		}
+
+		// Candidates that are not in the dictionary are in no list
+		response.urls = new ArrayList<String>();
+		for (String url : request.urls) {
+			int id = index.id(url);
+			if (id < 0 || !list.contains(id)) {
+				response.urls.add(url);
+			}
+		}
+		return response;
+	}
+
+	/*
+	 * Function name: routeTag(BigInteger hashTag, RequestContext ctx)
+	 * 
+	 * Description: This function determines which node in the Chord system
+	 * should handle the subscribe request for hashTag. Then, the request is
+	 * forwarded on to that node. With replication, the tag is read from its
+	 * replicas instead (see readReplicas()).
+	 */
+	public void routeTag(BigInteger hashTag, RequestContext ctx) {
+		if (!departed && owns(hashTag)) {
+			sendClientEntry(hashTag, ctx);
+
+		} else if (REPLICAS > 1) {
+			readReplicas(hashTag, findOwners(hashTag, ctx), ctx);
+
+		} else {
+			NodeRef newNode = findNode(hashTag, myNode.ref(), ctx);
+
+			if (newNode.id.equals(myNode.id)) {
+				sendClientEntry(hashTag, ctx);
+
+			} else {
+				forwardSubscribeRequest(hashTag, newNode, ctx);
+			}
+		}
+	}
+
+	/*
+	 * Function name: readReplicas(BigInteger hashTag, ArrayList<NodeRef> replicas, RequestContext ctx)
+	 * 
+	 * Description: This function answers a subscribe request from the
+	 * replicas of hashTag, owner first. In "one" read mode, a single replica
+	 * is read: this node itself if it holds a copy, otherwise a random
+	 * one, which spreads the reads of a popular tag. In "quorum" read mode, a
+	 * majority of the replicas is read (see quorumRead()) and the value that
+	 * most of them return is sent to the client. If no majority answers and
+	 * the replicas came from the owner cache, they are looked up again;
+	 * otherwise the request is forwarded to the owner, which answers for the
+	 * tag on its own. A read from a single replica is hedged (see
+	 * hedgedRead()).
+	 */
+	public void readReplicas(BigInteger hashTag, ArrayList<NodeRef> replicas, RequestContext ctx) {
+		if (READ_MODE.equals("quorum")) {
+			Message page = quorumRead(hashTag, replicas, ctx);
+			if (page == null && ctx.routeVersion != 0) {
+				// No majority answered for a cached route
+				dropRoute(hashTag);
+				readReplicas(hashTag, findOwners(hashTag, ctx), ctx);
+			} else if (page == null) {
+				ctx.nodeTrace.add(replicas.get(0).id);
+				forwardSubscribeRequest(hashTag, replicas.get(0), ctx);
+			} else {
+				sendClientURLs(hashTag, page.urls, page.cursor, ctx);
+			}
+			return;
+		}
+
+		for (NodeRef n : replicas) {
+			if (n.port == myNode.port) {
+				sendClientEntry(hashTag, ctx);
+				return;
+			}
+		}
+
+		int first = ThreadLocalRandom.current().nextInt(replicas.size());
+		if (HEDGE_PERCENTILE > 0 && replicas.size() > 1) {
+			hedgedRead(hashTag, replicas, first, ctx);
+			return;
+		}
+
+		NodeRef n = replicas.get(first);
+		ctx.nodeTrace.add(n.id);
+		forwardSubscribeRequest(hashTag, n, ctx);
+	}
+
+	/*
+	 * Function name: hedgedRead(BigInteger hashTag, ArrayList<NodeRef> replicas, int first, RequestContext ctx)
+	 * 
+	 * Description: This function fetches hashTag from the replica at index
+	 * first. If the replica has not answered within its hedge delay (see
+	 * hedgeDelay()), and the hedge budget allows it (see spendHedge()), the
+	 * same FETCH is sent to the next replica. The first
+	 * good answer is sent to the client; the other one is only used for the
+	 * latency histogram. If neither replica has the tag, the request is
+	 * forwarded to the owner as usual.
+	 */
+	public void hedgedRead(BigInteger hashTag, ArrayList<NodeRef> replicas, int first, RequestContext ctx) {
+		LinkedBlockingQueue<FetchAnswer> answers = new LinkedBlockingQueue<FetchAnswer>();
+		NodeRef primary = replicas.get(first);
+		NodeRef backup  = replicas.get((first + 1) % replicas.size());
+		FetchAnswer answer = null;
+		boolean hedged = false;
+		int pending = 1;
+
+		hedgeReads.incrementAndGet();
+		earnHedge();
+		fetchAsync(hashTag, primary, ctx, answers);
+
+		try {
+			FetchAnswer a = answers.poll(hedgeDelay(primary), TimeUnit.MICROSECONDS);
+			if (a == null) {
+				if (spendHedge()) {
+					hedgeSent.incrementAndGet();
+					fetchAsync(hashTag, backup, ctx, answers);
+					hedged = true;
+					pending++;
+				} else {
+					hedgeDenied.incrementAndGet();
+				}
+			}
+
+			while (pending > 0) {
+				if (a == null) {
+					a = answers.take();
+				}
+				pending--;
+
+				if (a.response != null && a.response.op == OK) {
+					answer = a;
+					break;
+				}
+				a = null;
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+		if (hedged) {
+			if (answer != null && answer.node == backup) {
+				hedgeWon.incrementAndGet();
+			} else {
+				hedgeLost.incrementAndGet();
+			}
+		}
+
+		if (answer == null) {
+			ctx.nodeTrace.add(replicas.get(0).id);
+			forwardSubscribeRequest(hashTag, replicas.get(0), ctx);
+			return;
+		}
+		ctx.nodeTrace.add(answer.node.id);
+		sendClientURLs(hashTag, answer.response.urls, answer.response.cursor, ctx);
+	}
+
+	/*
+	 * Function name: fetchAsync(BigInteger hashTag, NodeRef n, RequestContext ctx, LinkedBlockingQueue<FetchAnswer> answers)
+	 * 
+	 * Description: This function sends a FETCH for the page of hashTag that
+	 * the client asked for to node n on a request thread, records how long n
+	 * took to answer, and adds the answer to the answers queue. The response
+	 * is null if n could not be reached.
+	 */
+	private void fetchAsync(final BigInteger hashTag, final NodeRef n, RequestContext ctx,
+			final LinkedBlockingQueue<FetchAnswer> answers) {
+		final Message request = fetchRequest(hashTag, ctx);
+
+		RequestThreads.start(new Runnable() {
+			public void run() {
+				Message response = null;
+
+				try {
+					long start = System.nanoTime();
+					response = callRemote(n, request);
+					histogram(n.port).record(System.nanoTime() - start);
+				} catch (IOException e) {
+					// Counts as a failed answer
+				}
+				answers.add(new FetchAnswer(n, response));
+			}
+		});
+	}
+
+	/*
+	 * Function name: hedgeDelay(NodeRef n)
+	 * 
+	 * Description: This function returns how many microseconds to wait for
+	 * node n before hedging: the HEDGE_PERCENTILE-th percentile of n's recent
+	 * response times, or HEDGE_DEFAULT_US while there are too few of them.
+	 */
+	public long hedgeDelay(NodeRef n) {
+		LatencyHistogram h = histogram(n.port);
+		if (h.count() < HEDGE_MIN_SAMPLES) {
+			return HEDGE_DEFAULT_US;
+		}
+		return h.percentile(HEDGE_PERCENTILE);
+	}
+
+	// Returns the latency histogram for the node on the given port.
+	private LatencyHistogram histogram(int port) {
+		LatencyHistogram h = latencies.get(port);
+		if (h == null) {
+			latencies.putIfAbsent(port, new LatencyHistogram());
+			h = latencies.get(port);
+		}
+		return h;
+	}
+
+	// Adds HEDGE_BUDGET hundredths of a hedge to the budget, which holds at
+	// most HEDGE_BURST hedges.
+	private void earnHedge() {
+		long cap = HEDGE_BURST * 100L;
+		while (true) {
+			long tokens = hedgeTokens.get();
+			if (tokens >= cap || hedgeTokens.compareAndSet(tokens, Math.min(cap, tokens + HEDGE_BUDGET))) {
+				return;
+			}
+		}
+	}
+
+	/*
+	 * Function name: spendHedge()
+	 * 
+	 * Description: This function takes one hedge from the budget and returns
+	 * true, or returns false if less than one is left. Each read earns
+	 * HEDGE_BUDGET percent of a hedge (see earnHedge()), and at most
+	 * HEDGE_BURST hedges are saved up, so the budget follows the recent
+	 * reads: hedges saved during a long calm spell cannot all be spent when
+	 * a replica slows down.
+	 */
+	public boolean spendHedge() {
+		while (true) {
+			long tokens = hedgeTokens.get();
+			if (tokens < 100) {
+				return false;
+			}
+			if (hedgeTokens.compareAndSet(tokens, tokens - 100)) {
+				return true;
+			}
+		}
+	}
+
+	/*
+	 * Function name: findOwners(BigInteger hashTag, RequestContext ctx)
+	 * 
+	 * Description: This function returns the owner of hashTag followed by
+	 * its replicas (see findReplicas()). The SuperNode answers from its owner
+	 * cache where it can.
+	 */
+	public ArrayList<NodeRef> findOwners(BigInteger hashTag, RequestContext ctx) {
+		ctx.routeVersion = 0;
+		return findReplicas(hashTag, ctx);
+	}
+
+	/*
+	 * Function name: dropRoute(BigInteger hashTag)
+	 * 
+	 * Description: This function is called when the replicas returned by
+	 * findOwners() did not answer for hashTag. Only the SuperNode, which
+	 * caches them, has anything to do.
+	 */
+	public void dropRoute(BigInteger hashTag) {
+	}
+
+	/*
+	 * Function name: quorumRead(BigInteger hashTag, ArrayList<NodeRef> replicas, RequestContext ctx)
+	 * 
+	 * Description: This function fetches the page of hashTag that the client
+	 * asked for from a majority, REPLICAS / 2 + 1, of the replicas, owner
+	 * first, and returns the answer whose URLs most of them hold. The first
+	 * replicas are read at once; a replica that cannot be reached, or that
+	 * answers ERR because it holds no copy, does not vote, and the next
+	 * node in the list is read in its place. Once the list runs out, it is
+	 * continued with the successors of the last node that answered, on
+	 * endpoints that were not read yet, up to SUCCESSOR_LIST_SIZE + 1
+	 * endpoints, since stabilization copies the owner's keys past a failed
+	 * replica. Values carry no
+	 * version, so a tie goes to the replica that comes first. If fewer than
+	 * a majority answer, null is returned.
+	 */
+	public Message quorumRead(BigInteger hashTag, ArrayList<NodeRef> replicas, RequestContext ctx) {
+		int quorum = REPLICAS / 2 + 1;
+		Message request = fetchRequest(hashTag, ctx);
+		ArrayList<Message> votes = new ArrayList<Message>(quorum);
+		ArrayList<NodeRef> nodes = new ArrayList<NodeRef>(replicas);
+		NodeRef reached = null;
+		int next = 0;
+
+		while (votes.size() < quorum) {
+			if (next == nodes.size() && (reached == null || !addSuccessors(nodes, reached))) {
+				break;
+			}
+			int count = Math.min(quorum - votes.size(), nodes.size() - next);
+			List<NodeRef> round = nodes.subList(next, next + count);
+			Message[] answers = fetchAll(request, round, ctx);
+
+			for (int i = 0; i < answers.length; i++) {
+				if (answers[i] == null) {
+					continue;
+				}
+				reached = round.get(i);
+				if (answers[i].op == OK) {
+					votes.add(answers[i]);
+				}
+			}
+			next += count;
+		}
+		if (votes.size() < quorum) {
+			return null;
+		}
+
+		// Compared as sets, since an answer that is not paged is not sorted
+		ArrayList<HashSet<String>> sets = new ArrayList<HashSet<String>>(votes.size());
+		for (Message answer : votes) {
+			sets.add((answer.urls != null) ? new HashSet<String>(answer.urls) : new HashSet<String>());
+		}
+
+		int best = 0;
+		int bestVotes = 0;
+		for (int i = 0; i < sets.size(); i++) {
+			int count = 0;
+			for (int j = 0; j < sets.size(); j++) {
+				if (sets.get(i).equals(sets.get(j))) {
+					count++;
+				}
+			}
+			if (count > bestVotes) {
+				best = i;
+				bestVotes = count;
+			}
+		}
+
+		Message answer = votes.get(best);
+		if (answer.urls == null) {
+			answer.urls = new ArrayList<String>();
+		}
+		return answer;
+	}
+
+	// Appends to nodes the next successors of n on endpoints that it does not
+	// hold yet, up to SUCCESSOR_LIST_SIZE + 1 nodes in all.  Returns false if
+	// none was added.
+	private boolean addSuccessors(ArrayList<NodeRef> nodes, NodeRef n) {
+		int size = nodes.size();
+		addEndpoints(nodes, successorsOf(n), SUCCESSOR_LIST_SIZE + 1);
+		return nodes.size() > size;
+	}
 
-			} else if (remoteCommand.equals(FIND_PRED)) {
+	/*
+	 * Function name: addEndpoints(ArrayList<NodeRef> nodes, List<NodeRef> succs, int want)
+	 * 
+	 * Description: This function appends the nodes of succs, in order, to
+	 * nodes, skipping those on an endpoint that nodes already holds, until
+	 * nodes holds want nodes. Vnodes on one endpoint share one copy of the
+	 * entries (see replicaTargets()), so each endpoint is one replica. If
+	 * succs runs out first, the walk goes on with the successor list of its
+	 * last node, until it comes back to nodes it has seen or a node does not
+	 * answer.
+	 */
+	public void addEndpoints(ArrayList<NodeRef> nodes, List<NodeRef> succs, int want) {
+		HashSet<Integer> ports = new HashSet<Integer>();
+		HashSet<NodeRef> seen = new HashSet<NodeRef>(nodes);
+		for (NodeRef n : nodes) {
+			ports.add(n.port);
+		}
+
+		while (succs != null && nodes.size() < want) {
+			NodeRef last = null;
+			for (NodeRef n : succs) {
+				if (nodes.size() == want) {
+					return;
+				}
+				if (seen.add(n)) {
+					last = n;
+					if (ports.add(n.port)) {
+						nodes.add(n);
+					}
+				}
+			}
+			if (last == null) {
+				return;
+			}
+			succs = successorsOf(last);
+		}
+	}
+
+	// Returns the successor list of n, or null if n does not answer
+	private List<NodeRef> successorsOf(NodeRef n) {
+		if (n.equals(myNode.ref())) {
+			return myNode.successorList;
+		}
+		try {
+			return callRemote(n, null, GET_NODE, null, null).successors;
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	// Sends request to every node in nodes at once, and returns their answers
+	// in the same order, with null for a node that could not be reached.  The
+	// remote nodes are added to the node trace.
+	private Message[] fetchAll(final Message request, List<NodeRef> nodes, RequestContext ctx) {
+		final Message[] answers = new Message[nodes.size()];
+		ArrayList<Runnable> reads = new ArrayList<Runnable>();
+
+		for (int i = 0; i < nodes.size(); i++) {
+			final int r = i;
+			final NodeRef n = nodes.get(i);
+
+			if (n.port == myNode.port) {
+				answers[r] = new Message(OK);
+				fetch(request, answers[r]);
+				continue;
+			}
+			ctx.nodeTrace.add(n.id);
+			reads.add(new Runnable() {
+				public void run() {
+					try {
+						answers[r] = callRemote(n, request);
+					} catch (IOException e) {
+						// No answer
+					}
+				}
+			});
+		}
+		RequestThreads.runAll(reads);
+		return answers;
+	}
+
+	/*
+	 * Function name: fetch(Message request, Message response)
+	 * 
+	 * Description: This function answers a FETCH with the page of the key's
+	 * URLs that it asks for, or with ERR if this node neither holds nor owns
+	 * the key.
+	 */
+	public void fetch(Message request, Message response) {
+		InvertedIndex.View page = myNode.entries.view(request.key, request.cursor, request.index);
+		if (page != null) {
+			response.urls = page.list();
+			response.cursor = page.next();
+		} else if (!owns(request.key)) {
+			response.op = ERR;
+		}
+	}
+
+	// Returns a FETCH for the page of hashTag that the client asked for
+	private Message fetchRequest(BigInteger hashTag, RequestContext ctx) {
+		Message request = new Message(FETCH);
+		request.key = hashTag;
+		request.cursor = ctx.cursor;
+		if (ctx.pageSize > 0) {
+			request.index = ctx.pageSize;
+		}
+		return request;
+	}
 
-				myOutputObject.writeObject(FIND_PRED);
-				myOutputObject.flush();
-				myOutputObject.writeInt(index);
-				myOutputObject.flush();
+	
+	/*
+	 * Function name: forwardPublishRequest(BigInteger hashTag, ArrayList<String> urlList, NodeRef n, RequestContext ctx)
+	 * 
+	 * Description: This function forwards a publish request to node n.
+	 */
+	public void forwardPublishRequest(BigInteger hashTag, ArrayList<String> urlList, NodeRef n, RequestContext ctx) {
+		Message request = new Message(PUBLISH);
+		request.key  = hashTag;
+		request.urls = urlList;
+		forwardRequest(request, n, ctx);
+	}
 
-				result = (Node) myInputObject.readObject();
+	/*
+	 * Function name: forwardSubscribeRequest(BigInteger hashTag, NodeRef n, RequestContext ctx)
+	 * 
+	 * Description: This function forwards a subscribe request to node n.
+	 */
+	public void forwardSubscribeRequest(BigInteger hashTag, NodeRef n, RequestContext ctx) {
+		Message request = new Message(SUBSCRIBE);
+		request.key = hashTag;
+		request.cursor = ctx.cursor;
+		if (ctx.pageSize > 0) {
+			request.index = ctx.pageSize;
+		}
+		forwardRequest(request, n, ctx);
+	}
 
-			} else if (remoteCommand.equals(CLOSEST_PRE_FINGER)) {
+	/*
+	 * Function name: findNode(BigInteger hashTag, NodeRef n, RequestContext ctx)
+	 * 
+	 * Description: This function returns the node that should be responsible
+	 * for the given hashTag, starting the lookup at node n. Client requests
+	 * start at the node they arrived at, so that no node has to call back
+	 * into it while it is waiting for the answer.
+	 */
+	public NodeRef findNode(BigInteger hashTag, NodeRef n, RequestContext ctx) {
+		NodeRef succNode;
 
-				myOutputObject.writeObject(CLOSEST_PRE_FINGER);
-				myOutputObject.flush();
-				myOutputObject.writeInt(index);
-				myOutputObject.flush();
+		if (n.id.equals(myNode.id)) {
+			succNode = findOwners(hashTag, ctx).get(0);
+		} else {
+			succNode = invokeRemote(n, null, FIND_SUCC, hashTag, ctx).node;
+		}
 
-				result = (Node) myInputObject.readObject();
+		if (!succNode.id.equals(myNode.id)) {
+			ctx.nodeTrace.add(succNode.id);
+		}
+		return succNode;
+	}
 
-			} else if (remoteCommand.equals(SET_PRED)) {
+	/*
+	 * Function name: handlePublish(Message request, RequestContext ctx)
+	 * 
+	 * Description: This function is used to handle a publish request. The
+	 * request message carries the tag, the URLs, the node that holds the
+	 * client's connection, the request ID, and the node trace collected so
+	 * far.
+	 * 
+	 * The new entry is added to the node's 'entries' map. Then, a call is made
+	 * to the client to send an 'OK' response and the corresponding node trace
+	 * data. A request that comes straight from a client carries no node trace
+	 * yet, and is routed by this node (see routePublish()).
+	 */
+	public void handlePublish(Message request, RequestContext ctx) {
+		if (request.nodeTrace == null) {
+			routePublish(request, ctx);
+			return;
+		}
 
-				myOutputObject.writeObject(SET_PRED);
-				myOutputObject.flush();
-				myOutputObject.writeObject(nodeParam);
-				myOutputObject.flush();
-				
-			} else if (remoteCommand.equals(UPDATE_FINGER_TABLE)) {
+		ctx.replyHost = request.host;
+		ctx.replyPort = request.port;
+		ctx.requestId = request.requestId;
+		ctx.nodeTrace.addAll(request.nodeTrace);
 
-				myOutputObject.writeObject(UPDATE_FINGER_TABLE);
-				myOutputObject.flush();
-				myOutputObject.writeObject(nodeParam);
-				myOutputObject.flush();
-				myOutputObject.writeObject(index);
-				myOutputObject.flush();
+		if (forwardHandedOff(request, ctx)) {
+			return;
+		}
 
-				result = (String) myInputObject.readObject();
+		// Add entry, unless this vnode has left the ring in the meantime
+		ArrayList<String> added = storeEntry(request.key, request.urls);
+		if (added == null) {
+			forwardHandedOff(request, ctx);
+			return;
+		}
+		replicate(request.key, added);
 
-			} else if (remoteCommand.equals(GET_NODE)) {
+		// Send response to client
+		sendClientOK(ctx);
+	}
 
-				myOutputObject.writeObject(GET_NODE);
-				result = (Node) myInputObject.readObject();
+	/*
+	 * Function name: handleSubscribe(Message request, RequestContext ctx)
+	 * 
+	 * Description: This function is used to handle a subscribe request. The
+	 * request message carries the tag, the node that holds the client's
+	 * connection, the request ID, and the node trace collected so far.
+	 * 
+	 * The corresponding entries are retrieved from the 'entries' map. Then, a
+	 * call is made to the client to send the entries and the corresponding
+	 * node trace data. A request that comes straight from a client carries no
+	 * node trace yet, and is routed by this node (see routeSubscribe()).
+	 */
+	public void handleSubscribe(Message request, RequestContext ctx) {
+		if (request.nodeTrace == null) {
+			routeSubscribe(request, ctx);
+			return;
+		}
 
-			} else {
-				System.err.println("Attempting to execute invalid remote command ["+ remoteCommand + "]");
+		ctx.replyHost = request.host;
+		ctx.replyPort = request.port;
+		ctx.requestId = request.requestId;
+		ctx.cursor    = request.cursor;
+		ctx.pageSize  = Math.max(0, request.index);
+		ctx.nodeTrace.addAll(request.nodeTrace);
+
+		// Any replica of the key can answer
+		if (REPLICAS > 1 && !departed && myNode.entries.containsKey(request.key) && !owns(request.key)) {
+			replicaReads.incrementAndGet();
+
+		} else if (forwardHandedOff(request, ctx)) {
+			return;
+		}
+
+		// Send entries to client
+		sendClientEntry(request.key, ctx);
+	}
+
+
+	/*
+	 * Function name: forwardRequest(Message request, NodeRef n, RequestContext ctx)
+	 * 
+	 * Description: This function adds the node that holds the client's
+	 * connection, the request ID, the node trace and the version of a cached
+	 * route to a request and sends it to node n. If this node holds the
+	 * client's connection, the request is given a new ID here, under which
+	 * the answer finds its way back to the client. The answer does not come
+	 * back on this connection, so no response is read. If n cannot be
+	 * reached, the client is sent ERR, and it is also sent ERR if no answer
+	 * has come back after FORWARD_TIMEOUT_MS (see expireRequests()).
+	 */
+	public void forwardRequest(Message request, NodeRef n, RequestContext ctx) {
+		long id = 0;
+
+		if (ctx.replyHost == null) {
+			id = nextRequestId.incrementAndGet();
+			ctx.deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(FORWARD_TIMEOUT_MS);
+			clientRequests.put(id, ctx);
+			request.host = myNode.host;
+			request.port = myNode.port;
+			request.requestId = id;
+		} else {
+			request.host = ctx.replyHost;
+			request.port = ctx.replyPort;
+			request.requestId = ctx.requestId;
+		}
+
+		request.target = n.id;
+		request.nodeTrace = ctx.nodeTrace;
+		request.version = ctx.routeVersion;
+
+		try {
+			pool.send(n.port, request);
+
+		} catch (IOException e) {
+			// Only this request fails
+			forget(n);
+			if (id == 0 || clientRequests.remove(id, ctx)) {
+				sendClient(new Message(ERR), ctx);
+			}
+		}
+	}
+
+	/*
+	 * Function name: startRequestSweep()
+	 * 
+	 * Description: This function runs expireRequests() for the physical node
+	 * every quarter of FORWARD_TIMEOUT_MS on the maintenance threads.
+	 */
+	private void startRequestSweep() {
+		long period = Math.max(1, FORWARD_TIMEOUT_MS / 4);
+
+		startMaintenanceScheduler().scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				expireRequests();
+			}
+		}, period, period, TimeUnit.MILLISECONDS);
+	}
+
+	/*
+	 * Function name: expireRequests()
+	 * 
+	 * Description: This function answers every forwarded client request that
+	 * has waited for its answer for longer than FORWARD_TIMEOUT_MS with ERR,
+	 * because the node it went to has failed or dropped it. An answer that
+	 * comes back later is dropped (see relayReply()).
+	 */
+	public void expireRequests() {
+		long now = System.nanoTime();
+
+		for (Map.Entry<Long, RequestContext> e : clientRequests.entrySet()) {
+			RequestContext ctx = e.getValue();
+			if (now - ctx.deadline > 0 && clientRequests.remove(e.getKey(), ctx)) {
+				sendClient(new Message(ERR), ctx);
 			}
+		}
+	}
+
+	/*
+	 * Function name: forwardHandedOff(Message request, RequestContext ctx)
+	 * 
+	 * Description: This function passes a PUBLISH or SUBSCRIBE for a key that
+	 * this node no longer owns back to its predecessor, and returns true if it
+	 * did. This happens for a short time after a joining node has taken over
+	 * part of this node's arc, until the rest of the ring has learned about
+	 * the new node. A request is passed back at most once per node. A vnode
+	 * that has left the ring passes every request on to its successor.
+	 * 
+	 * A request that the SuperNode sent here from its owner cache is instead
+	 * sent back to the SuperNode, which drops the stale route and looks the
+	 * key up again.
+	 */
+	public boolean forwardHandedOff(Message request, RequestContext ctx) {
+		if (request.version != 0 && (departed || !owns(request.key))) {
+			ctx.routeVersion = request.version;
+			ctx.nodeTrace.add(myNode.id);
+			forwardRequest(request, SUPERNODE, ctx);
+			return true;
+		}
+
+		if (departed) {
+			ctx.nodeTrace.add(myNode.id);
+			forwardRequest(request, myNode.successor(), ctx);
+			return true;
+		}
+
+		NodeRef pred = myNode.predecessor;
+
+		if (owns(request.key) || ctx.nodeTrace.contains(pred.id)) {
+			return false;
+		}
+
+		ctx.nodeTrace.add(myNode.id);
+		forwardRequest(request, pred, ctx);
+		return true;
+	}
+
+	/*
+	 * Function name: owns(BigInteger keyID)
+	 * 
+	 * Description: This function determines if keyID falls on this vnode's
+	 * arc, from just after its predecessor up to its own ID. A node without a
+	 * predecessor assumes that it owns every key.
+	 */
+	public boolean owns(BigInteger keyID) {
+		NodeRef pred = myNode.predecessor;
+		return pred == null || onRangeAfter(keyID, pred.id, myNode.id);
+	}
+
+	/*
+	 * Function name: storeEntry(BigInteger keyID, ArrayList<String> urls)
+	 * 
+	 * Description: This function adds URLs to the entry for keyID, and
+	 * returns the URLs that the entry did not have yet. Keys that are being
+	 * copied to a joining node, or to the successor of a leaving node, are
+	 * remembered, so that the new value is sent again when the handoff is
+	 * committed. It returns null, and stores nothing, if this vnode has left
+	 * the ring. Otherwise it returns once the URLs are in the log, if the
+	 * entries are logged.
+	 */
+	public ArrayList<String> storeEntry(BigInteger keyID, ArrayList<String> urls) {
+		ArrayList<String> added;
 
-			// If trace data was requested, read it from the input stream.
-			if (getTrace) {
-				int fromclient = myInputObject.readInt();
+		synchronized (handoffLock) {
+			if (departed) {
+				return null;
+			}
+
+			added = myNode.entries.append(keyID, urls);
 
-				while (fromclient != -1) {
-					nodeTrace.add(fromclient);
-					fromclient = myInputObject.readInt();
+			for (Map.Entry<BigInteger, Set<BigInteger>> m : migrations.entrySet()) {
+				if (!onRangeAfter(keyID, m.getKey(), myNode.id)) {
+					m.getValue().add(keyID);
 				}
 			}
+			if (leaving != null) {
+				leaving.add(keyID);
+			}
+		}
 
-			// Clean up
-			remoteNodeSocket.close();
-			myOutputObject.close();
-			myInputObject.close();
+		// Wait for the log outside the lock, so that stores share a sync
+		myNode.entries.sync();
+		return added;
+	}
 
-		} catch (Exception e) {
+
+	/*
+	 * Function name: sendClientOK(RequestContext ctx)
+	 * 
+	 * Description: This function is called after a publish request has been
+	 * received. It sends an 'OK' response to the client. In addition, it also
+	 * sends the node trace data.
+	 */
+	public void sendClientOK(RequestContext ctx) {
+		Message response = new Message(OK);
+		response.nodeTrace = ctx.nodeTrace;
+		sendClient(response, ctx);
+	}
+
+	
+	/*
+	 * Function name: sendClientURLs(BigInteger hashTag, ArrayList<String> urlList, String next, RequestContext ctx)
+	 * 
+	 * Description: This function is called after a subscribe request has been
+	 * received. It sends the URL list, a page of the tag's URLs, to the client
+	 * with the cursor of the next page, or null if it is the last one. In
+	 * addition, it also sends the node trace data.
+	 */
+	public void sendClientURLs(BigInteger hashTag, ArrayList<String> urlList, String next, RequestContext ctx) {
+		Message response = new Message(OK);
+		response.key  = hashTag;
+		response.urls = (urlList != null) ? urlList : new ArrayList<String>();
+		response.cursor = next;
+		response.nodeTrace = ctx.nodeTrace;
+		sendClient(response, ctx);
+	}
+
+
+	/*
+	 * Function name: sendClientEntry(BigInteger hashTag, RequestContext ctx)
+	 * 
+	 * Description: This function sends the page of the URLs that this node
+	 * holds for hashTag that the client asked for, like sendClientURLs(). The
+	 * URLs are written to the connection straight from the entries (see
+	 * InvertedIndex.View).
+	 */
+	public void sendClientEntry(BigInteger hashTag, RequestContext ctx) {
+		InvertedIndex.View page = myNode.entries.view(hashTag, ctx.cursor, ctx.pageSize);
+
+		Message response = new Message(OK);
+		response.key = hashTag;
+		response.urlView = (page != null) ? page : myNode.entries.view(hashTag);
+		response.cursor = response.urlView.next();
+		response.nodeTrace = ctx.nodeTrace;
+		sendClient(response, ctx);
+	}
+
+
+	/*
+	 * Function name: printRing(Message request, RequestContext ctx)
+	 * 
+	 * Description: This function is called when a user selects "View DHT"
+	 * from the client menu. It sends this node's data to the client, and then
+	 * asks each following (v)node in turn for its data and passes it on, until
+	 * it reaches the node whose successor is the SuperNode. If a node cannot
+	 * be reached, the client is sent ERR.
+	 */
+	public void printRing(Message request, RequestContext ctx) throws IOException {
+		Message data = nodeData();
+		data.requestId = request.requestId;
+		ctx.reply(data);
+
+		NodeRef n = myNode.successor();
+		while (!n.id.equals(SUPERNODE_ID)) {
+			try {
+				data = callRemote(n, new Message(PRINT_DATA));
+			} catch (IOException e) {
+				data = new Message(ERR);
+			}
+			data.requestId = request.requestId;
+			ctx.reply(data);
+
+			if (data.op != OK) {
+				return;
+			}
+			n = data.successor;
+		}
+	}
+
+	/*
+	 * Function name: nodeData()
+	 * 
+	 * Description: This function returns this node's data for "View DHT".
+	 */
+	public Message nodeData() {
+		Message response = new Message(OK);
+		response.node        = myNode.ref();
+		response.successor   = myNode.successor();
+		response.predecessor = myNode.predecessor;
+		response.fingers     = new ArrayList<Finger>(M);
+		response.stats       = nodeStats();
+
+		for (int i = 1; i <= M; i++) {
+			response.fingers.add(myNode.fingerTable[i]);
+		}
+		return response;
+	}
+
+	/*
+	 * Function name: nodeStats()
+	 * 
+	 * Description: This function returns the counters that are displayed for
+	 * this node by "View DHT".
+	 */
+	public LinkedHashMap<String, Long> nodeStats() {
+		LinkedHashMap<String, Long> stats = new LinkedHashMap<String, Long>();
+		stats.put("entries", (long) ownedKeys());
+		stats.put("store.keys", (long) myNode.entries.size());
+		long[] store = myNode.entries.stats();
+		stats.put("store.urls", store[0]);
+		stats.put("store.postings", store[1]);
+		stats.put("store.bytes", store[2]);
+		stats.put("store.offheap", store[3]);
+		myNode.entries.addStats(stats);
+		stats.put("vnodes", (long) vnodes.size());
+		stats.put("conn.new", pool.getCreated());
+		stats.put("conn.reused", pool.getReused());
+		stats.put("migrate.keys.in", migrateKeysIn.get());
+		stats.put("migrate.bytes.in", migrateBytesIn.get());
+		stats.put("migrate.ms", migrateMillis.get());
+		stats.put("migrate.keys.out", migrateKeysOut.get());
+		stats.put("migrate.bytes.out", migrateBytesOut.get());
+		stats.put("replica.writes", replicaWrites.get());
+		stats.put("replica.reads", replicaReads.get());
+		stats.put("replica.pushed", replicaPushed.get());
+		stats.put("hedge.reads", hedgeReads.get());
+		stats.put("hedge.sent", hedgeSent.get());
+		stats.put("hedge.won", hedgeWon.get());
+		stats.put("hedge.lost", hedgeLost.get());
+		stats.put("hedge.denied", hedgeDenied.get());
+		stats.put("fanout.queries", fanoutQueries.get());
+		stats.put("fanout.tags", fanoutTags.get());
+		stats.put("fanout.late", fanoutLate.get());
+		stats.put("query.count", queryCount.get());
+		stats.put("query.bytes", queryBytes.get());
+		stats.put("query.filters", queryFilters.get());
+		stats.put("query.false.hits", queryFalseHits.get());
+		if (myNode.entries.log() != null) {
+			stats.putAll(myNode.entries.log().stats());
+		}
+		return stats;
+	}
+
+	/*
+	 * Function name: ownedKeys()
+	 * 
+	 * Description: This function returns the number of stored keys that fall
+	 * on this vnode's arc of the circle, from just after its predecessor up to
+	 * its own ID. The entries map may be shared with other vnodes, so its size
+	 * alone does not give the vnode's load.
+	 */
+	public int ownedKeys() {
+		NodeRef pred = myNode.predecessor;
+		if (pred == null || (vnodes.size() == 1 && REPLICAS == 1)) {
+			return myNode.entries.size();
+		}
+
+		int count = 0;
+		for (BigInteger key : myNode.entries.keySet()) {
+			if (onRangeAfter(key, pred.id, myNode.id)) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/*
+	 * Function name: sendClient(Message response, RequestContext ctx)
+	 * 
+	 * Description: This function sends a single response message to the
+	 * client, tagged with the client's request ID. If this node holds the
+	 * client's connection, the response is sent on it. Otherwise it is sent
+	 * as a REPLY to the node that does, which passes it on (see
+	 * relayReply()). A REPLY for an ERR answer carries ERR in its index. A
+	 * client, or a node holding its connection, that has gone away is not an
+	 * error.
+	 */
+	public void sendClient(Message response, RequestContext ctx) {
+		response.requestId = ctx.requestId;
+
+		if (ctx.replyHost == null) {
+			try {
+				ctx.reply(response);
+			} catch (IOException e) {
+				// The client went away before the response was sent.
+			}
+			return;
+		}
+
+		if (response.op == ERR) {
+			response.index = ERR;
+		}
+		response.op = REPLY;
+
+		try {
+			pool.send(ctx.replyPort, response);
+
+		} catch (IOException e) {
+			// The client's answer is lost with that node
+		}
+	}
+
+	/*
+	 * Function name: relayReply(Message reply)
+	 * 
+	 * Description: This function passes an answer that another node sent
+	 * back for a forwarded client request to the client, as an OK or ERR
+	 * response on the client's connection with the client's own request ID.
+	 * An answer for a request this node does not know, or has already
+	 * answered with ERR, is dropped.
+	 */
+	public void relayReply(Message reply) {
+		RequestContext client = clientRequests.remove(reply.requestId);
+		if (client == null) {
+			return;
+		}
+
+		reply.op = (reply.index == ERR) ? ERR : OK;
+		reply.index = Message.NONE;
+		reply.target = null;
+		reply.requestId = client.requestId;
+
+		try {
+			client.reply(reply);
+		} catch (IOException e) {
+			// The client went away before the response was sent.
+		}
+	}
+	
+	
+	/*
+	 * onRange(BigInteger keyID, BigInteger fromKey, BigInteger toKey)
+	 * 
+	 * Description: This function determines if keyID falls between fromKey and
+	 * toKey, inclusive, going clockwise around the circle (see ChordUtil).
+	 */
+	public boolean onRange(BigInteger keyID, BigInteger fromKey, BigInteger toKey) {
+		return ChordUtil.onRange(keyID, fromKey, toKey);
+	}
+	
+	/*
+	 * Function name: between(BigInteger keyID, BigInteger fromKey, BigInteger toKey)
+	 * 
+	 * Description: This function determines if keyID falls strictly between
+	 * fromKey and toKey going clockwise. If fromKey equals toKey, every ID
+	 * except fromKey is between them.
+	 */
+	public boolean between(BigInteger keyID, BigInteger fromKey, BigInteger toKey) {
+		if (keyID.equals(fromKey) || keyID.equals(toKey)) {
+			return false;
+		}
+		return fromKey.equals(toKey) || onRange(keyID, fromKey, toKey);
+	}
+	
+	/*
+	 * Function name: invokeRemote(NodeRef remote, NodeRef nodeParam, byte remoteCommand, BigInteger key, RequestContext traceTo)
+	 * 
+	 * Description: This function is used to execute a command on a remote node.
+	 * The possible commands are findSuccessor, findPredecessor, closestPreceedingFinger, 
+	 * getNode, notify and ping.
+	 * 
+	 * The remote parameter specifies the (v)node to execute the command on, and the remoteCommand
+	 * parameter specifies which command to execute. The key parameter is the key ID for lookups.
+	 * If traceTo is not null, a node trace is requested and added to the trace in traceTo.
+	 * 
+	 * The request is sent as one message over a pooled connection, which is returned to the
+	 * pool once the response has been read. The response message is returned. A node that cannot
+	 * be reached is fatal here; see callRemote() for callers that can recover.
+	 */
+	public Message invokeRemote(NodeRef remote, NodeRef nodeParam, byte remoteCommand, BigInteger key, RequestContext traceTo) {
+		Message result = null;
+
+		try {
+			result = callRemote(remote, nodeParam, remoteCommand, key, traceTo);
+
+		} catch (IOException e) {
 			System.out.println("Exception caught: " + e);
 			e.printStackTrace();
 			System.exit(1);
@@ -772,4 +3429,73 @@ public class NodeThread implements Serializable, Runnable {
 
 		return result;
 	}
+
+	/*
+	 * Function name: callRemote(NodeRef remote, NodeRef nodeParam, byte remoteCommand, BigInteger key, RequestContext traceTo)
+	 * 
+	 * Description: This function does the work of invokeRemote, but throws an
+	 * IOException if the remote node cannot be reached, so that the caller can
+	 * fall back to another node.
+	 */
+	public Message callRemote(NodeRef remote, NodeRef nodeParam, byte remoteCommand, BigInteger key, RequestContext traceTo) throws IOException {
+		Message request = new Message(remoteCommand);
+		request.node   = nodeParam;
+		request.key    = key;
+		request.trace  = (traceTo != null);
+
+		Message result = callRemote(remote, request);
+
+		// If trace data was requested, add it to this node's trace.
+		if (traceTo != null && result.nodeTrace != null) {
+			traceTo.nodeTrace.addAll(result.nodeTrace);
+		}
+		return result;
+	}
+
+	// Sends a prepared request to the remote (v)node and returns the response
+	public Message callRemote(NodeRef remote, Message request) throws IOException {
+		request.target = remote.id;
+		return pool.call(remote.port, request);
+	}
+
+	// Channel wrapper used when several request threads reply on one connection.
+	private static class SynchronizedChannel implements MessageChannel {
+		private final MessageChannel channel;
+
+		SynchronizedChannel(MessageChannel channel) {
+			this.channel = channel;
+		}
+
+		public synchronized void send(Message m) throws IOException {
+			channel.send(m);
+		}
+
+		public Message receive() throws IOException {
+			return channel.receive();
+		}
+
+		public void close() {
+			channel.close();
+		}
+	}
+
+	// An operand of an AND: a tag whose URL list has size URLs, or URLs that
+	// were already evaluated
+	private static class Operand {
+		BigInteger tag;
+		LinkedHashSet<String> urls;
+		long size;
+		boolean negated;
+	}
+
+	// One answer to a FETCH sent by fetchAsync()
+	private static class FetchAnswer {
+		final NodeRef node;
+		final Message response;
+
+		FetchAnswer(NodeRef node, Message response) {
+			this.node = node;
+			this.response = response;
+		}
+	}
 }
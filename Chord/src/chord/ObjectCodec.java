@@ -0,0 +1,66 @@
+package chord;
+
+/******************************************************************************
+ * Filename: ObjectCodec.java
+ * 
+ * Description: This file defines the original wire format, in which each
+ * message is written with Java serialization over an ObjectOutputStream.  It
+ * is kept so that it can be compared against the BinaryCodec.  Note that any
+ * Node object in a message is serialized along with everything it refers to.
+ * 
+ * Author: Kristin Dahl
+ * Date: 10-17-2026
+ *****************************************************************************/
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.Socket;
+
+public class ObjectCodec implements WireCodec {
+
+	public MessageChannel open(Socket socket) throws IOException {
+		return new ObjectChannel(socket);
+	}
+
+	private static class ObjectChannel implements MessageChannel {
+		private final Socket socket;
+		private final ObjectOutputStream out;
+		private final ObjectInputStream  in;
+
+		ObjectChannel(Socket socket) throws IOException {
+			this.socket = socket;
+
+			// The output header must be flushed before the input stream is
+			// opened, otherwise both ends wait on each other's stream header.
+			this.out = new ObjectOutputStream(socket.getOutputStream());
+			this.out.flush();
+			this.in  = new ObjectInputStream(socket.getInputStream());
+		}
+
+		public void send(Message m) throws IOException {
+			if (m.urls == null && m.urlView != null) {
+				m.urls = m.urlView.list();
+			}
+
+			// Forget the objects written so that the next message sends fresh copies
+			out.writeObject(m);
+			out.reset();
+			out.flush();
+		}
+
+		public Message receive() throws IOException {
+			try {
+				return (Message) in.readObject();
+			} catch (ClassNotFoundException e) {
+				throw new IOException(e);
+			}
+		}
+
+		public void close() {
+			try {
+				socket.close();
+			} catch (IOException e) {}
+		}
+	}
+}
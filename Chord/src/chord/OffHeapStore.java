@@ -0,0 +1,370 @@
+package chord;
+
+/******************************************************************************
+ * Filename: OffHeapStore.java
+ * 
+ * Description: The OffHeapStore class is a PostingStore that keeps URLs and
+ * posting lists outside the Java heap, in a MemoryArena, so that the
+ * garbage collector has no objects to trace for them however many a node
+ * holds.  The heap only holds int arrays and the map from each tag to the
+ * handle of its posting list.
+ * 
+ * Each URL is stored once, front-coded against the URL with the ID before
+ * it: as the number of leading UTF-8 bytes the two share, and the bytes
+ * that follow.  Every GROUP-th URL is stored whole, so that a URL is
+ * rebuilt from at most GROUP entries.  InvertedIndex adds the URLs of a
+ * publish in sorted order, so URLs of one site mostly get neighbouring IDs.
+ * An array maps each ID to the handle of its URL, and an open-addressing
+ * hash table of IDs, keyed by a hash of the bytes, maps each URL back to its
+ * ID.  A posting list is the number of
+ * IDs, the number of bytes that follow, and the gaps between the sorted IDs
+ * as varints.  It is rewritten into a new block when its tag changes.
+ * 
+ * Writers hold a StampedLock.  Readers do not take it: they read without
+ * it and check afterwards that no write happened in the meantime, and only
+ * read again under the lock if one did.  This is what allows a posting
+ * list's block to be freed and reused while a reader may still hold its
+ * handle.
+ * 
+ * Author: Kristin Dahl
+ * Date: 10-17-2026
+ *****************************************************************************/
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.locks.StampedLock;
+
+public class OffHeapStore implements PostingStore {
+	private static final int HEADER = 8;		// Count and length of a posting list
+	private static final int GROUP  = 16;		// URLs between ones stored whole
+
+	private final MemoryArena arena = new MemoryArena();
+	private final StampedLock lock = new StampedLock();
+	private final ConcurrentSkipListMap<BigInteger, Integer> postings = new ConcurrentSkipListMap<BigInteger, Integer>();
+
+	// The dictionary.  Written under the lock.
+	private volatile int[] handles = new int[64];	// URL handle, by ID
+	private int count;								// URLs
+	private byte[] last = new byte[0];				// The URL added last
+	private int[] table = new int[128];				// ID + 1 of each URL, or 0
+	private int[] hashes = new int[128];			// Hash of the URL in each slot
+
+	private long pairs;							// Tag-URL pairs, written under the lock
+	private long postingBytes;					// Bytes of the posting lists
+
+
+	public IntSet get(BigInteger key) {
+		long stamp = lock.tryOptimisticRead();
+		if (stamp != 0) {
+			try {
+				Integer handle = postings.get(key);
+				IntSet set = (handle != null) ? decode(handle) : null;
+				if (lock.validate(stamp)) {
+					return set;
+				}
+			} catch (RuntimeException e) {
+				// The block was reused while it was read
+			}
+		}
+
+		stamp = lock.readLock();
+		try {
+			Integer handle = postings.get(key);
+			return (handle != null) ? decode(handle) : null;
+		} finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	public void put(BigInteger key, IntSet set) {
+		int[] ids = set.toArray();
+		int len = 0;
+		for (int i = 0, prev = -1; i < ids.length; prev = ids[i++]) {
+			len += varintSize(ids[i] - prev);
+		}
+
+		long stamp = lock.writeLock();
+		try {
+			int handle = arena.allocateBlock(HEADER + len);
+			ByteBuffer buf = arena.buffer(handle);
+			int pos = MemoryArena.offset(handle);
+
+			buf.putInt(pos, ids.length);
+			buf.putInt(pos + 4, len);
+			pos += HEADER;
+			for (int i = 0, prev = -1; i < ids.length; prev = ids[i++]) {
+				pos = putVarint(buf, pos, ids[i] - prev);
+			}
+
+			Integer old = postings.put(key, handle);
+			if (old != null) {
+				release(old);
+			}
+			pairs += ids.length;
+			postingBytes += HEADER + len;
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	public boolean remove(BigInteger key) {
+		long stamp = lock.writeLock();
+		try {
+			Integer old = postings.remove(key);
+			if (old != null) {
+				release(old);
+			}
+			return old != null;
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	public IntSet peek(BigInteger key) {
+		return get(key);
+	}
+
+	public NavigableSet<BigInteger> keySet() {
+		return postings.keySet();
+	}
+
+	public int id(String url) {
+		byte[] b = url.getBytes(StandardCharsets.UTF_8);
+		int hash = hash(b);
+
+		long stamp = lock.tryOptimisticRead();
+		if (stamp != 0) {
+			try {
+				int id = find(b, hash);
+				if (lock.validate(stamp)) {
+					return id;
+				}
+			} catch (RuntimeException e) {
+				// The table was resized while it was read
+			}
+		}
+
+		stamp = lock.readLock();
+		try {
+			return find(b, hash);
+		} finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	public int add(String url) {
+		byte[] b = url.getBytes(StandardCharsets.UTF_8);
+		int hash = hash(b);
+
+		long stamp = lock.writeLock();
+		try {
+			int id = find(b, hash);
+			if (id >= 0) {
+				return id;
+			}
+
+			int shared = (count % GROUP == 0) ? 0 : sharedPrefix(last, b);
+			int suffix = b.length - shared;
+			int handle = arena.allocate(varintSize(shared) + varintSize(suffix) + suffix);
+			ByteBuffer buf = arena.buffer(handle);
+			int pos = putVarint(buf, MemoryArena.offset(handle), shared);
+			pos = putVarint(buf, pos, suffix);
+			buf.put(pos, b, shared, suffix);
+			last = b;
+
+			id = count++;
+			if (id == handles.length) {
+				handles = Arrays.copyOf(handles, id * 2);
+			}
+			handles[id] = handle;
+
+			if (count * 2 > table.length) {
+				rehash(table.length * 2);
+			}
+			insert(id, hash);
+			return id;
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	// URLs are never moved or freed, so they are read without the lock
+	public String url(int id) {
+		return new String(urlBytes(id), StandardCharsets.UTF_8);
+	}
+
+	// Rebuilds the URL from the last one stored whole, each entry overwriting
+	// the suffix of the one before it
+	public byte[] urlBytes(int id) {
+		int[] h = handles;
+		byte[] b = new byte[64];
+		int len = 0;
+
+		for (int i = id - id % GROUP; i <= id; i++) {
+			ByteBuffer buf = arena.buffer(h[i]);
+			int pos = MemoryArena.offset(h[i]);
+			int shared = getVarint(buf, pos);
+			pos += varintSize(shared);
+			int suffix = getVarint(buf, pos);
+			pos += varintSize(suffix);
+
+			if (shared + suffix > b.length) {
+				b = Arrays.copyOf(b, Math.max(b.length * 2, shared + suffix));
+			}
+			buf.get(pos, b, shared, suffix);
+			len = shared + suffix;
+		}
+		return Arrays.copyOf(b, len);
+	}
+
+	public int urlCount() {
+		return count;
+	}
+
+	public long[] stats() {
+		long stamp = lock.readLock();
+		try {
+			return new long[] { pairs, postingBytes, arena.reserved() };
+		} finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	public void addStats(Map<String, Long> stats) {
+	}
+
+	// Reads the posting list with the given handle.  A block that is being
+	// reused may hold anything, so its header is checked before the IDs are
+	// read.
+	private IntSet decode(int handle) {
+		ByteBuffer buf = arena.buffer(handle);
+		int pos = MemoryArena.offset(handle);
+		int n = buf.getInt(pos);
+		int len = buf.getInt(pos + 4);
+		if (n < 0 || len < n || pos + HEADER + len > buf.capacity()) {
+			throw new IllegalStateException("Posting list overwritten");
+		}
+
+		int[] ids = new int[n];
+		pos += HEADER;
+		for (int i = 0, prev = -1; i < n; i++) {
+			int gap = getVarint(buf, pos);
+			pos += varintSize(gap);
+			ids[i] = prev += gap;
+		}
+		return IntSet.of(ids, n);
+	}
+
+	// Frees a posting list.  Called with the lock held.
+	private void release(int handle) {
+		ByteBuffer buf = arena.buffer(handle);
+		int pos = MemoryArena.offset(handle);
+		int len = buf.getInt(pos + 4);
+
+		pairs -= buf.getInt(pos);
+		postingBytes -= HEADER + len;
+		arena.freeBlock(handle, HEADER + len);
+	}
+
+	// Returns the ID of the URL with the given bytes, or -1
+	private int find(byte[] b, int hash) {
+		int[] t = table;
+		int[] h = hashes;
+		int mask = t.length - 1;
+
+		for (int i = hash & mask; t[i] != 0; i = (i + 1) & mask) {
+			if (h[i] == hash && equals(t[i] - 1, b)) {
+				return t[i] - 1;
+			}
+		}
+		return -1;
+	}
+
+	private void insert(int id, int hash) {
+		int mask = table.length - 1;
+		int i = hash & mask;
+		while (table[i] != 0) {
+			i = (i + 1) & mask;
+		}
+		hashes[i] = hash;
+		table[i] = id + 1;
+	}
+
+	// Moves the table to one of the given size.  Readers keep using the old
+	// table until they read again.
+	private void rehash(int size) {
+		int[] oldTable = table;
+		int[] oldHashes = hashes;
+
+		int[] t = new int[size];
+		int[] h = new int[size];
+		for (int j = 0; j < oldTable.length; j++) {
+			if (oldTable[j] != 0) {
+				int i = oldHashes[j] & (size - 1);
+				while (t[i] != 0) {
+					i = (i + 1) & (size - 1);
+				}
+				h[i] = oldHashes[j];
+				t[i] = oldTable[j];
+			}
+		}
+		hashes = h;
+		table = t;
+	}
+
+	// Compares the URL with the given ID to the bytes b
+	private boolean equals(int id, byte[] b) {
+		return Arrays.equals(urlBytes(id), b);
+	}
+
+	private static int sharedPrefix(byte[] a, byte[] b) {
+		int n = Arrays.mismatch(a, b);
+		return (n < 0) ? a.length : n;
+	}
+
+	// 32-bit FNV-1a, with the bits mixed so that the low ones index the table
+	private static int hash(byte[] b) {
+		int h = 0x811c9dc5;
+		for (byte x : b) {
+			h ^= x;
+			h *= 0x01000193;
+		}
+		return h ^ (h >>> 16);
+	}
+
+	private static int varintSize(int v) {
+		int n = 1;
+		while ((v & ~0x7F) != 0) {
+			v >>>= 7;
+			n++;
+		}
+		return n;
+	}
+
+	// Writes v at pos and returns the position after it
+	private static int putVarint(ByteBuffer buf, int pos, int v) {
+		while ((v & ~0x7F) != 0) {
+			buf.put(pos++, (byte) ((v & 0x7F) | 0x80));
+			v >>>= 7;
+		}
+		buf.put(pos++, (byte) v);
+		return pos;
+	}
+
+	private static int getVarint(ByteBuffer buf, int pos) {
+		int v = 0;
+		for (int shift = 0; shift < 35; shift += 7) {
+			int b = buf.get(pos++);
+			v |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return v;
+			}
+		}
+		throw new IllegalStateException("Malformed varint");
+	}
+}
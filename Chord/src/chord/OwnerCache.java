@@ -0,0 +1,121 @@
+package chord;
+
+/******************************************************************************
+ * Filename: OwnerCache.java
+ * 
+ * Description: The OwnerCache class is used by the SuperNode to remember
+ * where recently used tags live, so that publishing or subscribing the same
+ * tag again does not repeat the lookup around the ring.  It maps a hashed tag
+ * to the tag's owner and replicas, and holds at most a fixed number of tags,
+ * evicting the least recently used one first.
+ * 
+ * Every route is stored with the ring version it was looked up under.  The
+ * SuperNode increases the ring version whenever a node joins or leaves, and a
+ * route from an older version is treated as missing, so the whole cache is
+ * invalidated at once without touching its entries.
+ * 
+ * Author: Kristin Dahl
+ * Date: 10-17-2026
+ *****************************************************************************/
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+public class OwnerCache {
+	private final int capacity;
+	private final LinkedHashMap<BigInteger, Route> routes;
+
+	private long lookups;		// Counters, guarded by this
+	private long hits;
+	private long hopsSaved;
+	private long misroutes;
+
+
+	// OwnerCache constructor
+	public OwnerCache(int capacity) {
+		this.capacity = capacity;
+		this.routes = new LinkedHashMap<BigInteger, Route>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			protected boolean removeEldestEntry(Map.Entry<BigInteger, Route> eldest) {
+				return size() > OwnerCache.this.capacity;
+			}
+		};
+	}
+
+	/*
+	 * Function name: get(BigInteger hashTag, long version)
+	 * 
+	 * Description: This function returns the owner and replicas of hashTag
+	 * if they were looked up under the given ring version, and null
+	 * otherwise. Every call counts as a lookup, and a hit counts the hops
+	 * that the original lookup took as saved.
+	 */
+	public synchronized ArrayList<NodeRef> get(BigInteger hashTag, long version) {
+		lookups++;
+
+		Route route = routes.get(hashTag);
+		if (route == null) {
+			return null;
+		}
+		if (route.version != version) {
+			routes.remove(hashTag);
+			return null;
+		}
+
+		hits++;
+		hopsSaved += route.hops;
+		return route.replicas;
+	}
+
+	/*
+	 * Function name: put(BigInteger hashTag, ArrayList<NodeRef> replicas, long version, int hops)
+	 * 
+	 * Description: This function stores the owner and replicas of hashTag,
+	 * found under the given ring version by a lookup that took hops hops.
+	 */
+	public synchronized void put(BigInteger hashTag, ArrayList<NodeRef> replicas, long version, int hops) {
+		if (capacity > 0) {
+			routes.put(hashTag, new Route(replicas, version, hops));
+		}
+	}
+
+	/*
+	 * Function name: misrouted(BigInteger hashTag)
+	 * 
+	 * Description: This function drops the route for hashTag after it has
+	 * led a request to a node that does not own the tag.
+	 */
+	public synchronized void misrouted(BigInteger hashTag) {
+		routes.remove(hashTag);
+		misroutes++;
+	}
+
+	/*
+	 * Function name: addStats(Map<String, Long> stats)
+	 * 
+	 * Description: This function adds the cache counters to stats.
+	 */
+	public synchronized void addStats(Map<String, Long> stats) {
+		stats.put("cache.size", (long) routes.size());
+		stats.put("cache.lookups", lookups);
+		stats.put("cache.hits", hits);
+		stats.put("cache.hops.saved", hopsSaved);
+		stats.put("cache.misroutes", misroutes);
+	}
+
+	// A cached route: the owner of a tag followed by its replicas
+	private static class Route {
+		final ArrayList<NodeRef> replicas;
+		final long version;
+		final int hops;
+
+		Route(ArrayList<NodeRef> replicas, long version, int hops) {
+			this.replicas = replicas;
+			this.version  = version;
+			this.hops     = hops;
+		}
+	}
+}
@@ -0,0 +1,70 @@
+package chord;
+
+/******************************************************************************
+ * Filename: PooledConnection.java
+ * 
+ * Description: This file defines a long-lived connection to a remote node.
+ * The socket and its message channel are created once and then reused for
+ * many requests.  PooledConnection objects are handed out and taken back by
+ * a ConnectionPool.
+ * 
+ * Author: Kristin Dahl
+ * Date: 10-17-2026
+ *****************************************************************************/
+
+import static chord.ChordUtil.CODEC;
+import static chord.ChordUtil.HOST;
+import static chord.ChordUtil.POOL_CALL_TIMEOUT_MS;
+
+import java.io.IOException;
+import java.net.Socket;
+
+public class PooledConnection {
+	public final int port;
+	public final Socket socket;
+	public final MessageChannel channel;
+
+	long lastUsed;		// Time (ms) at which the connection was last released
+	boolean reused;		// Taken from the pool rather than opened for this use
+
+	
+	// PooledConnection constructor
+	public PooledConnection(int port) throws IOException {
+		this.port    = port;
+		this.socket  = new Socket(HOST, port);
+		this.socket.setTcpNoDelay(true);
+		this.socket.setSoTimeout(POOL_CALL_TIMEOUT_MS);
+		this.channel = CODEC.open(socket);
+		this.lastUsed = System.currentTimeMillis();
+	}
+
+	/*
+	 * Function name: call(Message request)
+	 * 
+	 * Description: This function sends a request and waits for its response,
+	 * for at most POOL_CALL_TIMEOUT_MS.
+	 */
+	public Message call(Message request) throws IOException {
+		channel.send(request);
+		return channel.receive();
+	}
+
+	/*
+	 * Function name: isOpen()
+	 * 
+	 * Description: This function returns true if the underlying socket has not
+	 * been closed or shut down on our side.
+	 */
+	public boolean isOpen() {
+		return socket.isConnected() && !socket.isClosed() && !socket.isInputShutdown() && !socket.isOutputShutdown();
+	}
+
+	/*
+	 * Function name: close()
+	 * 
+	 * Description: This function closes the socket, ignoring any errors.
+	 */
+	public void close() {
+		channel.close();
+	}
+}
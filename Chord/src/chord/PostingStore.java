@@ -0,0 +1,69 @@
+package chord;
+
+/******************************************************************************
+ * Filename: PostingStore.java
+ * 
+ * Description: This file defines where an InvertedIndex keeps its URL
+ * dictionary and the posting list of each tag.  The store in use is chosen
+ * with the chord.store system property:
+ * 
+ *     heap    - Java strings and IntSets (HeapStore, the default)
+ *     offheap - front-coded URL bytes and encoded posting lists in direct
+ *               buffers, with only int handles on the heap (OffHeapStore)
+ * 
+ * Either store can be wrapped in a TieredStore, which moves the posting
+ * lists of tags that are seldom read to disk.
+ * 
+ * A store is written by one thread at a time (the InvertedIndex's lock is
+ * held), and read by any number of threads without locking.  URL IDs are
+ * given out from 0 up and never change.
+ * 
+ * Author: Kristin Dahl
+ * Date: 10-17-2026
+ *****************************************************************************/
+
+import java.math.BigInteger;
+import java.util.Map;
+import java.util.NavigableSet;
+
+public interface PostingStore {
+	// Returns the posting list of key, or null if there is no such tag
+	public IntSet get(BigInteger key);
+
+	// Returns the posting list of key like get(), but without counting the
+	// read or moving the tag between tiers.  Used for snapshots.
+	public IntSet peek(BigInteger key);
+
+	// Replaces the posting list of key.  Called with the index held.
+	public void put(BigInteger key, IntSet set);
+
+	// Removes key, and returns false if there was no such tag.  Called with
+	// the index held.
+	public boolean remove(BigInteger key);
+
+	// Returns a live view of the tags, sorted by key
+	public NavigableSet<BigInteger> keySet();
+
+	// Returns the ID of url, or -1 if it is not in the dictionary
+	public int id(String url);
+
+	// Returns the ID of url, adding it to the dictionary if it is new.
+	// Called with the index held.
+	public int add(String url);
+
+	// Returns the URL with the given ID
+	public String url(int id);
+
+	// Returns the UTF-8 bytes of the URL with the given ID
+	public byte[] urlBytes(int id);
+
+	// Returns the number of URLs in the dictionary
+	public int urlCount();
+
+	// Returns the number of tag-URL pairs, about the number of bytes the
+	// posting lists take, and the bytes held outside the heap
+	public long[] stats();
+
+	// Adds counters of the store's own, if it has any, to stats
+	public void addStats(Map<String, Long> stats);
+}
@@ -9,13 +9,18 @@ package chord;
  * Date: 9-6-2016
  *****************************************************************************/
 
+import java.math.BigInteger;
 import java.util.ArrayList;
+import java.util.Map;
 
 public class PrintData {
-	int nodeID;
+	BigInteger nodeID;
+	int port;
 	int numEntries;
-	int succID;
-	int predID;
+	BigInteger succID;
+	BigInteger predID;
+
+	Map<String, Long> stats;	// Node counters, such as connection pool usage
 
 	ArrayList<Finger> fingers;
 
@@ -0,0 +1,356 @@
+package chord;
+
+/******************************************************************************
+ * Filename: QueryPlan.java
+ * 
+ * Description: The QueryPlan class holds a subscribe query as a tree of
+ * boolean operations over hashed tags.  A query may combine any number of
+ * tags with AND, OR and NOT, and may group them with parentheses; AND binds
+ * more tightly than OR.  NOT may only be used inside an AND that also has a
+ * tag or group that is not negated, as in "a AND NOT b", because the set of
+ * all URLs is never gathered.
+ * 
+ * The client parses the query into a plan and sends it to a node, which
+ * evaluates it on the owners of the tags (see NodeThread.evaluate()).  On
+ * the wire a plan is the list of its distinct tags, in keys, and the tree in
+ * postfix form over the positions in that list, in query, for example
+ * "0 1 & 2 ! &" for "a AND b AND NOT c".
+ * 
+ * A tag that has never been published matches no URLs.  Such tags are
+ * removed from the plan while it is built, so a plan is either NONE or
+ * contains only tags that exist.
+ * 
+ * Author: Kristin Dahl
+ * Date: 10-17-2026
+ *****************************************************************************/
+
+import java.math.BigInteger;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Map;
+
+public class QueryPlan {
+	public static final byte TAG  = 0;
+	public static final byte AND  = 1;
+	public static final byte OR   = 2;
+	public static final byte NOT  = 3;
+	public static final byte NONE = 4;		// Matches no URLs
+
+	private static final QueryPlan EMPTY = new QueryPlan(NONE, null, new ArrayList<QueryPlan>());
+
+	public final byte op;
+	public final BigInteger tag;				// Hashed tag of a TAG
+	public final ArrayList<QueryPlan> children;	// Operands of an AND, OR or NOT
+
+
+	// QueryPlan constructor
+	private QueryPlan(byte op, BigInteger tag, ArrayList<QueryPlan> children) {
+		this.op = op;
+		this.tag = tag;
+		this.children = children;
+	}
+
+	/*
+	 * Function name: parse(String query, Map<String, BigInteger> hashedTags)
+	 * 
+	 * Description: This function parses a user-entered query, looking up
+	 * each tag in hashedTags. It returns null if the query is malformed.
+	 */
+	public static QueryPlan parse(String query, Map<String, BigInteger> hashedTags) {
+		ArrayList<String> tokens = tokenize(query);
+		int[] pos = { 0 };
+
+		Term term = parseOr(tokens, pos);
+		if (term == null || pos[0] != tokens.size() || !term.valid(false)) {
+			return null;
+		}
+		return term.plan(hashedTags);
+	}
+
+	/*
+	 * Function name: encode(Message m)
+	 * 
+	 * Description: This function puts the plan into m: its distinct tags in
+	 * m.keys and the tree in postfix form in m.query.
+	 */
+	public void encode(Message m) {
+		m.keys = tags();
+		StringBuilder postfix = new StringBuilder();
+		encode(m.keys, postfix);
+		m.query = postfix.toString().trim();
+	}
+
+	/*
+	 * Function name: decode(Message m)
+	 * 
+	 * Description: This function rebuilds the plan that encode() put into m.
+	 * It returns null if m does not hold a well-formed plan.
+	 */
+	public static QueryPlan decode(Message m) {
+		if (m.query == null || m.keys == null) {
+			return null;
+		}
+
+		ArrayDeque<QueryPlan> stack = new ArrayDeque<QueryPlan>();
+		try {
+			for (String token : m.query.split(" ")) {
+				if (token.equals("&") || token.equals("|")) {
+					QueryPlan right = stack.pop();
+					QueryPlan left = stack.pop();
+					stack.push(token.equals("&") ? and(list(left, right)) : or(list(left, right)));
+				} else if (token.equals("!")) {
+					stack.push(not(stack.pop()));
+				} else {
+					stack.push(tag(m.keys.get(Integer.parseInt(token))));
+				}
+			}
+		} catch (RuntimeException e) {
+			return null;
+		}
+
+		if (stack.size() != 1 || !stack.peek().valid(false)) {
+			return null;
+		}
+		return stack.pop();
+	}
+
+	/*
+	 * Function name: tags()
+	 * 
+	 * Description: This function returns the distinct tags of the plan in
+	 * the order they appear in.
+	 */
+	public ArrayList<BigInteger> tags() {
+		ArrayList<BigInteger> tags = new ArrayList<BigInteger>();
+		addTags(tags);
+		return tags;
+	}
+
+	// Adds the tags of this plan that are not in tags yet
+	private void addTags(ArrayList<BigInteger> tags) {
+		if (op == TAG) {
+			if (!tags.contains(tag)) {
+				tags.add(tag);
+			}
+			return;
+		}
+		for (QueryPlan child : children) {
+			child.addTags(tags);
+		}
+	}
+
+	// Writes the plan in postfix form over the positions in tags
+	private void encode(ArrayList<BigInteger> tags, StringBuilder postfix) {
+		switch (op) {
+		case TAG:
+			postfix.append(tags.indexOf(tag)).append(' ');
+			break;
+		case NOT:
+			children.get(0).encode(tags, postfix);
+			postfix.append("! ");
+			break;
+		default:
+			children.get(0).encode(tags, postfix);
+			for (int i = 1; i < children.size(); i++) {
+				children.get(i).encode(tags, postfix);
+				postfix.append(op == AND ? "& " : "| ");
+			}
+			break;
+		}
+	}
+
+	// Returns true if every NOT in the plan is an operand of an AND that has
+	// an operand that is not negated.  notAllowed is true for the operands of
+	// such an AND.
+	private boolean valid(boolean notAllowed) {
+		if (op == NOT) {
+			return notAllowed && children.get(0).op != NOT && children.get(0).valid(false);
+		}
+		if (op == AND) {
+			boolean positive = false;
+			for (QueryPlan child : children) {
+				positive |= (child.op != NOT);
+			}
+			notAllowed = positive;
+		} else {
+			notAllowed = false;
+		}
+
+		for (QueryPlan child : children) {
+			if (!child.valid(notAllowed)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	// Builds a TAG, or NONE for a tag that has never been published
+	private static QueryPlan tag(BigInteger hashTag) {
+		return (hashTag == null) ? EMPTY : new QueryPlan(TAG, hashTag, new ArrayList<QueryPlan>());
+	}
+
+	// Builds an AND, merging nested ANDs.  Any NONE operand makes the AND
+	// NONE, and a negated NONE removes nothing.
+	private static QueryPlan and(ArrayList<QueryPlan> operands) {
+		ArrayList<QueryPlan> children = new ArrayList<QueryPlan>();
+		for (QueryPlan p : operands) {
+			if (p.op == NONE) {
+				return EMPTY;
+			} else if (p.op == AND) {
+				children.addAll(p.children);
+			} else if (!(p.op == NOT && p.children.get(0).op == NONE)) {
+				children.add(p);
+			}
+		}
+		return (children.size() == 1) ? children.get(0) : new QueryPlan(AND, null, children);
+	}
+
+	// Builds an OR, merging nested ORs and dropping NONE operands
+	private static QueryPlan or(ArrayList<QueryPlan> operands) {
+		ArrayList<QueryPlan> children = new ArrayList<QueryPlan>();
+		for (QueryPlan p : operands) {
+			if (p.op == OR) {
+				children.addAll(p.children);
+			} else if (p.op != NONE) {
+				children.add(p);
+			}
+		}
+		if (children.isEmpty()) {
+			return EMPTY;
+		}
+		return (children.size() == 1) ? children.get(0) : new QueryPlan(OR, null, children);
+	}
+
+	// Builds a NOT
+	private static QueryPlan not(QueryPlan operand) {
+		return new QueryPlan(NOT, null, list(operand));
+	}
+
+	private static ArrayList<QueryPlan> list(QueryPlan... plans) {
+		ArrayList<QueryPlan> list = new ArrayList<QueryPlan>(plans.length);
+		for (QueryPlan p : plans) {
+			list.add(p);
+		}
+		return list;
+	}
+
+	// Splits a query into tags, keywords and parentheses
+	private static ArrayList<String> tokenize(String query) {
+		ArrayList<String> tokens = new ArrayList<String>();
+		StringBuilder token = new StringBuilder();
+
+		for (int i = 0; i <= query.length(); i++) {
+			char c = (i < query.length()) ? query.charAt(i) : ' ';
+			if (Character.isWhitespace(c) || c == '(' || c == ')') {
+				if (token.length() > 0) {
+					tokens.add(token.toString());
+					token.setLength(0);
+				}
+				if (c == '(' || c == ')') {
+					tokens.add(String.valueOf(c));
+				}
+			} else {
+				token.append(c);
+			}
+		}
+		return tokens;
+	}
+
+	// or := and ("OR" and)*
+	private static Term parseOr(ArrayList<String> tokens, int[] pos) {
+		Term left = parseAnd(tokens, pos);
+		while (left != null && pos[0] < tokens.size() && tokens.get(pos[0]).equalsIgnoreCase("or")) {
+			pos[0]++;
+			Term right = parseAnd(tokens, pos);
+			left = (right == null) ? null : new Term(OR, null, left, right);
+		}
+		return left;
+	}
+
+	// and := unary ("AND" unary)*
+	private static Term parseAnd(ArrayList<String> tokens, int[] pos) {
+		Term left = parseUnary(tokens, pos);
+		while (left != null && pos[0] < tokens.size() && tokens.get(pos[0]).equalsIgnoreCase("and")) {
+			pos[0]++;
+			Term right = parseUnary(tokens, pos);
+			left = (right == null) ? null : new Term(AND, null, left, right);
+		}
+		return left;
+	}
+
+	// unary := "NOT" unary | "(" or ")" | tag
+	private static Term parseUnary(ArrayList<String> tokens, int[] pos) {
+		if (pos[0] >= tokens.size()) {
+			return null;
+		}
+
+		String token = tokens.get(pos[0]++);
+		if (token.equalsIgnoreCase("not")) {
+			Term operand = parseUnary(tokens, pos);
+			return (operand == null) ? null : new Term(NOT, null, operand, null);
+		}
+		if (token.equals("(")) {
+			Term inner = parseOr(tokens, pos);
+			if (inner == null || pos[0] >= tokens.size() || !tokens.get(pos[0]++).equals(")")) {
+				return null;
+			}
+			return inner;
+		}
+		if (token.equals(")") || token.equalsIgnoreCase("and") || token.equalsIgnoreCase("or")) {
+			return null;
+		}
+		return new Term(TAG, token, null, null);
+	}
+
+	// A parsed query, before its tags are looked up
+	private static class Term {
+		final byte op;
+		final String name;
+		final Term left;
+		final Term right;
+
+		Term(byte op, String name, Term left, Term right) {
+			this.op = op;
+			this.name = name;
+			this.left = left;
+			this.right = right;
+		}
+
+		// Same rule as QueryPlan.valid()
+		boolean valid(boolean notAllowed) {
+			if (op == TAG) {
+				return true;
+			}
+			if (op == NOT) {
+				return notAllowed && left.op != NOT && left.valid(false);
+			}
+			if (op == OR) {
+				return left.valid(false) && right.valid(false);
+			}
+			// An AND inside an AND is part of the same chain of operands
+			boolean positive = notAllowed || hasPositive();
+			return left.valid(positive) && right.valid(positive);
+		}
+
+		// Returns true if this AND chain has an operand that is not negated
+		boolean hasPositive() {
+			if (op == AND) {
+				return left.hasPositive() || right.hasPositive();
+			}
+			return op != NOT;
+		}
+
+		QueryPlan plan(Map<String, BigInteger> hashedTags) {
+			switch (op) {
+			case TAG:
+				return tag(hashedTags.get(name));
+			case NOT:
+				return not(left.plan(hashedTags));
+			case AND:
+				return and(list(left.plan(hashedTags), right.plan(hashedTags)));
+			default:
+				return or(list(left.plan(hashedTags), right.plan(hashedTags)));
+			}
+		}
+	}
+}
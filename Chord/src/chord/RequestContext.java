@@ -0,0 +1,67 @@
+package chord;
+
+/******************************************************************************
+ * Filename: RequestContext.java
+ * 
+ * Description: This file defines the state that belongs to a single request
+ * while a node is handling it: the node trace collected so far, whether the
+ * caller asked for the trace, where the client's answer goes, the ring
+ * version of a cached route, the page of URLs asked for, and the channel on which the response is sent.
+ * Because this state is no longer kept in NodeThread fields, a node can
+ * handle many requests at once.
+ * 
+ * A client request is answered on the client's own connection.  The node
+ * that holds that connection answers it directly; any other node sends the
+ * answer back to that node, whose host and port travel with the request,
+ * together with the request ID that the answer is matched by.
+ * 
+ * Author: Kristin Dahl
+ * Date: 10-17-2026
+ *****************************************************************************/
+
+import static chord.ChordUtil.MAX_NODES;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.ArrayList;
+
+public class RequestContext {
+	public final ArrayList<BigInteger> nodeTrace = new ArrayList<BigInteger>(MAX_NODES);
+
+	public boolean trace;		// Determine whether a node trace must be sent
+	public String  replyHost;		// Node holding the client's connection (null if this one)
+	public int     replyPort;
+	public long    requestId;		// ID that the client's answer carries
+	public long    routeVersion;	// Ring version of the SuperNode's cached route (0 if none)
+	public String  cursor;			// Last URL the client has of the tag (null for the first page)
+	public int     pageSize;		// Most URLs to answer with (0 for all)
+	public long    deadline;		// System.nanoTime() by which a forwarded request must be answered
+
+	private final MessageChannel channel;
+	private volatile boolean replied;
+
+	
+	// RequestContext constructor
+	public RequestContext(MessageChannel channel) {
+		this.channel = channel;
+	}
+
+	/*
+	 * Function name: reply(Message response)
+	 * 
+	 * Description: This function sends the response to the caller on the
+	 * connection that the request arrived on. Other threads may answer
+	 * earlier requests from the same connection at the same time.
+	 */
+	public void reply(Message response) throws IOException {
+		synchronized (channel) {
+			replied = true;
+			channel.send(response);
+		}
+	}
+
+	// Returns true once a response has been sent on the request's connection
+	public boolean replied() {
+		return replied;
+	}
+}
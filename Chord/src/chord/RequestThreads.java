@@ -0,0 +1,94 @@
+package chord;
+
+/******************************************************************************
+ * Filename: RequestThreads.java
+ * 
+ * Description: This file creates the threads used by the "virtual" server
+ * mode, where every connection and every request gets a thread of its own.
+ * On a JVM with virtual threads (Java 21 and later) those threads are
+ * virtual, so a blocked request costs almost nothing.  On older JVMs the
+ * same code runs on ordinary daemon threads, which keeps the mode usable
+ * for comparison, just with a higher cost per thread.  The same threads
+ * are used when a node sends requests to several other nodes at once.
+ * 
+ * Author: Kristin Dahl
+ * Date: 10-17-2026
+ *****************************************************************************/
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadFactory;
+
+public class RequestThreads {
+	private static final ThreadFactory FACTORY = createFactory();
+
+	
+	/*
+	 * Function name: start(Runnable task)
+	 * 
+	 * Description: This function runs task on a new request thread.
+	 */
+	public static Thread start(Runnable task) {
+		Thread t = FACTORY.newThread(task);
+		t.start();
+		return t;
+	}
+
+	/*
+	 * Function name: runAll(List<Runnable> tasks)
+	 * 
+	 * Description: This function runs every task on a request thread of its
+	 * own and waits until all of them have finished.
+	 */
+	public static void runAll(List<Runnable> tasks) {
+		ArrayList<Thread> threads = new ArrayList<Thread>(tasks.size());
+		for (int i = 0; i < tasks.size(); i++) {
+			threads.add(start(tasks.get(i)));
+		}
+
+		try {
+			for (int i = 0; i < threads.size(); i++) {
+				threads.get(i).join();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/*
+	 * Function name: isVirtual()
+	 * 
+	 * Description: This function returns true if request threads are virtual
+	 * threads.
+	 */
+	public static boolean isVirtual() {
+		return !(FACTORY instanceof PlatformFactory);
+	}
+
+	/*
+	 * Function name: createFactory()
+	 * 
+	 * Description: This function looks up Thread.ofVirtual().factory() by
+	 * reflection so that the code still compiles and runs on Java 17.
+	 */
+	private static ThreadFactory createFactory() {
+		try {
+			Method ofVirtual = Thread.class.getMethod("ofVirtual");
+			Object builder = ofVirtual.invoke(null);
+			Method factory = Class.forName("java.lang.Thread$Builder").getMethod("factory");
+			return (ThreadFactory) factory.invoke(builder);
+		} catch (Exception e) {
+			return new PlatformFactory();
+		}
+	}
+
+	// Fallback used when virtual threads are not available.
+	private static class PlatformFactory implements ThreadFactory {
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r);
+			t.setDaemon(true);
+			return t;
+		}
+	}
+}
@@ -0,0 +1,53 @@
+package chord;
+
+/******************************************************************************
+ * Filename: RingSnapshot.java
+ * 
+ * Description: The RingSnapshot class holds the client's copy of the ring:
+ * every vnode's ID and endpoint, in ring order, and the ring version it was
+ * taken under.  The client uses it to work out the owner of a tag by itself
+ * and to send the request straight to that node.  A snapshot may be out of
+ * date; a request that reaches the wrong node is passed on by the ring and
+ * the client then downloads a new snapshot.
+ * 
+ * Author: Kristin Dahl
+ * Date: 10-17-2026
+ *****************************************************************************/
+
+import static chord.ChordUtil.addID;
+import static chord.ChordUtil.onRange;
+import static java.math.BigInteger.ONE;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+
+public class RingSnapshot {
+	public final ArrayList<NodeRef> nodes;
+	public final long version;
+
+
+	// RingSnapshot constructor
+	public RingSnapshot(ArrayList<NodeRef> nodes, long version) {
+		this.nodes = nodes;
+		this.version = version;
+	}
+
+	/*
+	 * Function name: ownerOf(BigInteger keyID)
+	 * 
+	 * Description: This function returns the vnode that owns keyID: the
+	 * first vnode in the snapshot whose arc, from just after the vnode before
+	 * it up to its own ID, contains keyID.
+	 */
+	public NodeRef ownerOf(BigInteger keyID) {
+		NodeRef pred = nodes.get(nodes.size() - 1);
+
+		for (NodeRef n : nodes) {
+			if (onRange(keyID, addID(pred.id, ONE), n.id)) {
+				return n;
+			}
+			pred = n;
+		}
+		return nodes.get(0);
+	}
+}
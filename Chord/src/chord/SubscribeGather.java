@@ -0,0 +1,111 @@
+package chord;
+
+/******************************************************************************
+ * Filename: SubscribeGather.java
+ * 
+ * Description: The SubscribeGather class collects the answers for the tags
+ * of one multi-tag subscribe.  The entry node looks up and reads every tag at
+ * the same time, each with a RequestContext whose channel is this gather, so
+ * an answer reaches the gather in the same way that it would otherwise reach
+ * the client: directly, or as a REPLY relayed by the entry node.  Once every
+ * tag has been answered, or the deadline has passed, the entry node sends the
+ * client a single response with the answers gathered so far.
+ * 
+ * Author: Kristin Dahl
+ * Date: 10-17-2026
+ *****************************************************************************/
+
+import static chord.ChordUtil.OK;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+
+public class SubscribeGather implements MessageChannel {
+	private final List<BigInteger> tags;
+	private final Message[] answers;	// Guarded by this
+	private int remaining;
+
+
+	// SubscribeGather constructor
+	public SubscribeGather(List<BigInteger> tags) {
+		this.tags = tags;
+		this.answers = new Message[tags.size()];
+		this.remaining = tags.size();
+	}
+
+	/*
+	 * Function name: send(Message answer)
+	 * 
+	 * Description: This function takes the answer for one tag. Answers are
+	 * matched by key, so a tag that appears twice in the query takes two
+	 * answers.
+	 */
+	public synchronized void send(Message answer) throws IOException {
+		if (answer.urls == null && answer.urlView != null) {
+			answer.urls = answer.urlView.list();
+		}
+		for (int i = 0; i < answers.length; i++) {
+			if (answers[i] == null && tags.get(i).equals(answer.key)) {
+				answers[i] = answer;
+				if (--remaining == 0) {
+					notifyAll();
+				}
+				return;
+			}
+		}
+	}
+
+	/*
+	 * Function name: await(long deadline)
+	 * 
+	 * Description: This function waits until every tag has been answered or
+	 * System.nanoTime() has reached deadline, and returns the number of tags
+	 * that were not answered in time.
+	 */
+	public synchronized int await(long deadline) {
+		long left;
+		while (remaining > 0 && (left = deadline - System.nanoTime()) > 0) {
+			try {
+				wait(left / 1000000, (int) (left % 1000000));
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+		}
+		return remaining;
+	}
+
+	/*
+	 * Function name: combine()
+	 * 
+	 * Description: This function returns the client's response: the tags
+	 * answered so far in query order in keys, their URL lists in values, and
+	 * the node traces of all of them, one after the other, in nodeTrace.
+	 */
+	public synchronized Message combine() {
+		Message response = new Message(OK);
+		response.keys = new ArrayList<BigInteger>(answers.length);
+		response.values = new ArrayList<ArrayList<String>>(answers.length);
+		response.nodeTrace = new ArrayList<BigInteger>();
+
+		for (Message answer : answers) {
+			if (answer == null) {
+				continue;
+			}
+			response.keys.add(answer.key);
+			response.values.add(answer.urls);
+			if (answer.nodeTrace != null) {
+				response.nodeTrace.addAll(answer.nodeTrace);
+			}
+		}
+		return response;
+	}
+
+	public Message receive() throws IOException {
+		throw new IOException("A gather only takes answers");
+	}
+
+	public void close() {}
+}
@@ -10,32 +10,37 @@ package chord;
  * Date: 9-6-2016
  *****************************************************************************/
 
+import static chord.ChordUtil.CODEC;
+import static chord.ChordUtil.GET_NODE;
+import static chord.ChordUtil.FINGER_OFFSET;
 import static chord.ChordUtil.HOST;
 import static chord.ChordUtil.JOIN;
 import static chord.ChordUtil.M;
 import static chord.ChordUtil.MAX_NODES;
 import static chord.ChordUtil.OK;
 import static chord.ChordUtil.PORT_LIST;
+import static chord.ChordUtil.RING_SIZE;
+import static chord.ChordUtil.STABILIZE_INTERVAL_MS;
+import static chord.ChordUtil.SUPERNODE;
 import static chord.ChordUtil.SUPERNODE_ID;
 import static chord.ChordUtil.SUPERNODE_PORT_NUM;
+import static chord.ChordUtil.VNODES;
 
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.math.BigInteger;
 import java.net.Socket;
-import java.security.MessageDigest;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.HashSet;
 
 public class SuperNode extends Node {
 	private static final long serialVersionUID = -8101231720383517072L;
-	private static ArrayList<Integer> nodeIDs;
+	private static ArrayList<BigInteger> nodeIDs;
 
 	// SuperNode constructor
-	public SuperNode(int id) {
-		this.entries = new HashMap<Integer, ArrayList<String>>();
+	public SuperNode(BigInteger id) {
+		this.entries = new InvertedIndex();
 		this.id = id;
 		this.port = SUPERNODE_PORT_NUM;
-		nodeIDs = new ArrayList<Integer>(MAX_NODES);
+		nodeIDs = new ArrayList<BigInteger>(MAX_NODES * VNODES);
 		
 		// Initiate supernode finger tables
 		initSuperNode();		
@@ -46,51 +51,77 @@ public class SuperNode extends Node {
 	 * Function name: initSuperNode()
 	 * 
 	 * Initiate the finger table for the supernode and set the predecessor and
-	 * successor values.
+	 * successor values. The SuperNode starts as a ring of one: every finger
+	 * and the successor list point to itself, and it has no predecessor until
+	 * a joining node notifies it.
 	 */
 	public void initSuperNode() {
 		fingerTable = new Finger[M + 1];
 		for (int k = 1; k <= M; k++) {
-			fingerTable[k] = new Finger(this);
-			fingerTable[k].start = (id + (int) Math.pow(2, k - 1)) % (int) Math.pow(2, M);
+			fingerTable[k] = new Finger(ref());
+			fingerTable[k].start = ChordUtil.addID(id, FINGER_OFFSET[k]);
 		}
-		predecessor = this;
+		predecessor = null;
+		successorList = new ArrayList<NodeRef>();
+		successorList.add(ref());
 	}
 
 	
 	/*
-	 * Function name: hashNodeID(String id)
+	 * Function name: hashNodeID(String id, int salt)
 	 * 
-	 * Used to generate node IDs.
+	 * Used to generate node IDs. See ChordUtil.hashID().
 	 */
-	public static int hashNodeID(String id) {
-		MessageDigest md5 = null;
-		byte[] thedigest = null;
-		try {
-			byte[] bytesOfTag = id.getBytes("UTF-8");
-			md5 = MessageDigest.getInstance("MD5");
-			thedigest = md5.digest(bytesOfTag);
-
-		} catch (Exception e) {
-			e.printStackTrace();
-		}
-		return (thedigest.hashCode() % (int) Math.pow(2, M));
+	public static BigInteger hashNodeID(String id, int salt) {
+		return ChordUtil.hashID(id, salt);
 	}
 	
 	
+	/*
+	 * Function name: createNodeIDs()
+	 * 
+	 * Hashes each node's host and port to get its ID. If the ID is already
+	 * taken, the node's string is rehashed with an increasing salt until a
+	 * free ID is found, so the same ports always give the same IDs.
+	 * 
+	 * Each regular node gets VNODES IDs. The IDs of node i are stored at
+	 * indices 1 + (i - 1) * VNODES onward, and vnode j (j > 0) hashes the
+	 * node's string with "/j" appended.
+	 * 
+	 * If the identifier space has fewer than the (PORT_LIST.length - 1) *
+	 * VNODES + 1 IDs needed, no free ID could be found, so the settings are
+	 * rejected and the process exits.
+	 */
 	public static void createNodeIDs() {
+		BigInteger needed = BigInteger.valueOf((long) (PORT_LIST.length - 1) * VNODES + 1);
+		if (needed.compareTo(RING_SIZE) > 0) {
+			System.err.println("Cannot give " + needed + " (v)nodes IDs in an identifier space of "
+					+ RING_SIZE + " IDs (M = " + M + "). Raise -Dchord.m or lower -Dchord.vnodes.");
+			System.exit(1);
+		}
+
+		HashSet<BigInteger> taken = new HashSet<BigInteger>();
 		nodeIDs.add(SUPERNODE_ID);
+		taken.add(SUPERNODE_ID);
 		
 		for (int i = 1; i < PORT_LIST.length; i++) {
 			String nodePort = Integer.toString(PORT_LIST[i]);
-			String nodeString = HOST.concat(nodePort);
-			int newNodeID = hashNodeID(nodeString);
+
+			for (int j = 0; j < VNODES; j++) {
+				String nodeString = HOST.concat(nodePort);
+				if (j > 0) {
+					nodeString = nodeString + "/" + j;
+				}
+
+				int salt = 0;
+				BigInteger newNodeID = hashNodeID(nodeString, salt);
 			
-			while (nodeIDs.contains(newNodeID)) {
-				newNodeID = hashNodeID(nodeString);
-			}
+				while (!taken.add(newNodeID)) {
+					newNodeID = hashNodeID(nodeString, ++salt);
+				}
 			
-			nodeIDs.add(newNodeID);
+				nodeIDs.add(newNodeID);
+			}
 		}	
 	}
 
@@ -99,48 +130,127 @@ public class SuperNode extends Node {
 	 * Function name: contactNodes()
 	 * 
 	 * This is called upon startup to send a JOIN request to each "regular"
-	 * node.
+	 * node, once for each of its vnode IDs. All JOINs are sent at the same
+	 * time, and this function returns once every node has answered.
 	 */
 	public static void contactNodes() {
-		for (int i = 1; i < MAX_NODES; i++) { // Index 0 refers to the supernode. Skip.
-			boolean join = false;
-			String fromclient = null;
-
-			ObjectOutputStream objectOut = null;
-			ObjectInputStream objectIn = null;
-			Socket connected = null;
-
-			try {
-				while (!join) {
-					connected = new Socket(HOST, PORT_LIST[i]);
-					objectIn  = new ObjectInputStream(connected.getInputStream());
-					objectOut = new ObjectOutputStream(connected.getOutputStream());
-
-					// Send JOIN command to node
-					System.out.println("Sending JOIN request to node on port " + PORT_LIST[i]);
-					objectOut.writeObject(JOIN);
-					objectOut.flush();
-					
-					// Send nodeID to node
-					objectOut.writeInt(nodeIDs.get(i));
-					objectOut.flush();
-					fromclient = (String) objectIn.readObject();
-					
-					if (fromclient.equals(OK)) {
-						join = true;
-					}
+		ArrayList<Thread> joins = new ArrayList<Thread>(nodeIDs.size());
+
+		for (int k = 1; k < nodeIDs.size(); k++) { // Index 0 refers to the supernode. Skip.
+			final int index = k;
+			Thread t = new Thread(new Runnable() {
+				public void run() {
+					joinNode(index);
+				}
+			});
+			t.start();
+			joins.add(t);
+		}
+
+		try {
+			for (int k = 0; k < joins.size(); k++) {
+				joins.get(k).join();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/*
+	 * Function name: joinNode(int k)
+	 * 
+	 * Sends the JOIN request for the k-th node ID and waits for the OK.
+	 */
+	public static void joinNode(int k) {
+		int i = 1 + (k - 1) / VNODES;
+		boolean join = false;
+		MessageChannel channel = null;
+
+		try {
+			while (!join) {
+				channel = CODEC.open(new Socket(HOST, PORT_LIST[i]));
+
+				// Send JOIN command and nodeID to node
+				System.out.println("Sending JOIN request to node on port " + PORT_LIST[i]);
+				Message request = new Message(JOIN);
+				request.key = nodeIDs.get(k);
+				channel.send(request);
+
+				if (channel.receive().op == OK) {
+					join = true;
 				}
 
 				// Clean up
-				connected.close();
-				objectIn.close();
-				objectOut.close();
-
-			} catch (Exception e) {
-				System.err.println("Exception caught: " + e);
-				e.printStackTrace();
-				System.exit(1);
+				channel.close();
+			}
+
+		} catch (Exception e) {
+			System.err.println("Exception caught: " + e);
+			e.printStackTrace();
+			System.exit(1);
+		}
+	}
+
+	/*
+	 * Function name: awaitRing()
+	 * 
+	 * Waits until stabilization has linked every node into the ring, and
+	 * returns the time that took in milliseconds.
+	 */
+	public static long awaitRing() {
+		long started = System.currentTimeMillis();
+
+		try {
+			while (!ringComplete()) {
+				Thread.sleep(STABILIZE_INTERVAL_MS);
+			}
+		} catch (Exception e) {
+			System.err.println("Exception caught: " + e);
+			e.printStackTrace();
+			System.exit(1);
+		}
+		return System.currentTimeMillis() - started;
+	}
+
+	/*
+	 * Function name: ringComplete()
+	 * 
+	 * Walks the ring from the SuperNode by successor pointers. The ring is
+	 * complete when the walk visits every node ID once before returning to
+	 * the SuperNode, and each node's predecessor is the node visited before
+	 * it.
+	 */
+	public static boolean ringComplete() throws Exception {
+		NodeRef prev = null;
+		NodeRef cur = SUPERNODE;
+
+		for (int n = 0; n <= nodeIDs.size(); n++) {
+			Message state = getNode(cur);
+
+			if (prev != null && !prev.equals(state.predecessor)) {
+				return false;
+			}
+			if (n == nodeIDs.size() || (n > 0 && cur.id.equals(SUPERNODE_ID))) {
+				return n == nodeIDs.size() && cur.id.equals(SUPERNODE_ID);
 			}
+
+			prev = cur;
+			cur = state.successor;
+		}
+		return false;
+	}
+
+	// Sends a GET NODE request to node n on a new connection.
+	private static Message getNode(NodeRef n) throws Exception {
+		MessageChannel channel = CODEC.open(new Socket(n.host, n.port));
+
+		try {
+			Message request = new Message(GET_NODE);
+			request.target = n.id;
+			channel.send(request);
+			return channel.receive();
+		} finally {
+			channel.close();
 		}
 	}
 
@@ -157,6 +267,8 @@ public class SuperNode extends Node {
 		// Call join for each node
 		createNodeIDs();
 		contactNodes();
+		long stableMs = awaitRing();
 		System.out.println("\nAll nodes have joined.");
+		System.out.println("Ring stabilized in " + stableMs + " ms.");
 	}
 }
@@ -6,307 +6,173 @@ package chord;
  * Description: The SuperNodeThread class listens on a well-known port for
  * incoming connections from the client or other nodes. When a publish or
  * subscribe request is made, this thread will determine which node to forward
- * the request to (and then forward it).
+ * the request to (and then forward it).  Every other node can route client
+ * requests in the same way (see NodeThread); the SuperNode also keeps the
+ * ring version, the owner cache and the ring snapshot that clients route with.
  * 
  * Author: Kristin Dahl
  * Date: 9-6-2016
  *****************************************************************************/
 
-import static chord.ChordUtil.END;
-import static chord.ChordUtil.FIND_SUCC;
-import static chord.ChordUtil.HOST;
-import static chord.ChordUtil.MAX_NODES;
-import static chord.ChordUtil.PUBLISH;
-import static chord.ChordUtil.SEND_HOST;
-import static chord.ChordUtil.SEND_PORT;
-import static chord.ChordUtil.SEND_TAG;
-import static chord.ChordUtil.SEND_TRACE;
-import static chord.ChordUtil.SEND_URL;
-import static chord.ChordUtil.SUBSCRIBE;
+import static chord.ChordUtil.OWNER_CACHE_SIZE;
 import static chord.ChordUtil.SUPERNODE_PORT_NUM;
 
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.io.Serializable;
-import java.net.Socket;
+import java.math.BigInteger;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class SuperNodeThread extends NodeThread implements Serializable, Runnable {
 	private static final long serialVersionUID = -8101231720383517072L;
 
+	// Owners of recently used tags, valid for one version of the ring
+	private transient OwnerCache owners = new OwnerCache(OWNER_CACHE_SIZE);
+	private transient AtomicLong ringVersion = new AtomicLong(1);
+
+	// Last ring snapshot and the ring version it was taken under
+	private transient volatile ArrayList<NodeRef> snapshot;
+	private transient volatile long snapshotVersion;
+
 	// SuperNodeThread constructor
-	public SuperNodeThread(int port, int id, SuperNode sNode) {
-		nodeTrace = new ArrayList<Integer>(MAX_NODES);
+	public SuperNodeThread(int port, BigInteger id, SuperNode sNode) {
 		myNode = sNode;
+		openStore();
 	}
 
-	// Listen for incoming node connections on given port.
+	// Start stabilization, then listen for incoming node connections on given port.
 	public void run() {
+		startMaintenance();
 		listen(SUPERNODE_PORT_NUM);
 	}
 
 	/*
-	 * Function name: handlePublish(ObjectOutputStream outToClient, ObjectInputStream inFromClient)
+	 * Function name: handlePublish(Message request, RequestContext ctx)
 	 * 
 	 * Description: This function is initiated by a call from the client. The
-	 * SuperNode gathers information from the client about the publish request.
-	 * Then, it determines which node in the Chord system should handle the
-	 * actual publish request. Then, the request is forwarded on to that node.
+	 * SuperNode routes every publish request it receives like a client
+	 * request (see routePublish()), including requests that a node has sent
+	 * back after a misroute.
 	 */
-	public void handlePublish(ObjectOutputStream outToClient, ObjectInputStream inFromClient) {
-		String fromClient = null;
-		int hashTag = -1;
-		ArrayList<String> urlList = new ArrayList<String>();
-
-		try {
-			// Request tag
-			outToClient.writeObject(SEND_TAG);
-			outToClient.flush();
-			hashTag = inFromClient.readInt();
-
-			// Request URLs
-			outToClient.writeObject(SEND_URL);
-			outToClient.flush();
-			fromClient = (String) inFromClient.readObject();
-
-			while (!fromClient.equals(END)) {
-				urlList.add(fromClient);
-				fromClient = (String) inFromClient.readObject();
-			}
-
-			// Get client's hostname
-			clientHost = (String) inFromClient.readObject();
-
-			// Get client's port
-			clientPort = inFromClient.readInt();
-
-			nodeTrace.add(myNode.id);
-			if (onRange(hashTag, myNode.id, myNode.successor().id)) {
-				myNode.entries.put(hashTag, urlList);
-				sendClientOK();
-			} else {
-				Node newNode = findNode(hashTag, myNode.successor());
-
-				if (newNode.id == myNode.id) {
-					myNode.entries.put(hashTag, urlList);
-					sendClientOK();
-				} else {
-					forwardPublishRequest(hashTag, urlList, newNode);
-				}
-			}
-
-		} catch (Exception e) {
-			System.out.println("Exception caught: " + e);
-			e.printStackTrace();
-			System.exit(1);
-		}
+	public void handlePublish(Message request, RequestContext ctx) {
+		checkMisrouted(request, ctx);
+		routePublish(request, ctx);
 	}
 
 	
 	/*
-	 * Function name: handleSubscribe(ObjectOutputStream outToClient, ObjectInputStream inFromClient)
+	 * Function name: handleSubscribe(Message request, RequestContext ctx)
 	 * 
 	 * Description: This function is initiated by a call from the client. The
-	 * SuperNode gathers information from the client about the subscribe
-	 * request. Then, it determines which node in the Chord system should handle
-	 * the actual subscribe request. Then, the request is forwarded on to that
-	 * node.
+	 * SuperNode routes every subscribe request it receives like a client
+	 * request (see routeSubscribe()), including requests that a node has sent
+	 * back after a misroute.
 	 */
-	public void handleSubscribe(ObjectOutputStream outToClient, ObjectInputStream inFromClient) {
-		int hashTag = -1;
-		ArrayList<Integer> validTagList = new ArrayList<Integer>();
-
-		try {
-			// Request Tags
-			outToClient.writeObject(SEND_TAG);
-			outToClient.flush();
-			hashTag = inFromClient.readInt();
-
-			while (hashTag != -1) {
-				validTagList.add(hashTag);
-				hashTag = inFromClient.readInt();
-			}
-
-			// Get client port
-			clientPort = inFromClient.readInt();
-			nodeTrace.add(myNode.id);
-
-			for (int i = 0; i < validTagList.size(); i++) {
-				if (onRange(validTagList.get(i), myNode.id, myNode.successor().id)) {
-					
-					// Add to entries
-					ArrayList<String> urlList = myNode.entries.get(validTagList.get(i));
-					sendClientURLs(validTagList.get(i), urlList);
-					
-				} else {
-					Node newNode = findNode(validTagList.get(i), myNode.successor());
-
-					if (newNode.id == myNode.id) {
-						ArrayList<String> urlList = myNode.entries.get(validTagList.get(i));
-						sendClientURLs(validTagList.get(i), urlList);
-
-					} else {
-						forwardSubscribeRequest(validTagList.get(i), newNode);
-					}
-				}
-			}
-
-		} catch (Exception e) {
-			System.out.println("Exception caught: " + e);
-			e.printStackTrace();
-			System.exit(1);
-		}
+	public void handleSubscribe(Message request, RequestContext ctx) {
+		checkMisrouted(request, ctx);
+		routeSubscribe(request, ctx);
 	}
 
-	
 	/*
-	 * Function name: forwardPublishRequest(int hashTag, ArrayList<String>urlList, Node n)
+	 * Function name: findOwners(BigInteger hashTag, RequestContext ctx)
 	 * 
-	 * Description: This function forwards a publish request to node n.
+	 * Description: This function returns the owner of hashTag followed by
+	 * its replicas, from the owner cache if the current ring version has a
+	 * route for it and from findReplicas() otherwise. The ring version of a
+	 * cached route is kept in ctx, so that the request carries it when it is
+	 * forwarded and a node that does not own the tag can send it back.
 	 */
-	public void forwardPublishRequest(int hashTag, ArrayList<String> urlList, Node n) {
-		String fromNode = null;
-		Socket connected = null;
-		ObjectOutputStream outToNode = null;
-		ObjectInputStream inFromNode = null;
-
-		try {
-			connected = new Socket(HOST, n.port);
-			inFromNode = new ObjectInputStream(connected.getInputStream());
-			outToNode = new ObjectOutputStream(connected.getOutputStream());
-
-			// Send PUBLISH command to node
-			outToNode.writeObject(PUBLISH);
-			outToNode.flush();
-
-			fromNode = (String) inFromNode.readObject();
-			if (fromNode.equals(SEND_TAG)) {
-				outToNode.writeInt(hashTag);
-				outToNode.flush();
-				fromNode = (String) inFromNode.readObject();
-			}
-
-			if (fromNode.equals(SEND_URL)) {
-				for (int i = 0; i < urlList.size(); i++) {
-					outToNode.writeObject(urlList.get(i));
-					outToNode.flush();
-				}
-				outToNode.writeObject(END);
-				outToNode.flush();
-				fromNode = (String) inFromNode.readObject();
-			}
-
-			if (fromNode.equals(SEND_HOST)) {
-				outToNode.writeObject(this.clientHost);
-				outToNode.flush();
-				fromNode = (String) inFromNode.readObject();
-			}
-
-			if (fromNode.equals(SEND_PORT)) {
-				outToNode.writeInt(clientPort);
-				outToNode.flush();
-				fromNode = (String) inFromNode.readObject();
-			}
+	public ArrayList<NodeRef> findOwners(BigInteger hashTag, RequestContext ctx) {
+		long version = ringVersion.get();
+		ArrayList<NodeRef> replicas = owners.get(hashTag, version);
 
-			if (fromNode.equals(SEND_TRACE)) {
-				for (int i = 0; i < nodeTrace.size(); i++) {
-					outToNode.writeInt(nodeTrace.get(i));
-					outToNode.flush();
-				}
-				outToNode.writeInt(-1);
-				outToNode.flush();
-			}
-
-			connected.close();
-			outToNode.close();
-			inFromNode.close();
-
-		} catch (Exception e) {
-			System.out.println("Exception caught: " + e);
-			e.printStackTrace();
-			System.exit(1);
+		if (replicas != null) {
+			ctx.routeVersion = version;
+			return replicas;
 		}
+
+		ctx.routeVersion = 0;
+		int before = ctx.nodeTrace.size();
+		replicas = findReplicas(hashTag, ctx);
+		owners.put(hashTag, replicas, version, ctx.nodeTrace.size() - before);
+		return replicas;
 	}
 
 	/*
-	 * Function name: forwardSubscribeRequest(int hashTag, Node n)
+	 * Function name: dropRoute(BigInteger hashTag)
 	 * 
-	 * Description: This function forwards a subscribe request to node n.
+	 * Description: This function drops the cached route for hashTag after
+	 * none of its replicas answered.
 	 */
-	public void forwardSubscribeRequest(int hashTag, Node n) {
-		String fromNode = null;
-		Socket connected = null;
-		ObjectOutputStream outToNode = null;
-		ObjectInputStream inFromNode = null;
-
-		try {
-			connected = new Socket(HOST, n.port);
-			inFromNode = new ObjectInputStream(connected.getInputStream());
-			outToNode = new ObjectOutputStream(connected.getOutputStream());
-
-			// Send SUBSCRIBE command to node
-			outToNode.writeObject(SUBSCRIBE);
-			outToNode.flush();
-
-			fromNode = (String) inFromNode.readObject();
-
-			if (fromNode.equals(SEND_TAG)) {
-				outToNode.writeInt(hashTag);
-				outToNode.flush();
-				fromNode = (String) inFromNode.readObject();
-			}
-
-			if (fromNode.equals(SEND_HOST)) {
-				outToNode.writeObject(clientHost);
-				outToNode.flush();
-				fromNode = (String) inFromNode.readObject();
-			}
-
-			if (fromNode.equals(SEND_PORT)) {
-				outToNode.writeInt(clientPort);
-				outToNode.flush();
-				fromNode = (String) inFromNode.readObject();
-			}
-
-			if (fromNode.equals(SEND_TRACE)) {
-				for (int i = 0; i < nodeTrace.size(); i++) {
-					outToNode.writeInt(nodeTrace.get(i));
-					outToNode.flush();
-				}
-				outToNode.writeInt(-1);
-				outToNode.flush();
-			}
-
-			// Close connections
-			connected.close();
-			inFromNode.close();
-			outToNode.close();
+	public void dropRoute(BigInteger hashTag) {
+		owners.misrouted(hashTag);
+	}
 
-		} catch (Exception e) {
-			System.out.println("Exception caught.");
-			e.printStackTrace();
-			System.exit(1);
+	/*
+	 * Function name: checkMisrouted(Message request, RequestContext ctx)
+	 * 
+	 * Description: This function handles a PUBLISH or SUBSCRIBE that a node
+	 * has sent back because a cached route, or a client's ring snapshot, led
+	 * it to a node that does not own the tag. The route and the snapshot are
+	 * dropped, so the tag is looked up again. A client that routed a request
+	 * here correctly also sends a version, which is ignored. Either way the
+	 * node trace the request carries is kept, so that the SuperNode and the
+	 * owner it finds are added after the hops the request has already taken.
+	 */
+	private void checkMisrouted(Message request, RequestContext ctx) {
+		if (request.nodeTrace != null) {
+			ctx.nodeTrace.addAll(request.nodeTrace);
+		}
+		if (request.version == 0 || owns(request.key)) {
+			return;
 		}
+		owners.misrouted(request.key);
+		snapshot = null;
 	}
 
 	/*
-	 * Function name: findNode(int hashTag, Node n)
+	 * Function name: ringChanged()
 	 * 
-	 * Description: This function returns the node that should be responsible
-	 * for the given hashTag.
+	 * Description: This function is called when a node has joined or left
+	 * the ring. It moves the ring to a new version, which invalidates every
+	 * route in the owner cache.
 	 */
-	public Node findNode(int hashTag, Node n) {
-		Node succNode;
+	public void ringChanged() {
+		ringVersion.incrementAndGet();
+	}
 
-		if (n.id == myNode.id) {
-			succNode = findSuccessor(hashTag);
-		} else {
-			succNode = (Node) invokeRemote(n.port, null, FIND_SUCC, hashTag, true);
+	/*
+	 * Function name: ringSnapshot(Message response)
+	 * 
+	 * Description: This function returns the ring snapshot that clients
+	 * route with, together with the ring version it belongs to. The ring is
+	 * only walked again after the version has changed or a request routed
+	 * with the snapshot has gone to the wrong node.
+	 */
+	public void ringSnapshot(Message response) {
+		long version = ringVersion.get();
+		ArrayList<NodeRef> ring = snapshot;
+
+		if (ring == null || snapshotVersion != version) {
+			super.ringSnapshot(response);
+			ring = response.successors;
+			snapshotVersion = version;
+			snapshot = ring;
 		}
+		response.successors = ring;
+		response.version = version;
+	}
 
-		if (succNode.id != myNode.id) {
-			nodeTrace.add(succNode.id);
-		}
-		return succNode;
+	/*
+	 * Function name: nodeStats()
+	 * 
+	 * Description: This function adds the owner cache counters to the
+	 * counters of every node.
+	 */
+	public LinkedHashMap<String, Long> nodeStats() {
+		LinkedHashMap<String, Long> stats = super.nodeStats();
+		stats.put("ring.version", ringVersion.get());
+		owners.addStats(stats);
+		return stats;
 	}
 }
@@ -0,0 +1,514 @@
+package chord;
+
+/******************************************************************************
+ * Filename: TieredStore.java
+ * 
+ * Description: The TieredStore class is a PostingStore that keeps the
+ * posting lists of the tags in use in memory, and the others on disk.  The
+ * memory tier is another PostingStore (a HeapStore or an OffHeapStore, as
+ * STORE chooses), which also holds the URL dictionary.  Once the posting
+ * lists in memory take more than HOT_BYTES, the tags read least often are
+ * written to the cold tier and dropped from memory, and a tag on disk is read
+ * back into memory (faulted in) the next time it is read.
+ * 
+ * How often each tag is read is counted, and the counts are halved on every
+ * pass, so they follow recent use.  A pass runs every TIER_INTERVAL_MS on a
+ * thread of the store's own: it evicts tags down to 90 percent of HOT_BYTES,
+ * coldest first, and compacts the cold tier.
+ * 
+ * The cold tier is a log of segment files of up to COLD_SEGMENT_BYTES each,
+ * in a directory under COLD_DIR that is deleted when the process exits.  A
+ * record holds a tag's key and its posting list, as gaps between the IDs.  A
+ * tag that is faulted in keeps its record, so it can be evicted again without
+ * a write until it changes.  Records of tags that changed or were removed are
+ * dead; a full segment whose records are more than half dead has its live
+ * records copied to the current segment, and is deleted.
+ * 
+ * Writes to the tiers are made one at a time, under this store's lock; the
+ * InvertedIndex's lock is always taken first.  A read of a tag in memory does
+ * not lock.  A fault reads the disk without the lock, and takes it to move
+ * the tag into memory.  A snapshot reads tags with peek(), which reads the
+ * disk the same way but leaves the tag where it is.
+ * 
+ * Author: Kristin Dahl
+ * Date: 10-17-2026
+ *****************************************************************************/
+
+import static chord.ChordUtil.COLD_DIR;
+import static chord.ChordUtil.COLD_SEGMENT_BYTES;
+import static chord.ChordUtil.HOT_BYTES;
+import static chord.ChordUtil.TIER_INTERVAL_MS;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class TieredStore implements PostingStore {
+	private static final int TAG_OVERHEAD = 96;	// Heap bytes of a tag beside its IntSet
+	private static final int MAX_FAULT_TRIES = 8;
+
+	private static final AtomicInteger threadNumber = new AtomicInteger();
+
+	private final PostingStore hot;
+	private final ConcurrentSkipListMap<BigInteger, Tag> tags = new ConcurrentSkipListMap<BigInteger, Tag>();
+	private final File dir;
+
+	// Guarded by this
+	private final ArrayList<Segment> segments = new ArrayList<Segment>();
+	private Segment current;
+	private int segmentCount;		// Segments created
+	private long hotBytes;
+	private long pairs;
+
+	// Counters, shown by "View DHT"
+	private final AtomicLong hotHits    = new AtomicLong();
+	private final AtomicLong faults     = new AtomicLong();
+	private final AtomicLong faultNanos = new AtomicLong();
+	private final LatencyHistogram faultLatency = new LatencyHistogram();
+	private long evictions;
+	private long evictedBytes;		// Written to disk by evictions
+	private long compactions;
+	private long compactedBytes;	// Copied by the compactor
+	private long reclaimedBytes;	// Freed by deleting segments
+
+
+	// TieredStore constructor, with hot as the memory tier
+	public TieredStore(PostingStore hot) {
+		this.hot = hot;
+		try {
+			File base = new File(COLD_DIR);
+			base.mkdirs();
+			this.dir = Files.createTempDirectory(base.toPath(), "chord-cold-").toFile();
+			this.dir.deleteOnExit();
+			this.current = newSegment();
+		} catch (IOException e) {
+			throw new IllegalStateException("Cannot create the cold tier in " + COLD_DIR, e);
+		}
+
+		Thread tiering = new Thread(new Runnable() {
+			public void run() {
+				while (true) {
+					try {
+						Thread.sleep(TIER_INTERVAL_MS);
+						maintain();
+					} catch (InterruptedException e) {
+						return;
+					} catch (IOException e) {
+						System.out.println("Tiering of " + dir + " failed: " + e);
+					}
+				}
+			}
+		}, "chord-tier-" + threadNumber.incrementAndGet());
+		tiering.setDaemon(true);
+		tiering.start();
+	}
+
+	/*
+	 * Function name: get(BigInteger key)
+	 * 
+	 * Description: This function returns the posting list of key from
+	 * memory, or reads it from disk and moves it into memory.
+	 */
+	public IntSet get(BigInteger key) {
+		Tag tag = tags.get(key);
+		if (tag == null) {
+			return null;
+		}
+		tag.reads++;		// Racy, but only used to rank tags
+
+		for (int tries = 0; tries < MAX_FAULT_TRIES; tries++) {
+			if (tag.inMemory) {
+				IntSet set = hot.get(key);
+				if (set != null) {
+					hotHits.incrementAndGet();
+					return set;
+				}
+			}
+
+			Record record = tag.record;
+			if (record == null) {
+				continue;		// Changed, and back in memory
+			}
+
+			long start = System.nanoTime();
+			IntSet set;
+			try {
+				set = record.read();
+			} catch (ClosedChannelException e) {
+				continue;		// Moved by the compactor
+			} catch (IOException e) {
+				throw new IllegalStateException("Cannot read tag " + key + " from " + dir, e);
+			}
+
+			synchronized (this) {
+				if (tags.get(key) == tag && !tag.inMemory && tag.record == record) {
+					hot.put(key, set);
+					tag.inMemory = true;
+					hotBytes += tag.bytes;
+				}
+			}
+
+			long nanos = System.nanoTime() - start;
+			faults.incrementAndGet();
+			faultNanos.addAndGet(nanos);
+			faultLatency.record(nanos);
+			return set;
+		}
+
+		// The tag kept moving; read it under the lock
+		synchronized (this) {
+			if (tags.get(key) != tag) {
+				return null;
+			}
+			try {
+				return tag.inMemory ? hot.get(key) : tag.record.read();
+			} catch (IOException e) {
+				throw new IllegalStateException("Cannot read tag " + key + " from " + dir, e);
+			}
+		}
+	}
+
+	/*
+	 * Function name: peek(BigInteger key)
+	 * 
+	 * Description: This function returns the posting list of key from
+	 * whichever tier holds it. A tag on disk is read, but left there, and the
+	 * read is not counted, so a snapshot does not pull the cold tier into
+	 * memory or warm up the tags it reads.
+	 */
+	public IntSet peek(BigInteger key) {
+		for (int tries = 0; tries < MAX_FAULT_TRIES; tries++) {
+			Tag tag = tags.get(key);
+			if (tag == null) {
+				return null;
+			}
+			if (tag.inMemory) {
+				IntSet set = hot.get(key);
+				if (set != null) {
+					return set;
+				}
+			}
+
+			Record record = tag.record;
+			if (record == null) {
+				continue;		// Changed, and back in memory
+			}
+			try {
+				return record.read();
+			} catch (ClosedChannelException e) {
+				continue;		// Moved by the compactor
+			} catch (IOException e) {
+				throw new IllegalStateException("Cannot read tag " + key + " from " + dir, e);
+			}
+		}
+
+		// The tag kept moving; read it under the lock
+		synchronized (this) {
+			Tag tag = tags.get(key);
+			if (tag == null) {
+				return null;
+			}
+			try {
+				return tag.inMemory ? hot.get(key) : tag.record.read();
+			} catch (IOException e) {
+				throw new IllegalStateException("Cannot read tag " + key + " from " + dir, e);
+			}
+		}
+	}
+
+	public synchronized void put(BigInteger key, IntSet set) {
+		Tag tag = tags.get(key);
+		if (tag == null) {
+			tag = new Tag();
+			tags.put(key, tag);
+		}
+
+		hot.put(key, set);
+		if (tag.record != null) {
+			tag.record.segment.dead += tag.record.length;
+			tag.record = null;
+		}
+		if (tag.inMemory) {
+			hotBytes -= tag.bytes;
+		}
+		pairs += set.size() - tag.size;
+
+		tag.inMemory = true;
+		tag.size = set.size();
+		tag.bytes = set.bytes() + TAG_OVERHEAD;
+		hotBytes += tag.bytes;
+	}
+
+	public synchronized boolean remove(BigInteger key) {
+		Tag tag = tags.remove(key);
+		if (tag == null) {
+			return false;
+		}
+
+		if (tag.record != null) {
+			tag.record.segment.dead += tag.record.length;
+		}
+		if (tag.inMemory) {
+			hot.remove(key);
+			hotBytes -= tag.bytes;
+		}
+		pairs -= tag.size;
+		return true;
+	}
+
+	public NavigableSet<BigInteger> keySet() {
+		return tags.keySet();
+	}
+
+	public int id(String url) {
+		return hot.id(url);
+	}
+
+	public int add(String url) {
+		return hot.add(url);
+	}
+
+	public String url(int id) {
+		return hot.url(id);
+	}
+
+	public byte[] urlBytes(int id) {
+		return hot.urlBytes(id);
+	}
+
+	public int urlCount() {
+		return hot.urlCount();
+	}
+
+	public synchronized long[] stats() {
+		long[] s = hot.stats();
+		return new long[] { pairs, s[1], s[2] };
+	}
+
+	/*
+	 * Function name: addStats(Map<String, Long> stats)
+	 * 
+	 * Description: This function adds the counters of both tiers to stats.
+	 */
+	public synchronized void addStats(Map<String, Long> stats) {
+		long coldTags = 0;
+		for (Tag tag : tags.values()) {
+			if (!tag.inMemory) {
+				coldTags++;
+			}
+		}
+		long diskBytes = 0;
+		long deadBytes = 0;
+		for (Segment s : segments) {
+			diskBytes += s.length;
+			deadBytes += s.dead;
+		}
+
+		stats.put("tier.hot.tags", tags.size() - coldTags);
+		stats.put("tier.hot.bytes", hotBytes);
+		stats.put("tier.hot.limit", HOT_BYTES);
+		stats.put("tier.cold.tags", coldTags);
+		stats.put("tier.cold.bytes", diskBytes);
+		stats.put("tier.cold.dead", deadBytes);
+		stats.put("tier.hot.hits", hotHits.get());
+		stats.put("tier.faults", faults.get());
+		stats.put("tier.fault.us", faults.get() == 0 ? 0 : faultNanos.get() / 1000 / faults.get());
+		stats.put("tier.fault.p99.us", Math.max(0, faultLatency.percentile(99)));
+		stats.put("tier.evictions", evictions);
+		stats.put("tier.evicted.bytes", evictedBytes);
+		stats.put("tier.compactions", compactions);
+		stats.put("tier.compacted.bytes", compactedBytes);
+		stats.put("tier.reclaimed.bytes", reclaimedBytes);
+	}
+
+	/*
+	 * Function name: maintain()
+	 * 
+	 * Description: This function evicts the coldest tags until the memory
+	 * tier is under 90 percent of HOT_BYTES, halves the read counts, and
+	 * compacts the cold segments that are mostly dead.
+	 */
+	public synchronized void maintain() throws IOException {
+		if (hotBytes > HOT_BYTES) {
+			evict(HOT_BYTES / 10 * 9);
+		}
+		for (Tag tag : tags.values()) {
+			tag.reads >>>= 1;
+		}
+		compact();
+	}
+
+	// Moves the least read tags to disk until the memory tier holds at most
+	// target bytes.  Called with this held.
+	private void evict(long target) throws IOException {
+		ArrayList<Map.Entry<BigInteger, Tag>> candidates = new ArrayList<Map.Entry<BigInteger, Tag>>();
+		for (Map.Entry<BigInteger, Tag> e : tags.entrySet()) {
+			if (e.getValue().inMemory) {
+				candidates.add(e);
+			}
+		}
+		Collections.sort(candidates, new Comparator<Map.Entry<BigInteger, Tag>>() {
+			public int compare(Map.Entry<BigInteger, Tag> a, Map.Entry<BigInteger, Tag> b) {
+				return Integer.compare(a.getValue().reads, b.getValue().reads);
+			}
+		});
+
+		for (Map.Entry<BigInteger, Tag> e : candidates) {
+			if (hotBytes <= target) {
+				break;
+			}
+			BigInteger key = e.getKey();
+			Tag tag = e.getValue();
+
+			// A tag that has not changed since it was faulted in is still on disk
+			if (tag.record == null) {
+				tag.record = append(key, hot.get(key));
+				evictedBytes += tag.record.length;
+			}
+			hot.remove(key);
+			tag.inMemory = false;
+			hotBytes -= tag.bytes;
+			evictions++;
+		}
+	}
+
+	// Copies the live records of full segments that are more than half dead
+	// to the current segment, and deletes them.  Called with this held.
+	private void compact() throws IOException {
+		HashMap<Segment, ArrayList<Map.Entry<BigInteger, Tag>>> live = null;
+
+		for (Segment s : new ArrayList<Segment>(segments)) {
+			if (s == current || s.dead * 2 <= s.length) {
+				continue;
+			}
+			if (live == null) {
+				live = new HashMap<Segment, ArrayList<Map.Entry<BigInteger, Tag>>>();
+				for (Map.Entry<BigInteger, Tag> e : tags.entrySet()) {
+					Record r = e.getValue().record;
+					if (r != null) {
+						if (!live.containsKey(r.segment)) {
+							live.put(r.segment, new ArrayList<Map.Entry<BigInteger, Tag>>());
+						}
+						live.get(r.segment).add(e);
+					}
+				}
+			}
+
+			if (live.containsKey(s)) {
+				for (Map.Entry<BigInteger, Tag> e : live.get(s)) {
+					Tag tag = e.getValue();
+					tag.record = append(e.getKey(), tag.record.read());
+					compactedBytes += tag.record.length;
+				}
+			}
+
+			// Faults that still read the old records see the channel closed
+			// and read the tag again
+			segments.remove(s);
+			s.channel.close();
+			s.file.delete();
+			reclaimedBytes += s.length;
+			compactions++;
+		}
+	}
+
+	// Writes a record of key and set to the current segment, starting a new
+	// segment if it is full.  Called with this held.
+	private Record append(BigInteger key, IntSet set) throws IOException {
+		BinaryCodec.Writer w = new BinaryCodec.Writer();
+		w.writeID(key);
+		int[] ids = set.toArray();
+		w.writeVarint(ids.length);
+		for (int i = 0, prev = -1; i < ids.length; prev = ids[i++]) {
+			w.writeVarint(ids[i] - prev);
+		}
+
+		if (current.length >= COLD_SEGMENT_BYTES) {
+			current = newSegment();
+		}
+
+		byte[] b = w.toByteArray();
+		ByteBuffer buf = ByteBuffer.wrap(b);
+		long offset = current.length;
+		while (buf.hasRemaining()) {
+			current.channel.write(buf, offset + buf.position());
+		}
+		current.length += b.length;
+		return new Record(current, offset, b.length);
+	}
+
+	private Segment newSegment() throws IOException {
+		File file = new File(dir, String.format("cold-%06d.seg", segmentCount++));
+		file.deleteOnExit();
+		Segment s = new Segment(file);
+		segments.add(s);
+		return s;
+	}
+
+	// A tag, and where its posting list is
+	private static class Tag {
+		volatile boolean inMemory;		// Written under the store's lock
+		volatile Record record;			// Copy on disk, or null
+		int reads;						// Recent reads, halved on every pass
+		int size;						// URLs
+		long bytes;						// Memory the tag takes when it is in memory
+	}
+
+	// A file of the cold tier
+	private static class Segment {
+		final File file;
+		final FileChannel channel;
+		long length;					// Guarded by the store's lock
+		long dead;						// Bytes of dead records
+
+		Segment(File file) throws IOException {
+			this.file = file;
+			this.channel = new RandomAccessFile(file, "rw").getChannel();
+		}
+	}
+
+	// A posting list written to a segment
+	private static class Record {
+		final Segment segment;
+		final long offset;
+		final int length;
+
+		Record(Segment segment, long offset, int length) {
+			this.segment = segment;
+			this.offset = offset;
+			this.length = length;
+		}
+
+		// Reads the posting list.  Positional reads may run at the same time.
+		IntSet read() throws IOException {
+			ByteBuffer buf = ByteBuffer.allocate(length);
+			while (buf.hasRemaining()) {
+				if (segment.channel.read(buf, offset + buf.position()) < 0) {
+					throw new IOException("Cold record cut short");
+				}
+			}
+
+			BinaryCodec.Reader r = new BinaryCodec.Reader(buf.array(), 0, length);
+			r.readID();
+			int[] ids = new int[r.readVarint()];
+			for (int i = 0, prev = -1; i < ids.length; i++) {
+				ids[i] = prev += r.readVarint();
+			}
+			return IntSet.of(ids, ids.length);
+		}
+	}
+}
@@ -0,0 +1,221 @@
+package chord;
+
+/******************************************************************************
+ * Filename: URLBlocks.java
+ * 
+ * Description: This file defines how BinaryCodec writes a list of URLs.  The
+ * URLs are sorted by their UTF-8 bytes and cut into blocks of BLOCK_SIZE,
+ * and within a block each URL is written as the number of leading bytes it
+ * shares with the one before it, followed by the rest (front coding).  URLs
+ * that share a scheme, host and path then cost little more than the part
+ * that differs.  The list is laid out as:
+ * 
+ *     [count : varint] [block]...
+ * 
+ * and each block as:
+ * 
+ *     [compressed : 1 byte] [raw length : varint] [stored length : varint]
+ *     [stored bytes]
+ * 
+ * where the raw bytes are the block's URLs, each as
+ * 
+ *     [shared : varint] [suffix length : varint] [suffix bytes]
+ * 
+ * When COMPRESS is "deflate", a block is stored deflated if that makes it
+ * smaller.  A reader decodes the list one block at a time, so it never holds
+ * more than one block's raw bytes besides the URLs it has decoded.
+ * 
+ * Author: Kristin Dahl
+ * Date: 10-17-2026
+ *****************************************************************************/
+
+import static chord.ChordUtil.COMPRESS;
+import static chord.ChordUtil.MAX_FRAME_SIZE;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+public final class URLBlocks {
+	public static final int BLOCK_SIZE = 64;
+
+	private static final int MIN_DEFLATE = 128;		// Smaller blocks are stored as they are
+
+	// Orders UTF-8 strings as their code points are ordered
+	private static final Comparator<byte[]> BYTE_ORDER = new Comparator<byte[]>() {
+		public int compare(byte[] a, byte[] b) {
+			return Arrays.compareUnsigned(a, b);
+		}
+	};
+
+	private URLBlocks() {}
+
+	/*
+	 * Function name: write(BinaryCodec.Writer w, List<String> urls)
+	 * 
+	 * Description: This function writes urls to w, sorted.
+	 */
+	static void write(BinaryCodec.Writer w, List<String> urls) {
+		byte[][] bytes = new byte[urls.size()][];
+		for (int i = 0; i < bytes.length; i++) {
+			bytes[i] = urls.get(i).getBytes(StandardCharsets.UTF_8);
+		}
+		write(w, bytes);
+	}
+
+	/*
+	 * Function name: write(BinaryCodec.Writer w, byte[][] urls)
+	 * 
+	 * Description: This function sorts the UTF-8 URLs in urls and writes
+	 * them to w.
+	 */
+	static void write(BinaryCodec.Writer w, byte[][] urls) {
+		Arrays.sort(urls, BYTE_ORDER);
+		w.writeVarint(urls.length);
+
+		Deflater deflater = COMPRESS.equals("deflate") ? new Deflater(Deflater.BEST_SPEED) : null;
+		try {
+			BinaryCodec.Writer block = new BinaryCodec.Writer();
+			byte[] out = null;
+
+			for (int start = 0; start < urls.length; start += BLOCK_SIZE) {
+				block.reset();
+				int end = Math.min(urls.length, start + BLOCK_SIZE);
+				for (int i = start; i < end; i++) {
+					int shared = (i == start) ? 0 : sharedPrefix(urls[i - 1], urls[i]);
+					block.writeVarint(shared);
+					block.writeVarint(urls[i].length - shared);
+					block.writeBytes(urls[i], shared, urls[i].length - shared);
+				}
+
+				byte[] raw = block.array();
+				int rawLength = block.size();
+				int stored = rawLength;
+				if (deflater != null && rawLength >= MIN_DEFLATE) {
+					if (out == null || out.length < rawLength) {
+						out = new byte[rawLength];
+					}
+					deflater.reset();
+					deflater.setInput(raw, 0, rawLength);
+					deflater.finish();
+					int n = deflater.deflate(out, 0, rawLength - 1);
+					if (deflater.finished()) {
+						stored = n;		// Only kept if it is smaller
+					}
+				}
+
+				w.writeByte(stored < rawLength ? 1 : 0);
+				w.writeVarint(rawLength);
+				w.writeVarint(stored);
+				w.writeBytes(stored < rawLength ? out : raw, 0, stored);
+			}
+		} finally {
+			if (deflater != null) {
+				deflater.end();
+			}
+		}
+	}
+
+	/*
+	 * Function name: read(BinaryCodec.Reader r)
+	 * 
+	 * Description: This function reads a list written by write().
+	 */
+	static ArrayList<String> read(BinaryCodec.Reader r) throws IOException {
+		int count = r.readVarint();
+		if (count < 0 || count > MAX_FRAME_SIZE) {
+			throw new IOException("Bad URL count " + count);
+		}
+
+		ArrayList<String> urls = new ArrayList<String>(Math.min(count, 1024));
+		Inflater inflater = null;
+		byte[] raw = new byte[0];
+		byte[] url = new byte[64];
+
+		try {
+			while (urls.size() < count) {
+				boolean compressed = r.readByte() != 0;
+				int rawLength = r.readVarint();
+				int stored = r.readVarint();
+				if (rawLength < 0 || rawLength > MAX_FRAME_SIZE || stored < 0) {
+					throw new IOException("Bad URL block");
+				}
+
+				BinaryCodec.Reader block;
+				if (compressed) {
+					if (inflater == null) {
+						inflater = new Inflater();
+					}
+					if (raw.length < rawLength) {
+						raw = new byte[rawLength];
+					}
+					inflate(inflater, r, stored, raw, rawLength);
+					block = new BinaryCodec.Reader(raw, 0, rawLength);
+				} else if (stored == rawLength) {
+					block = new BinaryCodec.Reader(r.array(), r.skip(stored), stored);
+				} else {
+					throw new IOException("Bad URL block");
+				}
+
+				// Each URL overwrites the suffix of the one before it
+				int n = Math.min(BLOCK_SIZE, count - urls.size());
+				int length = 0;
+				for (int i = 0; i < n; i++) {
+					int shared = block.readVarint();
+					int suffix = block.readVarint();
+					if (shared < 0 || shared > length || suffix < 0) {
+						throw new IOException("Bad URL block");
+					}
+					if (shared + suffix > url.length) {
+						url = Arrays.copyOf(url, Math.max(url.length * 2, shared + suffix));
+					}
+					block.readBytes(url, shared, suffix);
+					length = shared + suffix;
+					urls.add(new String(url, 0, length, StandardCharsets.UTF_8));
+				}
+				if (block.hasMore()) {
+					throw new IOException("Bad URL block");
+				}
+			}
+		} finally {
+			if (inflater != null) {
+				inflater.end();
+			}
+		}
+		return urls;
+	}
+
+	// Inflates stored bytes of r into the first rawLength bytes of raw
+	private static void inflate(Inflater inflater, BinaryCodec.Reader r, int stored, byte[] raw, int rawLength)
+			throws IOException {
+		int off = r.skip(stored);
+		inflater.reset();
+		inflater.setInput(r.array(), off, stored);
+		try {
+			int n = 0;
+			while (n < rawLength && !inflater.finished()) {
+				int k = inflater.inflate(raw, n, rawLength - n);
+				if (k == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+					break;
+				}
+				n += k;
+			}
+			if (n != rawLength || !inflater.finished()) {
+				throw new IOException("Bad compressed URL block");
+			}
+		} catch (DataFormatException e) {
+			throw new IOException("Bad compressed URL block", e);
+		}
+	}
+
+	private static int sharedPrefix(byte[] a, byte[] b) {
+		int n = Arrays.mismatch(a, b);
+		return (n < 0) ? a.length : n;
+	}
+}
@@ -0,0 +1,24 @@
+package chord;
+
+/******************************************************************************
+ * Filename: WireCodec.java
+ * 
+ * Description: This file defines the pluggable wire format used between the
+ * client, the SuperNode and the nodes.  The codec in use is chosen with the
+ * chord.codec system property:
+ * 
+ *     binary - versioned, length-prefixed frames (BinaryCodec, the default)
+ *     object - Java-serialized Message objects (ObjectCodec)
+ * 
+ * Every process in the system must use the same codec.
+ * 
+ * Author: Kristin Dahl
+ * Date: 10-17-2026
+ *****************************************************************************/
+
+import java.io.IOException;
+import java.net.Socket;
+
+public interface WireCodec {
+	public MessageChannel open(Socket socket) throws IOException;
+}
@@ -0,0 +1,343 @@
+package chord;
+
+/******************************************************************************
+ * Filename: FormatCheck.java
+ * 
+ * Description: The FormatCheck class checks that the formats the nodes write
+ * can be read back: front-coded URL lists, alone and inside messages, IntSet
+ * and its set operations, and the IndexLog's records and snapshots, including
+ * a log whose last record was cut short.  It is run by build.sh, and exits
+ * with status 1 at the first check that fails.
+ * 
+ * Run it with -Dchord.compress=deflate so that deflated URL blocks are
+ * checked as well.
+ * 
+ * Author: Kristin Dahl
+ * Date: 10-17-2026
+ *****************************************************************************/
+
+import static chord.ChordUtil.COMPRESS;
+import static chord.ChordUtil.FSYNC_POLICY;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+
+public class FormatCheck {
+	private static int checks = 0;
+
+	// Orders strings as URLBlocks sorts them, by their UTF-8 bytes
+	private static final Comparator<String> BYTE_ORDER = new Comparator<String>() {
+		public int compare(String a, String b) {
+			return Arrays.compareUnsigned(a.getBytes(StandardCharsets.UTF_8), b.getBytes(StandardCharsets.UTF_8));
+		}
+	};
+
+
+	public static void main(String[] args) {
+		try {
+			checkURLBlocks();
+			checkMessages();
+			checkIntSet();
+			checkIndexLog();
+
+		} catch (Exception e) {
+			System.out.println("Exception caught: " + e);
+			e.printStackTrace();
+			System.exit(1);
+		}
+
+		System.out.println("FormatCheck: " + checks + " checks passed");
+		System.exit(0);
+	}
+
+	/*
+	 * Function name: checkURLBlocks()
+	 * 
+	 * Description: This function writes URL lists with URLBlocks and reads
+	 * them back: an empty list, a single URL, URLs longer than the reader's
+	 * first buffer, and a list of several blocks. A list that is cut short
+	 * must be refused with an IOException.
+	 */
+	private static void checkURLBlocks() throws IOException {
+		roundTrip("empty list", new ArrayList<String>());
+		roundTrip("single URL", Arrays.asList("www.example.com"));
+
+		ArrayList<String> longURLs = new ArrayList<String>();
+		StringBuilder path = new StringBuilder("https://www.example.com/");
+		for (int i = 0; i < 40; i++) {
+			path.append("section-").append(i).append('/');
+			longURLs.add(path.toString());
+		}
+		longURLs.add("https://www.example.org/" + path.substring(24) + "\u00e9\u4e2d?q=1");
+		roundTrip("URLs over 64 bytes", longURLs);
+
+		ArrayList<String> many = urls(new Random(1), 1000);
+		byte[] b = roundTrip("multi-block list", many);
+		if (COMPRESS.equals("deflate")) {
+			BinaryCodec.Reader r = new BinaryCodec.Reader(b, 0, b.length);
+			r.readVarint();
+			check(r.readByte() == 1, "first block of the multi-block list is deflated");
+		}
+
+		for (int cut : new int[] { 1, b.length / 2, b.length - 1 }) {
+			try {
+				URLBlocks.read(new BinaryCodec.Reader(Arrays.copyOf(b, cut), 0, cut));
+				check(false, "list cut to " + cut + " bytes is refused");
+			} catch (IOException e) {
+				check(true, "list cut to " + cut + " bytes is refused");
+			}
+		}
+	}
+
+	/*
+	 * Function name: checkMessages()
+	 * 
+	 * Description: This function encodes messages whose URL lists are
+	 * front-coded, the urls of a reply and the values of a TRANSFER, and
+	 * decodes them again. A frame whose list count is larger than the frame
+	 * must be refused with an IOException.
+	 */
+	private static void checkMessages() throws IOException {
+		Message m = new Message(ChordUtil.OK);
+		m.key  = BigInteger.valueOf(12345);
+		m.urls = urls(new Random(2), 300);
+		m.cursor = "www.example.com/next";
+
+		byte[] b = BinaryCodec.encode(m);
+		Message back = BinaryCodec.decode(b, 0, b.length);
+		check(back.key.equals(m.key), "message key");
+		check(back.urls.equals(sorted(m.urls)), "message URLs");
+		check(m.cursor.equals(back.cursor), "message cursor");
+
+		Message transfer = new Message(ChordUtil.TRANSFER);
+		transfer.keys   = new ArrayList<BigInteger>();
+		transfer.values = new ArrayList<ArrayList<String>>();
+		for (int i = 0; i < 3; i++) {
+			transfer.keys.add(BigInteger.valueOf(i));
+			transfer.values.add(urls(new Random(10 + i), i * 100));
+		}
+
+		b = BinaryCodec.encode(transfer);
+		back = BinaryCodec.decode(b, 0, b.length);
+		check(back.keys.equals(transfer.keys), "TRANSFER keys");
+		for (int i = 0; i < 3; i++) {
+			check(back.values.get(i).equals(sorted(transfer.values.get(i))), "TRANSFER values " + i);
+		}
+
+		// A list count larger than the frame must be refused before it is allocated
+		for (int last : new int[] { 0x0F, 0x07 }) {
+			byte[] bad = { 0, (byte) 0x80, 0x01, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) last };
+			try {
+				BinaryCodec.decode(bad, 0, bad.length);
+				check(false, "oversized list count refused");
+			} catch (IOException e) {
+				check(true, "oversized list count refused");
+			}
+		}
+	}
+
+	/*
+	 * Function name: checkIntSet()
+	 * 
+	 * Description: This function builds IntSets with array and bitmap
+	 * containers, checks their members and set operations against a
+	 * TreeSet, and checks that they survive serialization.
+	 */
+	private static void checkIntSet() throws IOException, ClassNotFoundException {
+		check(IntSet.EMPTY.isEmpty() && IntSet.EMPTY.toArray().length == 0, "empty IntSet");
+		check(IntSet.of(new int[0], 0).isEmpty(), "IntSet of no values");
+
+		Random rnd = new Random(3);
+		for (int round = 0; round < 20; round++) {
+			int range = (round % 2 == 0) ? 200000 : 5000;
+			TreeSet<Integer> x = new TreeSet<Integer>();
+			TreeSet<Integer> y = new TreeSet<Integer>();
+			IntSet a = IntSet.of(values(rnd, range, 8000, x), 8000);
+			IntSet b = IntSet.of(values(rnd, range, 3000, y), 3000);
+			check(same(a, x) && same(b, y), "IntSet members, round " + round);
+
+			TreeSet<Integer> union = new TreeSet<Integer>(x);
+			union.addAll(y);
+			TreeSet<Integer> both = new TreeSet<Integer>(x);
+			both.retainAll(y);
+			TreeSet<Integer> only = new TreeSet<Integer>(x);
+			only.removeAll(y);
+			check(same(a.or(b), union), "IntSet or, round " + round);
+			check(same(a.and(b), both), "IntSet and, round " + round);
+			check(same(a.andNot(b), only), "IntSet andNot, round " + round);
+			for (int i = 0; i < 100; i++) {
+				int v = rnd.nextInt(range);
+				check(a.contains(v) == x.contains(v), "IntSet contains " + v);
+			}
+
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			ObjectOutputStream out = new ObjectOutputStream(bytes);
+			out.writeObject(a);
+			out.close();
+			ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+			check(same((IntSet) in.readObject(), x), "IntSet serialization, round " + round);
+		}
+	}
+
+	/*
+	 * Function name: checkIndexLog()
+	 * 
+	 * Description: This function writes changes through an IndexLog, takes a
+	 * snapshot part way, and loads the directory into a new index, which must
+	 * equal the first. It then cuts the last record of the newest segment
+	 * short and loads the directory again: every change but that one must
+	 * be back.
+	 */
+	private static void checkIndexLog() throws IOException {
+		check(FSYNC_POLICY.equals("always"), "IndexLog is checked with -Dchord.fsync=always");
+		File dir = Files.createTempDirectory("chord-check").toFile();
+
+		try {
+			InvertedIndex index = new InvertedIndex();
+			index.setLog(IndexLog.open(dir, index));
+			Random rnd = new Random(4);
+			for (int i = 0; i < 50; i++) {
+				index.append(BigInteger.valueOf(i % 20), urls(rnd, 1 + rnd.nextInt(30)));
+			}
+			index.put(BigInteger.valueOf(100), urls(rnd, 200));
+			index.remove(BigInteger.valueOf(3));
+			index.sync();
+
+			index.log().snapshot();
+			check(new File(dir, "snapshot.dat").isFile(), "snapshot written");
+
+			for (int i = 0; i < 20; i++) {
+				index.append(BigInteger.valueOf(i + 10), urls(rnd, 5));
+			}
+			index.put(BigInteger.valueOf(5), Arrays.asList("www.replaced.com"));
+			index.remove(BigInteger.valueOf(7));
+			index.sync();
+
+			InvertedIndex loaded = new InvertedIndex();
+			loaded.setLog(IndexLog.open(dir, loaded));
+			check(same(loaded, index), "snapshot and log loaded");
+
+			// The last record is cut short, as if the node stopped while writing it
+			loaded.append(BigInteger.valueOf(1), Arrays.asList("www.kept.com"));
+			loaded.append(BigInteger.valueOf(2), Arrays.asList("www.torn.com"));
+			loaded.sync();
+
+			File[] segments = dir.listFiles();
+			Arrays.sort(segments);
+			File newest = null;
+			for (File f : segments) {
+				if (f.getName().startsWith("wal-") && f.length() > 0) {
+					newest = f;
+				}
+			}
+			check(newest != null, "log segment written");
+			RandomAccessFile file = new RandomAccessFile(newest, "rw");
+			file.setLength(file.length() - 3);
+			file.close();
+
+			InvertedIndex torn = new InvertedIndex();
+			torn.setLog(IndexLog.open(dir, torn));
+			check(torn.get(BigInteger.valueOf(1)).contains("www.kept.com"), "record before the torn one kept");
+			check(!torn.get(BigInteger.valueOf(2)).contains("www.torn.com"), "torn record dropped");
+			check(torn.get(BigInteger.valueOf(2)).size() == index.get(BigInteger.valueOf(2)).size(), "tag of the torn record unchanged");
+
+		} finally {
+			for (File f : dir.listFiles()) {
+				f.delete();
+			}
+			dir.delete();
+		}
+	}
+
+	// Writes urls with URLBlocks, checks that they read back sorted, and
+	// returns the bytes written
+	private static byte[] roundTrip(String name, List<String> urls) throws IOException {
+		BinaryCodec.Writer w = new BinaryCodec.Writer();
+		URLBlocks.write(w, urls);
+		byte[] b = w.toByteArray();
+
+		BinaryCodec.Reader r = new BinaryCodec.Reader(b, 0, b.length);
+		check(URLBlocks.read(r).equals(sorted(urls)) && !r.hasMore(), name);
+		return b;
+	}
+
+	// Returns n distinct URLs that share most of their prefixes
+	private static ArrayList<String> urls(Random rnd, int n) {
+		String[] hosts = { "www.example.com", "news.example.org", "en.wikipedia.org", "docs.oracle.com" };
+		TreeSet<String> urls = new TreeSet<String>();
+		while (urls.size() < n) {
+			urls.add("https://" + hosts[rnd.nextInt(hosts.length)] + "/articles/" + (2020 + rnd.nextInt(6)) + "/item-"
+					+ rnd.nextInt(1000000) + ".html");
+		}
+		ArrayList<String> list = new ArrayList<String>(urls);
+		Collections.shuffle(list, rnd);
+		return list;
+	}
+
+	// Returns a copy of urls in the order URLBlocks writes them
+	private static ArrayList<String> sorted(List<String> urls) {
+		ArrayList<String> copy = new ArrayList<String>(urls);
+		Collections.sort(copy, BYTE_ORDER);
+		return copy;
+	}
+
+	// Returns n random values below range, with repeats, and adds them to set
+	private static int[] values(Random rnd, int range, int n, TreeSet<Integer> set) {
+		int[] v = new int[n];
+		for (int i = 0; i < n; i++) {
+			v[i] = (rnd.nextInt(4) == 0) ? rnd.nextInt(range) + (1 << 20) : rnd.nextInt(range);
+			set.add(v[i]);
+		}
+		return v;
+	}
+
+	private static boolean same(IntSet set, TreeSet<Integer> expected) {
+		int[] members = set.toArray();
+		if (members.length != expected.size() || set.size() != expected.size()) {
+			return false;
+		}
+		int i = 0;
+		for (int v : expected) {
+			if (members[i++] != v) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static boolean same(InvertedIndex a, InvertedIndex b) {
+		if (!a.keySet().equals(b.keySet())) {
+			return false;
+		}
+		for (BigInteger key : a.keySet()) {
+			if (!new TreeSet<String>(a.get(key)).equals(new TreeSet<String>(b.get(key)))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	// Counts a check, or ends the run if it failed
+	private static void check(boolean ok, String name) {
+		checks++;
+		if (!ok) {
+			System.out.println("FormatCheck FAILED: " + name);
+			System.exit(1);
+		}
+	}
+}